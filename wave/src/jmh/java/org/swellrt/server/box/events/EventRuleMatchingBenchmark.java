@@ -0,0 +1,83 @@
+package org.swellrt.server.box.events;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of matching an event against a growing number of rules of the same
+ * app and data type: a scan calling {@link EventRule#match(Event)} on every
+ * rule, as the dispatcher used to do, versus a lookup in
+ * {@link EventRuleIndex} plus the conditions of the candidates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventRuleMatchingBenchmark {
+
+  private static final Event.Type[] TYPES = {Event.Type.MAP_ENTRY_UPDATED,
+      Event.Type.LIST_ITEM_ADDED, Event.Type.LIST_ITEM_REMOVED};
+
+  @Param({"10", "100", "1000", "10000"})
+  public int rules;
+
+  private List<EventRule> ruleList;
+  private EventRuleIndex index;
+  private Event event;
+
+  @Setup
+  public void setUp() throws InvalidEventExpressionException {
+    Map<String, String> conditions = new HashMap<String, String>();
+    conditions.put("root.status", "open");
+
+    ruleList = new ArrayList<EventRule>();
+    for (int i = 0; i < rules; i++) {
+      String path = i % 2 == 0 ? "root.field" + i + ".?.value" : "root.field" + i + ".value";
+      ruleList.add(new EventRule("RULE_" + i, "APP", "DATATYPE", TYPES[i % TYPES.length],
+          path, conditions));
+    }
+    index = new EventRuleIndex(ruleList);
+
+    Map<String, String> contextData = new HashMap<String, String>();
+    contextData.put("root.status", "open");
+    Event.Builder builder = new Event.Builder();
+    builder.app("APP").dataType("DATATYPE").contextData(contextData);
+    // Matches a single rule: even fields have a wildcard, every 3rd one is a
+    // MAP_ENTRY_UPDATED rule
+    event = builder.build(Event.Type.MAP_ENTRY_UPDATED, "root.field" + (rules / 12 * 6)
+        + ".3.value");
+  }
+
+  @Benchmark
+  public void linearScan(Blackhole bh) {
+    for (EventRule rule : ruleList) {
+      if (rule.match(event)) bh.consume(rule);
+    }
+  }
+
+  @Benchmark
+  public void indexLookup(Blackhole bh) {
+    for (EventRule rule : index.getCandidates(event)) {
+      if (rule.matchConditions(event)) bh.consume(rule);
+    }
+  }
+
+}
@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.rpc;
+
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.waveprotocol.box.common.comms.WaveClientRpc.ProtocolWaveletUpdate;
+import org.waveprotocol.box.server.rpc.ProtoSerializer.SerializationException;
+import org.waveprotocol.wave.federation.Proto.ProtocolDocumentOperation;
+import org.waveprotocol.wave.federation.Proto.ProtocolDocumentOperation.Component;
+import org.waveprotocol.wave.federation.Proto.ProtocolDocumentOperation.Component.ElementStart;
+import org.waveprotocol.wave.federation.Proto.ProtocolDocumentOperation.Component.KeyValuePair;
+import org.waveprotocol.wave.federation.Proto.ProtocolHashedVersion;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletOperation;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletOperation.MutateDocument;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of encoding and decoding a {@link ProtocolWaveletUpdate} of a growing
+ * number of deltas: through a JSON tree of the gson DTOs, as the websocket
+ * channel used to do, versus the streaming codecs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtoSerializerBenchmark {
+
+  private static final String TYPE = "ProtocolWaveletUpdate";
+
+  @Param({"1", "10", "100"})
+  public int deltas;
+
+  private ProtoSerializer serializer;
+  private ProtocolWaveletUpdate update;
+  private String json;
+
+  @Setup
+  public void setUp() throws SerializationException {
+    serializer = new ProtoSerializer();
+    ProtocolWaveletUpdate.Builder builder = ProtocolWaveletUpdate.newBuilder()
+        .setWaveletName("example.com/w+benchmark/example.com/conv+root")
+        .setChannelId("ch1");
+    for (int i = 0; i < deltas; i++) {
+      // A typical keystroke-sized edit of a blip
+      ProtocolDocumentOperation op = ProtocolDocumentOperation.newBuilder()
+          .addComponent(Component.newBuilder().setRetainItemCount(10 + i))
+          .addComponent(Component.newBuilder().setElementStart(ElementStart.newBuilder()
+              .setType("line")
+              .addAttribute(KeyValuePair.newBuilder().setKey("t").setValue("h2"))))
+          .addComponent(Component.newBuilder().setElementEnd(true))
+          .addComponent(Component.newBuilder().setCharacters("Some typed text " + i))
+          .addComponent(Component.newBuilder().setRetainItemCount(40))
+          .build();
+      builder.addAppliedDelta(ProtocolWaveletDelta.newBuilder()
+          .setAuthor("author@example.com")
+          .setHashedVersion(hashedVersion(100 + i))
+          .addOperation(ProtocolWaveletOperation.newBuilder().setMutateDocument(
+              MutateDocument.newBuilder().setDocumentId("b+abc").setDocumentOperation(op))));
+    }
+    update = builder.setResultingVersion(hashedVersion(100 + deltas)).build();
+    json = serializer.toJsonString(update);
+  }
+
+  private static ProtocolHashedVersion hashedVersion(long version) {
+    byte[] hash = new byte[20];
+    hash[0] = (byte) version;
+    return ProtocolHashedVersion.newBuilder()
+        .setVersion(version)
+        .setHistoryHash(ByteString.copyFrom(hash))
+        .build();
+  }
+
+  @Benchmark
+  public String treeToJson() throws SerializationException {
+    return serializer.toJson(update).toString();
+  }
+
+  @Benchmark
+  public String streamToJson() throws SerializationException {
+    return serializer.toJsonString(update);
+  }
+
+  @Benchmark
+  public Message treeFromJson() throws SerializationException {
+    return serializer.fromJson(new JsonParser().parse(json), TYPE);
+  }
+
+  @Benchmark
+  public Message streamFromJson() throws SerializationException {
+    return serializer.readJson(new JsonReader(new StringReader(json)), TYPE);
+  }
+}
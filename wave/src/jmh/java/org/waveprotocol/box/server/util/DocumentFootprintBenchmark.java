@@ -0,0 +1,199 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.util;
+
+import com.google.common.base.Ticker;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.waveprotocol.wave.model.document.operation.DocInitialization;
+import org.waveprotocol.wave.model.document.operation.DocOp;
+import org.waveprotocol.wave.model.document.operation.impl.AnnotationBoundaryMapImpl;
+import org.waveprotocol.wave.model.document.operation.impl.AttributesImpl;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpBuilder;
+import org.waveprotocol.wave.model.document.util.EmptyDocument;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.operation.OperationException;
+import org.waveprotocol.wave.model.schema.SchemaCollection;
+import org.waveprotocol.wave.model.wave.data.DocumentFactory;
+import org.waveprotocol.wave.model.wave.data.DocumentOperationSink;
+import org.waveprotocol.wave.model.wave.data.impl.ObservablePluggableMutableDocument;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap retained by server documents built from typing deltas and then left
+ * alone, as the indexed documents the wavelet snapshots used to hold versus
+ * {@link CompactDocument}.
+ * The retained heap is reported by the {@code retainedBytes} and
+ * {@code documents} secondary results; the score is the time to apply the
+ * deltas to all the documents.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DocumentFootprintBenchmark {
+
+  /**
+   * Heap retained by the documents built, and their number. JMH sums both
+   * over the measurement iterations, their ratio is the heap retained per
+   * document.
+   */
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class Footprint {
+    public long retainedBytes;
+    public long documents;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      retainedBytes = 0;
+      documents = 0;
+    }
+  }
+
+  /** A clock moved forward by hand, to let documents go cold at once. */
+  private static final class ManualTicker extends Ticker {
+    private long nanos;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
+
+  private static final int DOCUMENTS = 1000;
+  private static final WaveletId WAVELET_ID = WaveletId.of("example.com", "conv+root");
+  private static final String BOLD = "style/fontWeight";
+
+  @Param({"indexed", "compact"})
+  public String representation;
+
+  @Param({"5", "50"})
+  public int paragraphs;
+
+  private final ManualTicker ticker = new ManualTicker();
+  private DocumentFactory<?> factory;
+  private List<DocOp> deltas;
+
+  @Setup
+  public void setUp() {
+    factory = "compact".equals(representation)
+        ? new DocumentFactory<CompactDocument>() {
+            @Override
+            public CompactDocument create(WaveletId waveletId, String docId,
+                DocInitialization content) {
+              return new CompactDocument(
+                  SchemaCollection.empty().getSchemaForId(waveletId, docId), content, ticker);
+            }
+          }
+        : ObservablePluggableMutableDocument.createFactory(SchemaCollection.empty());
+
+    // A blip typed a few words at a time, with a bold word per paragraph
+    deltas = new ArrayList<DocOp>();
+    deltas.add(new DocOpBuilder()
+        .elementStart("body", new AttributesImpl())
+        .elementStart("line", new AttributesImpl())
+        .elementEnd()
+        .elementEnd()
+        .build());
+    int length = 4;
+    for (int p = 0; p < paragraphs; p++) {
+      if (p > 0) {
+        deltas.add(new DocOpBuilder()
+            .retain(length - 1)
+            .elementStart("line", new AttributesImpl())
+            .elementEnd()
+            .retain(1)
+            .build());
+        length += 2;
+      }
+      for (int w = 0; w < 12; w++) {
+        String word = "word" + w + " ";
+        deltas.add(new DocOpBuilder()
+            .retain(length - 1)
+            .characters(word)
+            .retain(1)
+            .build());
+        if (w == 3) {
+          // Bold the word once typed, so later typing does not inherit it
+          deltas.add(new DocOpBuilder()
+              .retain(length - 1)
+              .annotationBoundary(new AnnotationBoundaryMapImpl(new String[0],
+                  new String[] {BOLD}, new String[] {null}, new String[] {"bold"}))
+              .retain(word.length() - 1)
+              .annotationBoundary(new AnnotationBoundaryMapImpl(new String[] {BOLD},
+                  new String[0], new String[0], new String[0]))
+              .retain(2)
+              .build());
+        }
+        length += word.length();
+      }
+    }
+  }
+
+  @Benchmark
+  public List<DocumentOperationSink> buildDocuments(Footprint footprint)
+      throws OperationException {
+    long before = usedHeap();
+    List<DocumentOperationSink> documents = new ArrayList<DocumentOperationSink>(DOCUMENTS);
+    for (int i = 0; i < DOCUMENTS; i++) {
+      DocumentOperationSink document =
+          factory.create(WAVELET_ID, "b+" + i, EmptyDocument.EMPTY_DOCUMENT);
+      for (DocOp delta : deltas) {
+        document.consume(delta);
+      }
+      if (document instanceof CompactDocument) {
+        // Large documents are expanded while typed into; a snapshot copy once
+        // they have gone cold packs them again.
+        ticker.nanos += CompactDocument.HOT_WINDOW_NANOS;
+        ((CompactDocument) document).copy();
+      }
+      documents.add(document);
+    }
+    footprint.retainedBytes += usedHeap() - before;
+    footprint.documents += DOCUMENTS;
+    return documents;
+  }
+
+  private static long usedHeap() {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+}
@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.waveprotocol.wave.model.document.operation.DocInitialization;
+import org.waveprotocol.wave.model.document.operation.DocOp;
+import org.waveprotocol.wave.model.document.operation.automaton.DocumentSchema;
+import org.waveprotocol.wave.model.document.operation.impl.AttributesImpl;
+import org.waveprotocol.wave.model.document.operation.impl.DocInitializationBuilder;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpBuilder;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpValidator;
+import org.waveprotocol.wave.model.operation.OperationException;
+import org.waveprotocol.wave.model.wave.data.impl.ObservablePluggableMutableDocument;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a keystroke, one character inserted and deleted again in the middle
+ * of a document, on packed content, which is rebuilt for every operation,
+ * versus the indexed document, whose cost does not depend on the size.
+ * {@link CompactDocument} expands documents which keep receiving operations
+ * past the size where rebuilding gets expensive.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DocumentKeystrokeBenchmark {
+
+  private static final DocumentSchema SCHEMA = DocumentSchema.NO_SCHEMA_CONSTRAINTS;
+  private static final int LINE_LENGTH = 100;
+
+  /** Approximate number of characters in the document. */
+  @Param({"500", "2000", "10000", "50000"})
+  public int size;
+
+  private PackedDocument packed;
+  private ObservablePluggableMutableDocument indexed;
+  private DocOp insert;
+  private DocOp delete;
+
+  @Setup
+  public void setUp() throws OperationException {
+    StringBuilder line = new StringBuilder();
+    for (int i = 0; i < LINE_LENGTH; i++) {
+      line.append((char) ('a' + i % 26));
+    }
+    int lines = Math.max(1, size / LINE_LENGTH);
+    DocInitializationBuilder builder = new DocInitializationBuilder();
+    builder.elementStart("body", new AttributesImpl());
+    for (int i = 0; i < lines; i++) {
+      builder.elementStart("line", new AttributesImpl()).elementEnd();
+      builder.characters(line.toString());
+    }
+    DocInitialization content = builder.elementEnd().build();
+
+    int length = 2 + lines * (LINE_LENGTH + 2);
+    int middle = 1 + lines / 2 * (LINE_LENGTH + 2) + 2 + LINE_LENGTH / 2;
+    insert = new DocOpBuilder().retain(middle).characters("x").retain(length - middle).build();
+    delete = new DocOpBuilder().retain(middle).deleteCharacters("x")
+        .retain(length - middle).build();
+
+    packed = PackedDocument.EMPTY.apply(content);
+    indexed = new ObservablePluggableMutableDocument(SCHEMA, content);
+  }
+
+  @Benchmark
+  public PackedDocument packedKeystroke() throws OperationException {
+    packed = applyPacked(applyPacked(packed, insert), delete);
+    return packed;
+  }
+
+  @Benchmark
+  public ObservablePluggableMutableDocument indexedKeystroke() throws OperationException {
+    indexed.consume(insert);
+    indexed.consume(delete);
+    return indexed;
+  }
+
+  /** Validates and applies an operation, as {@link CompactDocument} does. */
+  private static PackedDocument applyPacked(PackedDocument target, DocOp op)
+      throws OperationException {
+    if (!DocOpValidator.validate(null, SCHEMA, target, op).isValid()) {
+      throw new OperationException("Invalid operation " + op);
+    }
+    return target.apply(op);
+  }
+}
@@ -0,0 +1,117 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.waveprotocol.wave.model.document.operation.DocOp;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpBuilder;
+import org.waveprotocol.wave.model.operation.OperationException;
+import org.waveprotocol.wave.model.operation.wave.BlipContentOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperationContext;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of transforming a stale client delta against the server deltas applied
+ * since its target version, on a wavelet whose deltas are spread over many
+ * blips: the pairwise transform of every client op with every server op
+ * versus {@link DeltaTransformer#transformOpsByBlip(List, Iterable)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeltaTransformBenchmark {
+
+  private static final ParticipantId SERVER = ParticipantId.ofUnsafe("server@example.com");
+  private static final ParticipantId CLIENT = ParticipantId.ofUnsafe("client@example.com");
+  private static final int BLIPS = 20;
+  private static final int BLIP_SIZE = 100;
+  private static final int OPS_PER_DELTA = 3;
+
+  /** Number of server deltas the client delta is behind. */
+  @Param({"10", "50", "200"})
+  public int behind;
+
+  private List<List<WaveletOperation>> serverDeltas;
+  private List<WaveletOperation> clientOps;
+
+  private static WaveletOperation insert(ParticipantId author, int blip, int size, int at) {
+    DocOpBuilder builder = new DocOpBuilder();
+    if (at > 0) builder.retain(at);
+    builder.characters("x");
+    if (size > at) builder.retain(size - at);
+    DocOp op = builder.build();
+    return new WaveletBlipOperation("b+" + blip, new BlipContentOperation(
+        new WaveletOperationContext(author, 1234567890L, 1), op));
+  }
+
+  @Setup
+  public void setUp() {
+    int[] sizes = new int[BLIPS];
+    Arrays.fill(sizes, BLIP_SIZE);
+    serverDeltas = new ArrayList<List<WaveletOperation>>();
+    int n = 0;
+    for (int d = 0; d < behind; d++) {
+      List<WaveletOperation> delta = new ArrayList<WaveletOperation>();
+      for (int i = 0; i < OPS_PER_DELTA; i++, n++) {
+        int blip = n % BLIPS;
+        delta.add(insert(SERVER, blip, sizes[blip], (n * 7) % sizes[blip]));
+        sizes[blip]++;
+      }
+      serverDeltas.add(Collections.unmodifiableList(delta));
+    }
+    clientOps = Arrays.asList(insert(CLIENT, 0, BLIP_SIZE, BLIP_SIZE / 2),
+        insert(CLIENT, 1, BLIP_SIZE, 0));
+  }
+
+  @Benchmark
+  public List<WaveletOperation> pairwise() throws OperationException {
+    List<WaveletOperation> ops = clientOps;
+    for (List<WaveletOperation> serverOps : serverDeltas) {
+      ops = DeltaTransformer.transformOps(ops, serverOps);
+    }
+    return ops;
+  }
+
+  @Benchmark
+  public List<WaveletOperation> byBlip() throws OperationException {
+    return DeltaTransformer.transformOpsByBlip(clientOps, serverDeltas);
+  }
+}
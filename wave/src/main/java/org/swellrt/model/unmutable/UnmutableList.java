@@ -38,6 +38,7 @@ public class UnmutableList implements ReadableList<ReadableType>, ReadableTypeVi
   };
 
 
+  private final String documentId;
   private final UnmutableElementList<ReadableType, Void> docBasedList;
   private final UnmutableElementList<String, Void> values;
 
@@ -74,12 +75,13 @@ public class UnmutableList implements ReadableList<ReadableType>, ReadableTypeVi
             document);
 
 
-    return new UnmutableList(list, values);
+    return new UnmutableList(substrateDocumentId, list, values);
   }
 
 
-  private UnmutableList(UnmutableElementList<ReadableType, Void> list,
+  private UnmutableList(String documentId, UnmutableElementList<ReadableType, Void> list,
       UnmutableElementList<String, Void> values) {
+    this.documentId = documentId;
     this.docBasedList = list;
     this.values = values;
 
@@ -90,6 +92,11 @@ public class UnmutableList implements ReadableList<ReadableType>, ReadableTypeVi
     visitor.visit(this);
   }
 
+  /** @return the id of the document storing this list */
+  public String getDocumentId() {
+    return documentId;
+  }
+
   @Override
   public ReadableType get(int index) {
     return docBasedList.get(index);
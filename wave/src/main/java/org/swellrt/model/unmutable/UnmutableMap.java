@@ -100,15 +100,17 @@ public class UnmutableMap implements ReadableMap, ReadableTypeVisitable {
             new ReadableMapElementAdapter(model, document, values), eltMap, document);
 
 
-    return new UnmutableMap(map, values);
+    return new UnmutableMap(substrateDocumentId, map, values);
   }
 
+  private final String documentId;
   private final UnmutableBasicMap<String, ReadableType> docBasedMap;
   private final UnmutableElementList<String, Void> values;
 
 
-  private UnmutableMap(UnmutableBasicMap<String, ReadableType> map,
+  private UnmutableMap(String documentId, UnmutableBasicMap<String, ReadableType> map,
       UnmutableElementList<String, Void> values) {
+    this.documentId = documentId;
     this.docBasedMap = map;
     this.values = values;
   }
@@ -119,6 +121,11 @@ public class UnmutableMap implements ReadableMap, ReadableTypeVisitable {
     visitor.visit(this);
   }
 
+  /** @return the id of the document storing this map */
+  public String getDocumentId() {
+    return documentId;
+  }
+
   @Override
   public ReadableType get(String key) {
     return docBasedMap.get(key);
@@ -1,17 +1,37 @@
 package org.swellrt.server.box.events;
 
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
+import com.typesafe.config.Config;
 
+import org.waveprotocol.box.stat.Stat;
+import org.waveprotocol.box.stat.Timing;
 import org.waveprotocol.wave.util.logging.Log;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Default implementation of {@link EventDispatcher}
+ *
+ * Matching events are sent by a bounded pool of worker threads per target,
+ * so a slow target (e.g. a GCM push) neither delays other targets nor the
+ * event queue. When a target's queue is full, events are dropped or sent on
+ * the matching thread, as configured.
  * 
  * @author pablojan@gmail.com (Pablo Ojanguren)
  * 
@@ -20,21 +40,69 @@ public class EventDispatcherImpl implements EventDispatcher {
 
   private static final Log LOG = Log.get(EventDispatcherImpl.class);
 
+  @Stat(name = "event-dispatched", help = "Events sent by dispatch targets")
+  static final AtomicLong DISPATCHED = new AtomicLong();
+
+  @Stat(name = "event-dispatch-failed", help = "Events whose dispatch target failed")
+  static final AtomicLong FAILED = new AtomicLong();
+
+  @Stat(name = "event-dispatch-dropped",
+      help = "Events dropped because a dispatch target queue was full")
+  static final AtomicLong DROPPED = new AtomicLong();
+
+  @Stat(name = "event-dispatch-latency-ms",
+      help = "Total time from matching events to their dispatch completion, in ms")
+  static final AtomicLong LATENCY_MS = new AtomicLong();
+
   private final EventQueue queue;
 
+  private final int dispatchThreads;
+  private final int dispatchQueueCapacity;
+  private final EventOverflowPolicy dispatchOverflowPolicy;
+
+  /** Worker pools per target name */
+  private final Map<String, Executor> executors = new HashMap<String, Executor>();
+
   private Map<EventRuleClass, Set<EventRule>> rules;
 
   private Map<EventRuleClass, Set<String>> rulesExpressionsPath;
 
+  private EventRuleIndex index;
+
   private Map<String, EventDispatcherTarget> targets;
 
 
-  @Inject
+  /**
+   * Creates a dispatcher sending events on the thread matching them.
+   */
   public EventDispatcherImpl(EventQueue queue) {
+    this(queue, 0, 0, EventOverflowPolicy.DROP);
+  }
+
+  @Inject
+  public EventDispatcherImpl(EventQueue queue, Config config) {
+    this(queue, config.getInt("events.dispatch_thread_count"), config
+        .getInt("events.dispatch_queue_capacity"), EventOverflowPolicy.of(config
+        .getString("events.dispatch_overflow_policy")));
+  }
+
+  /**
+   * @param dispatchThreads worker threads per target, if 0 events are sent on
+   *        the thread matching them
+   * @param dispatchQueueCapacity maximum number of events waiting per target
+   * @param dispatchOverflowPolicy what to do with events when a target's queue
+   *        is full
+   */
+  public EventDispatcherImpl(EventQueue queue, int dispatchThreads, int dispatchQueueCapacity,
+      EventOverflowPolicy dispatchOverflowPolicy) {
     this.queue = queue;
+    this.dispatchThreads = dispatchThreads;
+    this.dispatchQueueCapacity = dispatchQueueCapacity;
+    this.dispatchOverflowPolicy = dispatchOverflowPolicy;
     this.targets = new HashMap<String, EventDispatcherTarget>();
     this.rules = new HashMap<EventRuleClass, Set<EventRule>>();
     this.rulesExpressionsPath = new HashMap<EventRuleClass, Set<String>>();
+    this.index = new EventRuleIndex(Collections.<EventRule> emptyList());
   }
 
 
@@ -66,6 +134,14 @@ public class EventDispatcherImpl implements EventDispatcher {
 
     }
 
+    // Compile rules once, so events are only checked against candidate rules
+
+    List<EventRule> indexedRules = new ArrayList<EventRule>();
+    for (Set<EventRule> ruleSet : this.rules.values()) {
+      indexedRules.addAll(ruleSet);
+    }
+    this.index = new EventRuleIndex(indexedRules);
+
     queue.registerConfigurator(this);
 
     queue.registerListener(this);
@@ -75,15 +151,13 @@ public class EventDispatcherImpl implements EventDispatcher {
   @Override
   public void onEvent(Event event) {
 
-    if (!rules.containsKey(EventRuleClass.ofEvent(event))) return;
-
-    for (EventRule rule : rules.get(EventRuleClass.ofEvent(event))) {
+    for (EventRule rule : index.getCandidates(event)) {
 
-      if (rule.match(event)) {
+      if (rule.matchConditions(event)) {
         for (String t : rule.getTargets()) {
 
           if (targets.containsKey(t))
-            targets.get(t).dispatch(rule, event, rule.getEventPayload(t, event));
+            dispatch(targets.get(t), rule, event, rule.getEventPayload(t, event));
           else
             LOG.warning("Event rule has a not registered target " + t);
         }
@@ -92,6 +166,55 @@ public class EventDispatcherImpl implements EventDispatcher {
   }
 
 
+  private void dispatch(final EventDispatcherTarget target, final EventRule rule,
+      final Event event, final String payload) {
+
+    final long matchTime = System.currentTimeMillis();
+    try {
+      getExecutor(target.getName()).execute(new Runnable() {
+
+        @Override
+        public void run() {
+          try {
+            target.dispatch(rule, event, payload);
+            DISPATCHED.incrementAndGet();
+          } catch (RuntimeException e) {
+            FAILED.incrementAndGet();
+            LOG.warning("Error dispatching event to " + target.getName() + ": " + event, e);
+          } finally {
+            int latency = (int) (System.currentTimeMillis() - matchTime);
+            LATENCY_MS.addAndGet(latency);
+            Timing.record("EventDispatch." + target.getName(), latency);
+          }
+        }
+
+      });
+    } catch (RejectedExecutionException e) {
+      DROPPED.incrementAndGet();
+      LOG.warning("Dispatch queue of " + target.getName() + " is full, event dropped: " + event);
+    }
+  }
+
+  private synchronized Executor getExecutor(String targetName) {
+    Executor executor = executors.get(targetName);
+    if (executor == null) {
+      if (dispatchThreads <= 0) {
+        executor = MoreExecutors.sameThreadExecutor();
+      } else {
+        RejectedExecutionHandler overflowHandler =
+            dispatchOverflowPolicy == EventOverflowPolicy.BLOCK
+                ? new ThreadPoolExecutor.CallerRunsPolicy() : new ThreadPoolExecutor.AbortPolicy();
+        executor =
+            new ThreadPoolExecutor(dispatchThreads, dispatchThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(dispatchQueueCapacity), new ThreadFactoryBuilder()
+                    .setNameFormat("EventDispatch-" + targetName + "-%d").setDaemon(true).build(),
+                overflowHandler);
+      }
+      executors.put(targetName, executor);
+    }
+    return executor;
+  }
+
   @Override
   public Set<EventRuleClass> getEventRuleClasses() {
     return rules.keySet();
@@ -0,0 +1,19 @@
+package org.swellrt.server.box.events;
+
+/**
+ * What the events subsystem does with an event when the queue it must wait in
+ * is full.
+ */
+public enum EventOverflowPolicy {
+
+  /** The event is discarded and counted as dropped. */
+  DROP,
+
+  /** The producing thread waits, slowing down the source of events. */
+  BLOCK;
+
+  public static EventOverflowPolicy of(String name) {
+    return valueOf(name.trim().toUpperCase());
+  }
+
+}
@@ -1,30 +1,151 @@
 package org.swellrt.server.box.events;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.typesafe.config.Config;
+
+import org.waveprotocol.box.stat.Stat;
 import org.waveprotocol.wave.util.logging.Log;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Default implementation of {@link EventQueue}.
+ *
+ * Events are buffered in a bounded queue and delivered to listeners by a pool
+ * of consumer threads, so event sources (wave bus notifications) never wait
+ * for rule matching or dispatching. When the queue is full, new events are
+ * dropped or the source is blocked, as configured.
+ */
 public class EventQueueImpl implements EventQueue {
 
   private static final Log LOG = Log.get(EventQueueImpl.class);
 
-  private List<EventQueueListener> listeners = new ArrayList<EventQueueListener>();
+  @Stat(name = "event-queue-depth", help = "Events waiting to be matched against event rules")
+  static final AtomicInteger QUEUE_DEPTH = new AtomicInteger();
+
+  @Stat(name = "event-queue-dropped", help = "Events dropped because the event queue was full")
+  static final AtomicLong DROPPED = new AtomicLong();
+
+  private final List<EventQueueListener> listeners =
+      new CopyOnWriteArrayList<EventQueueListener>();
 
   private Map<EventRuleClass, Set<String>> expressions =
  new HashMap<EventRuleClass, Set<String>>();
 
+  /** Pending events, null if events are delivered on the caller thread */
+  private final BlockingQueue<Event> queue;
+
+  private final EventOverflowPolicy overflowPolicy;
+
+  /**
+   * Creates a queue delivering events on the thread adding them.
+   */
+  public EventQueueImpl() {
+    this.queue = null;
+    this.overflowPolicy = null;
+  }
+
+  @Inject
+  public EventQueueImpl(Config config) {
+    this(config.getInt("events.queue_capacity"), config.getInt("events.queue_consumer_count"),
+        EventOverflowPolicy.of(config.getString("events.queue_overflow_policy")));
+  }
+
+  /**
+   * Creates a queue delivering events on consumer threads.
+   *
+   * @param capacity maximum number of pending events
+   * @param consumers number of consumer threads, if 0 events are delivered on
+   *        the thread adding them
+   * @param overflowPolicy what to do with new events when the queue is full
+   */
+  public EventQueueImpl(int capacity, int consumers, EventOverflowPolicy overflowPolicy) {
+    this.overflowPolicy = overflowPolicy;
+    if (consumers <= 0) {
+      this.queue = null;
+      return;
+    }
+
+    this.queue = new ArrayBlockingQueue<Event>(capacity);
+    ThreadFactory threadFactory =
+        new ThreadFactoryBuilder().setNameFormat("EventQueue-%d").setDaemon(true).build();
+    for (int i = 0; i < consumers; i++) {
+      threadFactory.newThread(new Runnable() {
+
+        @Override
+        public void run() {
+          while (true) {
+            Event event;
+            try {
+              event = queue.take();
+            } catch (InterruptedException e) {
+              return;
+            }
+            QUEUE_DEPTH.decrementAndGet();
+            deliver(event);
+          }
+        }
+
+      }).start();
+    }
+  }
+
   @Override
   public void add(Event event) {
 
-    LOG.info("Added new event to queue: " + event);
+    LOG.fine("Added new event to queue: " + event);
+
+    if (queue == null) {
+      deliver(event);
+      return;
+    }
+
+    QUEUE_DEPTH.incrementAndGet();
+    boolean added = false;
+    if (overflowPolicy == EventOverflowPolicy.BLOCK) {
+      try {
+        queue.put(event);
+        added = true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    } else {
+      added = queue.offer(event);
+    }
+
+    if (!added) {
+      QUEUE_DEPTH.decrementAndGet();
+      DROPPED.incrementAndGet();
+      LOG.warning("Event queue is full, event dropped: " + event);
+    }
+  }
+
+  private void deliver(Event event) {
+    for (EventQueueListener l : listeners) {
+      try {
+        l.onEvent(event);
+      } catch (RuntimeException e) {
+        LOG.warning("Error processing event " + event, e);
+      }
+    }
+  }
 
-    for (EventQueueListener l : listeners)
-      l.onEvent(event);
+  /**
+   * @return the number of events waiting to be delivered
+   */
+  public int getDepth() {
+    return queue != null ? queue.size() : 0;
   }
 
   @Override
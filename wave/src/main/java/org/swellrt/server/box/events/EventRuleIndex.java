@@ -0,0 +1,124 @@
+package org.swellrt.server.box.events;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Discrimination index of event rules, built once from the rule set.
+ *
+ * Rules are grouped by rule class (app, data type) and event type, then
+ * arranged in a tree by the segments of their paths. The root segment is
+ * ignored and '?' segments match any segment, as in
+ * {@link ExpressionParser#comparePaths(String, String)}. Looking up an event
+ * returns the rules whose app, data type, type and path match, so only their
+ * conditions are left to be evaluated.
+ */
+public class EventRuleIndex {
+
+  /** Node of the path tree, for one path segment. */
+  private static final class Node {
+
+    private final Map<String, Node> children = new HashMap<String, Node>();
+    private Node wildcard;
+    private final List<EventRule> rules = new ArrayList<EventRule>();
+
+    Node child(String segment) {
+      if (segment.equals("?")) {
+        if (wildcard == null) wildcard = new Node();
+        return wildcard;
+      }
+      Node child = children.get(segment);
+      if (child == null) {
+        child = new Node();
+        children.put(segment, child);
+      }
+      return child;
+    }
+
+    void collect(String[] segments, int index, List<EventRule> matches) {
+      if (index == segments.length) {
+        matches.addAll(rules);
+        return;
+      }
+      Node child = children.get(segments[index]);
+      if (child != null) child.collect(segments, index + 1, matches);
+      if (wildcard != null) wildcard.collect(segments, index + 1, matches);
+    }
+  }
+
+  /** Rules of a rule class and event type. */
+  private static final class TypeEntry {
+
+    private final Node tree = new Node();
+
+    /** Rules without path or with a root-only path, matched verbatim. */
+    private final Map<String, List<EventRule>> exact = new HashMap<String, List<EventRule>>();
+
+    void add(EventRule rule) {
+      String path = rule.getPath();
+      String[] segments = path != null ? path.split("\\.") : null;
+      if (segments == null || segments.length <= 1) {
+        List<EventRule> l = exact.get(path);
+        if (l == null) {
+          l = new ArrayList<EventRule>();
+          exact.put(path, l);
+        }
+        l.add(rule);
+        return;
+      }
+      Node node = tree;
+      for (int i = 1; i < segments.length; i++) {
+        node = node.child(segments[i]);
+      }
+      node.rules.add(rule);
+    }
+
+    List<EventRule> lookup(String path) {
+      String[] segments = path != null ? path.split("\\.") : null;
+      if (segments == null || segments.length <= 1) {
+        List<EventRule> l = exact.get(path);
+        return l != null ? l : Collections.<EventRule> emptyList();
+      }
+      List<EventRule> matches = new ArrayList<EventRule>();
+      tree.collect(segments, 1, matches);
+      return matches;
+    }
+  }
+
+  private final Map<EventRuleClass, Map<Event.Type, TypeEntry>> entries =
+      new HashMap<EventRuleClass, Map<Event.Type, TypeEntry>>();
+
+  public EventRuleIndex(Collection<EventRule> rules) {
+    for (EventRule r : rules) {
+      EventRuleClass ruleClass = EventRuleClass.ofEventRule(r);
+      Map<Event.Type, TypeEntry> types = entries.get(ruleClass);
+      if (types == null) {
+        types = new HashMap<Event.Type, TypeEntry>();
+        entries.put(ruleClass, types);
+      }
+      TypeEntry entry = types.get(r.getType());
+      if (entry == null) {
+        entry = new TypeEntry();
+        types.put(r.getType(), entry);
+      }
+      entry.add(r);
+    }
+  }
+
+  /**
+   * @return the rules whose app, data type, event type and path match the
+   *         event. Their conditions are not evaluated.
+   */
+  public List<EventRule> getCandidates(Event event) {
+    Map<Event.Type, TypeEntry> types = entries.get(EventRuleClass.ofEvent(event));
+    if (types == null) return Collections.emptyList();
+    TypeEntry entry = types.get(event.getType());
+    if (entry == null) return Collections.emptyList();
+    return entry.lookup(event.getPath());
+  }
+
+}
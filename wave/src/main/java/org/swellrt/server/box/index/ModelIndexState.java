@@ -0,0 +1,251 @@
+package org.swellrt.server.box.index;
+
+import com.google.common.base.Objects;
+import com.mongodb.BasicDBObject;
+
+import org.swellrt.model.ReadableType;
+import org.swellrt.model.unmutable.UnmutableList;
+import org.swellrt.model.unmutable.UnmutableMap;
+import org.swellrt.model.unmutable.UnmutableModel;
+import org.swellrt.model.unmutable.UnmutableTypeFactory;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Structure of an indexed data model: the path of each map, list and text
+ * document and the entries of each map and list, as of the indexed version.
+ *
+ * It allows to turn the documents changed by committed deltas into targeted
+ * $set/$unset updates of the model's MongoDB document, as long as no map,
+ * list or text is added, removed or moved.
+ */
+public class ModelIndexState {
+
+  /** A container entry stored in its own document rather than inline. */
+  static final class DocumentRef {
+    private final String documentId;
+
+    DocumentRef(String documentId) {
+      this.documentId = documentId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof DocumentRef && documentId.equals(((DocumentRef) o).documentId);
+    }
+
+    @Override
+    public int hashCode() {
+      return documentId.hashCode();
+    }
+  }
+
+  private static final Comparator<TransformedWaveletDelta> BY_VERSION =
+      new Comparator<TransformedWaveletDelta>() {
+        @Override
+        public int compare(TransformedWaveletDelta d1, TransformedWaveletDelta d2) {
+          return Long.compare(d1.getAppliedAtVersion(), d2.getAppliedAtVersion());
+        }
+      };
+
+  private final Map<String, String> documentPaths;
+  private final Map<String, String> textPaths;
+  private final Map<String, Map<String, Object>> mapEntries;
+  private final Map<String, List<Object>> listEntries;
+  private final boolean complete;
+  private long version;
+
+  ModelIndexState(Map<String, String> documentPaths, Map<String, String> textPaths,
+      Map<String, Map<String, Object>> mapEntries, Map<String, List<Object>> listEntries,
+      boolean complete, long version) {
+    this.documentPaths = documentPaths;
+    this.textPaths = textPaths;
+    this.mapEntries = mapEntries;
+    this.listEntries = listEntries;
+    this.complete = complete;
+    this.version = version;
+  }
+
+  /**
+   * @return whether every map and list of the model was tracked by document,
+   *         otherwise changes can't be applied incrementally
+   */
+  public boolean isComplete() {
+    return complete;
+  }
+
+  /** @return the map between text documents and their paths in the model */
+  public Map<String, String> getTextPaths() {
+    return Collections.unmodifiableMap(textPaths);
+  }
+
+  /** @return the wavelet version the state is up to date with */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Checks whether the deltas can be applied on this state: they must follow
+   * on from the indexed version without gaps. Deltas already reflected by the
+   * state are harmless since changes are read from the current model.
+   */
+  public boolean canApply(List<TransformedWaveletDelta> deltas) {
+    List<TransformedWaveletDelta> sorted = new ArrayList<TransformedWaveletDelta>(deltas);
+    Collections.sort(sorted, BY_VERSION);
+    long covered = version;
+    for (TransformedWaveletDelta d : sorted) {
+      if (d.getAppliedAtVersion() > covered) return false;
+      covered = Math.max(covered, d.getResultingVersion().getVersion());
+    }
+    return true;
+  }
+
+  /**
+   * Computes the MongoDB update of the model document for a set of changed
+   * documents, reading their current content from the model. The state is
+   * updated accordingly only if an update is returned.
+   *
+   * @param model the current data model
+   * @param documentIds ids of documents changed by the deltas
+   * @param participantsChanged whether the deltas added or removed participants
+   * @param visitor visitor to build the BSON values
+   * @param version the wavelet version the changes lead to
+   * @return the update, empty if the index is not affected, or null if the
+   *         model structure has changed and must be fully reindexed
+   */
+  public BasicDBObject update(UnmutableModel model, Set<String> documentIds,
+      boolean participantsChanged, ModelIndexerVisitor visitor, long version) {
+
+    BasicDBObject set = new BasicDBObject();
+    BasicDBObject unset = new BasicDBObject();
+    Map<String, Map<String, Object>> changedMaps = new HashMap<String, Map<String, Object>>();
+    Map<String, List<Object>> changedLists = new HashMap<String, List<Object>>();
+
+    for (String documentId : documentIds) {
+      String path = documentPaths.get(documentId);
+
+      // Documents out of the indexed tree become part of it only when a
+      // container refers to them, which is a structure change.
+      if (path == null) continue;
+
+      if (textPaths.containsKey(documentId)) {
+        ReadableType text = UnmutableTypeFactory.deserialize(model, null, documentId);
+        if (text == null) return null;
+        set.put(path, visitor.toDBValue(text));
+
+      } else if (mapEntries.containsKey(documentId)) {
+        UnmutableMap map = UnmutableMap.deserialize(model, documentId);
+        if (map == null) return null;
+        Map<String, Object> entries = getEntries(map, visitor);
+        if (entries == null
+            || !diffMap(path, mapEntries.get(documentId), entries, set, unset)) return null;
+        changedMaps.put(documentId, entries);
+
+      } else if (listEntries.containsKey(documentId)) {
+        UnmutableList list = UnmutableList.deserialize(model, documentId);
+        if (list == null) return null;
+        List<Object> entries = getEntries(list, visitor);
+        if (!diffList(path, listEntries.get(documentId), entries, set)) return null;
+        changedLists.put(documentId, entries);
+      }
+    }
+
+    if (participantsChanged) {
+      set.put("participants", visitor.toDBList(model.getParticipants()));
+    }
+
+    mapEntries.putAll(changedMaps);
+    listEntries.putAll(changedLists);
+    this.version = Math.max(this.version, version);
+
+    BasicDBObject update = new BasicDBObject();
+    if (!set.isEmpty()) update.put("$set", set);
+    if (!unset.isEmpty()) update.put("$unset", unset);
+    return update;
+  }
+
+  /**
+   * Returns the current entries of a map, or null if a key can't be used as
+   * part of a MongoDB field path.
+   */
+  private static Map<String, Object> getEntries(UnmutableMap map, ModelIndexerVisitor visitor) {
+    Map<String, Object> entries = new HashMap<String, Object>();
+    for (String k : map.keySet()) {
+      if (k.isEmpty() || k.contains(".") || k.startsWith("$")) return null;
+      ReadableType t = map.get(k);
+      if (t != null) entries.put(k, getEntry(t, visitor));
+    }
+    return entries;
+  }
+
+  private static List<Object> getEntries(UnmutableList list, ModelIndexerVisitor visitor) {
+    List<Object> entries = new ArrayList<Object>();
+    for (ReadableType t : list.getValues()) {
+      entries.add(getEntry(t, visitor));
+    }
+    return entries;
+  }
+
+  private static Object getEntry(ReadableType t, ModelIndexerVisitor visitor) {
+    String documentId = ModelIndexerVisitor.getDocumentId(t);
+    return documentId != null ? new DocumentRef(documentId) : visitor.toDBValue(t);
+  }
+
+  /**
+   * Adds the changes between two versions of a map's entries to the update.
+   *
+   * @return false if a container entry changed
+   */
+  private static boolean diffMap(String path, Map<String, Object> before,
+      Map<String, Object> after, BasicDBObject set, BasicDBObject unset) {
+
+    for (Map.Entry<String, Object> e : after.entrySet()) {
+      Object previous = before.get(e.getKey());
+      if (previous instanceof DocumentRef || e.getValue() instanceof DocumentRef) {
+        if (!Objects.equal(previous, e.getValue())) return false;
+      } else if (!before.containsKey(e.getKey()) || !Objects.equal(previous, e.getValue())) {
+        set.put(path + "." + e.getKey(), e.getValue());
+      }
+    }
+
+    for (Map.Entry<String, Object> e : before.entrySet()) {
+      if (!after.containsKey(e.getKey())) {
+        if (e.getValue() instanceof DocumentRef) return false;
+        unset.put(path + "." + e.getKey(), "");
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Adds the changes between two versions of a list's entries to the update.
+   * Values can be changed in place or appended, other changes shift the
+   * positions of the entries.
+   *
+   * @return false if a container entry changed or entries were removed
+   */
+  private static boolean diffList(String path, List<Object> before, List<Object> after,
+      BasicDBObject set) {
+
+    if (after.size() < before.size()) return false;
+
+    for (int i = 0; i < after.size(); i++) {
+      Object value = after.get(i);
+      Object previous = i < before.size() ? before.get(i) : null;
+      if (previous instanceof DocumentRef || value instanceof DocumentRef) {
+        if (!Objects.equal(previous, value)) return false;
+      } else if (i >= before.size() || !Objects.equal(previous, value)) {
+        set.put(path + "." + i, value);
+      }
+    }
+    return true;
+  }
+
+}
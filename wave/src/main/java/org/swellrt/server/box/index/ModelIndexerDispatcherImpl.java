@@ -1,15 +1,20 @@
 package org.swellrt.server.box.index;
 
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
 import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+import com.typesafe.config.Config;
 
 import org.swellrt.model.unmutable.UnmutableModel;
 import org.waveprotocol.box.common.DeltaSequence;
 import org.waveprotocol.box.common.ExceptionalIterator;
 import org.waveprotocol.box.server.attachment.AttachmentService;
+import org.waveprotocol.box.server.executor.ExecutorAnnotations.ModelLogExecutor;
 import org.waveprotocol.box.server.persistence.mongodb.MongoDbProvider;
 import org.waveprotocol.box.server.waveserver.WaveMap;
 import org.waveprotocol.box.server.waveserver.WaveServerException;
@@ -17,6 +22,8 @@ import org.waveprotocol.box.server.waveserver.WaveletProvider;
 import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.AddParticipant;
+import org.waveprotocol.wave.model.operation.wave.RemoveParticipant;
 import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
 import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
 import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
@@ -27,10 +34,13 @@ import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 import org.waveprotocol.wave.util.logging.Log;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 
 import javax.inject.Inject;
 
@@ -48,6 +58,9 @@ public class ModelIndexerDispatcherImpl implements ModelIndexerDispatcher {
 
   private static final Log LOG = Log.get(ModelIndexerDispatcherImpl.class);
 
+  /** Number of models whose structure is kept for incremental indexing. */
+  private static final int MAX_INDEX_STATES = 1000;
+
   private final WaveMap waveMap;
   private final WaveletProvider waveletProvider;
   private final AttachmentService attachmentService;
@@ -55,10 +68,18 @@ public class ModelIndexerDispatcherImpl implements ModelIndexerDispatcher {
   private DBCollection modelStore;
   /** Store change log of model's documents */
   private DBCollection modelLogStore;
+  /** Writes the change log behind commits */
+  private final ModelLogWriter modelLogWriter;
+  /** Whether committed changes are applied to the stored models in place */
+  private final boolean incremental;
+  /** Structure of the stored models, to apply changes in place */
+  private final Cache<WaveletName, ModelIndexState> indexStates =
+      CacheBuilder.newBuilder().maximumSize(MAX_INDEX_STATES).build();
 
   @Inject
   public ModelIndexerDispatcherImpl(MongoDbProvider mongoDbProvider, WaveMap waveMap,
-      WaveletProvider waveletProvider, AttachmentService attachmentService) {
+      WaveletProvider waveletProvider, AttachmentService attachmentService, Config config,
+      @ModelLogExecutor Executor modelLogExecutor) {
     try {
       this.modelStore = mongoDbProvider.getDBCollection(ModelIndexerModule.MONGO_COLLECTION_MODELS);
       this.modelLogStore =
@@ -70,6 +91,8 @@ public class ModelIndexerDispatcherImpl implements ModelIndexerDispatcher {
     this.waveletProvider = waveletProvider;
     this.waveMap = waveMap;
     this.attachmentService = attachmentService;
+    this.incremental = config.getBoolean("core.model_index_incremental");
+    this.modelLogWriter = new ModelLogWriter(modelLogStore, modelLogExecutor);
   }
 
   /**
@@ -151,15 +174,91 @@ public class ModelIndexerDispatcherImpl implements ModelIndexerDispatcher {
     }
 
 
-    Pair<BasicDBObject, Map<String, String>> visitResult =
-        ModelIndexerVisitor.run(model, attachmentService);
+    if (incremental && deltas != null) {
+      ModelIndexState state = indexStates.getIfPresent(waveletName);
+      if (state != null) {
+        synchronized (state) {
+          if (indexChanges(waveletName, model, state, deltas)) {
+            storeDeltas(waveletName, deltas, state.getTextPaths());
+            return;
+          }
+        }
+      }
+    }
+
+    if (incremental) {
+      Pair<BasicDBObject, ModelIndexState> visitResult =
+          ModelIndexerVisitor.runTracked(model, attachmentService, wavelet.getVersion());
 
-    storeDataModel(waveletName, visitResult.first);
+      storeDataModel(waveletName, visitResult.first);
 
-    if (deltas != null) storeDeltas(waveletName, deltas, visitResult.second);
+      if (visitResult.second.isComplete())
+        indexStates.put(waveletName, visitResult.second);
+      else
+        indexStates.invalidate(waveletName);
+
+      if (deltas != null) storeDeltas(waveletName, deltas, visitResult.second.getTextPaths());
+
+    } else {
+      Pair<BasicDBObject, Map<String, String>> visitResult =
+          ModelIndexerVisitor.run(model, attachmentService);
+
+      storeDataModel(waveletName, visitResult.first);
+
+      if (deltas != null) storeDeltas(waveletName, deltas, visitResult.second);
+    }
 
   }
 
+  /**
+   * Applies the changes of committed deltas to the stored data model with
+   * targeted updates of the paths changed.
+   *
+   * @return false if the data model must be fully reindexed instead
+   */
+  protected boolean indexChanges(WaveletName waveletName, UnmutableModel model,
+      ModelIndexState state, List<TransformedWaveletDelta> deltas) {
+
+    if (!state.canApply(deltas)) return false;
+
+    Set<String> documentIds = new HashSet<String>();
+    boolean participantsChanged = false;
+    long version = state.getVersion();
+    for (TransformedWaveletDelta d : deltas) {
+      for (WaveletOperation op : d) {
+        if (op instanceof WaveletBlipOperation) {
+          documentIds.add(((WaveletBlipOperation) op).getBlipId());
+        } else if (op instanceof AddParticipant || op instanceof RemoveParticipant) {
+          participantsChanged = true;
+        }
+      }
+      version = Math.max(version, d.getResultingVersion().getVersion());
+    }
+
+    BasicDBObject update =
+        state.update(model, documentIds, participantsChanged, new ModelIndexerVisitor(
+            attachmentService), version);
+
+    if (update == null) return false;
+    if (update.isEmpty()) return true;
+
+    try {
+      WriteResult result =
+          modelStore.update(new BasicDBObject("wave_id", waveletName.waveId.serialise()),
+              update, false, false, WriteConcern.ACKNOWLEDGED);
+      if (result.getN() == 0) {
+        indexStates.invalidate(waveletName);
+        return false;
+      }
+      LOG.fine("Data model changes indexed successfully " + waveletName.toString());
+      return true;
+    } catch (Exception e) {
+      LOG.warning("Error indexing data model changes " + waveletName.toString(), e);
+      indexStates.invalidate(waveletName);
+      return false;
+    }
+  }
+
   /**
    * A remove-insert logic to store static view of collaborative data models
    *
@@ -187,174 +286,13 @@ public class ModelIndexerDispatcherImpl implements ModelIndexerDispatcher {
   }
 
 
+  /**
+   * Queues the committed deltas to be stored in the change log of the model's
+   * documents.
+   */
   protected void storeDeltas(WaveletName waveletName, List<TransformedWaveletDelta> deltas,
       Map<String, String> blipIdToPathMap) {
-
-    //
-    // Store versions
-    //
-
-    // Store per blip changes grouped by author. Example:
-    //
-    // blipId=1 author=tom startversion=1 endversion=100
-    // blipId=1 author=sam startversion=101 endversion=110
-    // blipId=1 author=tom startversion=111 endversion=200
-    //
-    // Two consequtive entries will always have different authors
-
-    try {
-
-      for (TransformedWaveletDelta d: deltas) {
-
-        // Chech if delta has blip ops
-        boolean hasBlipOp = false;
-        String blipId = null;
-
-        for (WaveletOperation op: d) {
-
-          if (op instanceof WaveletBlipOperation) {
-            hasBlipOp = true;
-            blipId = ((WaveletBlipOperation) op).getBlipId();
-            break;
-          }
-
-        }
-
-        // Store the delta if it affects a mapped data model object
-        if (hasBlipOp && blipIdToPathMap.containsKey(blipId)) {
-
-          String deltaAuthor = d.getAuthor().getAddress();
-
-          BasicDBObject lowerDelta = getLowerDelta(waveletName, blipId, d);
-          BasicDBObject upperDelta = getUpperDelta(waveletName, blipId, d);
-          BasicDBObject includingDelta = getIncludingDelta(waveletName, blipId, d);
-
-          if (lowerDelta == null && upperDelta == null) {
-
-            if (includingDelta == null) {
-              // insert delta
-              BasicDBObject deltaDB = buildDeltaDBObject(waveletName,
-                  blipId,
-                  d.getAppliedAtVersion(), d.getApplicationTimestamp(),
-                  d.getResultingVersion().getVersion(), d.getApplicationTimestamp(),
-                  blipIdToPathMap.get(blipId),
-                  deltaAuthor);
-
-              modelLogStore.insert(WriteConcern.ACKNOWLEDGED, deltaDB);
-
-            }
-
-          } else {
-
-
-            BasicDBObject deltaDB = buildDeltaDBObject(waveletName,
-                blipId,
-                d.getAppliedAtVersion(), d.getApplicationTimestamp(),
-                d.getResultingVersion().getVersion(), d.getApplicationTimestamp(),
-                blipIdToPathMap.get(blipId),
-                deltaAuthor);
-
-
-            if (lowerDelta != null && deltaAuthor.equals(lowerDelta.getString("author"))) {
-               // delta <- join(lowerDelta, delta)
-
-              deltaDB.put("startversion", lowerDelta.get("startversion"));
-              deltaDB.put("starttimestamp", lowerDelta.get("starttimestamp"));
-
-              // Remove old lower delta
-              modelLogStore.remove(lowerDelta, WriteConcern.ACKNOWLEDGED);
-            }
-
-
-            if (upperDelta != null && deltaAuthor.equals(upperDelta.getString("author"))) {
-
-              deltaDB.put("endversion", lowerDelta.get("endversion"));
-              deltaDB.put("endtimestamp", lowerDelta.get("endtimestamp"));
-
-              // Remove old upper delta
-              modelLogStore.remove(upperDelta, WriteConcern.ACKNOWLEDGED);
-            }
-
-            // insert delta
-
-            modelLogStore.insert(WriteConcern.ACKNOWLEDGED, deltaDB);
-
-          }
-
-
-        }
-
-      } // For deltas
-
-    } catch (Exception e) {
-      LOG.warning("Error storing data model version log " + waveletName.toString(), e);
-    }
-
-  }
-
-
-  protected BasicDBObject buildDeltaDBObject(WaveletName waveletName, String blipId, long startVersion, long startTimestamp, long endVersion, long endTimestamp, String path, String author) {
-    BasicDBObject o = new BasicDBObject();
-    o.put("waveid", waveletName.waveId.serialise());
-    o.put("waveletid", waveletName.waveletId.serialise());
-    o.put("blipid", blipId);
-    o.put("startversion", startVersion);
-    o.put("endversion", endVersion);
-    o.put("starttimestamp", startTimestamp);
-    o.put("endtimestamp", endTimestamp);
-    o.put("path", path);
-    o.put("author", author);
-
-    return o;
-  }
-
-
-  protected BasicDBObject getLowerDelta(WaveletName waveletName, String blipId,
-      TransformedWaveletDelta delta) {
-
-    BasicDBObject query = new BasicDBObject();
-    query.put("waveid", waveletName.waveId.serialise());
-    query.put("waveletid", waveletName.waveletId.serialise());
-    query.put("blipid", blipId);
-    query.put("endversion", new BasicDBObject("$lte", delta.getAppliedAtVersion()));
-
-    BasicDBObject order = new BasicDBObject();
-    order.put("endversion", -1);
-
-    return (BasicDBObject) modelLogStore.findOne(query, new BasicDBObject(), order);
-
-  }
-
-  protected BasicDBObject getUpperDelta(WaveletName waveletName, String blipId,
-      TransformedWaveletDelta delta) {
-
-    BasicDBObject query = new BasicDBObject();
-    query.put("waveid", waveletName.waveId.serialise());
-    query.put("waveletid", waveletName.waveletId.serialise());
-    query.put("blipid", blipId);
-    query.put("startversion", new BasicDBObject("$gte", delta.getResultingVersion().getVersion()));
-
-    BasicDBObject order = new BasicDBObject();
-    order.put("startversion", 1);
-
-    return (BasicDBObject) modelLogStore.findOne(query, new BasicDBObject(), order);
-
-  }
-
-  protected BasicDBObject getIncludingDelta(WaveletName waveletName, String blipId,
-      TransformedWaveletDelta delta) {
-
-    BasicDBObject query = new BasicDBObject();
-    query.put("waveid", waveletName.waveId.serialise());
-    query.put("waveletid", waveletName.waveletId.serialise());
-    query.put("blipid", blipId);
-    query.put("startversion", new BasicDBObject("$lte", delta.getAppliedAtVersion()));
-    query.put("endversion", new BasicDBObject("$gte", delta.getResultingVersion().getVersion()));
-    BasicDBObject order = new BasicDBObject();
-    order.put("startversion", -1);
-
-    return (BasicDBObject) modelLogStore.findOne(query, new BasicDBObject(), order);
-
+    modelLogWriter.log(waveletName, deltas, blipIdToPathMap);
   }
 
 
@@ -14,6 +14,8 @@ import org.swellrt.model.ReadableText;
 import org.swellrt.model.ReadableType;
 import org.swellrt.model.ReadableTypeVisitor;
 import org.swellrt.model.shared.ModelUtils;
+import org.swellrt.model.unmutable.UnmutableList;
+import org.swellrt.model.unmutable.UnmutableMap;
 import org.waveprotocol.box.attachment.AttachmentMetadata;
 import org.waveprotocol.box.server.attachment.AttachmentService;
 import org.waveprotocol.wave.media.model.AttachmentId;
@@ -22,7 +24,9 @@ import org.waveprotocol.wave.model.util.Pair;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
@@ -41,6 +45,10 @@ public class ModelIndexerVisitor implements ReadableTypeVisitor {
   private final Stack<Object> objects;
   protected final Stack<String> path;
   protected final Map<String, String> blipIdToPathMap;
+  protected final Map<String, String> documentPaths;
+  protected final Map<String, Map<String, Object>> mapEntries;
+  protected final Map<String, List<Object>> listEntries;
+  private boolean complete = true;
   private final AttachmentService attachmentService;
 
   /**
@@ -60,11 +68,63 @@ public class ModelIndexerVisitor implements ReadableTypeVisitor {
         visitor.getblipIdToPathMap());
   }
 
+  /**
+   * Generate a BSON view of the Wave-based Data Model, along with the
+   * structure needed to apply later changes incrementally.
+   *
+   * @param model the Wave-based collaborative data model
+   * @param version the wavelet version the model was read at
+   * @return the BSON view and its structure
+   */
+  public static Pair<BasicDBObject, ModelIndexState> runTracked(ReadableModel model,
+      AttachmentService attachmentService, long version) {
+
+    ModelIndexerVisitor visitor = new ModelIndexerVisitor(attachmentService);
+    visitor.visit(model);
+    ModelIndexState state =
+        new ModelIndexState(visitor.documentPaths, visitor.blipIdToPathMap, visitor.mapEntries,
+            visitor.listEntries, visitor.complete, version);
+    return Pair.<BasicDBObject, ModelIndexState> of(visitor.getDBObject(), state);
+  }
+
+  /**
+   * Returns the id of the document storing a map, list or text, or null for
+   * values stored inline in their container.
+   */
+  static String getDocumentId(ReadableType instance) {
+    if (instance instanceof UnmutableMap) {
+      return ((UnmutableMap) instance).getDocumentId();
+    } else if (instance instanceof UnmutableList) {
+      return ((UnmutableList) instance).getDocumentId();
+    } else if (instance instanceof ReadableText) {
+      return ((ReadableText) instance).getDocumentId();
+    }
+    return null;
+  }
+
+  /**
+   * Returns how a container entry is tracked: the reference to the document
+   * storing the entry, or its BSON value.
+   */
+  static Object toEntry(ReadableType instance, Object value) {
+    String documentId = getDocumentId(instance);
+    return documentId != null ? new ModelIndexState.DocumentRef(documentId) : value;
+  }
+
+  /** Returns the BSON value of a single, non container, model value. */
+  Object toDBValue(ReadableType instance) {
+    instance.accept(this);
+    return objects.pop();
+  }
+
   protected ModelIndexerVisitor(AttachmentService attachmentService) {
     this.document = new BasicDBObject();
     this.objects = new Stack<Object>();
     this.path = new Stack<String>();
     this.blipIdToPathMap = new HashMap<String, String>();
+    this.documentPaths = new HashMap<String, String>();
+    this.mapEntries = new HashMap<String, Map<String, Object>>();
+    this.listEntries = new HashMap<String, List<Object>>();
     this.attachmentService = attachmentService;
   }
 
@@ -109,18 +169,22 @@ public class ModelIndexerVisitor implements ReadableTypeVisitor {
   public void visit(ReadableMap instance) {
 
     BasicDBObject mapDBObject = new BasicDBObject();
+    Map<String, Object> entries = new HashMap<String, Object>();
     for (String k : instance.keySet()) {
       path.push(k);
 
       // Avoid issues on non initialized blips (blips with no content)
       ReadableType t = instance.get(k);
       if (t != null) {
-        instance.get(k).accept(this);
-        mapDBObject.put(k, objects.pop());
+        t.accept(this);
+        Object value = objects.pop();
+        mapDBObject.put(k, value);
+        entries.put(k, toEntry(t, value));
       }
 
       path.pop();
     }
+    track(getDocumentId(instance), entries, null);
     objects.push(mapDBObject);
 
 
@@ -131,13 +195,17 @@ public class ModelIndexerVisitor implements ReadableTypeVisitor {
     // TODO(pablojan) add getDocumentedId to ReadableList
 
     BasicDBList listDBObject = new BasicDBList();
+    List<Object> entries = new ArrayList<Object>();
     int i = 0;
     for (ReadableType t : instance.getValues()) {
       path.push("" + (i++));
       t.accept(this);
-      listDBObject.add(objects.pop());
+      Object value = objects.pop();
+      listDBObject.add(value);
+      entries.add(toEntry(t, value));
       path.pop();
     }
+    track(getDocumentId(instance), null, entries);
     objects.push(listDBObject);
 
   }
@@ -146,6 +214,7 @@ public class ModelIndexerVisitor implements ReadableTypeVisitor {
   public void visit(ReadableText instance) {
 
     blipIdToPathMap.put(instance.getDocumentId(), getStringPath());
+    documentPaths.put(instance.getDocumentId(), getStringPath());
 
     // TODO (pablojan) serialize annotations
     BasicDBObject textDBObject = new BasicDBObject();
@@ -215,6 +284,16 @@ public class ModelIndexerVisitor implements ReadableTypeVisitor {
     this.objects.add(instance.getValue());
   }
 
+  private void track(String documentId, Map<String, Object> mapEntries, List<Object> listEntries) {
+    if (documentId == null) {
+      complete = false;
+      return;
+    }
+    documentPaths.put(documentId, getStringPath());
+    if (mapEntries != null) this.mapEntries.put(documentId, mapEntries);
+    if (listEntries != null) this.listEntries.put(documentId, listEntries);
+  }
+
   protected String getStringPath() {
     String strPath = "";
     for (String e : path) {
@@ -0,0 +1,278 @@
+package org.swellrt.server.box.index;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Writes the change log of model documents behind commit notifications.
+ *
+ * Changes of a blip are logged grouped by author. Example:
+ *
+ * blipId=1 author=tom startversion=1 endversion=100
+ * blipId=1 author=sam startversion=101 endversion=110
+ * blipId=1 author=tom startversion=111 endversion=200
+ *
+ * Two consecutive entries will always have different authors. Committed
+ * deltas are queued per wavelet and grouped in memory, then written with one
+ * batch insert and one remove per wavelet. The last entry of each blip is
+ * kept in memory so that it is not read back to extend it.
+ */
+public class ModelLogWriter {
+
+  private static final Log LOG = Log.get(ModelLogWriter.class);
+
+  /** Number of blips whose last log entry is kept in memory. */
+  private static final int MAX_TAILS = 10000;
+
+  /** Consecutive changes of a blip by the same author. */
+  @VisibleForTesting
+  static final class Run {
+    final String blipId;
+    final String path;
+    final String author;
+    long startVersion;
+    long startTimestamp;
+    long endVersion;
+    long endTimestamp;
+
+    Run(String blipId, String path, String author, long startVersion, long startTimestamp,
+        long endVersion, long endTimestamp) {
+      this.blipId = blipId;
+      this.path = path;
+      this.author = author;
+      this.startVersion = startVersion;
+      this.startTimestamp = startTimestamp;
+      this.endVersion = endVersion;
+      this.endTimestamp = endTimestamp;
+    }
+
+    BasicDBObject toDBObject(WaveletName waveletName) {
+      BasicDBObject o = new BasicDBObject();
+      o.put("waveid", waveletName.waveId.serialise());
+      o.put("waveletid", waveletName.waveletId.serialise());
+      o.put("blipid", blipId);
+      o.put("startversion", startVersion);
+      o.put("endversion", endVersion);
+      o.put("starttimestamp", startTimestamp);
+      o.put("endtimestamp", endTimestamp);
+      o.put("path", path);
+      o.put("author", author);
+      return o;
+    }
+  }
+
+  private static final Comparator<Run> BY_VERSION = new Comparator<Run>() {
+    @Override
+    public int compare(Run r1, Run r2) {
+      return Long.compare(r1.startVersion, r2.startVersion);
+    }
+  };
+
+  private final DBCollection logStore;
+  private final Executor executor;
+
+  /** Changes waiting to be written, per wavelet */
+  private final Map<WaveletName, List<Run>> pending = new HashMap<WaveletName, List<Run>>();
+
+  /** Last stored entry per wavelet and blip */
+  private final Cache<String, BasicDBObject> tails =
+      CacheBuilder.newBuilder().maximumSize(MAX_TAILS).build();
+
+  public ModelLogWriter(DBCollection logStore, Executor executor) {
+    this.logStore = logStore;
+    this.executor = executor;
+  }
+
+  /**
+   * Queues the committed deltas of a wavelet to be logged. Only deltas
+   * changing a mapped data model object are logged.
+   *
+   * @param blipIdToPathMap paths of the data model objects stored in blips
+   */
+  public void log(final WaveletName waveletName, List<TransformedWaveletDelta> deltas,
+      Map<String, String> blipIdToPathMap) {
+
+    List<Run> runs = toRuns(deltas, blipIdToPathMap);
+    if (runs.isEmpty()) return;
+
+    boolean scheduled;
+    synchronized (pending) {
+      List<Run> waveletRuns = pending.get(waveletName);
+      scheduled = waveletRuns != null;
+      if (waveletRuns == null) {
+        waveletRuns = new ArrayList<Run>();
+        pending.put(waveletName, waveletRuns);
+      }
+      waveletRuns.addAll(runs);
+    }
+
+    if (!scheduled) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          flush(waveletName);
+        }
+      });
+    }
+  }
+
+  /**
+   * Returns a single delta run for each delta with blip operations on a
+   * mapped blip. A delta is attributed to the blip of its first blip
+   * operation.
+   */
+  @VisibleForTesting
+  static List<Run> toRuns(List<TransformedWaveletDelta> deltas,
+      Map<String, String> blipIdToPathMap) {
+    List<Run> runs = new ArrayList<Run>();
+    for (TransformedWaveletDelta d : deltas) {
+      String blipId = null;
+      for (WaveletOperation op : d) {
+        if (op instanceof WaveletBlipOperation) {
+          blipId = ((WaveletBlipOperation) op).getBlipId();
+          break;
+        }
+      }
+      if (blipId != null && blipIdToPathMap.containsKey(blipId)) {
+        runs.add(new Run(blipId, blipIdToPathMap.get(blipId), d.getAuthor().getAddress(),
+            d.getAppliedAtVersion(), d.getApplicationTimestamp(),
+            d.getResultingVersion().getVersion(), d.getApplicationTimestamp()));
+      }
+    }
+    return runs;
+  }
+
+  /**
+   * Groups runs by blip in version order, joining consecutive runs of the
+   * same author.
+   */
+  @VisibleForTesting
+  static Map<String, List<Run>> coalesce(List<Run> runs) {
+    List<Run> sorted = new ArrayList<Run>(runs);
+    Collections.sort(sorted, BY_VERSION);
+    Map<String, List<Run>> blipRuns = new LinkedHashMap<String, List<Run>>();
+    for (Run r : sorted) {
+      List<Run> l = blipRuns.get(r.blipId);
+      if (l == null) {
+        l = new ArrayList<Run>();
+        blipRuns.put(r.blipId, l);
+      }
+      Run last = l.isEmpty() ? null : l.get(l.size() - 1);
+      if (last != null && last.author.equals(r.author)) {
+        last.endVersion = Math.max(last.endVersion, r.endVersion);
+        last.endTimestamp = Math.max(last.endTimestamp, r.endTimestamp);
+      } else {
+        l.add(r);
+      }
+    }
+    return blipRuns;
+  }
+
+  /** Writes the pending changes of a wavelet. */
+  @VisibleForTesting
+  void flush(WaveletName waveletName) {
+    List<Run> runs;
+    synchronized (pending) {
+      runs = pending.remove(waveletName);
+    }
+    if (runs == null) return;
+
+    List<DBObject> inserts = new ArrayList<DBObject>();
+    List<Object> removes = new ArrayList<Object>();
+    Map<String, BasicDBObject> newTails = new HashMap<String, BasicDBObject>();
+
+    try {
+
+      Map<String, BasicDBObject> blipTails = new HashMap<String, BasicDBObject>();
+      for (Run r : runs) {
+        if (!blipTails.containsKey(r.blipId))
+          blipTails.put(r.blipId, getTail(waveletName, r.blipId));
+      }
+
+      for (Map.Entry<String, List<Run>> e : coalesce(dropLogged(runs, blipTails)).entrySet()) {
+        List<Run> blipRuns = e.getValue();
+        BasicDBObject tail = blipTails.get(e.getKey());
+
+        // Extend the last stored entry if the same author goes on
+        Run first = blipRuns.get(0);
+        if (tail != null && first.author.equals(tail.getString("author"))) {
+          first.startVersion = tail.getLong("startversion");
+          first.startTimestamp = tail.getLong("starttimestamp");
+          removes.add(tail.get("_id"));
+        }
+
+        BasicDBObject last = null;
+        for (Run r : blipRuns) {
+          last = r.toDBObject(waveletName);
+          inserts.add(last);
+        }
+        newTails.put(tailKey(waveletName, e.getKey()), last);
+      }
+
+      // Insert before removing, a failure in between leaves an overlapping
+      // entry rather than a gap.
+      if (!inserts.isEmpty()) logStore.insert(inserts, WriteConcern.ACKNOWLEDGED);
+      if (!removes.isEmpty())
+        logStore.remove(new BasicDBObject("_id", new BasicDBObject("$in", removes)),
+            WriteConcern.ACKNOWLEDGED);
+
+      tails.putAll(newTails);
+
+    } catch (Exception e) {
+      LOG.warning("Error storing data model version log " + waveletName.toString(), e);
+      for (Run r : runs) {
+        tails.invalidate(tailKey(waveletName, r.blipId));
+      }
+    }
+  }
+
+  /** Drops the changes already covered by the stored log. */
+  private static List<Run> dropLogged(List<Run> runs, Map<String, BasicDBObject> blipTails) {
+    List<Run> unlogged = new ArrayList<Run>();
+    for (Run r : runs) {
+      BasicDBObject tail = blipTails.get(r.blipId);
+      if (tail == null || r.startVersion >= tail.getLong("endversion")) unlogged.add(r);
+    }
+    return unlogged;
+  }
+
+  private BasicDBObject getTail(WaveletName waveletName, String blipId) {
+    String key = tailKey(waveletName, blipId);
+    BasicDBObject tail = tails.getIfPresent(key);
+    if (tail == null) {
+      BasicDBObject query = new BasicDBObject();
+      query.put("waveid", waveletName.waveId.serialise());
+      query.put("waveletid", waveletName.waveletId.serialise());
+      query.put("blipid", blipId);
+      tail =
+          (BasicDBObject) logStore.findOne(query, new BasicDBObject(), new BasicDBObject(
+              "endversion", -1));
+      if (tail != null) tails.put(key, tail);
+    }
+    return tail;
+  }
+
+  private static String tailKey(WaveletName waveletName, String blipId) {
+    return waveletName.toString() + "/" + blipId;
+  }
+}
@@ -29,6 +29,7 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -544,17 +545,20 @@ public class AccountService extends SwellRTService {
 
     List<AccountServiceData> accountServiceDataList = new ArrayList<AccountServiceData>();
 
-    for (ParticipantId p : participants) {
+    Map<ParticipantId, AccountData> accounts;
+    try {
+      accounts = accountStore.getAccounts(participants);
+    } catch (PersistenceException e) {
+      // Ignore missing accounts
+      return accountServiceDataList;
+    }
 
-      try {
-        AccountData accountData = accountStore.getAccount(p);
+    for (ParticipantId p : participants) {
 
-        if (accountData != null && accountData.isHuman()) {
-          accountServiceDataList.add(toPublicServiceData(urlBuilder, accountData.asHuman()));
-        }
+      AccountData accountData = accounts.get(p);
 
-      } catch (PersistenceException e) {
-        // Ignore missing accounts
+      if (accountData != null && accountData.isHuman()) {
+        accountServiceDataList.add(toPublicServiceData(urlBuilder, accountData.asHuman()));
       }
 
     }
@@ -1,6 +1,8 @@
 package org.swellrt.server.box.servlet;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.inject.Inject;
+import com.typesafe.config.Config;
 
 import com.mongodb.AggregationOutput;
 import com.mongodb.BasicDBList;
@@ -16,7 +18,10 @@ import org.waveprotocol.box.server.persistence.mongodb.MongoDbProvider;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.util.logging.Log;
 
+import org.bson.types.ObjectId;
+
 import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Iterator;
 
@@ -24,23 +29,47 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 
+/**
+ * Queries the MongoDB index of data models the logged in user participates in.
+ *
+ * Results are written to the response as they are read from MongoDB, one
+ * document at a time. Query results are returned in pages of at most
+ * core.query_model_max_limit documents, a "cursor" field is added to the
+ * response when more results are available.
+ */
 public class QueryModelService extends SwellRTService {
 
   private static final Log LOG = Log.get(QueryModelService.class);
 
+  private static final String PARAM_LIMIT = "limit";
+  private static final String PARAM_CURSOR = "cursor";
 
-  private DBCollection store;
+  private final DBCollection store;
 
+  private final int maxLimit;
+  private final int batchSize;
 
   @Inject
-  public QueryModelService(SessionManager sessionManager, MongoDbProvider mongoDbProvider) {
+  public QueryModelService(SessionManager sessionManager, MongoDbProvider mongoDbProvider,
+      Config config) {
+    this(sessionManager, getStore(mongoDbProvider), config.getInt("core.query_model_max_limit"),
+        config.getInt("core.query_model_batch_size"));
+  }
+
+  protected QueryModelService(SessionManager sessionManager, DBCollection store, int maxLimit,
+      int batchSize) {
     super(sessionManager);
+    this.store = store;
+    this.maxLimit = maxLimit;
+    this.batchSize = batchSize;
+  }
 
+  private static DBCollection getStore(MongoDbProvider mongoDbProvider) {
     try {
-      this.store = mongoDbProvider.getDBCollection(ModelIndexerModule.MONGO_COLLECTION_MODELS);
+      return mongoDbProvider.getDBCollection(ModelIndexerModule.MONGO_COLLECTION_MODELS);
     } catch (Exception e) {
       LOG.warning("Unable to get MongoDB collection. SwellRT servlet won't work!", e);
-      this.store = null;
+      return null;
     }
   }
 
@@ -56,27 +85,39 @@ public class QueryModelService extends SwellRTService {
   }
 
   private DBCursor getQueryResult(DBObject objectQuery, DBObject objectProjection,
-      BasicDBList limitPartQuery) {
+      BasicDBList limitPartQuery, ObjectId cursor, int limit) {
 
     DBCursor result;
 
     objectQuery.put("$or", limitPartQuery);
 
-    // exclude internal mongoDb _id
+    // Results are sorted by the internal mongoDb _id, which is the pagination
+    // cursor. It is removed from results before they are written.
 
-    objectProjection.put("_id", 0);
+    if (cursor != null) {
+      BasicDBList and = new BasicDBList();
+      and.add(objectQuery);
+      and.add(new BasicDBObject("_id", new BasicDBObject("$gt", cursor)));
+      objectQuery = new BasicDBObject("$and", and);
+    }
+
+    objectProjection.removeField("_id");
     // You cannot currently mix including and excluding fields
     if (!objectProjection.toMap().containsValue(1)) {
       objectProjection.put("wavelet_id", 0);
     }
 
-    result = store.find(objectQuery, objectProjection);
+    // Read one more result to know whether there is a next page
+    result =
+        store.find(objectQuery, objectProjection).sort(new BasicDBObject("_id", 1))
+            .limit(limit + 1).batchSize(Math.min(batchSize, limit + 1));
 
     return result;
   }
 
 
-  private Iterable<DBObject> getAggregateResult(DBObject objectAggregate, BasicDBList limitPartQuery) {
+  private Iterable<DBObject> getAggregateResult(DBObject objectAggregate,
+      BasicDBList limitPartQuery, int limit) {
     Iterable<DBObject> result;
 
     DBObject objectQuery = new BasicDBObject();
@@ -90,6 +131,7 @@ public class QueryModelService extends SwellRTService {
     while (i.hasNext()) {
       args.add((DBObject) objectAggregate.get(i.next()));
     }
+    args.add(new BasicDBObject("$limit", limit));
 
     DBObject[] argsArray = new DBObject[args.size()];
     args.toArray(argsArray);
@@ -115,8 +157,9 @@ public class QueryModelService extends SwellRTService {
     if ((participantId = checkForLoggedInUser(req, response)) == null) return;
 
     // Either... /rest/[api_version]/model?q={MongoDB query}&p={MongoDB
-    // projection}
-    // or... /rest/[api_version]/model?a={MongoDB aggregate query}
+    // projection}&limit={page size}&cursor={cursor of previous page}
+    // or... /rest/[api_version]/model?a={MongoDB aggregate query}&limit={max
+    // results}
 
     String aggregate = req.getParameter("a");
 
@@ -126,6 +169,26 @@ public class QueryModelService extends SwellRTService {
     DBObject objectQuery = null;
     DBObject objectProjection = null;
 
+    int limit = maxLimit;
+    if (req.getParameter(PARAM_LIMIT) != null) {
+      try {
+        limit = Integer.parseInt(req.getParameter(PARAM_LIMIT));
+      } catch (NumberFormatException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad limit format");
+        return;
+      }
+      if (limit <= 0 || limit > maxLimit) limit = maxLimit;
+    }
+
+    ObjectId cursor = null;
+    if (req.getParameter(PARAM_CURSOR) != null) {
+      if (!ObjectId.isValid(req.getParameter(PARAM_CURSOR))) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad cursor format");
+        return;
+      }
+      cursor = new ObjectId(req.getParameter(PARAM_CURSOR));
+    }
+
     BasicDBList limitPartQuery = new BasicDBList();
     // Get models where user is participant
     limitPartQuery.add(new BasicDBObject("participants", participantId.getAddress()));
@@ -133,7 +196,7 @@ public class QueryModelService extends SwellRTService {
     limitPartQuery.add(new BasicDBObject("participants", "@" + participantId.getDomain()));
 
     Iterable<DBObject> result;
-
+    boolean paginated = false;
 
     // Aggregate Case:
     if (aggregate != null) {
@@ -143,7 +206,7 @@ public class QueryModelService extends SwellRTService {
         response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad aggregate JSON format");
         return;
       }
-      result = getAggregateResult(objectAggregate, limitPartQuery);
+      result = getAggregateResult(objectAggregate, limitPartQuery, limit);
     }
     // Query or Query + Projection Case:
     else if (query != null) {
@@ -166,7 +229,8 @@ public class QueryModelService extends SwellRTService {
       } else {
         objectProjection = new BasicDBObject();
       }
-      result = getQueryResult(objectQuery, objectProjection, limitPartQuery);
+      result = getQueryResult(objectQuery, objectProjection, limitPartQuery, cursor, limit);
+      paginated = true;
     } else {
 
       response.sendError(HttpServletResponse.SC_BAD_REQUEST,
@@ -175,33 +239,72 @@ public class QueryModelService extends SwellRTService {
 
     }
 
-    StringBuilder JSONbuilder = new StringBuilder();
+    try {
 
-    JSONbuilder.append("{\"result\":[");
+      // Run the query before the response is committed, so errors can still
+      // be reported
+      Iterator<DBObject> it = result.iterator();
+      it.hasNext();
 
-    Iterator<DBObject> it = result.iterator();
+      response.setStatus(HttpServletResponse.SC_OK);
+      response.setContentType("application/json");
 
-    while (it.hasNext()) {
-      JSON.serialize(it.next(), JSONbuilder);
-      if (it.hasNext()) JSONbuilder.append(",");
+      response.setHeader("Cache-Control", "no-store");
+
+      // Replace relative URLs with absolute ones
+      // Attachments are server from context /, wave's original context
+      writeResult(it, response.getWriter(), ServiceUtils.getUrlBuilder(req, ""), limit,
+          paginated);
+
+    } finally {
+      if (result instanceof DBCursor) ((DBCursor) result).close();
     }
-    JSONbuilder.append("]}");
 
-    // Replace relative URLs with absolute ones
-    // Attachments are server from context /, wave's original context
-    UrlBuilder urlBuilder = ServiceUtils.getUrlBuilder(req, "");
-    ServiceUtils.completeRelativeUrls(JSONbuilder, "url", urlBuilder);
-    ServiceUtils.completeRelativeUrls(JSONbuilder, "thumbnail", urlBuilder);
+  }
 
+  /**
+   * Writes up to limit results as a JSON object, completing relative URLs of
+   * each result.
+   *
+   * @param paginated whether results have the _id field to be used as cursor
+   */
+  @VisibleForTesting
+  static void writeResult(Iterator<DBObject> it, Writer writer, UrlBuilder urlBuilder,
+      int limit, boolean paginated) throws IOException {
 
-    response.setStatus(HttpServletResponse.SC_OK);
-    response.setContentType("application/json");
+    StringBuilder JSONbuilder = new StringBuilder();
+    Object lastId = null;
+    boolean more = false;
+    int count = 0;
 
-    response.setHeader("Cache-Control", "no-store");
-    response.getWriter().append(JSONbuilder);
+    writer.write("{\"result\":[");
 
-  }
+    while (it.hasNext()) {
+      DBObject o = it.next();
 
+      if (count == limit) {
+        more = true;
+        break;
+      }
+
+      if (paginated) lastId = o.removeField("_id");
+
+      JSONbuilder.setLength(0);
+      if (count > 0) JSONbuilder.append(",");
+      JSON.serialize(o, JSONbuilder);
+      ServiceUtils.completeRelativeUrls(JSONbuilder, "url", urlBuilder);
+      ServiceUtils.completeRelativeUrls(JSONbuilder, "thumbnail", urlBuilder);
+      writer.append(JSONbuilder);
+      count++;
+    }
+    writer.write("]");
 
+    if (paginated && more && lastId != null) {
+      writer.write(",\"cursor\":\"" + lastId.toString() + "\"");
+    }
+
+    writer.write("}");
+    writer.flush();
+  }
 
 }
@@ -25,7 +25,9 @@ import java.util.Collection;
 import org.apache.commons.configuration.ConfigurationException;
 import org.swellrt.server.box.events.DeltaBasedEventSource;
 import org.swellrt.server.box.events.EventDispatcher;
+import org.swellrt.server.box.events.EventDispatcherImpl;
 import org.swellrt.server.box.events.EventDispatcherTarget;
+import org.swellrt.server.box.events.EventQueueImpl;
 import org.swellrt.server.box.events.EventRule;
 import org.swellrt.server.box.events.EventsModule;
 import org.swellrt.server.box.events.dummy.DummyDispatcher;
@@ -44,6 +46,7 @@ import org.waveprotocol.box.server.frontend.ClientFrontendImpl;
 import org.waveprotocol.box.server.frontend.WaveClientRpcImpl;
 import org.waveprotocol.box.server.frontend.WaveletInfo;
 import org.waveprotocol.box.server.persistence.AccountStore;
+import org.waveprotocol.box.server.persistence.PerUserWaveViewStore;
 import org.waveprotocol.box.server.persistence.PersistenceException;
 import org.waveprotocol.box.server.persistence.PersistenceModule;
 import org.waveprotocol.box.server.persistence.SignerInfoStore;
@@ -58,6 +61,7 @@ import org.waveprotocol.box.server.rpc.AttachmentInfoServlet;
 import org.waveprotocol.box.server.rpc.AttachmentServlet;
 import org.waveprotocol.box.server.rpc.AuthenticationServlet;
 import org.waveprotocol.box.server.rpc.FetchProfilesServlet;
+import org.waveprotocol.box.server.rpc.FairRpcExecutor;
 import org.waveprotocol.box.server.rpc.GadgetProviderServlet;
 import org.waveprotocol.box.server.rpc.HttpWindowSessionFilter;
 import org.waveprotocol.box.server.rpc.ServerRpcProvider;
@@ -68,14 +72,22 @@ import org.waveprotocol.box.server.shutdown.ShutdownManager;
 import org.waveprotocol.box.server.shutdown.ShutdownPriority;
 import org.waveprotocol.box.server.shutdown.Shutdownable;
 import org.waveprotocol.box.server.stat.RequestScopeFilter;
+import org.waveprotocol.box.server.stat.MetricsServlet;
 import org.waveprotocol.box.server.stat.StatuszServlet;
 import org.waveprotocol.box.server.stat.TimingFilter;
 import org.waveprotocol.box.server.waveserver.PerUserWaveViewBus;
 import org.waveprotocol.box.server.waveserver.PerUserWaveViewDistpatcher;
+import org.waveprotocol.box.server.waveserver.SearchProvider;
+import org.waveprotocol.box.server.waveserver.SimpleSearchProviderImpl;
 import org.waveprotocol.box.server.waveserver.WaveBus;
+import org.waveprotocol.box.server.waveserver.WaveDigester;
+import org.waveprotocol.box.server.waveserver.WaveMapWarmer;
+import org.waveprotocol.box.server.waveserver.WaveSearchIndex;
 import org.waveprotocol.box.server.waveserver.WaveServerException;
+import org.waveprotocol.box.server.waveserver.WaveletNotificationDispatcher;
 import org.waveprotocol.box.server.waveserver.WaveletProvider;
 import org.waveprotocol.box.stat.StatService;
+import org.waveprotocol.box.stat.Statistic;
 import org.waveprotocol.wave.crypto.CertPathStore;
 import org.waveprotocol.wave.federation.FederationTransport;
 import org.waveprotocol.wave.federation.noop.NoOpFederationModule;
@@ -169,6 +181,9 @@ public class ServerMain {
 
     LOG.info("Starting server");
     server.startWebSocketServer(injector);
+
+    // Warm up the wave map while already serving.
+    injector.getInstance(WaveMapWarmer.class).start();
   }
 
   private static Module buildFederationModule(Injector settingsInjector)
@@ -188,6 +203,8 @@ public class ServerMain {
       ((SignerInfoStore)certPathStore).initializeSignerInfoStore();
     }
 
+    injector.getInstance(PerUserWaveViewStore.class).initializePerUserWaveViewStore();
+
     // Initialize the server.
     WaveletProvider waveServer = injector.getInstance(WaveletProvider.class);
     waveServer.initialize();
@@ -236,6 +253,9 @@ public class ServerMain {
       server.addFilter("/*", TimingFilter.class);
       server.addServlet(StatService.STAT_URL, StatuszServlet.class);
     }
+    if (config.getBoolean("core.enable_metrics_endpoint")) {
+      server.addServlet(MetricsServlet.METRICS_URL, MetricsServlet.class);
+    }
 
     // DSWG experimental
     // server.addServlet("/shared/*", DSFileServlet.class);
@@ -285,6 +305,12 @@ public class ServerMain {
     waveViewDistpatcher.addListener(listener);
     waveBus.subscribe(waveViewDistpatcher);
 
+    // Keep the search metadata index of the simple search provider up to date.
+    if (injector.getInstance(SearchProvider.class) instanceof SimpleSearchProviderImpl) {
+      waveBus.subscribe(injector.getInstance(WaveSearchIndex.class));
+    }
+    waveBus.subscribe(injector.getInstance(WaveDigester.class));
+
     // WaveIndexer waveIndexer = injector.getInstance(WaveIndexer.class);
     // waveIndexer.remakeIndex();
   }
@@ -330,6 +356,11 @@ public class ServerMain {
 
     DeltaBasedEventSource eventSource = injector.getInstance(DeltaBasedEventSource.class);
     waveBus.subscribe(eventSource);
+
+    Statistic.trackClass(EventQueueImpl.class);
+    Statistic.trackClass(EventDispatcherImpl.class);
+    Statistic.trackClass(WaveletNotificationDispatcher.class);
+    Statistic.trackClass(FairRpcExecutor.class);
   }
 
 }
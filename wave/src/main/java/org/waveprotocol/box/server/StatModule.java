@@ -24,9 +24,11 @@ import static com.google.inject.matcher.Matchers.annotatedWith;
 import static com.google.inject.matcher.Matchers.any;
 import com.google.inject.name.Named;
 import com.typesafe.config.Config;
+import org.waveprotocol.box.server.stat.MetricsRegistry;
 import org.waveprotocol.box.server.stat.MultiThreadedRequestScope;
 
 import org.waveprotocol.box.server.stat.TimingInterceptor;
+import org.waveprotocol.box.server.stat.TimingMetrics;
 
 import org.waveprotocol.box.stat.Timed;
 import org.waveprotocol.box.stat.Timing;
@@ -49,6 +51,7 @@ public class StatModule extends AbstractModule {
     requestInjection(interceptor);
     if (enableProfiling) {
       bindInterceptor(any(), annotatedWith(Timed.class), interceptor);
+      Timing.setMeasurementListener(new TimingMetrics(MetricsRegistry.getInstance()));
     }
     Timing.setScope(new MultiThreadedRequestScope());
     Timing.setEnabled(enableProfiling);
@@ -40,16 +40,36 @@ public interface ExecutorAnnotations {
   public @interface DeltaPersistExecutor {
   }
 
+  @Retention(RUNTIME)
+  @BindingAnnotation
+  public @interface DeltaGroupCommitExecutor {
+  }
+
   @Retention(RUNTIME)
   @BindingAnnotation
   public @interface IndexExecutor {
   }
 
+  @Retention(RUNTIME)
+  @BindingAnnotation
+  public @interface IndexCommitExecutor {
+  }
+
   @Retention(RUNTIME)
   @BindingAnnotation
   public @interface ListenerExecutor {
   }
 
+  @Retention(RUNTIME)
+  @BindingAnnotation
+  public @interface WaveBusExecutor {
+  }
+
+  @Retention(RUNTIME)
+  @BindingAnnotation
+  public @interface ModelLogExecutor {
+  }
+
   @Retention(RUNTIME)
   @BindingAnnotation
   public @interface LookupExecutor {
@@ -47,9 +47,12 @@ public class ExecutorsModule extends AbstractModule {
   @Provides
   @Singleton
   @ClientServerExecutor
-  protected Executor provideClientServerExecutor(Provider<RequestScopeExecutor> executorProvider) {
-    return provideThreadPoolExecutor(executorProvider, -1, ClientServerExecutor.class
-        .getSimpleName());
+  protected Executor provideClientServerExecutor(Provider<RequestScopeExecutor> executorProvider,
+      Config config) {
+    // Client RPCs are queued per user by ServerRpcProvider until one of these
+    // threads is free.
+    return provideThreadPoolExecutor(executorProvider, config
+        .getInt("threads.client_rpc_thread_count"), ClientServerExecutor.class.getSimpleName());
   }
 
   @Provides
@@ -69,6 +72,33 @@ public class ExecutorsModule extends AbstractModule {
     return provideThreadPoolExecutor(executorProvider, 1, IndexExecutor.class.getSimpleName());
   }
 
+  @Provides
+  @Singleton
+  @IndexCommitExecutor
+  protected ScheduledExecutorService provideIndexCommitExecutor(
+      Provider<ScheduledRequestScopeExecutor> executorProvider) {
+    return provideScheduledThreadPoolExecutor(executorProvider, 1,
+        IndexCommitExecutor.class.getSimpleName());
+  }
+
+  @Provides
+  @Singleton
+  @DeltaGroupCommitExecutor
+  protected ScheduledExecutorService provideDeltaGroupCommitExecutor(
+      Provider<ScheduledRequestScopeExecutor> executorProvider) {
+    // Group commits are written one after the other.
+    return provideScheduledThreadPoolExecutor(executorProvider, 1,
+        DeltaGroupCommitExecutor.class.getSimpleName());
+  }
+
+  @Provides
+  @Singleton
+  @ModelLogExecutor
+  protected Executor provideModelLogExecutor(Provider<RequestScopeExecutor> executorProvider) {
+    // A single thread keeps the change log writes of a wavelet in order.
+    return provideThreadPoolExecutor(executorProvider, 1, ModelLogExecutor.class.getSimpleName());
+  }
+
   @Provides
   @Singleton
   @ListenerExecutor
@@ -78,6 +108,15 @@ public class ExecutorsModule extends AbstractModule {
         .getInt("threads.listener_executor_thread_count"), ListenerExecutor.class.getSimpleName());
   }
 
+  @Provides
+  @Singleton
+  @WaveBusExecutor
+  protected Executor provideWaveBusExecutor(Provider<RequestScopeExecutor> executorProvider,
+      Config config) {
+    return provideThreadPoolExecutor(executorProvider, config
+        .getInt("threads.wave_bus_executor_thread_count"), WaveBusExecutor.class.getSimpleName());
+  }
+
   @Provides
   @Singleton
   @LookupExecutor
@@ -0,0 +1,123 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.executor;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks on an executor one at a time and in submission order for each
+ * key, while tasks of different keys run concurrently.
+ *
+ * Each task is handed to the executor on its own once the previous task of
+ * its key is done, so a key with many pending tasks doesn't hold a thread
+ * from the others.
+ *
+ * Queues are not bounded: callers submitting faster than tasks run should
+ * coalesce their tasks. If the executor rejects a task, the tasks waiting
+ * behind it are dropped and the exception is thrown to the caller.
+ *
+ * @param <K> type of the keys
+ */
+public class KeyedSerialExecutor<K> {
+
+  private final Executor executor;
+
+  /** Tasks waiting behind the running task of each key. Guarded by itself. */
+  private final Map<K, Queue<Runnable>> queues = new HashMap<K, Queue<Runnable>>();
+
+  public KeyedSerialExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Runs a task after the tasks previously submitted with the same key.
+   *
+   * @throws RejectedExecutionException if the executor rejects the task
+   */
+  public void execute(K key, Runnable task) {
+    synchronized (queues) {
+      Queue<Runnable> queue = queues.get(key);
+      if (queue != null) {
+        queue.add(task);
+        return;
+      }
+      queues.put(key, new ArrayDeque<Runnable>());
+    }
+    submit(key, task);
+  }
+
+  /**
+   * Hands the next task of a key to the executor. On rejection the key stops
+   * running, so later tasks of the key are submitted again.
+   */
+  private void submit(K key, Runnable task) {
+    try {
+      executor.execute(new KeyedTask(key, task));
+    } catch (RuntimeException e) {
+      synchronized (queues) {
+        queues.remove(key);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * @return the number of keys with a running or waiting task.
+   */
+  public int getActiveKeyCount() {
+    synchronized (queues) {
+      return queues.size();
+    }
+  }
+
+  private final class KeyedTask implements Runnable {
+    private final K key;
+    private final Runnable task;
+
+    KeyedTask(K key, Runnable task) {
+      this.key = key;
+      this.task = task;
+    }
+
+    @Override
+    public void run() {
+      try {
+        task.run();
+      } finally {
+        Runnable next;
+        synchronized (queues) {
+          Queue<Runnable> queue = queues.get(key);
+          next = queue.poll();
+          if (next == null) {
+            queues.remove(key);
+          }
+        }
+        if (next != null) {
+          submit(key, next);
+        }
+      }
+    }
+  }
+}
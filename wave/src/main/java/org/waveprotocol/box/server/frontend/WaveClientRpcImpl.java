@@ -62,6 +62,7 @@ public class WaveClientRpcImpl implements ProtocolWaveClientRpc.Interface {
 
   private final ClientFrontend frontend;
   private final boolean handleAuthentication;
+  private final WaveletUpdateCache updateCache;
 
   /**
    * Creates a new RPC interface to the front-end.
@@ -72,12 +73,14 @@ public class WaveClientRpcImpl implements ProtocolWaveClientRpc.Interface {
    */
   public static WaveClientRpcImpl create(ClientFrontend frontend,
       boolean handleAuthentication) {
-    return new WaveClientRpcImpl(frontend, handleAuthentication);
+    return new WaveClientRpcImpl(frontend, handleAuthentication, new WaveletUpdateCache());
   }
 
-  private WaveClientRpcImpl(ClientFrontend frontend, boolean handleAuthentication) {
+  private WaveClientRpcImpl(ClientFrontend frontend, boolean handleAuthentication,
+      WaveletUpdateCache updateCache) {
     this.frontend = frontend;
     this.handleAuthentication = handleAuthentication;
+    this.updateCache = updateCache;
   }
 
   @Override
@@ -107,6 +110,17 @@ public class WaveClientRpcImpl implements ProtocolWaveClientRpc.Interface {
           public void onUpdate(WaveletName waveletName,
               @Nullable CommittedWaveletSnapshot snapshot, List<TransformedWaveletDelta> deltas,
               @Nullable HashedVersion committedVersion, Boolean hasMarker, String channel_id) {
+            if (snapshot == null && hasMarker == null && !deltas.isEmpty()) {
+              // Every subscriber of the wavelet gets the same deltas, share the
+              // serialized update and only add this channel's id.
+              ProtocolWaveletUpdate update =
+                  updateCache.getUpdate(waveletName, deltas, committedVersion);
+              if (channel_id != null) {
+                update = update.toBuilder().setChannelId(channel_id).build();
+              }
+              done.run(update);
+              return;
+            }
             ProtocolWaveletUpdate.Builder builder = ProtocolWaveletUpdate.newBuilder();
             if (hasMarker != null) {
               builder.setMarker(hasMarker.booleanValue());
@@ -116,8 +130,6 @@ public class WaveClientRpcImpl implements ProtocolWaveClientRpc.Interface {
             }
             builder.setWaveletName(ModernIdSerialiser.INSTANCE.serialiseWaveletName(waveletName));
             for (TransformedWaveletDelta d : deltas) {
-              // TODO(anorth): Add delta application metadata to the result
-              // when the c/s protocol supports it.
               builder.addAppliedDelta(CoreWaveletOperationSerializer.serialize(d));
             }
             if (!deltas.isEmpty()) {
@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.frontend;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import org.waveprotocol.box.common.comms.WaveClientRpc.ProtocolWaveletUpdate;
+import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
+import org.waveprotocol.wave.model.id.ModernIdSerialiser;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.version.HashedVersion;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Shares the channel-independent part of wavelet delta updates between all
+ * the subscriptions receiving them.
+ *
+ * Every subscriber of a wavelet receives the same deltas, so the update proto
+ * is built once per wavelet name and version range; each channel then only
+ * sets its own channel id on a copy of it.
+ */
+public final class WaveletUpdateCache {
+
+  /** Maximum number of updates kept. Fan-out completes well within this. */
+  private static final int MAX_UPDATES = 1000;
+
+  /** Updates are only reused while a fan-out is in progress. */
+  private static final long EXPIRE_SECONDS = 60;
+
+  private final Cache<WaveletUpdateKey, ProtocolWaveletUpdate> updates = CacheBuilder.newBuilder()
+      .maximumSize(MAX_UPDATES).expireAfterWrite(EXPIRE_SECONDS, TimeUnit.SECONDS).build();
+
+  /**
+   * Returns the key for a delta update, or null if the update cannot be
+   * shared because it carries no deltas or the deltas are not contiguous (for
+   * example, when a subscription filtered out its own deltas).
+   */
+  @VisibleForTesting
+  static WaveletUpdateKey keyFor(WaveletName waveletName, List<TransformedWaveletDelta> deltas,
+      @Nullable HashedVersion committedVersion) {
+    if (deltas.isEmpty()) {
+      return null;
+    }
+    for (int i = 1; i < deltas.size(); i++) {
+      if (deltas.get(i - 1).getResultingVersion().getVersion()
+          != deltas.get(i).getAppliedAtVersion()) {
+        return null;
+      }
+    }
+    TransformedWaveletDelta last = deltas.get(deltas.size() - 1);
+    return new WaveletUpdateKey(ModernIdSerialiser.INSTANCE.serialiseWaveletName(waveletName),
+        deltas.get(0).getAppliedAtVersion(),
+        CoreWaveletOperationSerializer.serialize(last.getResultingVersion()),
+        committedVersion != null ? CoreWaveletOperationSerializer.serialize(committedVersion)
+            : null);
+  }
+
+  /**
+   * Returns the shared update for the deltas, without channel id or marker.
+   * Non-contiguous delta lists are built afresh on every call.
+   *
+   * @param waveletName wavelet the deltas apply to
+   * @param deltas deltas to send, must not be empty
+   * @param committedVersion commit notice to attach, may be null
+   */
+  public ProtocolWaveletUpdate getUpdate(final WaveletName waveletName,
+      final List<TransformedWaveletDelta> deltas, @Nullable final HashedVersion committedVersion) {
+    WaveletUpdateKey key = keyFor(waveletName, deltas, committedVersion);
+    if (key == null) {
+      return buildUpdate(waveletName, deltas, committedVersion);
+    }
+    try {
+      return updates.get(key, new Callable<ProtocolWaveletUpdate>() {
+        @Override
+        public ProtocolWaveletUpdate call() {
+          return buildUpdate(waveletName, deltas, committedVersion);
+        }
+      });
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Failed to build update for " + key, e.getCause());
+    } catch (UncheckedExecutionException e) {
+      throw new IllegalStateException("Failed to build update for " + key, e.getCause());
+    }
+  }
+
+  private static ProtocolWaveletUpdate buildUpdate(WaveletName waveletName,
+      List<TransformedWaveletDelta> deltas, @Nullable HashedVersion committedVersion) {
+    ProtocolWaveletUpdate.Builder builder = ProtocolWaveletUpdate.newBuilder();
+    builder.setWaveletName(ModernIdSerialiser.INSTANCE.serialiseWaveletName(waveletName));
+    for (TransformedWaveletDelta d : deltas) {
+      // TODO(anorth): Add delta application metadata to the result
+      // when the c/s protocol supports it.
+      builder.addAppliedDelta(CoreWaveletOperationSerializer.serialize(d));
+    }
+    builder.setResultingVersion(CoreWaveletOperationSerializer.serialize(
+        deltas.get(deltas.size() - 1).getResultingVersion()));
+    if (committedVersion != null) {
+      builder.setCommitNotice(CoreWaveletOperationSerializer.serialize(committedVersion));
+    }
+    return builder.build();
+  }
+}
@@ -0,0 +1,91 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.frontend;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+import org.waveprotocol.box.common.comms.WaveClientRpc.ProtocolWaveletUpdate;
+import org.waveprotocol.wave.federation.Proto.ProtocolHashedVersion;
+
+import javax.annotation.Nullable;
+
+/**
+ * Identifies a wavelet update carrying a contiguous range of deltas on a
+ * wavelet, so the parts of the update which don't depend on the channel can be
+ * shared between channels. The resulting version's history hash pins the
+ * content of the whole range.
+ */
+public final class WaveletUpdateKey {
+  private final String waveletName;
+  private final long startVersion;
+  private final ProtocolHashedVersion resultingVersion;
+  private final ProtocolHashedVersion commitNotice;
+
+  /**
+   * @param waveletName serialised name of the wavelet
+   * @param startVersion version the first delta applies at
+   * @param resultingVersion version after the last delta
+   * @param commitNotice commit notice of the update, may be null
+   */
+  public WaveletUpdateKey(String waveletName, long startVersion,
+      ProtocolHashedVersion resultingVersion, @Nullable ProtocolHashedVersion commitNotice) {
+    this.waveletName = waveletName;
+    this.startVersion = startVersion;
+    this.resultingVersion = resultingVersion;
+    this.commitNotice = commitNotice;
+  }
+
+  /**
+   * Returns the key of an update, which must carry deltas and a resulting
+   * version.
+   */
+  public static WaveletUpdateKey of(ProtocolWaveletUpdate update) {
+    Preconditions.checkArgument(update.getAppliedDeltaCount() > 0 && update.hasResultingVersion(),
+        "Update without deltas");
+    return new WaveletUpdateKey(update.getWaveletName(),
+        update.getAppliedDelta(0).getHashedVersion().getVersion(), update.getResultingVersion(),
+        update.hasCommitNotice() ? update.getCommitNotice() : null);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof WaveletUpdateKey)) {
+      return false;
+    }
+    WaveletUpdateKey other = (WaveletUpdateKey) o;
+    return startVersion == other.startVersion && waveletName.equals(other.waveletName)
+        && resultingVersion.equals(other.resultingVersion)
+        && Objects.equal(commitNotice, other.commitNotice);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(waveletName, startVersion, resultingVersion, commitNotice);
+  }
+
+  @Override
+  public String toString() {
+    return "[" + waveletName + " " + startVersion + ":" + resultingVersion.getVersion() + "]";
+  }
+}
@@ -23,7 +23,9 @@ import org.apache.commons.lang.NotImplementedException;
 import org.waveprotocol.box.server.account.AccountData;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Interface for the storage and retrieval of {@link AccountData}s.
@@ -49,6 +51,15 @@ public interface AccountStore {
    */
   AccountData getAccount(ParticipantId id) throws PersistenceException;
 
+  /**
+   * Returns the {@link AccountData} of those of the given participants which
+   * have an account, keyed by participant id.
+   *
+   * @param ids participant ids of the requested accounts.
+   */
+  Map<ParticipantId, AccountData> getAccounts(Collection<ParticipantId> ids)
+      throws PersistenceException;
+
   /**
    * Gets the {@link AccountData} of the user with the specified email
    *
@@ -0,0 +1,179 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.typesafe.config.Config;
+
+import org.apache.commons.lang.NotImplementedException;
+import org.waveprotocol.box.server.account.AccountData;
+import org.waveprotocol.box.server.stat.Counter;
+import org.waveprotocol.box.server.stat.MetricsRegistry;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link AccountStore} which keeps the accounts read from another store in a
+ * bounded cache, including the participants which have no account.
+ *
+ * Writes go to the backing store and then drop the cached entry. A lookup
+ * which races with a write does not cache what it read, so the cache never
+ * keeps an account older than the last write made through it.
+ */
+public class CachingAccountStore implements AccountStore {
+
+  /** Name of the binding of the store which is cached. */
+  public static final String BACKING_STORE = "BackingAccountStore";
+
+  private static final Counter HITS = MetricsRegistry.getInstance()
+      .counter("account_cache_hits_total", "Account lookups served by the account cache");
+  private static final Counter MISSES = MetricsRegistry.getInstance()
+      .counter("account_cache_misses_total", "Account lookups which went to the account store");
+
+  private final AccountStore store;
+
+  /** Accounts by participant, absent for participants without one. */
+  private final Cache<ParticipantId, Optional<AccountData>> accounts;
+
+  /** Number of writes, guarded by this. */
+  private long writes;
+
+  @Inject
+  public CachingAccountStore(@Named(BACKING_STORE) AccountStore store, Config config) {
+    this(store, config.getInt("core.account_cache_size"),
+        config.getInt("core.account_cache_expiration_s"));
+  }
+
+  /**
+   * @param store the cached store
+   * @param maxAccounts maximum number of cached participants
+   * @param expirationSeconds time after which a cached account is read again,
+   *        for changes made to the backing store by other means
+   */
+  @VisibleForTesting
+  public CachingAccountStore(AccountStore store, int maxAccounts, int expirationSeconds) {
+    this.store = store;
+    this.accounts = CacheBuilder.newBuilder().maximumSize(maxAccounts)
+        .expireAfterWrite(expirationSeconds, TimeUnit.SECONDS)
+        .<ParticipantId, Optional<AccountData>>build();
+  }
+
+  @Override
+  public void initializeAccountStore() throws PersistenceException {
+    store.initializeAccountStore();
+  }
+
+  @Override
+  public AccountData getAccount(ParticipantId id) throws PersistenceException {
+    Optional<AccountData> account = accounts.getIfPresent(id);
+    if (account != null) {
+      HITS.inc();
+      return account.orNull();
+    }
+    MISSES.inc();
+    long before = writes();
+    AccountData loaded = store.getAccount(id);
+    synchronized (this) {
+      if (writes == before) {
+        accounts.put(id, Optional.fromNullable(loaded));
+      }
+    }
+    return loaded;
+  }
+
+  /**
+   * Reads the accounts missing from the cache from the backing store with a
+   * single bulk lookup.
+   */
+  @Override
+  public Map<ParticipantId, AccountData> getAccounts(Collection<ParticipantId> ids)
+      throws PersistenceException {
+    Map<ParticipantId, AccountData> result = Maps.newHashMap();
+    List<ParticipantId> missing = Lists.newArrayList();
+    for (ParticipantId id : ids) {
+      Optional<AccountData> account = accounts.getIfPresent(id);
+      if (account == null) {
+        missing.add(id);
+      } else if (account.isPresent()) {
+        result.put(id, account.get());
+      }
+    }
+    HITS.add(ids.size() - missing.size());
+    if (missing.isEmpty()) {
+      return result;
+    }
+    MISSES.add(missing.size());
+    long before = writes();
+    Map<ParticipantId, AccountData> loaded = store.getAccounts(missing);
+    synchronized (this) {
+      if (writes == before) {
+        for (ParticipantId id : missing) {
+          accounts.put(id, Optional.fromNullable(loaded.get(id)));
+        }
+      }
+    }
+    result.putAll(loaded);
+    return result;
+  }
+
+  @Override
+  public List<AccountData> getAccountByEmail(String email)
+      throws PersistenceException, NotImplementedException {
+    return store.getAccountByEmail(email);
+  }
+
+  @Override
+  public void putAccount(AccountData account) throws PersistenceException {
+    try {
+      store.putAccount(account);
+    } finally {
+      invalidate(account.getId());
+    }
+  }
+
+  @Override
+  public void removeAccount(ParticipantId id) throws PersistenceException {
+    try {
+      store.removeAccount(id);
+    } finally {
+      invalidate(id);
+    }
+  }
+
+  private synchronized long writes() {
+    return writes;
+  }
+
+  private synchronized void invalidate(ParticipantId id) {
+    writes++;
+    accounts.invalidate(id);
+  }
+}
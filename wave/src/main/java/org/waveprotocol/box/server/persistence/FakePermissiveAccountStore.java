@@ -27,6 +27,7 @@ import org.waveprotocol.wave.model.util.CollectionUtils;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.util.logging.Log;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -56,6 +57,18 @@ public class FakePermissiveAccountStore implements AccountStore {
     return account;
   }
 
+  @Override
+  public Map<ParticipantId, AccountData> getAccounts(Collection<ParticipantId> ids) {
+    Map<ParticipantId, AccountData> result = CollectionUtils.newHashMap();
+    for (ParticipantId id : ids) {
+      AccountData account = getAccount(id);
+      if (account != null) {
+        result.put(id, account);
+      }
+    }
+    return result;
+  }
+
   @Override
   public void initializeAccountStore() {
     // Nothing to initialize.
@@ -0,0 +1,66 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence;
+
+import com.google.common.collect.Multimap;
+
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+/**
+ * Stores the wavelets each user participates in, so the wave view of a user
+ * can be loaded without scanning every wavelet.
+ *
+ * A user has no stored view until one is put with
+ * {@link #putWaveView(ParticipantId, Multimap)}. Adding or removing wavelets
+ * of a user without a stored view is ignored, so a stored view is always
+ * complete.
+ */
+public interface PerUserWaveViewStore {
+
+  /**
+   * Initializes the store, e.g. checks the storage directory.
+   */
+  void initializePerUserWaveViewStore() throws PersistenceException;
+
+  /**
+   * @return a new, mutable multimap of the wavelets in the view of the user,
+   *         or null if the user has no stored view.
+   */
+  Multimap<WaveId, WaveletId> getWaveView(ParticipantId user) throws PersistenceException;
+
+  /**
+   * Replaces the stored view of the user.
+   */
+  void putWaveView(ParticipantId user, Multimap<WaveId, WaveletId> view)
+      throws PersistenceException;
+
+  /**
+   * Adds a wavelet to the stored view of the user, if there is one.
+   */
+  void addWavelet(ParticipantId user, WaveletName waveletName) throws PersistenceException;
+
+  /**
+   * Removes a wavelet from the stored view of the user, if there is one.
+   */
+  void removeWavelet(ParticipantId user, WaveletName waveletName) throws PersistenceException;
+}
@@ -23,14 +23,19 @@ import com.google.inject.AbstractModule;
 import com.google.inject.Inject;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.google.inject.name.Names;
 import com.typesafe.config.Config;
 
 import org.waveprotocol.box.server.persistence.file.FileAccountAttachmentStore;
 import org.waveprotocol.box.server.persistence.file.FileAccountStore;
 import org.waveprotocol.box.server.persistence.file.FileAttachmentStore;
 import org.waveprotocol.box.server.persistence.file.FileDeltaStore;
+import org.waveprotocol.box.server.persistence.file.FilePerUserWaveViewStore;
+import org.waveprotocol.box.server.persistence.file.SegmentDeltaStore;
 import org.waveprotocol.box.server.persistence.file.FileSignerInfoStore;
 import org.waveprotocol.box.server.persistence.memory.MemoryDeltaStore;
+import org.waveprotocol.box.server.persistence.memory.MemoryPerUserWaveViewStore;
 import org.waveprotocol.box.server.persistence.memory.MemoryStore;
 import org.waveprotocol.box.server.persistence.mongodb.MongoDbProvider;
 import org.waveprotocol.box.server.waveserver.DeltaStore;
@@ -48,6 +53,9 @@ import org.waveprotocol.wave.crypto.CertPathStore;
  *<p>
  *The valid names for the account store are 'memory', 'file' and 'mongodb'.
  *
+ *<p>
+ *The valid names for the per user wave view store are 'memory', 'file' and 'mongodb'.
+ *
  * @author ljvderijk@google.com (Lennard de Rijk)
  */
 public class PersistenceModule extends AbstractModule {
@@ -60,6 +68,8 @@ public class PersistenceModule extends AbstractModule {
 
   private final String deltaStoreType;
 
+  private final String waveViewStoreType;
+
   private MongoDbProvider mongoDbProvider;
 
   private final String mongoDBHost;
@@ -68,6 +78,8 @@ public class PersistenceModule extends AbstractModule {
 
   private final String mongoDBdatabase;
 
+  private final int mongoDBDeltaReadBatchSize;
+
 
   @Inject
   public PersistenceModule(Config config) {
@@ -75,9 +87,11 @@ public class PersistenceModule extends AbstractModule {
     this.attachmentStoreType = config.getString("core.attachment_store_type");
     this.accountStoreType = config.getString("core.account_store_type");
     this.deltaStoreType = config.getString("core.delta_store_type");
+    this.waveViewStoreType = config.getString("core.wave_view_store_type");
     this.mongoDBHost = config.getString("core.mongodb_host");
     this.mongoDBPort = config.getString("core.mongodb_port");
     this.mongoDBdatabase = config.getString("core.mongodb_database");
+    this.mongoDBDeltaReadBatchSize = config.getInt("core.mongodb_delta_read_batch_size");
   }
 
   /**
@@ -97,6 +111,7 @@ public class PersistenceModule extends AbstractModule {
     bindAttachmentStore();
     bindAccountStore();
     bindDeltaStore();
+    bindPerUserWaveViewStore();
   }
 
   /**
@@ -129,18 +144,24 @@ public class PersistenceModule extends AbstractModule {
   }
 
   private void bindAccountStore() {
+    Named backingStore = Names.named(CachingAccountStore.BACKING_STORE);
     if (accountStoreType.equalsIgnoreCase("memory")) {
-      bind(AccountStore.class).to(MemoryStore.class).in(Singleton.class);
+      bind(AccountStore.class).annotatedWith(backingStore).to(MemoryStore.class)
+          .in(Singleton.class);
     } else if (accountStoreType.equalsIgnoreCase("file")) {
-      bind(AccountStore.class).to(FileAccountStore.class).in(Singleton.class);
+      bind(AccountStore.class).annotatedWith(backingStore).to(FileAccountStore.class)
+          .in(Singleton.class);
     } else if (accountStoreType.equalsIgnoreCase("fake")) {
-      bind(AccountStore.class).to(FakePermissiveAccountStore.class).in(Singleton.class);
+      bind(AccountStore.class).annotatedWith(backingStore).to(FakePermissiveAccountStore.class)
+          .in(Singleton.class);
     } else if (accountStoreType.equalsIgnoreCase("mongodb")) {
       MongoDbProvider mongoDbProvider = getMongoDbProvider();
-      bind(AccountStore.class).toInstance(mongoDbProvider.provideMongoDbStore());
+      bind(AccountStore.class).annotatedWith(backingStore)
+          .toInstance(mongoDbProvider.provideMongoDbStore());
     } else {
       throw new RuntimeException("Invalid account store type: '" + accountStoreType + "'");
     }
+    bind(AccountStore.class).to(CachingAccountStore.class).in(Singleton.class);
 
     bind(AccountAttachmentStore.class).to(FileAccountAttachmentStore.class).in(Singleton.class);
   }
@@ -150,11 +171,28 @@ public class PersistenceModule extends AbstractModule {
       bind(DeltaStore.class).to(MemoryDeltaStore.class).in(Singleton.class);
     } else if (deltaStoreType.equalsIgnoreCase("file")) {
       bind(DeltaStore.class).to(FileDeltaStore.class).in(Singleton.class);
+    } else if (deltaStoreType.equalsIgnoreCase("segment")) {
+      bind(DeltaStore.class).to(SegmentDeltaStore.class).in(Singleton.class);
     } else if (deltaStoreType.equalsIgnoreCase("mongodb")) {
       MongoDbProvider mongoDbProvider = getMongoDbProvider();
-      bind(DeltaStore.class).toInstance(mongoDbProvider.provideMongoDbDeltaStore());
+      bind(DeltaStore.class).toInstance(
+          mongoDbProvider.provideMongoDbDeltaStore(mongoDBDeltaReadBatchSize));
     } else {
       throw new RuntimeException("Invalid delta store type: '" + deltaStoreType + "'");
     }
   }
+
+  private void bindPerUserWaveViewStore() {
+    if (waveViewStoreType.equalsIgnoreCase("memory")) {
+      bind(PerUserWaveViewStore.class).to(MemoryPerUserWaveViewStore.class).in(Singleton.class);
+    } else if (waveViewStoreType.equalsIgnoreCase("file")) {
+      bind(PerUserWaveViewStore.class).to(FilePerUserWaveViewStore.class).in(Singleton.class);
+    } else if (waveViewStoreType.equalsIgnoreCase("mongodb")) {
+      MongoDbProvider mongoDbProvider = getMongoDbProvider();
+      bind(PerUserWaveViewStore.class).toInstance(
+          mongoDbProvider.provideMongoDbPerUserWaveViewStore());
+    } else {
+      throw new RuntimeException("Invalid wave view store type: '" + waveViewStoreType + "'");
+    }
+  }
 }
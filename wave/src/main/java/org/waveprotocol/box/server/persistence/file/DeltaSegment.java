@@ -0,0 +1,446 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A segment of a {@link SegmentDeltaStore}. It is made of a data file holding
+ * the delta records of many wavelets in append order and an index file with
+ * one entry per record.
+ *
+ * The data file starts with a header with the version of the file protocol.
+ * Each record is made of the lengths of the applied and transformed deltas
+ * followed by both serialized deltas.
+ *
+ * Each index entry holds the wavelet name, the versions the delta is applied
+ * at and leads to, the offset of the record and a checksum of it. An entry
+ * with a negative version removes the previous deltas of the wavelet. Index
+ * entries are the commit point of records: records without a valid entry are
+ * discarded when the last segment is opened.
+ *
+ * Only the last segment of a store is open for writing. Records are read from
+ * a read-only memory mapping of the data file, which doesn't hold a file
+ * descriptor once created. While the segment is writable, the mapping is only
+ * grown once {@link #MAP_GROWTH_BYTES} have been appended past it, and the
+ * records after it are read from the data file.
+ *
+ * Writes are not multithread-safe, reads are.
+ */
+public class DeltaSegment {
+
+  public static final String DATA_FILE_SUFFIX = ".segment";
+  public static final String INDEX_FILE_SUFFIX = ".sindex";
+
+  private static final byte[] FILE_MAGIC_BYTES = new byte[] {'W', 'S', 'E', 'G'};
+  private static final int FILE_PROTOCOL_VERSION = 1;
+  private static final int FILE_HEADER_LENGTH = 8;
+
+  /** Length in bytes of a record header: applied and transformed lengths. */
+  static final int RECORD_HEADER_LENGTH = 8;
+
+  /** Data appended past the mapping of a writable segment before it is remapped. */
+  static final long MAP_GROWTH_BYTES = 64L * 1024 * 1024;
+
+  private static final Log LOG = Log.get(DeltaSegment.class);
+
+  /**
+   * Receives the entries of a segment index.
+   */
+  interface IndexReceiver {
+
+    void onDelta(WaveletName waveletName, long appliedAtVersion, long resultingVersion,
+        long offset);
+
+    void onDelete(WaveletName waveletName);
+  }
+
+  /**
+   * A record to be appended.
+   */
+  static final class Record {
+    final WaveletName waveletName;
+    final long appliedAtVersion;
+    final long resultingVersion;
+    final byte[] applied;
+    final byte[] transformed;
+
+    Record(WaveletName waveletName, long appliedAtVersion, long resultingVersion,
+        byte[] applied, byte[] transformed) {
+      this.waveletName = waveletName;
+      this.appliedAtVersion = appliedAtVersion;
+      this.resultingVersion = resultingVersion;
+      this.applied = applied;
+      this.transformed = transformed;
+    }
+  }
+
+  private final int id;
+  private final File dataFile;
+  private final File indexFile;
+
+  /** Open only while the segment is writable */
+  private RandomAccessFile data;
+  private RandomAccessFile index;
+
+  /** Length of the committed data */
+  private volatile long length;
+
+  /** Read-only mapping of the data file, grown on demand */
+  private MappedByteBuffer mapped;
+
+  /** Reads the data past the mapping while the segment is writable */
+  private FileChannel tail;
+
+  private DeltaSegment(int id, File dataFile, File indexFile) {
+    this.id = id;
+    this.dataFile = dataFile;
+    this.indexFile = indexFile;
+  }
+
+  static File dataFile(File dir, int id) {
+    return new File(dir, String.format("%08d", id) + DATA_FILE_SUFFIX);
+  }
+
+  static File indexFile(File dir, int id) {
+    return new File(dir, String.format("%08d", id) + INDEX_FILE_SUFFIX);
+  }
+
+  /**
+   * Opens a segment, passing its index entries to a receiver. A writable
+   * segment is created if it doesn't exist, and its uncommitted data is
+   * discarded.
+   */
+  static DeltaSegment open(File dir, int id, boolean writable, IndexReceiver receiver)
+      throws IOException {
+    DeltaSegment segment = new DeltaSegment(id, dataFile(dir, id), indexFile(dir, id));
+    segment.load(writable, receiver);
+    return segment;
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  /** @return the length of the committed data, in bytes */
+  public long length() {
+    return length;
+  }
+
+  public boolean isWritable() {
+    return data != null;
+  }
+
+  private void load(boolean writable, IndexReceiver receiver) throws IOException {
+    RandomAccessFile dataRaf = writable ? FileUtils.getOrCreateFile(dataFile)
+        : new RandomAccessFile(dataFile, "r");
+    RandomAccessFile indexRaf = writable ? FileUtils.getOrCreateFile(indexFile)
+        : new RandomAccessFile(indexFile, "r");
+    try {
+      checkOrSetFileHeader(dataRaf, writable);
+      length = dataRaf.length();
+
+      long dataEnd = FILE_HEADER_LENGTH;
+      long indexEnd = 0;
+
+      if (indexRaf.length() > 0) {
+        ByteBuffer entries =
+            indexRaf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, indexRaf.length());
+        while (entries.hasRemaining()) {
+          try {
+            WaveletName waveletName = readName(entries);
+            long appliedAtVersion = entries.getLong();
+            long resultingVersion = entries.getLong();
+            long offset = entries.getLong();
+            long checksum = entries.getLong();
+
+            if (appliedAtVersion < 0) {
+              receiver.onDelete(waveletName);
+            } else {
+              // Only the last segment can have been partially written
+              if (writable && !isValidRecord(offset, checksum)) break;
+              receiver.onDelta(waveletName, appliedAtVersion, resultingVersion, offset);
+              dataEnd = Math.max(dataEnd, offset + getRecordLength(offset));
+            }
+            indexEnd = entries.position();
+          } catch (BufferUnderflowException e) {
+            break;
+          } catch (IllegalArgumentException e) {
+            LOG.warning("Invalid index entry in " + indexFile + " at " + indexEnd, e);
+            break;
+          }
+        }
+      }
+
+      if (writable) {
+        if (indexEnd < indexRaf.length() || dataEnd < length) {
+          LOG.warning("Discarding uncommitted deltas in segment " + dataFile);
+        }
+        indexRaf.setLength(indexEnd);
+        dataRaf.setLength(dataEnd);
+        length = dataEnd;
+        mapped = null;
+        data = dataRaf;
+        index = indexRaf;
+        dataRaf = null;
+        indexRaf = null;
+      }
+    } finally {
+      if (dataRaf != null) dataRaf.close();
+      if (indexRaf != null) indexRaf.close();
+    }
+  }
+
+  private static void checkOrSetFileHeader(RandomAccessFile file, boolean writable)
+      throws IOException {
+    file.seek(0);
+    if (file.length() < FILE_HEADER_LENGTH && writable) {
+      file.setLength(0);
+      file.write(FILE_MAGIC_BYTES);
+      file.writeInt(FILE_PROTOCOL_VERSION);
+    } else {
+      byte[] magic = new byte[4];
+      file.readFully(magic);
+      if (!Arrays.equals(FILE_MAGIC_BYTES, magic)) {
+        throw new IOException("Segment file magic bytes are incorrect");
+      }
+      int version = file.readInt();
+      if (version != FILE_PROTOCOL_VERSION) {
+        throw new IOException(String.format(
+            "Segment protocol version mismatch - expected %d got %d", FILE_PROTOCOL_VERSION,
+            version));
+      }
+    }
+  }
+
+  private boolean isValidRecord(long offset, long checksum) throws IOException {
+    if (offset < FILE_HEADER_LENGTH || offset + RECORD_HEADER_LENGTH > length) return false;
+    ByteBuffer header = map(offset + RECORD_HEADER_LENGTH, offset, RECORD_HEADER_LENGTH);
+    long end = offset + RECORD_HEADER_LENGTH + header.getInt() + header.getInt();
+    if (end > length || end < offset + RECORD_HEADER_LENGTH) return false;
+    return checksum(map(end, offset, (int) (end - offset))) == checksum;
+  }
+
+  private long getRecordLength(long offset) throws IOException {
+    ByteBuffer header = map(offset + RECORD_HEADER_LENGTH, offset, RECORD_HEADER_LENGTH);
+    return RECORD_HEADER_LENGTH + header.getInt() + header.getInt();
+  }
+
+  /**
+   * Returns a read-only view of a record: the applied delta length, the
+   * transformed delta length, the applied delta and the transformed delta.
+   * The view shares the mapped memory of the segment.
+   */
+  public ByteBuffer getRecord(long offset) throws IOException {
+    Preconditions.checkArgument(offset >= FILE_HEADER_LENGTH, "Invalid record offset");
+    long headerEnd = offset + RECORD_HEADER_LENGTH;
+    Preconditions.checkArgument(headerEnd <= length, "Record out of segment");
+    ByteBuffer header = map(headerEnd, offset, RECORD_HEADER_LENGTH);
+    int recordLength = RECORD_HEADER_LENGTH + header.getInt() + header.getInt();
+    return map(offset + recordLength, offset, recordLength);
+  }
+
+  /**
+   * Returns a view of a region of the data file. A region out of the current
+   * mapping is read from the file if the segment is writable and little data
+   * was appended since it was mapped, otherwise the data file is mapped up to
+   * the current length.
+   */
+  private ByteBuffer map(long end, long offset, int size) throws IOException {
+    while (true) {
+      ByteBuffer buffer = null;
+      FileChannel channel = null;
+      synchronized (this) {
+        long mappedLength = mapped != null ? mapped.capacity() : 0;
+        if (end > mappedLength && data != null && length - mappedLength < MAP_GROWTH_BYTES) {
+          if (tail == null || !tail.isOpen()) {
+            tail = new RandomAccessFile(dataFile, "r").getChannel();
+          }
+          channel = tail;
+        } else {
+          if (end > mappedLength) {
+            RandomAccessFile file = new RandomAccessFile(dataFile, "r");
+            try {
+              mapped = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            } finally {
+              file.close();
+            }
+          }
+          buffer = mapped.duplicate();
+        }
+      }
+      if (buffer != null) {
+        buffer.position((int) offset);
+        buffer.limit((int) offset + size);
+        return buffer.slice();
+      }
+      try {
+        return read(channel, offset, size);
+      } catch (ClosedByInterruptException e) {
+        throw e;
+      } catch (ClosedChannelException e) {
+        // Sealed, or closed by an interrupted reader, meanwhile: retry.
+      }
+    }
+  }
+
+  private static ByteBuffer read(FileChannel channel, long offset, int size) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + buffer.position()) < 0) {
+        throw new EOFException("Record out of segment data file");
+      }
+    }
+    buffer.flip();
+    return buffer.asReadOnlyBuffer();
+  }
+
+  /**
+   * Appends records and their index entries, forcing both files to disk.
+   *
+   * @return the offsets of the records
+   */
+  long[] append(List<Record> records) throws IOException {
+    Preconditions.checkState(isWritable(), "Segment is not writable");
+
+    long[] offsets = new long[records.size()];
+    ByteArrayOutputStream dataBytes = new ByteArrayOutputStream();
+    ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+    DataOutputStream indexStream = new DataOutputStream(indexBytes);
+
+    long offset = length;
+    for (int i = 0; i < records.size(); i++) {
+      Record r = records.get(i);
+      ByteBuffer record =
+          ByteBuffer.allocate(RECORD_HEADER_LENGTH + r.applied.length + r.transformed.length);
+      record.putInt(r.applied.length);
+      record.putInt(r.transformed.length);
+      record.put(r.applied);
+      record.put(r.transformed);
+      record.flip();
+
+      writeName(indexStream, r.waveletName);
+      indexStream.writeLong(r.appliedAtVersion);
+      indexStream.writeLong(r.resultingVersion);
+      indexStream.writeLong(offset);
+      indexStream.writeLong(checksum(record.duplicate()));
+
+      dataBytes.write(record.array(), 0, record.limit());
+      offsets[i] = offset;
+      offset += record.limit();
+    }
+
+    data.seek(length);
+    data.write(dataBytes.toByteArray());
+    index.seek(index.length());
+    index.write(indexBytes.toByteArray());
+    data.getChannel().force(false);
+    index.getChannel().force(false);
+
+    length = offset;
+    return offsets;
+  }
+
+  /**
+   * Appends an index entry removing the deltas of a wavelet.
+   */
+  void appendDelete(WaveletName waveletName) throws IOException {
+    Preconditions.checkState(isWritable(), "Segment is not writable");
+
+    ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+    DataOutputStream indexStream = new DataOutputStream(indexBytes);
+    writeName(indexStream, waveletName);
+    indexStream.writeLong(-1);
+    indexStream.writeLong(-1);
+    indexStream.writeLong(-1);
+    indexStream.writeLong(0);
+
+    index.seek(index.length());
+    index.write(indexBytes.toByteArray());
+    index.getChannel().force(false);
+  }
+
+  /**
+   * Closes the files of a writable segment. The segment can still be read.
+   */
+  synchronized void seal() throws IOException {
+    if (tail != null) {
+      tail.close();
+      tail = null;
+    }
+    if (data != null) {
+      data.close();
+      data = null;
+    }
+    if (index != null) {
+      index.close();
+      index = null;
+    }
+  }
+
+  private static long checksum(ByteBuffer buffer) {
+    CRC32 crc = new CRC32();
+    crc.update(buffer);
+    return crc.getValue();
+  }
+
+  private static void writeName(DataOutputStream out, WaveletName waveletName)
+      throws IOException {
+    byte[] waveId = waveletName.waveId.serialise().getBytes(Charsets.UTF_8);
+    byte[] waveletId = waveletName.waveletId.serialise().getBytes(Charsets.UTF_8);
+    out.writeShort(waveId.length);
+    out.write(waveId);
+    out.writeShort(waveletId.length);
+    out.write(waveletId);
+  }
+
+  private static WaveletName readName(ByteBuffer in) {
+    return WaveletName.of(WaveId.deserialise(readString(in)),
+        WaveletId.deserialise(readString(in)));
+  }
+
+  private static String readString(ByteBuffer in) {
+    byte[] bytes = new byte[in.getShort() & 0xffff];
+    in.get(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+}
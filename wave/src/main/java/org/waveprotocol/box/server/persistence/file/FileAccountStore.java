@@ -27,6 +27,7 @@ import com.typesafe.config.Config;
 import org.apache.commons.lang.NotImplementedException;
 import org.waveprotocol.box.server.account.AccountData;
 import org.waveprotocol.box.server.persistence.AccountStore;
+import org.waveprotocol.box.server.persistence.CachingAccountStore;
 import org.waveprotocol.box.server.persistence.PersistenceException;
 import org.waveprotocol.box.server.persistence.protos.ProtoAccountDataSerializer;
 import org.waveprotocol.box.server.persistence.protos.ProtoAccountStoreData.ProtoAccountData;
@@ -34,18 +35,22 @@ import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.util.logging.Log;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
 /**
- * A flat file based implementation of {@link AccountStore}
+ * A flat file based implementation of {@link AccountStore}. Accounts are read
+ * from disk on every lookup, {@link CachingAccountStore} keeps them in memory.
  *
  * @author tad.glines@gmail.com (Tad Glines)
  */
 public class FileAccountStore implements AccountStore {
   private static final String ACCOUNT_FILE_EXTENSION = ".account";
+  private static final String TEMP_FILE_EXTENSION = ".tmp";
   private final String accountStoreBasePath;
-  private final Map<ParticipantId, AccountData> accounts = Maps.newHashMap();
 
   private static final Log LOG = Log.get(FileAccountStore.class);
 
@@ -62,38 +67,36 @@ public class FileAccountStore implements AccountStore {
 
   @Override
   public AccountData getAccount(ParticipantId id) throws PersistenceException {
-    synchronized (accounts) {
-      AccountData account = accounts.get(id);
-      if (account == null) {
-        account = readAccount(id);
-        if (account != null) {
-          accounts.put(id, account);
-        }
+    return readAccount(id);
+  }
+
+  @Override
+  public Map<ParticipantId, AccountData> getAccounts(Collection<ParticipantId> ids)
+      throws PersistenceException {
+    Map<ParticipantId, AccountData> result = Maps.newHashMap();
+    for (ParticipantId id : ids) {
+      AccountData account = readAccount(id);
+      if (account != null) {
+        result.put(id, account);
       }
-      return account;
     }
+    return result;
   }
 
   @Override
-  public void putAccount(AccountData account) throws PersistenceException {
-    synchronized (accounts) {
-      Preconditions.checkNotNull(account);
-      writeAccount(account);
-      accounts.put(account.getId(), account);
-    }
+  public synchronized void putAccount(AccountData account) throws PersistenceException {
+    Preconditions.checkNotNull(account);
+    writeAccount(account);
   }
 
   @Override
-  public void removeAccount(ParticipantId id) throws PersistenceException {
-    synchronized (accounts) {
-      File file = new File(participantIdToFileName(id));
-      if (file.exists()) {
-        if (!file.delete()) {
-          throw new PersistenceException("Failed to delete account data associated with "
-              + id.getAddress());
-        }
+  public synchronized void removeAccount(ParticipantId id) throws PersistenceException {
+    File file = new File(participantIdToFileName(id));
+    if (file.exists()) {
+      if (!file.delete()) {
+        throw new PersistenceException("Failed to delete account data associated with "
+            + id.getAddress());
       }
-      accounts.remove(id);
     }
   }
 
@@ -120,19 +123,31 @@ public class FileAccountStore implements AccountStore {
     }
   }
 
+  /**
+   * Writes the account to a temporary file which then replaces the account
+   * file, so that reads never see a partially written account.
+   */
   private void writeAccount(AccountData account) throws PersistenceException {
     File accountFile = new File(participantIdToFileName(account.getId()));
+    File tempFile = new File(accountFile.getPath() + TEMP_FILE_EXTENSION);
     OutputStream file = null;
     try {
-      file = new FileOutputStream(accountFile);
+      file = new FileOutputStream(tempFile);
       ProtoAccountData data = ProtoAccountDataSerializer.serialize(account);
       file.write(data.toByteArray());
       file.flush();
     } catch (IOException e) {
-      LOG.severe("Failed to write account data to file: " + accountFile.getAbsolutePath(), e);
+      LOG.severe("Failed to write account data to file: " + tempFile.getAbsolutePath(), e);
       throw new PersistenceException(e);
     } finally {
-      FileUtils.closeAndIgnoreException(file, accountFile, LOG);
+      FileUtils.closeAndIgnoreException(file, tempFile, LOG);
+    }
+    try {
+      Files.move(tempFile.toPath(), accountFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOG.severe("Failed to write account data to file: " + accountFile.getAbsolutePath(), e);
+      throw new PersistenceException(e);
     }
   }
 
@@ -21,6 +21,7 @@ package org.waveprotocol.box.server.persistence.file;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 
@@ -40,13 +41,18 @@ import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
 import org.waveprotocol.wave.model.util.Pair;
 import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 import org.waveprotocol.wave.util.logging.Log;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
@@ -70,10 +76,11 @@ import java.util.Iterator;
 public class FileDeltaCollection implements DeltasAccess {
   public static final String DELTAS_FILE_SUFFIX = ".deltas";
   public static final String INDEX_FILE_SUFFIX = ".index";
+  public static final String SNAPSHOT_FILE_SUFFIX = ".snapshot";
 
   private static final byte[] FILE_MAGIC_BYTES = new byte[]{'W', 'A', 'V', 'E'};
   private static final int FILE_PROTOCOL_VERSION = 1;
-  private static final int FILE_HEADER_LENGTH = 8;
+  static final int FILE_HEADER_LENGTH = 8;
 
   private static final int DELTA_PROTOCOL_VERSION = 1;
 
@@ -82,6 +89,7 @@ public class FileDeltaCollection implements DeltasAccess {
   private final WaveletName waveletName;
   private final RandomAccessFile file;
   private final DeltaIndex index;
+  private final File snapshotFile;
 
   private HashedVersion endVersion;
   private boolean isOpen;
@@ -138,7 +146,8 @@ public class FileDeltaCollection implements DeltasAccess {
     setOrCheckFileHeader(deltaFile);
     DeltaIndex index = new DeltaIndex(indexFile(basePath, waveletName));
 
-    FileDeltaCollection collection = new FileDeltaCollection(waveletName, deltaFile, index);
+    FileDeltaCollection collection = new FileDeltaCollection(waveletName, deltaFile, index,
+        snapshotFile(basePath, waveletName));
 
     index.openForCollection(collection);
     collection.initializeEndVersionAndTruncateTrailingJunk();
@@ -164,7 +173,14 @@ public class FileDeltaCollection implements DeltasAccess {
     File index = indexFile(basePath, waveletName);
     if (index.exists()) {
       if (!index.delete()) {
-        error += "Could not delete index file: " + index.getAbsolutePath();
+        error += "Could not delete index file: " + index.getAbsolutePath() + ". ";
+      }
+    }
+
+    File snapshot = snapshotFile(basePath, waveletName);
+    if (snapshot.exists()) {
+      if (!snapshot.delete()) {
+        error += "Could not delete snapshot file: " + snapshot.getAbsolutePath();
       }
     }
     if (!error.isEmpty()) {
@@ -178,12 +194,14 @@ public class FileDeltaCollection implements DeltasAccess {
    * @param waveletName name of the wavelet
    * @param deltaFile the file of deltas
    * @param index index into deltas
+   * @param snapshotFile the file holding the latest snapshot checkpoint
    */
   public FileDeltaCollection(WaveletName waveletName, RandomAccessFile deltaFile,
-      DeltaIndex index) {
+      DeltaIndex index, File snapshotFile) {
     this.waveletName = waveletName;
     this.file = deltaFile;
     this.index = index;
+    this.snapshotFile = snapshotFile;
     this.isOpen = true;
     lifeCycle.start();
   }
@@ -259,22 +277,23 @@ public class FileDeltaCollection implements DeltasAccess {
   @Override
   public long getDeltasInRange(long startVersion, long endVersion,
       Receiver<WaveletDeltaRecord> receiver) throws IOException {
-    checkIsOpen();
-
-    if (this.endVersion == null) return 0;
-
-    Preconditions.checkState(0 <= startVersion && startVersion < endVersion
-        && endVersion <= this.endVersion.getVersion(),
-        "Invalid delta range");
-
-    long version = startVersion;
-    while (seekToRecord(version) && version <= endVersion) {
-      if (!receiver.put(readRecord())) {
-        throw new IllegalStateException("Error processing deltas from file");
+    lifeCycle.enter();
+    try {
+      checkIsOpen();
+      long count = 0;
+      long version = startVersion;
+      while (version < endVersion && seekToRecord(version)) {
+        WaveletDeltaRecord record = readRecord();
+        count++;
+        if (!receiver.put(record)) {
+          break;
+        }
+        version = record.getResultingVersion().getVersion();
       }
-      version++;
+      return count;
+    } finally {
+      lifeCycle.leave();
     }
-    return version--;
   }
 
   @Override
@@ -300,23 +319,88 @@ public class FileDeltaCollection implements DeltasAccess {
 
   @Override
   public void append(Collection<WaveletDeltaRecord> deltas) throws PersistenceException {
+    write(deltas);
+    sync(deltas);
+  }
+
+  /**
+   * Writes deltas to the end of the file without forcing them to disk. They
+   * are not visible through this collection until {@link #sync} is called.
+   */
+  void write(Collection<WaveletDeltaRecord> deltas) throws PersistenceException {
     lifeCycle.enter();
     checkIsOpen();
     try {
       file.seek(file.length());
 
-      WaveletDeltaRecord lastDelta = null;
       for (WaveletDeltaRecord delta : deltas) {
         index.addDelta(delta.getTransformedDelta().getAppliedAtVersion(),
             delta.getTransformedDelta().size(),
             file.getFilePointer());
         writeDelta(delta);
-        lastDelta = delta;
       }
+    } catch (IOException e) {
+      throw new PersistenceException(e);
+    } finally {
+      lifeCycle.leave();
+    }
+  }
 
+  /**
+   * Forces deltas previously passed to {@link #write} to disk and advances the
+   * end version past them.
+   */
+  void sync(Collection<WaveletDeltaRecord> deltas) throws PersistenceException {
+    lifeCycle.enter();
+    checkIsOpen();
+    try {
       // fsync() before returning.
       file.getChannel().force(true);
-      endVersion = lastDelta.getTransformedDelta().getResultingVersion();
+      endVersion = Iterables.getLast(deltas).getTransformedDelta().getResultingVersion();
+    } catch (IOException e) {
+      throw new PersistenceException(e);
+    } finally {
+      lifeCycle.leave();
+    }
+  }
+
+  @Override
+  public ObservableWaveletData loadSnapshot() throws PersistenceException {
+    lifeCycle.enter();
+    try {
+      checkIsOpen();
+      if (!snapshotFile.exists()) {
+        return null;
+      }
+      byte[] bytes = Files.readAllBytes(snapshotFile.toPath());
+      return ProtoDeltaStoreDataSerializer.deserializeSnapshot(bytes, waveletName.waveId);
+    } catch (IOException e) {
+      throw new PersistenceException(e);
+    } finally {
+      lifeCycle.leave();
+    }
+  }
+
+  @Override
+  public void storeSnapshot(ReadableWaveletData snapshot) throws PersistenceException {
+    lifeCycle.enter();
+    try {
+      checkIsOpen();
+      Preconditions.checkState(endVersion != null
+          && snapshot.getVersion() <= endVersion.getVersion(),
+          "Snapshot version %s is ahead of the stored deltas", snapshot.getVersion());
+      // Write the checkpoint aside and move it into place, so a crash never
+      // leaves a partially written snapshot behind.
+      File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+      FileOutputStream stream = new FileOutputStream(tmpFile);
+      try {
+        stream.write(ProtoDeltaStoreDataSerializer.serializeSnapshot(snapshot));
+        stream.getChannel().force(true);
+      } finally {
+        stream.close();
+      }
+      Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
     } catch (IOException e) {
       throw new PersistenceException(e);
     } finally {
@@ -408,6 +492,12 @@ public class FileDeltaCollection implements DeltasAccess {
     return new File(basePath, waveletPathPrefix + INDEX_FILE_SUFFIX);
   }
 
+  @VisibleForTesting
+  static final File snapshotFile(String basePath, WaveletName waveletName) {
+    String waveletPathPrefix = FileUtils.waveletNameToPathSegment(waveletName);
+    return new File(basePath, waveletPathPrefix + SNAPSHOT_FILE_SUFFIX);
+  }
+
   /**
    * Checks that a file has a valid deltas header, adding the header if the
    * file is shorter than the header.
@@ -0,0 +1,189 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+import com.google.inject.Inject;
+import com.typesafe.config.Config;
+
+import org.waveprotocol.box.server.persistence.PerUserWaveViewStore;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.wave.model.id.InvalidIdException;
+import org.waveprotocol.wave.model.id.ModernIdSerialiser;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * A flat file based implementation of {@link PerUserWaveViewStore}.
+ *
+ * The view of each user is kept in its own file, as a log of added ("+") and
+ * removed ("-") wavelet names, one per line. Adding or removing a wavelet
+ * appends a line; the file is rewritten when the view is put, or when it is
+ * read and mostly holds changes cancelling each other.
+ */
+public class FilePerUserWaveViewStore implements PerUserWaveViewStore {
+
+  private static final Log LOG = Log.get(FilePerUserWaveViewStore.class);
+
+  private static final String VIEW_FILE_EXTENSION = ".view";
+  private static final char ADDED = '+';
+  private static final char REMOVED = '-';
+
+  /** Number of log lines beyond the view size tolerated before compacting. */
+  private static final int MAX_EXTRA_LINES = 64;
+
+  private final String basePath;
+
+  @Inject
+  public FilePerUserWaveViewStore(Config config) {
+    this.basePath = config.getString("core.wave_view_store_directory");
+  }
+
+  @Override
+  public void initializePerUserWaveViewStore() throws PersistenceException {
+    FileUtils.performDirectoryChecks(basePath, VIEW_FILE_EXTENSION, "wave view store", LOG);
+  }
+
+  @Override
+  public synchronized Multimap<WaveId, WaveletId> getWaveView(ParticipantId user)
+      throws PersistenceException {
+    File file = viewFile(user);
+    if (!file.exists()) {
+      return null;
+    }
+    Multimap<WaveId, WaveletId> view = HashMultimap.create();
+    int lines = 0;
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charsets.UTF_8));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lines++;
+        if (line.isEmpty()) {
+          continue;
+        }
+        WaveletName waveletName;
+        try {
+          waveletName = ModernIdSerialiser.INSTANCE.deserialiseWaveletName(line.substring(1));
+        } catch (InvalidIdException e) {
+          // A line may have been cut short by a crash while appending.
+          LOG.warning("Skipping invalid line in " + file.getAbsolutePath() + ": " + line);
+          continue;
+        }
+        if (line.charAt(0) == ADDED) {
+          view.put(waveletName.waveId, waveletName.waveletId);
+        } else if (line.charAt(0) == REMOVED) {
+          view.remove(waveletName.waveId, waveletName.waveletId);
+        }
+      }
+    } catch (IOException e) {
+      throw new PersistenceException("Failed to read wave view from " + file.getAbsolutePath(), e);
+    } finally {
+      FileUtils.closeAndIgnoreException(reader, file, LOG);
+    }
+    if (lines > view.size() + MAX_EXTRA_LINES) {
+      writeView(user, view);
+    }
+    return view;
+  }
+
+  @Override
+  public synchronized void putWaveView(ParticipantId user, Multimap<WaveId, WaveletId> view)
+      throws PersistenceException {
+    writeView(user, view);
+  }
+
+  @Override
+  public synchronized void addWavelet(ParticipantId user, WaveletName waveletName)
+      throws PersistenceException {
+    appendLine(user, ADDED, waveletName);
+  }
+
+  @Override
+  public synchronized void removeWavelet(ParticipantId user, WaveletName waveletName)
+      throws PersistenceException {
+    appendLine(user, REMOVED, waveletName);
+  }
+
+  private File viewFile(ParticipantId user) {
+    return new File(basePath, FileUtils.toFilenameFriendlyString(user.getAddress())
+        + VIEW_FILE_EXTENSION);
+  }
+
+  private static String line(char change, WaveletName waveletName) {
+    return change + ModernIdSerialiser.INSTANCE.serialiseWaveletName(waveletName) + "\n";
+  }
+
+  private void appendLine(ParticipantId user, char change, WaveletName waveletName)
+      throws PersistenceException {
+    File file = viewFile(user);
+    if (!file.exists()) {
+      // The user has no stored view yet.
+      return;
+    }
+    Writer writer = null;
+    try {
+      writer = new OutputStreamWriter(new FileOutputStream(file, true), Charsets.UTF_8);
+      writer.write(line(change, waveletName));
+      writer.flush();
+    } catch (IOException e) {
+      throw new PersistenceException("Failed to update wave view in " + file.getAbsolutePath(), e);
+    } finally {
+      FileUtils.closeAndIgnoreException(writer, file, LOG);
+    }
+  }
+
+  /** Writes the view to a new file, then replaces the file of the user. */
+  private void writeView(ParticipantId user, Multimap<WaveId, WaveletId> view)
+      throws PersistenceException {
+    File file = viewFile(user);
+    File tmp = new File(file.getPath() + ".tmp");
+    Writer writer = null;
+    try {
+      writer = new OutputStreamWriter(new FileOutputStream(tmp), Charsets.UTF_8);
+      for (Map.Entry<WaveId, WaveletId> entry : view.entries()) {
+        writer.write(line(ADDED, WaveletName.of(entry.getKey(), entry.getValue())));
+      }
+      writer.flush();
+    } catch (IOException e) {
+      throw new PersistenceException("Failed to write wave view to " + tmp.getAbsolutePath(), e);
+    } finally {
+      FileUtils.closeAndIgnoreException(writer, tmp, LOG);
+    }
+    if (!tmp.renameTo(file)) {
+      throw new PersistenceException("Failed to replace wave view file " + file.getAbsolutePath());
+    }
+  }
+}
@@ -0,0 +1,300 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import com.google.common.base.Preconditions;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.waveprotocol.box.common.Receiver;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.box.server.persistence.protos.ProtoDeltaStoreDataSerializer;
+import org.waveprotocol.box.server.persistence.protos.ProtoDeltaStoreData.ProtoTransformedWaveletDelta;
+import org.waveprotocol.box.server.persistence.file.SegmentDeltaStore.WaveletDeltas;
+import org.waveprotocol.box.server.waveserver.AppliedDeltaUtil;
+import org.waveprotocol.box.server.waveserver.ByteStringMessage;
+import org.waveprotocol.box.server.waveserver.DeltaStore.DeltasAccess;
+import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
+import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * The deltas of a wavelet in a {@link SegmentDeltaStore}. Deltas are parsed
+ * straight from the memory mapped segments, without file reads.
+ *
+ * A particular SegmentDeltaCollection instance assumes that it's <em>the only
+ * one</em> writing a particular wavelet.
+ */
+public class SegmentDeltaCollection implements DeltasAccess {
+
+  private final SegmentDeltaStore store;
+  private final WaveletName waveletName;
+  private final WaveletDeltas deltas;
+  private final File snapshotFile;
+
+  private HashedVersion endVersion;
+  private boolean isOpen;
+
+  SegmentDeltaCollection(SegmentDeltaStore store, WaveletName waveletName,
+      WaveletDeltas deltas, File snapshotFile) throws IOException {
+    this.store = store;
+    this.waveletName = waveletName;
+    this.deltas = deltas;
+    this.snapshotFile = snapshotFile;
+    this.isOpen = true;
+
+    long last = deltas.getLastLocation();
+    this.endVersion = last >= 0 ? readTransformedDelta(last).getResultingVersion() : null;
+  }
+
+  @Override
+  public WaveletName getWaveletName() {
+    return waveletName;
+  }
+
+  @Override
+  public HashedVersion getEndVersion() {
+    return endVersion;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    checkIsOpen();
+    return deltas.isEmpty();
+  }
+
+  @Override
+  public WaveletDeltaRecord getDelta(long version) throws IOException {
+    checkIsOpen();
+    long location = deltas.getLocation(version);
+    return location >= 0 ? readRecord(location) : null;
+  }
+
+  @Override
+  public WaveletDeltaRecord getDeltaByEndVersion(long version) throws IOException {
+    checkIsOpen();
+    long location = deltas.getLocationByResultingVersion(version);
+    return location >= 0 ? readRecord(location) : null;
+  }
+
+  @Override
+  public ByteStringMessage<ProtocolAppliedWaveletDelta> getAppliedDelta(long version)
+      throws IOException {
+    checkIsOpen();
+    long location = deltas.getLocation(version);
+    return location >= 0 ? readAppliedDelta(location) : null;
+  }
+
+  @Override
+  public TransformedWaveletDelta getTransformedDelta(long version) throws IOException {
+    checkIsOpen();
+    long location = deltas.getLocation(version);
+    return location >= 0 ? readTransformedDelta(location) : null;
+  }
+
+  @Override
+  public HashedVersion getAppliedAtVersion(long version) throws IOException {
+    ByteStringMessage<ProtocolAppliedWaveletDelta> applied = getAppliedDelta(version);
+
+    return (applied != null) ? AppliedDeltaUtil.getHashedVersionAppliedAt(applied) : null;
+  }
+
+  @Override
+  public HashedVersion getResultingVersion(long version) throws IOException {
+    TransformedWaveletDelta transformed = getTransformedDelta(version);
+
+    return (transformed != null) ? transformed.getResultingVersion() : null;
+  }
+
+  @Override
+  public long getAllDeltas(Receiver<WaveletDeltaRecord> receiver) throws IOException {
+    checkIsOpen();
+    return readDeltas(deltas.getLocations(0, Long.MAX_VALUE), receiver);
+  }
+
+  @Override
+  public long getDeltasInRange(long startVersion, long endVersion,
+      Receiver<WaveletDeltaRecord> receiver) throws IOException {
+    checkIsOpen();
+    if (startVersion >= endVersion) return 0;
+    return readDeltas(deltas.getLocations(startVersion, endVersion - 1), receiver);
+  }
+
+  @Override
+  public void append(Collection<WaveletDeltaRecord> records) throws PersistenceException {
+    checkIsOpen();
+    if (records.isEmpty()) return;
+
+    store.append(Collections.singletonMap(waveletName, records));
+    appended(records);
+  }
+
+  /**
+   * Updates the end version once deltas have been appended to the store.
+   */
+  void appended(Collection<WaveletDeltaRecord> records) {
+    if (records.isEmpty()) return;
+    WaveletDeltaRecord last = null;
+    for (WaveletDeltaRecord r : records) {
+      last = r;
+    }
+    endVersion = last.getResultingVersion();
+  }
+
+  @Override
+  public ObservableWaveletData loadSnapshot() throws PersistenceException {
+    checkIsOpen();
+    if (!snapshotFile.exists()) {
+      return null;
+    }
+    try {
+      byte[] bytes = Files.readAllBytes(snapshotFile.toPath());
+      return ProtoDeltaStoreDataSerializer.deserializeSnapshot(bytes, waveletName.waveId);
+    } catch (IOException e) {
+      throw new PersistenceException(e);
+    }
+  }
+
+  @Override
+  public void storeSnapshot(ReadableWaveletData snapshot) throws PersistenceException {
+    checkIsOpen();
+    Preconditions.checkState(endVersion != null
+        && snapshot.getVersion() <= endVersion.getVersion(),
+        "Snapshot version %s is ahead of the stored deltas", snapshot.getVersion());
+    try {
+      // Write the checkpoint aside and move it into place, so a crash never
+      // leaves a partially written snapshot behind.
+      snapshotFile.getParentFile().mkdirs();
+      File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+      FileOutputStream stream = new FileOutputStream(tmpFile);
+      try {
+        stream.write(ProtoDeltaStoreDataSerializer.serializeSnapshot(snapshot));
+        stream.getChannel().force(true);
+      } finally {
+        stream.close();
+      }
+      Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new PersistenceException(e);
+    }
+  }
+
+  @Override
+  public void close() {
+    endVersion = null;
+    isOpen = false;
+  }
+
+  SegmentDeltaStore getStore() {
+    return store;
+  }
+
+  void checkIsOpen() {
+    Preconditions.checkState(isOpen, "Delta collection closed");
+  }
+
+  private long readDeltas(long[] locations, Receiver<WaveletDeltaRecord> receiver)
+      throws IOException {
+    long count = 0;
+    for (long location : locations) {
+      count++;
+      if (!receiver.put(readRecord(location))) {
+        break;
+      }
+    }
+    return count;
+  }
+
+  // *** Record parsing. A record is the applied delta length, the transformed
+  // delta length, the applied delta and the transformed delta.
+
+  private WaveletDeltaRecord readRecord(long location) throws IOException {
+    ByteBuffer record = store.getRecord(location);
+    int appliedLength = record.getInt();
+    int transformedLength = record.getInt();
+
+    ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta =
+        parseAppliedDelta(record, appliedLength);
+    TransformedWaveletDelta transformedDelta = parseTransformedDelta(record, transformedLength);
+
+    return new WaveletDeltaRecord(AppliedDeltaUtil.getHashedVersionAppliedAt(appliedDelta),
+        appliedDelta, transformedDelta);
+  }
+
+  private ByteStringMessage<ProtocolAppliedWaveletDelta> readAppliedDelta(long location)
+      throws IOException {
+    ByteBuffer record = store.getRecord(location);
+    int appliedLength = record.getInt();
+    record.getInt();
+    return parseAppliedDelta(record, appliedLength);
+  }
+
+  private TransformedWaveletDelta readTransformedDelta(long location) throws IOException {
+    ByteBuffer record = store.getRecord(location);
+    int appliedLength = record.getInt();
+    int transformedLength = record.getInt();
+    record.position(record.position() + appliedLength);
+    return parseTransformedDelta(record, transformedLength);
+  }
+
+  private static ByteStringMessage<ProtocolAppliedWaveletDelta> parseAppliedDelta(
+      ByteBuffer record, int length) throws IOException {
+    if (length == 0) {
+      return null;
+    }
+    ByteBuffer bytes = record.slice();
+    bytes.limit(length);
+    record.position(record.position() + length);
+    try {
+      return ByteStringMessage.parseProtocolAppliedWaveletDelta(ByteString.copyFrom(bytes));
+    } catch (InvalidProtocolBufferException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static TransformedWaveletDelta parseTransformedDelta(ByteBuffer record, int length)
+      throws IOException {
+    ByteBuffer bytes = record.slice();
+    bytes.limit(length);
+    record.position(record.position() + length);
+    ProtoTransformedWaveletDelta delta;
+    try {
+      delta = ProtoTransformedWaveletDelta.parseFrom(CodedInputStream.newInstance(bytes));
+    } catch (InvalidProtocolBufferException e) {
+      throw new IOException(e);
+    }
+    return ProtoDeltaStoreDataSerializer.deserialize(delta);
+  }
+}
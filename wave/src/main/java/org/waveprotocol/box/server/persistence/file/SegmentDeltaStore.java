@@ -0,0 +1,449 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.Inject;
+import com.typesafe.config.Config;
+
+import org.waveprotocol.box.common.ExceptionalIterator;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.box.server.persistence.protos.ProtoDeltaStoreDataSerializer;
+import org.waveprotocol.box.server.shutdown.LifeCycle;
+import org.waveprotocol.box.server.shutdown.ShutdownPriority;
+import org.waveprotocol.box.server.shutdown.Shutdownable;
+import org.waveprotocol.box.server.waveserver.GroupCommitDeltaStore;
+import org.waveprotocol.box.server.waveserver.LastModifiedDeltaStore;
+import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
+import org.waveprotocol.box.stat.Timed;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A file based implementation of DeltaStore keeping the deltas of all wavelets
+ * in a sequence of shared, append-only segments (see {@link DeltaSegment}):
+ *
+ * base/00000000.segment
+ * base/00000000.sindex
+ * base/00000001.segment
+ * ...
+ * base/encoded-wave-id/encoded-wavelet-id.snapshot
+ *
+ * Segments are closed once they reach the configured size, and only the last
+ * one keeps file descriptors open. Deltas are read from memory mappings of
+ * the segments. The location of each delta is kept in memory, rebuilt from
+ * the segment indexes on start up.
+ *
+ * The space of deleted wavelets is not reclaimed.
+ */
+public class SegmentDeltaStore implements GroupCommitDeltaStore, LastModifiedDeltaStore {
+
+  private static final Log LOG = Log.get(SegmentDeltaStore.class);
+
+  /** Segments are mapped with int offsets */
+  private static final long MAX_SEGMENT_SIZE = 1L << 30;
+
+  private static final int OFFSET_BITS = 40;
+
+  /**
+   * Versions and locations of the deltas of a wavelet, in version order. A
+   * location is the segment id and the offset of the record in the segment.
+   */
+  static final class WaveletDeltas {
+    private long[] appliedAtVersions = new long[8];
+    private long[] resultingVersions = new long[8];
+    private long[] locations = new long[8];
+    private int size;
+
+    synchronized void add(long appliedAtVersion, long resultingVersion, long location) {
+      if (size == locations.length) {
+        appliedAtVersions = Arrays.copyOf(appliedAtVersions, size * 2);
+        resultingVersions = Arrays.copyOf(resultingVersions, size * 2);
+        locations = Arrays.copyOf(locations, size * 2);
+      }
+      appliedAtVersions[size] = appliedAtVersion;
+      resultingVersions[size] = resultingVersion;
+      locations[size] = location;
+      size++;
+    }
+
+    synchronized void clear() {
+      size = 0;
+    }
+
+    synchronized boolean isEmpty() {
+      return size == 0;
+    }
+
+    /** @return the location of the delta applied at a version, or -1 */
+    synchronized long getLocation(long appliedAtVersion) {
+      int i = Arrays.binarySearch(appliedAtVersions, 0, size, appliedAtVersion);
+      return i >= 0 ? locations[i] : -1;
+    }
+
+    /** @return the location of the delta leading to a version, or -1 */
+    synchronized long getLocationByResultingVersion(long resultingVersion) {
+      int i = Arrays.binarySearch(resultingVersions, 0, size, resultingVersion);
+      return i >= 0 ? locations[i] : -1;
+    }
+
+    /** @return the location of the last delta, or -1 */
+    synchronized long getLastLocation() {
+      return size > 0 ? locations[size - 1] : -1;
+    }
+
+    /**
+     * @return the locations of the deltas applied at versions in the range,
+     *         inclusive, or none if no delta is applied at the start version
+     */
+    synchronized long[] getLocations(long startVersion, long endVersion) {
+      int i = Arrays.binarySearch(appliedAtVersions, 0, size, startVersion);
+      if (i < 0) return new long[0];
+      int j = i;
+      while (j < size && appliedAtVersions[j] <= endVersion) {
+        j++;
+      }
+      return Arrays.copyOfRange(locations, i, j);
+    }
+  }
+
+  private final File basePath;
+  private final long segmentSize;
+
+  /** Deltas per wavelet, guarded by this */
+  private final Map<WaveId, Map<WaveletId, WaveletDeltas>> wavelets =
+      new HashMap<WaveId, Map<WaveletId, WaveletDeltas>>();
+
+  private final Map<Integer, DeltaSegment> segments = new ConcurrentHashMap<Integer, DeltaSegment>();
+
+  /** The segment open for writing, null until loaded */
+  private DeltaSegment active;
+
+  private final LifeCycle lifeCycle = new LifeCycle(SegmentDeltaStore.class.getSimpleName(),
+      ShutdownPriority.Storage, new Shutdownable() {
+        @Override
+        public void shutdown() throws Exception {
+          close();
+        }
+      });
+
+  @Inject
+  public SegmentDeltaStore(Config config) {
+    this(config.getString("core.delta_store_directory"), config
+        .getBytes("core.delta_segment_size"));
+  }
+
+  public SegmentDeltaStore(String basePath, long segmentSize) {
+    Preconditions.checkArgument(segmentSize > 0 && segmentSize <= MAX_SEGMENT_SIZE,
+        "Segment size must be between 1 byte and 1 GB");
+    this.basePath = new File(basePath);
+    this.segmentSize = segmentSize;
+    lifeCycle.start();
+  }
+
+  @Timed
+  @Override
+  public SegmentDeltaCollection open(WaveletName waveletName) throws PersistenceException {
+    WaveletDeltas deltas;
+    synchronized (this) {
+      ensureLoaded();
+      deltas = getOrCreateDeltas(waveletName);
+    }
+    try {
+      return new SegmentDeltaCollection(this, waveletName, deltas, FileDeltaCollection
+          .snapshotFile(basePath.getPath(), waveletName));
+    } catch (IOException e) {
+      throw new PersistenceException("Failed to open deltas for wavelet " + waveletName, e);
+    }
+  }
+
+  @Override
+  public void delete(WaveletName waveletName) throws PersistenceException {
+    synchronized (this) {
+      ensureLoaded();
+      Map<WaveletId, WaveletDeltas> waveDeltas = wavelets.get(waveletName.waveId);
+      WaveletDeltas deltas = waveDeltas != null ? waveDeltas.remove(waveletName.waveletId) : null;
+      if (deltas != null && !deltas.isEmpty()) {
+        try {
+          active.appendDelete(waveletName);
+        } catch (IOException e) {
+          throw new PersistenceException("Failed to delete deltas of wavelet " + waveletName, e);
+        }
+        deltas.clear();
+      }
+    }
+
+    File snapshot = FileDeltaCollection.snapshotFile(basePath.getPath(), waveletName);
+    if (snapshot.exists() && !snapshot.delete()) {
+      throw new PersistenceException("Could not delete snapshot file: "
+          + snapshot.getAbsolutePath());
+    }
+  }
+
+  @Timed
+  @Override
+  public synchronized ImmutableSet<WaveletId> lookup(WaveId waveId) throws PersistenceException {
+    ensureLoaded();
+    Map<WaveletId, WaveletDeltas> waveDeltas = wavelets.get(waveId);
+    if (waveDeltas == null) {
+      return ImmutableSet.of();
+    }
+    ImmutableSet.Builder<WaveletId> results = ImmutableSet.builder();
+    for (Map.Entry<WaveletId, WaveletDeltas> e : waveDeltas.entrySet()) {
+      if (!e.getValue().isEmpty()) {
+        results.add(e.getKey());
+      }
+    }
+    return results.build();
+  }
+
+  @Timed
+  @Override
+  public synchronized ExceptionalIterator<WaveId, PersistenceException> getWaveIdIterator()
+      throws PersistenceException {
+    ensureLoaded();
+    ImmutableSet.Builder<WaveId> results = ImmutableSet.builder();
+    for (Map.Entry<WaveId, Map<WaveletId, WaveletDeltas>> e : wavelets.entrySet()) {
+      for (WaveletDeltas deltas : e.getValue().values()) {
+        if (!deltas.isEmpty()) {
+          results.add(e.getKey());
+          break;
+        }
+      }
+    }
+    return ExceptionalIterator.FromIterator.create(results.build().iterator());
+  }
+
+  /**
+   * Returns the location of the last delta of each wavelet, which grows in
+   * append order across segments.
+   */
+  @Override
+  public synchronized ImmutableMap<WaveletId, Long> getLastModified(WaveId waveId)
+      throws PersistenceException {
+    ensureLoaded();
+    Map<WaveletId, WaveletDeltas> waveDeltas = wavelets.get(waveId);
+    if (waveDeltas == null) {
+      return ImmutableMap.of();
+    }
+    ImmutableMap.Builder<WaveletId, Long> results = ImmutableMap.builder();
+    for (Map.Entry<WaveletId, WaveletDeltas> e : waveDeltas.entrySet()) {
+      long location = e.getValue().getLastLocation();
+      if (location >= 0) {
+        results.put(e.getKey(), location);
+      }
+    }
+    return results.build();
+  }
+
+  /**
+   * Closes the segment open for writing. The store is opened again on next
+   * use, collections opened before must not be used anymore.
+   */
+  public synchronized void close() throws IOException {
+    if (active != null) {
+      active.seal();
+      active = null;
+      segments.clear();
+      wavelets.clear();
+    }
+  }
+
+  @Override
+  public void appendAll(Map<DeltasAccess, Collection<WaveletDeltaRecord>> deltas)
+      throws PersistenceException {
+    Map<WaveletName, Collection<WaveletDeltaRecord>> records =
+        new LinkedHashMap<WaveletName, Collection<WaveletDeltaRecord>>();
+    for (Map.Entry<DeltasAccess, Collection<WaveletDeltaRecord>> e : deltas.entrySet()) {
+      Preconditions.checkArgument(e.getKey() instanceof SegmentDeltaCollection,
+          "Deltas access not opened by this store");
+      SegmentDeltaCollection access = (SegmentDeltaCollection) e.getKey();
+      Preconditions.checkArgument(access.getStore() == this,
+          "Deltas access not opened by this store");
+      access.checkIsOpen();
+      records.put(access.getWaveletName(), e.getValue());
+    }
+
+    append(records);
+
+    for (Map.Entry<DeltasAccess, Collection<WaveletDeltaRecord>> e : deltas.entrySet()) {
+      ((SegmentDeltaCollection) e.getKey()).appended(e.getValue());
+    }
+  }
+
+  /**
+   * Appends the deltas of some wavelets to the current segment with a single
+   * write to disk, starting a new segment if it gets full.
+   */
+  void append(Map<WaveletName, Collection<WaveletDeltaRecord>> records)
+      throws PersistenceException {
+    List<DeltaSegment.Record> segmentRecords = new ArrayList<DeltaSegment.Record>();
+    for (Map.Entry<WaveletName, Collection<WaveletDeltaRecord>> e : records.entrySet()) {
+      for (WaveletDeltaRecord r : e.getValue()) {
+        byte[] applied = r.getAppliedDelta() != null ? r.getAppliedDelta().getByteArray()
+            : new byte[0];
+        byte[] transformed =
+            ProtoDeltaStoreDataSerializer.serialize(r.getTransformedDelta()).toByteArray();
+        segmentRecords.add(new DeltaSegment.Record(e.getKey(), r.getTransformedDelta()
+            .getAppliedAtVersion(), r.getResultingVersion().getVersion(), applied, transformed));
+      }
+    }
+    if (segmentRecords.isEmpty()) return;
+
+    lifeCycle.enter();
+    try {
+      synchronized (this) {
+        ensureLoaded();
+        long[] offsets = active.append(segmentRecords);
+        for (int i = 0; i < offsets.length; i++) {
+          DeltaSegment.Record r = segmentRecords.get(i);
+          getOrCreateDeltas(r.waveletName).add(r.appliedAtVersion, r.resultingVersion,
+              location(active.getId(), offsets[i]));
+        }
+
+        if (active.length() >= segmentSize) {
+          int nextId = active.getId() + 1;
+          active.seal();
+          active = DeltaSegment.open(basePath, nextId, true, new IndexLoader(nextId));
+          segments.put(nextId, active);
+        }
+      }
+    } catch (IOException e) {
+      throw new PersistenceException(e);
+    } finally {
+      lifeCycle.leave();
+    }
+  }
+
+  /**
+   * Returns a read-only view of a stored record, see
+   * {@link DeltaSegment#getRecord(long)}.
+   */
+  ByteBuffer getRecord(long location) throws IOException {
+    DeltaSegment segment = segments.get((int) (location >>> OFFSET_BITS));
+    if (segment == null) {
+      throw new IOException("Delta segment not found for location " + location);
+    }
+    return segment.getRecord(location & ((1L << OFFSET_BITS) - 1));
+  }
+
+  @VisibleForTesting
+  synchronized int getSegmentCount() throws PersistenceException {
+    ensureLoaded();
+    return segments.size();
+  }
+
+  private static long location(int segmentId, long offset) {
+    return ((long) segmentId << OFFSET_BITS) | offset;
+  }
+
+  /** Adds the deltas of a segment index to the wavelets. */
+  private final class IndexLoader implements DeltaSegment.IndexReceiver {
+    private final int segmentId;
+
+    IndexLoader(int segmentId) {
+      this.segmentId = segmentId;
+    }
+
+    @Override
+    public void onDelta(WaveletName waveletName, long appliedAtVersion, long resultingVersion,
+        long offset) {
+      getOrCreateDeltas(waveletName).add(appliedAtVersion, resultingVersion,
+          location(segmentId, offset));
+    }
+
+    @Override
+    public void onDelete(WaveletName waveletName) {
+      getOrCreateDeltas(waveletName).clear();
+    }
+  }
+
+  private WaveletDeltas getOrCreateDeltas(WaveletName waveletName) {
+    Map<WaveletId, WaveletDeltas> waveDeltas = wavelets.get(waveletName.waveId);
+    if (waveDeltas == null) {
+      waveDeltas = new HashMap<WaveletId, WaveletDeltas>();
+      wavelets.put(waveletName.waveId, waveDeltas);
+    }
+    WaveletDeltas deltas = waveDeltas.get(waveletName.waveletId);
+    if (deltas == null) {
+      deltas = new WaveletDeltas();
+      waveDeltas.put(waveletName.waveletId, deltas);
+    }
+    return deltas;
+  }
+
+  /**
+   * Opens the segments, rebuilding the locations of the deltas from their
+   * indexes.
+   */
+  private void ensureLoaded() throws PersistenceException {
+    if (active != null) return;
+
+    if (!basePath.exists() && !basePath.mkdirs()) {
+      throw new PersistenceException("Couldn't create delta store directory " + basePath);
+    }
+
+    List<Integer> ids = new ArrayList<Integer>();
+    for (String name : basePath.list(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.matches("\\d{8}" + DeltaSegment.DATA_FILE_SUFFIX.replace(".", "\\."));
+      }
+    })) {
+      ids.add(Integer.parseInt(name.substring(0, 8)));
+    }
+    Collections.sort(ids);
+    int lastId = ids.isEmpty() ? 0 : ids.get(ids.size() - 1);
+
+    try {
+      for (int id : ids) {
+        if (id == lastId) break;
+        segments.put(id, DeltaSegment.open(basePath, id, false, new IndexLoader(id)));
+      }
+      active = DeltaSegment.open(basePath, lastId, true, new IndexLoader(lastId));
+      segments.put(lastId, active);
+    } catch (IOException e) {
+      segments.clear();
+      wavelets.clear();
+      throw new PersistenceException("Failed to open delta segments in " + basePath, e);
+    }
+
+    LOG.info("Opened " + segments.size() + " delta segments in " + basePath);
+  }
+}
@@ -24,6 +24,8 @@ import com.google.common.collect.Maps;
 import com.google.protobuf.InvalidProtocolBufferException;
 
 import org.waveprotocol.box.common.Receiver;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.box.server.persistence.protos.ProtoDeltaStoreDataSerializer;
 import org.waveprotocol.box.server.waveserver.ByteStringMessage;
 import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
 import org.waveprotocol.box.server.waveserver.DeltaStore.DeltasAccess;
@@ -31,6 +33,8 @@ import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
 import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
 import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 
 import java.io.IOException;
 import java.util.Collection;
@@ -48,6 +52,9 @@ public class MemoryDeltaCollection implements DeltasAccess {
 
   private HashedVersion endVersion = null;
 
+  /** Serialized snapshot checkpoint, kept as bytes so callers never share state. */
+  private byte[] snapshot = null;
+
   public MemoryDeltaCollection(WaveletName waveletName) {
     Preconditions.checkNotNull(waveletName);
     this.waveletName = waveletName;
@@ -124,6 +131,21 @@ public class MemoryDeltaCollection implements DeltasAccess {
     }
   }
 
+  @Override
+  public ObservableWaveletData loadSnapshot() throws PersistenceException {
+    return (snapshot != null)
+        ? ProtoDeltaStoreDataSerializer.deserializeSnapshot(snapshot, waveletName.waveId)
+        : null;
+  }
+
+  @Override
+  public void storeSnapshot(ReadableWaveletData snapshot) {
+    Preconditions.checkState(endVersion != null
+        && snapshot.getVersion() <= endVersion.getVersion(),
+        "Snapshot version %s is ahead of the stored deltas", snapshot.getVersion());
+    this.snapshot = ProtoDeltaStoreDataSerializer.serializeSnapshot(snapshot);
+  }
+
   @Override
   public long getAllDeltas(Receiver<WaveletDeltaRecord> receiver) throws IOException {
     for (WaveletDeltaRecord delta : deltas.values())
@@ -135,19 +157,16 @@ public class MemoryDeltaCollection implements DeltasAccess {
   @Override
   public long getDeltasInRange(long startVersion, long endVersion,
       Receiver<WaveletDeltaRecord> receiver) throws IOException {
-
-    Preconditions
-        .checkState((startVersion >= 0 && startVersion < endVersion && endVersion <= this.endVersion
-            .getVersion()));
-
     long count = 0;
-    for (long v = startVersion; v <= endVersion; v++) {
-      if (!receiver.put(deltas.get(v))) {
-        throw new IllegalStateException("error processing deltas from memory");
-      }
+    long version = startVersion;
+    WaveletDeltaRecord delta;
+    while (version < endVersion && (delta = deltas.get(version)) != null) {
       count++;
+      if (!receiver.put(delta)) {
+        break;
+      }
+      version = delta.getResultingVersion().getVersion();
     }
-
     return count;
   }
 }
@@ -0,0 +1,73 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.memory;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+
+import org.waveprotocol.box.server.persistence.PerUserWaveViewStore;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.Map;
+
+/**
+ * In-memory implementation of {@link PerUserWaveViewStore}, lasting as long
+ * as the server runs.
+ */
+public class MemoryPerUserWaveViewStore implements PerUserWaveViewStore {
+
+  private final Map<ParticipantId, Multimap<WaveId, WaveletId>> views = Maps.newHashMap();
+
+  @Override
+  public void initializePerUserWaveViewStore() {
+    // Nothing to initialize.
+  }
+
+  @Override
+  public synchronized Multimap<WaveId, WaveletId> getWaveView(ParticipantId user) {
+    Multimap<WaveId, WaveletId> view = views.get(user);
+    return view != null ? HashMultimap.create(view) : null;
+  }
+
+  @Override
+  public synchronized void putWaveView(ParticipantId user, Multimap<WaveId, WaveletId> view) {
+    views.put(user, HashMultimap.create(view));
+  }
+
+  @Override
+  public synchronized void addWavelet(ParticipantId user, WaveletName waveletName) {
+    Multimap<WaveId, WaveletId> view = views.get(user);
+    if (view != null) {
+      view.put(waveletName.waveId, waveletName.waveletId);
+    }
+  }
+
+  @Override
+  public synchronized void removeWavelet(ParticipantId user, WaveletName waveletName) {
+    Multimap<WaveId, WaveletId> view = views.get(user);
+    if (view != null) {
+      view.remove(waveletName.waveId, waveletName.waveletId);
+    }
+  }
+}
@@ -29,9 +29,11 @@ import org.waveprotocol.wave.crypto.DefaultCertPathStore;
 import org.waveprotocol.wave.crypto.SignatureException;
 import org.waveprotocol.wave.crypto.SignerInfo;
 import org.waveprotocol.wave.federation.Proto.ProtocolSignerInfo;
+import org.waveprotocol.wave.model.util.CollectionUtils;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.util.logging.Log;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -93,6 +95,18 @@ public class MemoryStore implements SignerInfoStore, AccountStore {
     return accountStore.get(id);
   }
 
+  @Override
+  public Map<ParticipantId, AccountData> getAccounts(Collection<ParticipantId> ids) {
+    Map<ParticipantId, AccountData> result = CollectionUtils.newHashMap();
+    for (ParticipantId id : ids) {
+      AccountData account = accountStore.get(id);
+      if (account != null) {
+        result.put(id, account);
+      }
+    }
+    return result;
+  }
+
   @Override
   public void putAccount(AccountData account) {
     accountStore.put(account.getId(), account);
@@ -23,10 +23,12 @@ import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.MongoException;
 import com.mongodb.WriteConcern;
 
 import org.waveprotocol.box.common.Receiver;
 import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.box.server.persistence.protos.ProtoDeltaStoreDataSerializer;
 import org.waveprotocol.box.server.waveserver.ByteStringMessage;
 import org.waveprotocol.box.server.waveserver.DeltaStore;
 import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
@@ -34,10 +36,14 @@ import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
 import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
 import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 import org.waveprotocol.wave.util.logging.Log;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 /**
  * A MongoDB based Delta Access implementation using a simple <b>deltas</b>
@@ -50,6 +56,20 @@ public class MongoDbDeltaCollection implements DeltaStore.DeltasAccess {
 
   private static final Log LOG = Log.get(MongoDbDeltaCollection.class);
 
+  /** The fields of a delta document needed to read its record */
+  private static final DBObject RECORD_FIELDS = new BasicDBObject()
+      .append(MongoDbDeltaStoreUtil.FIELD_ID, 0)
+      .append(MongoDbDeltaStoreUtil.FIELD_APPLIEDATVERSION, 1)
+      .append(MongoDbDeltaStoreUtil.FIELD_APPLIED, 1)
+      .append(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED, 1);
+
+  /**
+   * The order deltas are read in, served by the deltas index. Deltas stored
+   * twice at the same version are read in order of application.
+   */
+  private static final DBObject DELTA_ORDER = new BasicDBObject()
+      .append(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED_APPLIEDATVERSION, 1)
+      .append(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED_APPLICATIONTIMESTAMP, 1);
 
   /** Wavelet name to work with. */
   private final WaveletName waveletName;
@@ -57,15 +77,27 @@ public class MongoDbDeltaCollection implements DeltaStore.DeltasAccess {
   /** MongoDB Collection object for delta storage */
   private final DBCollection deltaDbCollection;
 
+  /** MongoDB Collection object for snapshot checkpoints */
+  private final DBCollection snapshotDbCollection;
+
+  /** Number of delta documents fetched per round trip when reading a range */
+  private final int readBatchSize;
+
   /**
    * Construct a new Delta Access object for the wavelet
    *
    * @param waveletName The wavelet name.
    * @param deltaDbCollection The MongoDB deltas collection
+   * @param snapshotDbCollection The MongoDB snapshots collection
+   * @param readBatchSize The number of deltas fetched per round trip when
+   *        reading a range of deltas
    */
-  public MongoDbDeltaCollection(WaveletName waveletName, DBCollection deltaDbCollection) {
+  public MongoDbDeltaCollection(WaveletName waveletName, DBCollection deltaDbCollection,
+      DBCollection snapshotDbCollection, int readBatchSize) {
     this.waveletName = waveletName;
     this.deltaDbCollection = deltaDbCollection;
+    this.snapshotDbCollection = snapshotDbCollection;
+    this.readBatchSize = readBatchSize;
   }
 
   @Override
@@ -120,7 +152,7 @@ public class MongoDbDeltaCollection implements DeltaStore.DeltasAccess {
     DBObject query = createWaveletDBQuery();
     query.put(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED_APPLIEDATVERSION, version);
 
-    DBObject result = deltaDbCollection.findOne(query);
+    DBObject result = deltaDbCollection.findOne(query, RECORD_FIELDS);
 
     WaveletDeltaRecord waveletDelta = null;
 
@@ -137,13 +169,13 @@ public class MongoDbDeltaCollection implements DeltaStore.DeltasAccess {
     DBObject query = createWaveletDBQuery();
     query.put(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED_RESULTINGVERSION_VERSION, version);
 
-    DBObject result = deltaDbCollection.findOne(query);
+    DBObject result = deltaDbCollection.findOne(query, RECORD_FIELDS);
 
     WaveletDeltaRecord waveletDelta = null;
 
     if (result != null)
     try {
-      MongoDbDeltaStoreUtil.deserializeWaveletDeltaRecord(result);
+      waveletDelta = MongoDbDeltaStoreUtil.deserializeWaveletDeltaRecord(result);
     } catch (PersistenceException e) {
       throw new IOException(e);
     }
@@ -156,7 +188,9 @@ public class MongoDbDeltaCollection implements DeltaStore.DeltasAccess {
     DBObject query = createWaveletDBQuery();
     query.put(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED_APPLIEDATVERSION, version);
 
-    DBObject result = deltaDbCollection.findOne(query);
+    DBObject field = new BasicDBObject(MongoDbDeltaStoreUtil.FIELD_APPLIEDATVERSION, 1);
+
+    DBObject result = deltaDbCollection.findOne(query, field);
 
     if (result != null)
       return MongoDbDeltaStoreUtil.deserializeHashedVersion((DBObject) result
@@ -169,11 +203,14 @@ public class MongoDbDeltaCollection implements DeltaStore.DeltasAccess {
     DBObject query = createWaveletDBQuery();
     query.put(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED_APPLIEDATVERSION, version);
 
-    DBObject result = deltaDbCollection.findOne(query);
+    DBObject field = new BasicDBObject(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED_RESULTINGVERSION, 1);
+
+    DBObject result = deltaDbCollection.findOne(query, field);
 
     if (result != null)
-      return MongoDbDeltaStoreUtil.deserializeHashedVersion((DBObject) result
-          .get(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED_RESULTINGVERSION));
+      return MongoDbDeltaStoreUtil.deserializeHashedVersion((DBObject) ((DBObject) result
+          .get(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED))
+          .get(MongoDbDeltaStoreUtil.FIELD_RESULTINGVERSION));
     return null;
   }
 
@@ -199,101 +236,130 @@ public class MongoDbDeltaCollection implements DeltaStore.DeltasAccess {
 
   @Override
   public void append(Collection<WaveletDeltaRecord> newDeltas) throws PersistenceException {
+    if (newDeltas.isEmpty()) return;
 
-    for (WaveletDeltaRecord delta : newDeltas) {
+    try {
       // Using Journaled Write Concern
       // (http://docs.mongodb.org/manual/core/write-concern/#journaled)
-      deltaDbCollection.insert(MongoDbDeltaStoreUtil.serialize(delta,
-          waveletName.waveId.serialise(), waveletName.waveletId.serialise()),
-          WriteConcern.JOURNALED);
+      deltaDbCollection.insert(serialize(newDeltas), WriteConcern.JOURNALED);
+    } catch (MongoException e) {
+      throw new PersistenceException(e);
     }
   }
 
-  @Override
-  public long getAllDeltas(Receiver<WaveletDeltaRecord> receiver) throws IOException {
-
-    DBObject query = createWaveletDBQuery();
-
-    BasicDBObject sort = new BasicDBObject();
-    sort.put(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED_APPLIEDATVERSION, 1);
-    sort.put(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED + "."
-        + MongoDbDeltaStoreUtil.FIELD_APPLICATIONTIMESTAMP, 1);
-
-    DBCursor result = deltaDbCollection.find(query).sort(sort);
-
-    long count = 0;
-    HashedVersion lastResultingVersion = null;
+  /**
+   * Serializes deltas of this wavelet into documents of the deltas collection.
+   */
+  List<DBObject> serialize(Collection<WaveletDeltaRecord> deltas) {
+    String waveId = waveletName.waveId.serialise();
+    String waveletId = waveletName.waveletId.serialise();
+    List<DBObject> documents = new ArrayList<DBObject>(deltas.size());
+    for (WaveletDeltaRecord delta : deltas) {
+      documents.add(MongoDbDeltaStoreUtil.serialize(delta, waveId, waveletId));
+    }
+    return documents;
+  }
 
-    while (result.hasNext()) {
-      DBObject obj = result.next();
-      WaveletDeltaRecord delta;
-      try {
-        delta = MongoDbDeltaStoreUtil.deserializeWaveletDeltaRecord(obj);
-      } catch (PersistenceException e) {
-        throw new IOException(e);
-      }
+  @Override
+  public ObservableWaveletData loadSnapshot() throws PersistenceException {
+    DBObject result;
+    try {
+      result = snapshotDbCollection.findOne(createWaveletDBQuery());
+    } catch (MongoException e) {
+      throw new PersistenceException(e);
+    }
 
-      if (lastResultingVersion != null && !delta.getAppliedAtVersion().equals(lastResultingVersion)) {
-        LOG.warning("Skipping delta at v=" + delta.getAppliedAtVersion().getVersion() + " to v="
-            + delta.getTransformedDelta().getAppliedAtVersion());
-        continue;
-      }
+    return result != null ? ProtoDeltaStoreDataSerializer.deserializeSnapshot(
+        (byte[]) result.get(MongoDbDeltaStoreUtil.FIELD_SNAPSHOT), waveletName.waveId) : null;
+  }
 
+  @Override
+  public void storeSnapshot(ReadableWaveletData snapshot) throws PersistenceException {
+    DBObject query = createWaveletDBQuery();
 
-      if (!receiver.put(delta)) {
-        throw new IllegalStateException("Error loading delta from persistence at v="
-            + delta.getAppliedAtVersion().getVersion() + " to v="
-            + delta.getTransformedDelta().getAppliedAtVersion());
-      }
+    BasicDBObject dbSnapshot = new BasicDBObject();
+    dbSnapshot.putAll(query);
+    dbSnapshot.append(MongoDbDeltaStoreUtil.FIELD_VERSION, snapshot.getVersion());
+    dbSnapshot.append(MongoDbDeltaStoreUtil.FIELD_SNAPSHOT,
+        ProtoDeltaStoreDataSerializer.serializeSnapshot(snapshot));
 
-      lastResultingVersion = delta.getTransformedDelta().getResultingVersion();
-      count++;
+    try {
+      // Only the newest checkpoint is kept, one document per wavelet.
+      snapshotDbCollection.update(query, dbSnapshot, true, false, WriteConcern.JOURNALED);
+    } catch (MongoException e) {
+      throw new PersistenceException(e);
     }
+  }
 
-    return count;
+  @Override
+  public long getAllDeltas(Receiver<WaveletDeltaRecord> receiver) throws IOException {
+    return readDeltas(createWaveletDBQuery(), 0, receiver);
   }
 
   @Override
   public long getDeltasInRange(long startVersion, long endVersion,
       Receiver<WaveletDeltaRecord> receiver) throws IOException {
-
-    BasicDBObject sort = new BasicDBObject();
-    sort.put(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED_APPLIEDATVERSION, 1);
-    sort.put(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED + "."
-        + MongoDbDeltaStoreUtil.FIELD_APPLICATIONTIMESTAMP, 1);
+    if (startVersion >= endVersion) return 0;
 
     DBObject query = createWaveletDBQuery();
     query.put(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED_APPLIEDATVERSION,
-        new BasicDBObject("$gte", startVersion).append("$lte", endVersion));
+        new BasicDBObject("$gte", startVersion).append("$lt", endVersion));
 
-    DBCursor result = deltaDbCollection.find(query).sort(sort);
+    return readDeltas(query, startVersion, receiver);
+  }
 
+  /**
+   * Reads the contiguous deltas matched by a query starting at a version
+   * through a single cursor, fetching them in batches of
+   * {@link #readBatchSize} documents. Deltas stored again at an already read
+   * version are skipped.
+   *
+   * @return the number of deltas passed to the receiver
+   */
+  private long readDeltas(DBObject query, long startVersion,
+      Receiver<WaveletDeltaRecord> receiver) throws IOException {
     long count = 0;
+    long nextVersion = startVersion;
     HashedVersion lastResultingVersion = null;
 
-    while (result.hasNext()) {
-      DBObject obj = result.next();
-      WaveletDeltaRecord delta;
-      try {
-        delta = MongoDbDeltaStoreUtil.deserializeWaveletDeltaRecord(obj);
-      } catch (PersistenceException e) {
-        throw new IOException(e);
-      }
-
-      if (lastResultingVersion != null && !delta.getAppliedAtVersion().equals(lastResultingVersion)) {
-        LOG.warning("Skipping delta at v=" + delta.getAppliedAtVersion().getVersion() + " to v="
-            + delta.getTransformedDelta().getAppliedAtVersion());
-        continue;
+    DBCursor cursor = null;
+    try {
+      cursor = deltaDbCollection.find(query, RECORD_FIELDS).sort(DELTA_ORDER)
+          .batchSize(readBatchSize);
+
+      while (cursor.hasNext()) {
+        WaveletDeltaRecord delta;
+        try {
+          delta = MongoDbDeltaStoreUtil.deserializeWaveletDeltaRecord(cursor.next());
+        } catch (PersistenceException e) {
+          throw new IOException(e);
+        }
+
+        HashedVersion appliedAtVersion = delta.getAppliedAtVersion();
+        if (appliedAtVersion.getVersion() > nextVersion) {
+          break;
+        }
+        if (appliedAtVersion.getVersion() < nextVersion
+            || (lastResultingVersion != null && !appliedAtVersion.equals(lastResultingVersion))) {
+          LOG.warning("Skipping delta at v=" + appliedAtVersion.getVersion() + " to v="
+              + delta.getResultingVersion().getVersion());
+          continue;
+        }
+
+        count++;
+        if (!receiver.put(delta)) {
+          break;
+        }
+
+        lastResultingVersion = delta.getResultingVersion();
+        nextVersion = lastResultingVersion.getVersion();
       }
-
-      if (!receiver.put(delta)) {
-        throw new IllegalStateException("Error loading delta from persistence at v="
-            + delta.getAppliedAtVersion().getVersion() + " to v="
-            + delta.getTransformedDelta().getAppliedAtVersion());
+    } catch (MongoException e) {
+      throw new IOException(e);
+    } finally {
+      if (cursor != null) {
+        cursor.close();
       }
-
-      lastResultingVersion = delta.getTransformedDelta().getResultingVersion();
-      count++;
     }
 
     return count;
@@ -19,6 +19,8 @@
 
 package org.waveprotocol.box.server.persistence.mongodb;
 
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 
 import com.mongodb.BasicDBObject;
@@ -32,12 +34,18 @@ import com.mongodb.WriteConcern;
 import org.waveprotocol.box.common.ExceptionalIterator;
 import org.waveprotocol.box.server.persistence.FileNotFoundPersistenceException;
 import org.waveprotocol.box.server.persistence.PersistenceException;
-import org.waveprotocol.box.server.waveserver.DeltaStore;
+import org.waveprotocol.box.server.waveserver.GroupCommitDeltaStore;
+import org.waveprotocol.box.server.waveserver.LastModifiedDeltaStore;
+import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
 import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.util.logging.Log;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A MongoDB based Delta Store implementation using a simple <b>deltas</b>
@@ -46,27 +54,85 @@ import java.util.List;
  * @author pablojan@gmail.com (Pablo Ojanguren)
  *
  */
-public class MongoDbDeltaStore implements DeltaStore {
+public class MongoDbDeltaStore implements GroupCommitDeltaStore, LastModifiedDeltaStore {
+
+  private static final Log LOG = Log.get(MongoDbDeltaStore.class);
+
+  /** Default number of deltas fetched per round trip when reading a range */
+  public static final int DEFAULT_READ_BATCH_SIZE = 500;
 
   /** Name of the MongoDB collection to store Deltas */
   private static final String DELTAS_COLLECTION = "deltas";
 
+  /** Name of the MongoDB collection to store wavelet snapshot checkpoints */
+  private static final String SNAPSHOTS_COLLECTION = "snapshots";
+
   /** Database connection object */
   private final DB database;
 
+  /** Number of deltas fetched per round trip when reading a range */
+  private final int readBatchSize;
+
   /**
    * Construct a new store
    *
    * @param database the database connection object
    */
   public MongoDbDeltaStore(DB database) {
+    this(database, DEFAULT_READ_BATCH_SIZE);
+  }
+
+  /**
+   * Construct a new store, creating the indexes of the deltas collection if
+   * they don't exist yet.
+   *
+   * @param database the database connection object
+   * @param readBatchSize the number of deltas fetched per round trip when
+   *        reading a range of deltas
+   */
+  public MongoDbDeltaStore(DB database, int readBatchSize) {
+    Preconditions.checkArgument(readBatchSize > 0, "Batch size must be positive");
     this.database = database;
+    this.readBatchSize = readBatchSize;
+    ensureIndexes();
+  }
+
+  /**
+   * Creates the indexes deltas are looked up by: the version they are applied
+   * at, which also serves range reads in version order, and their resulting
+   * version. Snapshots are looked up by wavelet, which is unique as only the
+   * newest snapshot of a wavelet is kept.
+   */
+  private void ensureIndexes() {
+    DBCollection deltas = getDeltaDbCollection();
+    try {
+      deltas.ensureIndex(new BasicDBObject()
+          .append(MongoDbDeltaStoreUtil.FIELD_WAVE_ID, 1)
+          .append(MongoDbDeltaStoreUtil.FIELD_WAVELET_ID, 1)
+          .append(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED_APPLIEDATVERSION, 1)
+          .append(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED_APPLICATIONTIMESTAMP, 1));
+      deltas.ensureIndex(new BasicDBObject()
+          .append(MongoDbDeltaStoreUtil.FIELD_WAVE_ID, 1)
+          .append(MongoDbDeltaStoreUtil.FIELD_WAVELET_ID, 1)
+          .append(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED_RESULTINGVERSION_VERSION, 1));
+    } catch (MongoException e) {
+      LOG.warning("Failed to create the indexes of the deltas collection", e);
+    }
+    try {
+      getSnapshotDbCollection().ensureIndex(new BasicDBObject()
+          .append(MongoDbDeltaStoreUtil.FIELD_WAVE_ID, 1)
+          .append(MongoDbDeltaStoreUtil.FIELD_WAVELET_ID, 1),
+          new BasicDBObject("unique", true));
+    } catch (MongoException e) {
+      LOG.warning("Failed to create the index of the snapshots collection", e);
+    }
   }
 
   @Override
   public DeltasAccess open(WaveletName waveletName) throws PersistenceException {
 
-    return new MongoDbDeltaCollection(waveletName, getDeltaDbCollection());
+    return new MongoDbDeltaCollection(waveletName, getDeltaDbCollection(),
+        getSnapshotDbCollection(), readBatchSize);
   }
 
   @Override
@@ -81,6 +147,26 @@ public class MongoDbDeltaStore implements DeltaStore {
       // Using Journaled Write Concern
       // (http://docs.mongodb.org/manual/core/write-concern/#journaled)
       getDeltaDbCollection().remove(criteria, WriteConcern.JOURNALED);
+      getSnapshotDbCollection().remove(criteria, WriteConcern.JOURNALED);
+    } catch (MongoException e) {
+      throw new PersistenceException(e);
+    }
+  }
+
+  @Override
+  public void appendAll(Map<DeltasAccess, Collection<WaveletDeltaRecord>> deltas)
+      throws PersistenceException {
+    List<DBObject> documents = new ArrayList<DBObject>();
+    for (Map.Entry<DeltasAccess, Collection<WaveletDeltaRecord>> e : deltas.entrySet()) {
+      Preconditions.checkArgument(e.getKey() instanceof MongoDbDeltaCollection,
+          "Deltas access not opened by this store");
+      documents.addAll(((MongoDbDeltaCollection) e.getKey()).serialize(e.getValue()));
+    }
+    if (documents.isEmpty()) return;
+
+    try {
+      // One journaled insert for the deltas of all the wavelets
+      getDeltaDbCollection().insert(documents, WriteConcern.JOURNALED);
     } catch (MongoException e) {
       throw new PersistenceException(e);
     }
@@ -117,6 +203,42 @@ public class MongoDbDeltaStore implements DeltaStore {
     }
   }
 
+  /**
+   * Returns the application time of the last delta of each wavelet, reading
+   * only that field of one delta per wavelet through the resulting version
+   * index.
+   */
+  @Override
+  public ImmutableMap<WaveletId, Long> getLastModified(WaveId waveId)
+      throws PersistenceException {
+    DBObject sort = new BasicDBObject();
+    sort.put(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED_RESULTINGVERSION_VERSION, -1); // Descending
+
+    DBObject field = new BasicDBObject();
+    field.put(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED_APPLICATIONTIMESTAMP, 1);
+
+    ImmutableMap.Builder<WaveletId, Long> results = ImmutableMap.builder();
+    try {
+      DBObject waveQuery = new BasicDBObject();
+      waveQuery.put(MongoDbDeltaStoreUtil.FIELD_WAVE_ID, waveId.serialise());
+      for (Object waveletId : getDeltaDbCollection().distinct(
+          MongoDbDeltaStoreUtil.FIELD_WAVELET_ID, waveQuery)) {
+        DBObject query = new BasicDBObject();
+        query.put(MongoDbDeltaStoreUtil.FIELD_WAVE_ID, waveId.serialise());
+        query.put(MongoDbDeltaStoreUtil.FIELD_WAVELET_ID, waveletId);
+        DBObject result = getDeltaDbCollection().findOne(query, field, sort);
+        if (result != null) {
+          results.put(WaveletId.deserialise((String) waveletId),
+              (Long) ((DBObject) result.get(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED))
+                  .get(MongoDbDeltaStoreUtil.FIELD_APPLICATIONTIMESTAMP));
+        }
+      }
+    } catch (MongoException e) {
+      throw new PersistenceException(e);
+    }
+    return results.build();
+  }
+
   @Override
   public ExceptionalIterator<WaveId, PersistenceException> getWaveIdIterator()
       throws PersistenceException {
@@ -147,4 +269,13 @@ public class MongoDbDeltaStore implements DeltaStore {
   private DBCollection getDeltaDbCollection() {
     return database.getCollection(DELTAS_COLLECTION);
   }
+
+  /**
+   * Access to snapshots collection
+   *
+   * @return DBCollection of snapshot checkpoints
+   */
+  private DBCollection getSnapshotDbCollection() {
+    return database.getCollection(SNAPSHOTS_COLLECTION);
+  }
 }
@@ -75,12 +75,16 @@ public class MongoDbDeltaStoreUtil {
       "transformed.resultingversion.version";
   public static final String FIELD_TRANSFORMED_APPLIEDATVERSION = "transformed.appliedatversion";
   public static final String FIELD_TRANSFORMED_RESULTINGVERSION = "transformed.resultingversion";
+  public static final String FIELD_TRANSFORMED_APPLICATIONTIMESTAMP =
+      "transformed.applicationtimestamp";
   public static final String FIELD_APPLIEDATVERSION = "appliedatversion";
   public static final String FIELD_RESULTINGVERSION = "resultingversion";
   public static final String FIELD_TRANSFORMED = "transformed";
   public static final String FIELD_APPLIED = "applied";
   public static final String FIELD_WAVELET_ID = "waveletid";
   public static final String FIELD_WAVE_ID = "waveid";
+  public static final String FIELD_SNAPSHOT = "snapshot";
+  public static final String FIELD_ID = "_id";
 
   public static DBObject serialize(WaveletDeltaRecord waveletDelta, String waveId, String waveletId) {
 
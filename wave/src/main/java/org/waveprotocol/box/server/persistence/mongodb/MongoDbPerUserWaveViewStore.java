@@ -0,0 +1,148 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.mongodb;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+import org.waveprotocol.box.server.persistence.PerUserWaveViewStore;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.wave.model.id.InvalidIdException;
+import org.waveprotocol.wave.model.id.ModernIdSerialiser;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.util.Map;
+
+/**
+ * MongoDB implementation of {@link PerUserWaveViewStore}.
+ *
+ * The view of each user is a document keyed by the user address, holding the
+ * serialised names of its wavelets in an array. Wavelets are added and
+ * removed with {@code $addToSet} and {@code $pull} updates, which don't
+ * create the document of a user without a stored view.
+ */
+public class MongoDbPerUserWaveViewStore implements PerUserWaveViewStore {
+
+  private static final Log LOG = Log.get(MongoDbPerUserWaveViewStore.class);
+
+  private static final String WAVE_VIEW_COLLECTION = "waveView";
+  private static final String WAVELETS_FIELD = "wavelets";
+
+  private final DB database;
+
+  MongoDbPerUserWaveViewStore(DB database) {
+    this.database = database;
+  }
+
+  @Override
+  public void initializePerUserWaveViewStore() {
+    // Documents are keyed by _id, which is always indexed.
+  }
+
+  @Override
+  public Multimap<WaveId, WaveletId> getWaveView(ParticipantId user)
+      throws PersistenceException {
+    DBObject result;
+    try {
+      result = getCollection().findOne(queryForUser(user));
+    } catch (MongoException e) {
+      throw new PersistenceException(e);
+    }
+    if (result == null) {
+      return null;
+    }
+    Multimap<WaveId, WaveletId> view = HashMultimap.create();
+    BasicDBList wavelets = (BasicDBList) result.get(WAVELETS_FIELD);
+    if (wavelets != null) {
+      for (Object wavelet : wavelets) {
+        try {
+          WaveletName waveletName =
+              ModernIdSerialiser.INSTANCE.deserialiseWaveletName((String) wavelet);
+          view.put(waveletName.waveId, waveletName.waveletId);
+        } catch (InvalidIdException e) {
+          LOG.warning("Skipping invalid wavelet name in the view of " + user + ": " + wavelet);
+        }
+      }
+    }
+    return view;
+  }
+
+  @Override
+  public void putWaveView(ParticipantId user, Multimap<WaveId, WaveletId> view)
+      throws PersistenceException {
+    BasicDBList wavelets = new BasicDBList();
+    for (Map.Entry<WaveId, WaveletId> entry : view.entries()) {
+      wavelets.add(serialise(WaveletName.of(entry.getKey(), entry.getValue())));
+    }
+    DBObject object = queryForUser(user);
+    object.put(WAVELETS_FIELD, wavelets);
+    try {
+      getCollection().save(object);
+    } catch (MongoException e) {
+      throw new PersistenceException(e);
+    }
+  }
+
+  @Override
+  public void addWavelet(ParticipantId user, WaveletName waveletName)
+      throws PersistenceException {
+    update(user, "$addToSet", waveletName);
+  }
+
+  @Override
+  public void removeWavelet(ParticipantId user, WaveletName waveletName)
+      throws PersistenceException {
+    update(user, "$pull", waveletName);
+  }
+
+  private void update(ParticipantId user, String operator, WaveletName waveletName)
+      throws PersistenceException {
+    DBObject update =
+        new BasicDBObject(operator, new BasicDBObject(WAVELETS_FIELD, serialise(waveletName)));
+    try {
+      // No upsert: users without a stored view are left without one.
+      getCollection().update(queryForUser(user), update, false, false);
+    } catch (MongoException e) {
+      throw new PersistenceException(e);
+    }
+  }
+
+  private static String serialise(WaveletName waveletName) {
+    return ModernIdSerialiser.INSTANCE.serialiseWaveletName(waveletName);
+  }
+
+  private static DBObject queryForUser(ParticipantId user) {
+    return new BasicDBObject("_id", user.getAddress());
+  }
+
+  private DBCollection getCollection() {
+    return database.getCollection(WAVE_VIEW_COLLECTION);
+  }
+}
@@ -65,6 +65,11 @@ public class MongoDbProvider {
    */
   private MongoDbDeltaStore mongoDbDeltaStore;
 
+  /**
+   * Lazily instantiated {@link MongoDbPerUserWaveViewStore}.
+   */
+  private MongoDbPerUserWaveViewStore mongoDbPerUserWaveViewStore;
+
   /** Stores whether we have successfully setup a live {@link Mongo} instance. */
   private boolean isRunning;
 
@@ -158,14 +163,33 @@ public class MongoDbProvider {
    * provider.
    */
   public MongoDbDeltaStore provideMongoDbDeltaStore() {
+    return provideMongoDbDeltaStore(MongoDbDeltaStore.DEFAULT_READ_BATCH_SIZE);
+  }
+
+  /**
+   * Returns a {@link MongoDbDeltaStore} instance created from the settings in this
+   * provider, reading ranges of deltas in batches of the given size.
+   */
+  public MongoDbDeltaStore provideMongoDbDeltaStore(int readBatchSize) {
     if (mongoDbDeltaStore == null) {
-      mongoDbDeltaStore = new MongoDbDeltaStore(getDatabase());
+      mongoDbDeltaStore = new MongoDbDeltaStore(getDatabase(), readBatchSize);
     }
 
     return mongoDbDeltaStore;
 
   }
 
+  /**
+   * Returns a {@link MongoDbPerUserWaveViewStore} instance created from the
+   * settings in this provider.
+   */
+  public MongoDbPerUserWaveViewStore provideMongoDbPerUserWaveViewStore() {
+    if (mongoDbPerUserWaveViewStore == null) {
+      mongoDbPerUserWaveViewStore = new MongoDbPerUserWaveViewStore(getDatabase());
+    }
+    return mongoDbPerUserWaveViewStore;
+  }
+
   /**
    * Expose MongoDB collections
    * 
@@ -25,6 +25,7 @@ import com.google.wave.api.ProtocolVersion;
 import com.google.wave.api.event.EventType;
 import com.google.wave.api.robot.Capability;
 
+import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
@@ -65,6 +66,7 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -297,6 +299,31 @@ public final class MongoDbStore implements SignerInfoStore, AttachmentStore, Acc
     return accountFromQueryResult(result, id);
   }
 
+  @Override
+  public Map<ParticipantId, AccountData> getAccounts(Collection<ParticipantId> ids) {
+    Map<ParticipantId, AccountData> accounts = CollectionUtils.newHashMap();
+    if (ids.isEmpty()) {
+      return accounts;
+    }
+    Map<String, ParticipantId> idsByAddress = CollectionUtils.newHashMap();
+    BasicDBList addresses = new BasicDBList();
+    for (ParticipantId id : ids) {
+      idsByAddress.put(id.getAddress(), id);
+      addresses.add(id.getAddress());
+    }
+    DBObject query = new BasicDBObject("_id", new BasicDBObject("$in", addresses));
+    DBCursor cursor = getAccountCollection().find(query);
+    try {
+      for (DBObject result : cursor) {
+        ParticipantId id = idsByAddress.get((String) result.get("_id"));
+        accounts.put(id, accountFromQueryResult(result, id));
+      }
+    } finally {
+      cursor.close();
+    }
+    return accounts;
+  }
+
   @Override
   public void putAccount(AccountData account) {
     DBObject object = getDBObjectForParticipant(account.getId());
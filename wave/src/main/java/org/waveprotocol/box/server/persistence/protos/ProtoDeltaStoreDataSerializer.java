@@ -20,14 +20,24 @@
 package org.waveprotocol.box.server.persistence.protos;
 
 import com.google.common.collect.ImmutableList;
+import com.google.protobuf.InvalidProtocolBufferException;
 
+import org.waveprotocol.box.common.comms.WaveClientRpc.WaveletSnapshot;
 import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
+import org.waveprotocol.box.server.common.SnapshotSerializer;
+import org.waveprotocol.box.server.persistence.PersistenceException;
 import org.waveprotocol.box.server.persistence.protos.ProtoDeltaStoreData.ProtoTransformedWaveletDelta;
+import org.waveprotocol.wave.model.id.InvalidIdException;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.operation.OperationException;
 import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
 import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
 import org.waveprotocol.wave.model.operation.wave.WaveletOperationContext;
 import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.InvalidParticipantAddress;
 import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 
 /**
  * This class is used to serialize and deserialize {@link TransformedWavelwetDelta}
@@ -73,4 +83,30 @@ public class ProtoDeltaStoreDataSerializer {
     }
     return new TransformedWaveletDelta(author, resultingVersion, applicationTimestamp, operations.build());
   }
+
+  /**
+   * Serialize a wavelet snapshot checkpoint into the bytes stored by the delta stores.
+   */
+  public static byte[] serializeSnapshot(ReadableWaveletData snapshot) {
+    return SnapshotSerializer.serializeWavelet(snapshot, snapshot.getHashedVersion())
+        .toByteArray();
+  }
+
+  /**
+   * Deserialize a wavelet snapshot checkpoint written by {@link #serializeSnapshot}.
+   */
+  public static ObservableWaveletData deserializeSnapshot(byte[] bytes, WaveId waveId)
+      throws PersistenceException {
+    try {
+      return SnapshotSerializer.deserializeWavelet(WaveletSnapshot.parseFrom(bytes), waveId);
+    } catch (InvalidProtocolBufferException e) {
+      throw new PersistenceException("Invalid wavelet snapshot", e);
+    } catch (OperationException e) {
+      throw new PersistenceException("Invalid wavelet snapshot", e);
+    } catch (InvalidParticipantAddress e) {
+      throw new PersistenceException("Invalid wavelet snapshot", e);
+    } catch (InvalidIdException e) {
+      throw new PersistenceException("Invalid wavelet snapshot", e);
+    }
+  }
 }
@@ -85,7 +85,7 @@ public class RobotWaveletData {
    *        to generate deltas.
    */
   public RobotWaveletData(ReadableWaveletData snapshot, HashedVersion committedVersion) {
-    this.snapshot = WaveletDataUtil.copyWavelet(snapshot);
+    this.snapshot = WaveletDataUtil.copyWaveletShared(snapshot);
     this.snapshotVersion = committedVersion;
   }
 
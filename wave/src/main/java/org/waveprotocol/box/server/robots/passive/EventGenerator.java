@@ -496,7 +496,7 @@ public class EventGenerator {
       Map<EventType, Capability> capabilities, EventDataConverter converter) {
     EventMessageBundle messages = new EventMessageBundle(robotName.toEmailAddress(), "");
     ObservableWaveletData snapshot =
-        WaveletDataUtil.copyWavelet(waveletAndDeltas.getSnapshotBeforeDeltas());
+        WaveletDataUtil.copyWaveletShared(waveletAndDeltas.getSnapshotBeforeDeltas());
     isEventProcessingSuspended = !snapshot.getParticipants().contains(robotId);
 
     if (robotName.hasProxyFor()) {
@@ -30,11 +30,11 @@ import com.google.wave.api.robot.CapabilityFetchException;
 import com.google.wave.api.robot.RobotName;
 
 import org.waveprotocol.box.common.DeltaSequence;
-import org.waveprotocol.box.server.account.AccountData;
 import org.waveprotocol.box.server.account.RobotAccountData;
 import org.waveprotocol.box.server.persistence.AccountStore;
 import org.waveprotocol.box.server.persistence.PersistenceException;
 import org.waveprotocol.box.server.robots.operations.NotifyOperationService;
+import org.waveprotocol.box.server.robots.register.RobotRegistry;
 import org.waveprotocol.box.server.robots.util.ConversationUtil;
 import org.waveprotocol.box.server.waveserver.WaveBus;
 import org.waveprotocol.box.server.waveserver.WaveletProvider;
@@ -65,6 +65,7 @@ public class RobotsGateway implements WaveBus.Subscriber {
 
   private final WaveletProvider waveletProvider;
   private final AccountStore accountStore;
+  private final RobotRegistry robotRegistry;
   private final EventDataConverterManager converterManager;
   private final RobotConnector connector;
   private final Map<RobotName, Robot> allRobots = Maps.newHashMap();
@@ -76,11 +77,12 @@ public class RobotsGateway implements WaveBus.Subscriber {
   @Inject
   @VisibleForTesting
   RobotsGateway(WaveletProvider waveletProvider, RobotConnector connector,
-      AccountStore accountStore, RobotSerializer serializer,
+      AccountStore accountStore, RobotRegistry robotRegistry, RobotSerializer serializer,
       EventDataConverterManager converterManager, @Named("GatewayExecutor") Executor executor,
       ConversationUtil conversationUtil, NotifyOperationService notifyOpService) {
     this.waveletProvider = waveletProvider;
     this.accountStore = accountStore;
+    this.robotRegistry = robotRegistry;
     this.converterManager = converterManager;
     this.connector = connector;
     this.executor = executor;
@@ -114,21 +116,20 @@ public class RobotsGateway implements WaveBus.Subscriber {
         continue;
       }
 
+      // Known participants are answered from memory, so wavelets without
+      // robots are skipped without reading the account store.
       ParticipantId robotId = ParticipantId.ofUnsafe(robotName.toEmailAddress());
-      AccountData account;
+      RobotAccountData robotAccount;
       try {
-        account = accountStore.getAccount(robotId);
+        robotAccount = robotRegistry.getRobotAccount(robotId);
       } catch (PersistenceException e) {
         LOG.severe("Failed to retrieve the account data for " + robotId.getAddress(), e);
         continue;
       }
 
-      if (account != null && account.isRobot()) {
-        RobotAccountData robotAccount = account.asRobot();
-        if (robotAccount.isVerified()) {
-          Robot robot = getOrCreateRobot(robotName, robotAccount);
-          updateRobot(robot, wavelet, deltas);
-        }
+      if (robotAccount != null) {
+        Robot robot = getOrCreateRobot(robotName, robotAccount);
+        updateRobot(robot, wavelet, deltas);
       }
     }
   }
@@ -224,6 +225,7 @@ public class RobotsGateway implements WaveBus.Subscriber {
     String activeApiUrl = "";
     RobotAccountData newAccount = connector.fetchCapabilities(robot.getAccount(), activeApiUrl);
     accountStore.putAccount(newAccount);
+    robotRegistry.update(newAccount);
     robot.setAccount(newAccount);
   }
 }
@@ -85,9 +85,9 @@ public class WaveletAndDeltas {
         String.format("Version of snapshot %s doesn't match the end version %s",
             snapshot.getVersion(), endVersion));
 
-    ObservableWaveletData preDeltaWavelet = WaveletDataUtil.copyWavelet(snapshot);
+    ObservableWaveletData preDeltaWavelet = WaveletDataUtil.copyWaveletShared(snapshot);
     rollback(preDeltaWavelet, deltas);
-    ObservableWaveletData postDeltaWavelet = WaveletDataUtil.copyWavelet(snapshot);
+    ObservableWaveletData postDeltaWavelet = WaveletDataUtil.copyWaveletShared(snapshot);
     return new WaveletAndDeltas(preDeltaWavelet, postDeltaWavelet, deltas);
   }
 
@@ -202,7 +202,7 @@ public class WaveletAndDeltas {
 
     // TODO(ljvderijk): This should actually be applying the deltas, however
     // they do not contain a timestamp at this time.
-    snapshotAfterDeltas = WaveletDataUtil.copyWavelet(updatedSnapshot);
+    snapshotAfterDeltas = WaveletDataUtil.copyWaveletShared(updatedSnapshot);
     deltas = DeltaSequence.join(deltas, newDeltas);
   }
 
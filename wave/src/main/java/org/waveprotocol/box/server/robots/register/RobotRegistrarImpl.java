@@ -104,13 +104,22 @@ public class RobotRegistrarImpl implements RobotRegistrar {
     return robotLocation;
   }
 
-  @Inject
   public RobotRegistrarImpl(AccountStore accountStore, TokenGenerator tokenGenerator) {
     this.accountStore = accountStore;
     this.tokenGenerator = tokenGenerator;
     addRegistrationListener(REGISTRATION_EVENTS_LOGGER);
   }
 
+  /**
+   * Creates a registrar which keeps the given robot registry current.
+   */
+  @Inject
+  public RobotRegistrarImpl(AccountStore accountStore, TokenGenerator tokenGenerator,
+      RobotRegistry robotRegistry) {
+    this(accountStore, tokenGenerator);
+    addRegistrationListener(robotRegistry);
+  }
+
   @Override
   public RobotAccountData registerNew(ParticipantId robotId, String location)
       throws RobotRegistrationException, PersistenceException {
@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.robots.register;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.waveprotocol.box.server.account.AccountData;
+import org.waveprotocol.box.server.account.RobotAccountData;
+import org.waveprotocol.box.server.persistence.AccountStore;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory index of the verified robot accounts, so that finding the robots
+ * among the participants of a wavelet does not read the account store on
+ * every update.
+ *
+ * Each participant is looked up in the account store the first time it is
+ * asked about; after that the answer is served from memory. The registry is
+ * kept current by the {@link RobotRegistrar}, which it listens to, and by
+ * {@link #update(RobotAccountData)} for accounts stored by other means.
+ */
+@Singleton
+public class RobotRegistry implements RobotRegistrar.Listener {
+
+  /** Maximum number of participants remembered as not being robots. */
+  private static final int MAX_NON_ROBOTS = 100000;
+
+  private final AccountStore accountStore;
+
+  /** Verified robot accounts. There are few of them, so they are never evicted. */
+  private final ConcurrentMap<ParticipantId, RobotAccountData> robots =
+      new ConcurrentHashMap<ParticipantId, RobotAccountData>();
+
+  /** Participants known not to be verified robots. */
+  private final Cache<ParticipantId, Boolean> nonRobots;
+
+  /**
+   * Number of changes to the registry, so that a lookup racing with a change
+   * does not cache what it read before the change.
+   */
+  private long changes;
+
+  @Inject
+  public RobotRegistry(AccountStore accountStore) {
+    this(accountStore, MAX_NON_ROBOTS);
+  }
+
+  @VisibleForTesting
+  RobotRegistry(AccountStore accountStore, int maxNonRobots) {
+    this.accountStore = accountStore;
+    this.nonRobots = CacheBuilder.newBuilder().maximumSize(maxNonRobots)
+        .<ParticipantId, Boolean>build();
+  }
+
+  /**
+   * Returns the verified robot account of a participant, or null if the
+   * participant is not a verified robot. Only reads the account store the
+   * first time a participant is asked about.
+   *
+   * @param id the participant id of the robot, without proxy or version.
+   * @throws PersistenceException if the account store lookup failed.
+   */
+  public RobotAccountData getRobotAccount(ParticipantId id) throws PersistenceException {
+    RobotAccountData robot = robots.get(id);
+    if (robot != null || nonRobots.getIfPresent(id) != null) {
+      return robot;
+    }
+    long before;
+    synchronized (this) {
+      before = changes;
+    }
+    AccountData account = accountStore.getAccount(id);
+    robot = (account != null && account.isRobot() && account.asRobot().isVerified())
+        ? account.asRobot() : null;
+    synchronized (this) {
+      if (changes == before) {
+        remember(id, robot);
+      }
+    }
+    return robot;
+  }
+
+  /**
+   * Records an account which has been stored, e.g. with new capabilities.
+   */
+  public synchronized void update(RobotAccountData account) {
+    changes++;
+    remember(account.getId(), account.isVerified() ? account : null);
+  }
+
+  /**
+   * Records that an account has been removed from the store.
+   */
+  public synchronized void remove(ParticipantId id) {
+    changes++;
+    robots.remove(id);
+    nonRobots.put(id, Boolean.TRUE);
+  }
+
+  @Override
+  public void onRegistrationSuccess(RobotAccountData account) {
+    update(account);
+  }
+
+  @Override
+  public void onUnregistrationSuccess(RobotAccountData account) {
+    remove(account.getId());
+  }
+
+  private void remember(ParticipantId id, RobotAccountData robot) {
+    if (robot != null) {
+      robots.put(id, robot);
+      nonRobots.invalidate(id);
+    } else {
+      robots.remove(id);
+      nonRobots.put(id, Boolean.TRUE);
+    }
+  }
+}
@@ -110,7 +110,7 @@ public class AttachmentInfoServlet extends HttpServlet {
 
     String info;
     try {
-      info = serializer.toJson(attachmentsResponse.build()).toString();
+      info = serializer.toJsonString(attachmentsResponse.build());
     } catch (SerializationException ex) {
       LOG.log(Level.SEVERE, "Attachments info serialize", ex);
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
@@ -0,0 +1,273 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.rpc;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+import org.waveprotocol.box.server.stat.Counter;
+import org.waveprotocol.box.server.stat.Gauge;
+import org.waveprotocol.box.server.stat.LatencyHistogram;
+import org.waveprotocol.box.server.stat.MetricsRegistry;
+import org.waveprotocol.box.stat.RequestScope;
+import org.waveprotocol.box.stat.Stat;
+import org.waveprotocol.box.stat.Timing;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs client RPCs on a bounded number of threads, taking waiting RPCs from
+ * per-participant queues in round-robin order, so a participant with many
+ * requests doesn't delay the others.
+ *
+ * RPCs beyond the queue limits are rejected with a
+ * {@link RejectedExecutionException}; the caller is expected to fail them with
+ * {@link #RETRY_LATER_ERROR}.
+ */
+public class FairRpcExecutor {
+
+  private static final Log LOG = Log.get(FairRpcExecutor.class);
+
+  /** Error text of RPCs rejected because the server is busy. */
+  public static final String RETRY_LATER_ERROR = "Server busy, retry later";
+
+  /** Queue key of RPCs from connections not logged in. */
+  private static final Object ANONYMOUS = new Object();
+
+  /** Queue metrics of the client RPC executors. */
+  static final class QueueStats {
+    final AtomicInteger queued = new AtomicInteger();
+    final AtomicInteger queuedUsers = new AtomicInteger();
+    final AtomicLong rejected = new AtomicLong();
+    final AtomicLong dispatched = new AtomicLong();
+    final AtomicLong totalWaitMs = new AtomicLong();
+    final AtomicLong lastWaitMs = new AtomicLong();
+    final AtomicLong maxWaitMs = new AtomicLong();
+
+    void started(long waitMs) {
+      dispatched.incrementAndGet();
+      totalWaitMs.addAndGet(waitMs);
+      lastWaitMs.set(waitMs);
+      long max = maxWaitMs.get();
+      while (waitMs > max && !maxWaitMs.compareAndSet(max, waitMs)) {
+        max = maxWaitMs.get();
+      }
+    }
+
+    @Override
+    public String toString() {
+      long count = dispatched.get();
+      return "queued " + queued + " from " + queuedUsers + " users, rejected " + rejected
+          + ", wait avg " + (count > 0 ? totalWaitMs.get() / count : 0) + " ms, last "
+          + lastWaitMs + " ms, max " + maxWaitMs + " ms";
+    }
+  }
+
+  @Stat(name = "client-rpc-queue",
+      help = "Client RPCs waiting for a thread, rejected RPCs and their queue wait time")
+  static final QueueStats STATS = new QueueStats();
+
+  private static final LatencyHistogram QUEUE_WAIT = MetricsRegistry.getInstance()
+      .histogram("client_rpc_queue_wait_us",
+          "Time in microseconds client RPCs wait for a thread");
+  private static final Counter REJECTED = MetricsRegistry.getInstance()
+      .counter("client_rpc_rejected_total", "Client RPCs rejected because the queue was full");
+
+  static {
+    MetricsRegistry.getInstance().gauge("client_rpc_queued",
+        "Client RPCs waiting for a thread", new Gauge() {
+          @Override
+          public long getValue() {
+            return STATS.queued.get();
+          }
+        });
+  }
+
+  private final Executor executor;
+  private final int threadCount;
+  private final int maxQueuedPerUser;
+  private final int maxQueued;
+
+  // The following fields are guarded by this.
+  /** Waiting RPCs of each participant. */
+  private final Map<Object, Queue<QueuedRpc>> queues = new HashMap<Object, Queue<QueuedRpc>>();
+  /** Participants with waiting RPCs, in the order they are served. */
+  private final Queue<Object> rotation = new ArrayDeque<Object>();
+  private int queued = 0;
+  private int running = 0;
+
+  /**
+   * @param executor runs the RPCs, with at least {@code threadCount} threads
+   * @param threadCount the maximum number of RPCs running at once
+   * @param maxQueuedPerUser the maximum number of waiting RPCs of a participant
+   * @param maxQueued the maximum number of waiting RPCs
+   * @throws IllegalArgumentException if {@code threadCount} is less than 1,
+   *         as no RPC would ever run
+   */
+  public FairRpcExecutor(Executor executor, int threadCount, int maxQueuedPerUser,
+      int maxQueued) {
+    Preconditions.checkArgument(threadCount > 0,
+        "The client RPC thread count must be positive, got " + threadCount);
+    this.executor = executor;
+    this.threadCount = threadCount;
+    this.maxQueuedPerUser = maxQueuedPerUser;
+    this.maxQueued = maxQueued;
+  }
+
+  /**
+   * Creates an executor which runs every RPC right away on the given executor.
+   */
+  public static FairRpcExecutor unbounded(Executor executor) {
+    return new FairRpcExecutor(executor, Integer.MAX_VALUE, Integer.MAX_VALUE,
+        Integer.MAX_VALUE);
+  }
+
+  /**
+   * Queues an RPC of a participant.
+   *
+   * @param user the participant, or null if the connection isn't logged in
+   * @throws RejectedExecutionException if the queue of the participant or the
+   *         total of queued RPCs is full
+   */
+  public void execute(ParticipantId user, Runnable rpc) {
+    Object key = user != null ? user : ANONYMOUS;
+    QueuedRpc queuedRpc = new QueuedRpc(rpc);
+    synchronized (this) {
+      Queue<QueuedRpc> queue = queues.get(key);
+      if (queued >= maxQueued || (queue != null && queue.size() >= maxQueuedPerUser)) {
+        STATS.rejected.incrementAndGet();
+        REJECTED.inc();
+        throw new RejectedExecutionException("Too many queued RPCs"
+            + (queued >= maxQueued ? "" : " of " + user));
+      }
+      if (queue == null) {
+        queue = new ArrayDeque<QueuedRpc>();
+        queues.put(key, queue);
+        rotation.add(key);
+        STATS.queuedUsers.incrementAndGet();
+      }
+      queue.add(queuedRpc);
+      queued++;
+      STATS.queued.incrementAndGet();
+      if (running >= threadCount) {
+        return;
+      }
+      running++;
+    }
+    startWorker();
+  }
+
+  /**
+   * @return the number of waiting RPCs.
+   */
+  @VisibleForTesting
+  synchronized int getQueuedCount() {
+    return queued;
+  }
+
+  /**
+   * @return the number of running RPCs.
+   */
+  @VisibleForTesting
+  synchronized int getRunningCount() {
+    return running;
+  }
+
+  private void startWorker() {
+    try {
+      executor.execute(new Worker());
+    } catch (RejectedExecutionException e) {
+      // The executor is shutting down.
+      LOG.warning("Failed to start a client RPC worker", e);
+      synchronized (this) {
+        running--;
+      }
+    }
+  }
+
+  /** Takes the next RPC in round-robin order, or ends the worker if none. */
+  private synchronized QueuedRpc poll() {
+    Object key = rotation.poll();
+    if (key == null) {
+      running--;
+      return null;
+    }
+    Queue<QueuedRpc> queue = queues.get(key);
+    QueuedRpc rpc = queue.poll();
+    if (queue.isEmpty()) {
+      queues.remove(key);
+      STATS.queuedUsers.decrementAndGet();
+    } else {
+      rotation.add(key);
+    }
+    queued--;
+    STATS.queued.decrementAndGet();
+    return rpc;
+  }
+
+  /** Runs waiting RPCs until there are none. */
+  private final class Worker implements Runnable {
+    @Override
+    public void run() {
+      QueuedRpc rpc;
+      while ((rpc = poll()) != null) {
+        rpc.run();
+      }
+    }
+  }
+
+  /** An RPC with the request scope and time it was queued with. */
+  @SuppressWarnings("rawtypes")
+  private static final class QueuedRpc {
+    private final Runnable rpc;
+    private final Map<Class, RequestScope.Value> scopeValues;
+    private final long queuedNanos = System.nanoTime();
+
+    QueuedRpc(Runnable rpc) {
+      this.rpc = rpc;
+      this.scopeValues = Timing.isEnabled() ? Timing.cloneScopeValues() : null;
+    }
+
+    void run() {
+      STATS.started(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queuedNanos));
+      QUEUE_WAIT.recordSince(queuedNanos);
+      if (scopeValues != null) {
+        Timing.enterScope(scopeValues);
+      }
+      try {
+        rpc.run();
+      } catch (RuntimeException e) {
+        LOG.warning("Client RPC failed", e);
+      } finally {
+        Timing.exitScope();
+      }
+    }
+  }
+}
@@ -21,6 +21,7 @@ package org.waveprotocol.box.server.rpc;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
+import com.google.gson.stream.JsonWriter;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
@@ -197,7 +198,7 @@ public final class FetchProfilesServlet extends HttpServlet {
       try {
         // FIXME (user) Returning JSON directly from an HTTP GET is vulnerable   
         // to XSSI attacks. Issue https://issues.apache.org/jira/browse/WAVE-135
-        resp.getWriter().append(serializer.toJson(message).toString());
+        serializer.writeJson(new JsonWriter(resp.getWriter()), message);
       } catch (SerializationException e) {
         throw new IOException(e);
       }
@@ -45,6 +45,7 @@ import org.waveprotocol.wave.util.escapers.jvm.JavaWaverefEncoder;
 import org.waveprotocol.wave.util.logging.Log;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.gson.stream.JsonWriter;
 import com.google.inject.Inject;
 import com.google.protobuf.Message;
 
@@ -119,7 +120,7 @@ public final class FetchServlet extends HttpServlet {
       dest.setHeader("Cache-Control", "no-store");
 
       try {
-        dest.getWriter().append(serializer.toJson(message).toString());
+        serializer.writeJson(new JsonWriter(dest.getWriter()), message);
       } catch (SerializationException e) {
         throw new IOException(e);
       }
@@ -24,6 +24,8 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Maps;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import com.google.protobuf.Message;
 import com.google.protobuf.MessageLite;
 
@@ -45,28 +47,46 @@ import org.waveprotocol.box.common.comms.proto.ProtocolSubmitResponseProtoImpl;
 import org.waveprotocol.box.common.comms.proto.ProtocolWaveletUpdateProtoImpl;
 import org.waveprotocol.box.common.comms.proto.WaveViewSnapshotProtoImpl;
 import org.waveprotocol.box.common.comms.proto.WaveletSnapshotProtoImpl;
+import org.waveprotocol.box.common.comms.stream.DocumentSnapshotStreamCodec;
+import org.waveprotocol.box.common.comms.stream.ProtocolAuthenticateStreamCodec;
+import org.waveprotocol.box.common.comms.stream.ProtocolAuthenticationResultStreamCodec;
+import org.waveprotocol.box.common.comms.stream.ProtocolOpenRequestStreamCodec;
+import org.waveprotocol.box.common.comms.stream.ProtocolSubmitRequestStreamCodec;
+import org.waveprotocol.box.common.comms.stream.ProtocolSubmitResponseStreamCodec;
+import org.waveprotocol.box.common.comms.stream.ProtocolWaveletUpdateStreamCodec;
+import org.waveprotocol.box.common.comms.stream.WaveViewSnapshotStreamCodec;
+import org.waveprotocol.box.common.comms.stream.WaveletSnapshotStreamCodec;
 import org.waveprotocol.box.profile.ProfilesProto.ProfileResponse;
 import org.waveprotocol.box.profile.proto.ProfileResponseProtoImpl;
+import org.waveprotocol.box.profile.stream.ProfileResponseStreamCodec;
 import org.waveprotocol.box.search.SearchProto.SearchResponse;
 import org.waveprotocol.box.search.proto.SearchResponseProtoImpl;
+import org.waveprotocol.box.search.stream.SearchResponseStreamCodec;
 import org.waveprotocol.box.server.rpc.Rpc.CancelRpc;
 import org.waveprotocol.box.server.rpc.Rpc.RpcFinished;
 import org.waveprotocol.box.server.rpc.proto.CancelRpcProtoImpl;
 import org.waveprotocol.box.server.rpc.proto.RpcFinishedProtoImpl;
+import org.waveprotocol.box.server.rpc.stream.CancelRpcStreamCodec;
+import org.waveprotocol.box.server.rpc.stream.RpcFinishedStreamCodec;
 import org.waveprotocol.box.attachment.AttachmentProto.AttachmentsResponse;
 import org.waveprotocol.box.attachment.proto.AttachmentsResponseProtoImpl;
+import org.waveprotocol.box.attachment.stream.AttachmentsResponseStreamCodec;
 import org.waveprotocol.wave.communication.gson.GsonException;
 import org.waveprotocol.wave.communication.gson.GsonSerializable;
+import org.waveprotocol.wave.communication.gson.JsonStreamCodec;
 import org.waveprotocol.wave.communication.json.RawStringData;
 import org.waveprotocol.wave.communication.proto.ProtoWrapper;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.Map;
 
 /**
  * Serializes protos to/from JSON objects.
  * <p>
  * This class uses the PST-generated message classes to perform serialization
- * and deserialization.
+ * and deserialization: the streaming codecs to write and read JSON text
+ * directly, and the DTO wrappers to convert to and from JSON trees.
  */
 public final class ProtoSerializer {
 
@@ -91,16 +111,18 @@ public final class ProtoSerializer {
       D extends ProtoWrapper<P> & GsonSerializable> {
     private final Class<P> protoClass;
     private final Class<D> dtoClass;
+    private final JsonStreamCodec<P> codec;
 
-    ProtoImplSerializer(Class<P> protoClass, Class<D> dtoClass) {
+    ProtoImplSerializer(Class<P> protoClass, Class<D> dtoClass, JsonStreamCodec<P> codec) {
       this.protoClass = protoClass;
       this.dtoClass = dtoClass;
+      this.codec = codec;
     }
 
     static <P extends Message, D extends ProtoWrapper<P> & GsonSerializable>
         ProtoImplSerializer<P, D> of(
-        Class<P> protoClass, Class<D> dtoClass) {
-      return new ProtoImplSerializer<P, D>(protoClass, dtoClass);
+        Class<P> protoClass, Class<D> dtoClass, JsonStreamCodec<P> codec) {
+      return new ProtoImplSerializer<P, D>(protoClass, dtoClass, codec);
     }
 
     D newDto() throws SerializationException {
@@ -130,6 +152,26 @@ public final class ProtoSerializer {
       }
       return dto.getPB();
     }
+
+    void write(JsonWriter out, MessageLite proto) throws SerializationException {
+      Preconditions.checkState(protoClass.isInstance(proto));
+      try {
+        codec.write(out, protoClass.cast(proto));
+      } catch (IOException e) {
+        throw new SerializationException(e);
+      }
+    }
+
+    P read(JsonReader in) throws SerializationException {
+      try {
+        return codec.read(in);
+      } catch (IOException e) {
+        throw new SerializationException(e);
+      } catch (RuntimeException e) {
+        // Unexpected tokens, numbers out of range and missing required fields
+        throw new SerializationException(e);
+      }
+    }
   }
 
   private final Gson gson = new Gson();
@@ -145,29 +187,41 @@ public final class ProtoSerializer {
     // Note: this list is too inclusive, but has historically always been so.
     // The real list only needs about 5 protos, since only top-level rpc types
     // need to be here, not every single recursively reachable proto.
-    add(ProtocolAuthenticate.class, ProtocolAuthenticateProtoImpl.class);
-    add(ProtocolAuthenticationResult.class, ProtocolAuthenticationResultProtoImpl.class);
-    add(ProtocolOpenRequest.class, ProtocolOpenRequestProtoImpl.class);
-    add(ProtocolSubmitRequest.class, ProtocolSubmitRequestProtoImpl.class);
-    add(ProtocolSubmitResponse.class, ProtocolSubmitResponseProtoImpl.class);
-    add(ProtocolWaveletUpdate.class, ProtocolWaveletUpdateProtoImpl.class);
-    add(WaveletSnapshot.class, WaveletSnapshotProtoImpl.class);
-    add(DocumentSnapshot.class, DocumentSnapshotProtoImpl.class);
-    add(WaveViewSnapshot.class, WaveViewSnapshotProtoImpl.class);
-
-    add(CancelRpc.class, CancelRpcProtoImpl.class);
-    add(RpcFinished.class, RpcFinishedProtoImpl.class);
-
-    add(SearchResponse.class, SearchResponseProtoImpl.class);
-    add(ProfileResponse.class, ProfileResponseProtoImpl.class);
-
-    add(AttachmentsResponse.class, AttachmentsResponseProtoImpl.class);
+    add(ProtocolAuthenticate.class, ProtocolAuthenticateProtoImpl.class,
+        ProtocolAuthenticateStreamCodec.INSTANCE);
+    add(ProtocolAuthenticationResult.class, ProtocolAuthenticationResultProtoImpl.class,
+        ProtocolAuthenticationResultStreamCodec.INSTANCE);
+    add(ProtocolOpenRequest.class, ProtocolOpenRequestProtoImpl.class,
+        ProtocolOpenRequestStreamCodec.INSTANCE);
+    add(ProtocolSubmitRequest.class, ProtocolSubmitRequestProtoImpl.class,
+        ProtocolSubmitRequestStreamCodec.INSTANCE);
+    add(ProtocolSubmitResponse.class, ProtocolSubmitResponseProtoImpl.class,
+        ProtocolSubmitResponseStreamCodec.INSTANCE);
+    add(ProtocolWaveletUpdate.class, ProtocolWaveletUpdateProtoImpl.class,
+        ProtocolWaveletUpdateStreamCodec.INSTANCE);
+    add(WaveletSnapshot.class, WaveletSnapshotProtoImpl.class, WaveletSnapshotStreamCodec.INSTANCE);
+    add(DocumentSnapshot.class, DocumentSnapshotProtoImpl.class,
+        DocumentSnapshotStreamCodec.INSTANCE);
+    add(WaveViewSnapshot.class, WaveViewSnapshotProtoImpl.class,
+        WaveViewSnapshotStreamCodec.INSTANCE);
+
+    add(CancelRpc.class, CancelRpcProtoImpl.class, CancelRpcStreamCodec.INSTANCE);
+    add(RpcFinished.class, RpcFinishedProtoImpl.class, RpcFinishedStreamCodec.INSTANCE);
+
+    add(SearchResponse.class, SearchResponseProtoImpl.class, SearchResponseStreamCodec.INSTANCE);
+    add(ProfileResponse.class, ProfileResponseProtoImpl.class, ProfileResponseStreamCodec.INSTANCE);
+
+    add(AttachmentsResponse.class, AttachmentsResponseProtoImpl.class,
+        AttachmentsResponseStreamCodec.INSTANCE);
   }
 
-  /** Adds a binding between a proto class and a DTO message class. */
+  /**
+   * Adds a binding between a proto class, a DTO message class and a streaming
+   * codec.
+   */
   private <P extends Message, D extends ProtoWrapper<P> & GsonSerializable> void add(
-      Class<P> protoClass, Class<D> dtoClass) {
-    ProtoImplSerializer<P, D> serializer = ProtoImplSerializer.of(protoClass, dtoClass);
+      Class<P> protoClass, Class<D> dtoClass, JsonStreamCodec<P> codec) {
+    ProtoImplSerializer<P, D> serializer = ProtoImplSerializer.of(protoClass, dtoClass, codec);
     byClass.put(protoClass, serializer);
     byName.put(protoClass.getSimpleName(), serializer);
   }
@@ -208,8 +262,8 @@ public final class ProtoSerializer {
   }
 
   /**
-   * Serializes a proto to JSON. Only protos whose classes have been registered
-   * will be serialized.
+   * Serializes a proto to a JSON tree. Only protos whose classes have been
+   * registered will be serialized.
    *
    * @throws SerializationException if the class of {@code message} has not been
    *         registered.
@@ -219,7 +273,43 @@ public final class ProtoSerializer {
   }
 
   /**
-   * Deserializes a proto from JSON. Only protos whose classes have been
+   * Serializes a proto to JSON text, without building a JSON tree. Only protos
+   * whose classes have been registered will be serialized.
+   *
+   * @throws SerializationException if the class of {@code message} has not been
+   *         registered.
+   */
+  public <P extends Message> String toJsonString(P message) throws SerializationException {
+    StringWriter json = new StringWriter();
+    writeJson(new JsonWriter(json), message);
+    return json.toString();
+  }
+
+  /**
+   * Writes a proto as the next value of a JSON stream. Only protos whose
+   * classes have been registered will be serialized.
+   *
+   * @throws SerializationException if the class of {@code message} has not been
+   *         registered, or the stream can't be written.
+   */
+  public <P extends Message> void writeJson(JsonWriter out, P message)
+      throws SerializationException {
+    getSerializer(message.getClass()).write(out, message);
+  }
+
+  /**
+   * Reads a proto from the next value of a JSON stream. Only protos whose
+   * classes have been registered can be deserialized.
+   *
+   * @throws SerializationException if no class called {@code type} has been
+   *         registered, or the value isn't a valid encoding of it.
+   */
+  public Message readJson(JsonReader in, String type) throws SerializationException {
+    return getSerializer(type).read(in);
+  }
+
+  /**
+   * Deserializes a proto from a JSON tree. Only protos whose classes have been
    * registered can be deserialized.
    *
    * @throws SerializationException if no class called {@code type} has been
@@ -20,6 +20,7 @@
 package org.waveprotocol.box.server.rpc;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.gson.stream.JsonWriter;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
@@ -169,7 +170,7 @@ public class SearchServlet extends AbstractSearchServlet {
       // is rarely respected.
       resp.setHeader("Cache-Control", "no-store");
       try {
-        resp.getWriter().append(serializer.toJson(message).toString());
+        serializer.writeJson(new JsonWriter(resp.getWriter()), message);
       } catch (SerializationException e) {
         throw new IOException(e);
       }
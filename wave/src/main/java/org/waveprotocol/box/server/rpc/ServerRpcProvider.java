@@ -66,6 +66,9 @@ import org.waveprotocol.box.server.persistence.file.FileUtils;
 import org.waveprotocol.box.server.rpc.atmosphere.AtmosphereChannel;
 import org.waveprotocol.box.server.rpc.atmosphere.AtmosphereClientInterceptor;
 import org.waveprotocol.box.server.rpc.atmosphere.AtmosphereUtil;
+import org.waveprotocol.box.server.stat.Counter;
+import org.waveprotocol.box.server.stat.LatencyHistogram;
+import org.waveprotocol.box.server.stat.MetricsRegistry;
 import org.waveprotocol.box.server.util.NetUtils;
 import org.waveprotocol.box.stat.Timer;
 import org.waveprotocol.box.stat.Timing;
@@ -86,6 +89,7 @@ import java.net.SocketAddress;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * ServerRpcProvider can provide instances of type Service over an incoming
@@ -95,6 +99,14 @@ import java.util.concurrent.Executor;
  */
 public class ServerRpcProvider {
   private static final Log LOG = Log.get(ServerRpcProvider.class);
+
+  private static final Counter RPC_REQUESTS = MetricsRegistry.getInstance()
+      .counter("client_rpc_requests_total", "Client RPCs received");
+  private static final Counter RPC_FAILURES = MetricsRegistry.getInstance()
+      .counter("client_rpc_failures_total", "Client RPCs finished with an error");
+  private static final LatencyHistogram RPC_LATENCY = MetricsRegistry.getInstance()
+      .histogram("client_rpc_latency_us",
+          "Time in microseconds from receiving a client RPC to its first response");
   /**
    * The buffer size is passed to implementations of {@link WaveWebSocketServlet} as init
    * param. It defines the response buffer size.
@@ -102,7 +114,7 @@ public class ServerRpcProvider {
   private static final int BUFFER_SIZE = 1024 * 1024;
 
   private final InetSocketAddress[] httpAddresses;
-  private final Executor threadPool;
+  private final FairRpcExecutor rpcExecutor;
   private final SessionManager sessionManager;
   private final org.eclipse.jetty.server.SessionManager jettySessionManager;
   private Server httpServer = null;
@@ -438,19 +450,28 @@ public class ServerRpcProvider {
         } else {
           final RegisteredServiceMethod serviceMethod =
               provider.registeredServices.get(message.getDescriptorForType());
+          final long startNanos = System.nanoTime();
+          RPC_REQUESTS.inc();
 
           // Create the internal ServerRpcController used to invoke the call.
           final ServerRpcController controller =
               new ServerRpcControllerImpl(message, serviceMethod.service, serviceMethod.method,
                   loggedInUser, new RpcCallback<Message>() {
+                    private boolean responded = false;
+
                     @Override
                     synchronized public void run(Message message) {
+                      if (!responded) {
+                        responded = true;
+                        RPC_LATENCY.recordSince(startNanos);
+                      }
                       if (message instanceof Rpc.RpcFinished
                           || !serviceMethod.method.getOptions().getExtension(Rpc.isStreamingRpc)) {
                         // This RPC is over - remove it from the map.
                         boolean failed = message instanceof Rpc.RpcFinished && ((Rpc.RpcFinished) message).getFailed();
                         LOG.fine("RPC " + sequenceNo + " is now finished, failed = " + failed);
                         if (failed) {
+                          RPC_FAILURES.inc();
                           LOG.info("error = " + ((Rpc.RpcFinished) message).getErrorText());
                         }
                         activeRpcs.remove(sequenceNo);
@@ -462,9 +483,14 @@ public class ServerRpcProvider {
                     }
                   });
 
-          // Kick off a new thread specific to this RPC.
+          // Queue the RPC for one of the client RPC threads.
           activeRpcs.put(sequenceNo, controller);
-          provider.threadPool.execute(controller);
+          try {
+            provider.rpcExecutor.execute(loggedInUser, controller);
+          } catch (RejectedExecutionException e) {
+            LOG.info("Rejecting RPC " + sequenceNo + ": " + e.getMessage());
+            controller.setFailed(FairRpcExecutor.RETRY_LATER_ERROR);
+          }
         }
       } else {
         // Sent a message type we understand, but don't expect - erronous case!
@@ -486,9 +512,24 @@ public class ServerRpcProvider {
       boolean sslEnabled, String sslKeystorePath, String sslKeystorePassword,
       int webSocketMaxIdleTime, int webSocketMaxMessageSize, int websocketHeartbeat,
       int sessionMaxInactiveTime) {
+    this(httpAddresses, resourceBases, FairRpcExecutor.unbounded(threadPool), sessionManager,
+        jettySessionManager, sessionStoreDir, sslEnabled, sslKeystorePath, sslKeystorePassword,
+        webSocketMaxIdleTime, webSocketMaxMessageSize, websocketHeartbeat, sessionMaxInactiveTime);
+  }
+
+  /**
+   * Construct a new ServerRpcProvider which runs the client RPCs on the given
+   * {@link FairRpcExecutor}.
+   */
+  ServerRpcProvider(InetSocketAddress[] httpAddresses,
+      String[] resourceBases, FairRpcExecutor rpcExecutor, SessionManager sessionManager,
+      org.eclipse.jetty.server.SessionManager jettySessionManager, String sessionStoreDir,
+      boolean sslEnabled, String sslKeystorePath, String sslKeystorePassword,
+      int webSocketMaxIdleTime, int webSocketMaxMessageSize, int websocketHeartbeat,
+      int sessionMaxInactiveTime) {
     this.httpAddresses = httpAddresses;
     this.resourceBases = resourceBases;
-    this.threadPool = threadPool;
+    this.rpcExecutor = rpcExecutor;
     this.sessionManager = sessionManager;
     this.jettySessionManager = jettySessionManager;
     this.sessionStoreDir = sessionStoreDir;
@@ -501,6 +542,21 @@ public class ServerRpcProvider {
     this.sessionMaxInactiveTime = sessionMaxInactiveTime;
   }
 
+  /**
+   * Creates the executor of client RPCs. A thread count of 0 or less runs
+   * every RPC right away, as the client server executor then runs them on the
+   * calling thread or on a thread pool without bound.
+   */
+  private static FairRpcExecutor createRpcExecutor(Executor executor, Config config) {
+    int threadCount = config.getInt("threads.client_rpc_thread_count");
+    if (threadCount <= 0) {
+      return FairRpcExecutor.unbounded(executor);
+    }
+    return new FairRpcExecutor(executor, threadCount,
+        config.getInt("threads.client_rpc_max_queued_per_user"),
+        config.getInt("threads.client_rpc_max_queued"));
+  }
+
   /**
    * Constructs a new ServerRpcProvider with a default ExecutorService.
    */
@@ -523,13 +579,13 @@ public class ServerRpcProvider {
     this(parseAddressList(config.getStringList("core.http_frontend_addresses"),
                     config.getString("core.http_websocket_public_address")),
             config.getStringList("core.resource_bases").toArray(new String[0]),
+            createRpcExecutor(executorService, config),
             sessionManager,
             jettySessionManager,
             config.getString("core.sessions_store_directory"),
             config.getBoolean("security.enable_ssl"),
             config.getString("security.ssl_keystore_path"),
             config.getString("security.ssl_keystore_password"),
-            executorService,
             config.getInt("network.websocket_max_idle_time"),
             config.getInt("network.websocket_max_message_size"),
             config.getInt("network.websocket_heartbeat"),
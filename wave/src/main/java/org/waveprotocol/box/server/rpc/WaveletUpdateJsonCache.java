@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.rpc;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.gson.stream.JsonWriter;
+
+import org.waveprotocol.box.common.comms.WaveClientRpc.ProtocolWaveletUpdate;
+import org.waveprotocol.box.server.frontend.WaveletUpdateKey;
+import org.waveprotocol.box.server.rpc.ProtoSerializer.SerializationException;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares the JSON encoding of wavelet delta updates between the channels they
+ * are fanned out to.
+ *
+ * The encoding of an update without its channel id is computed once per
+ * wavelet name and version range; for each channel, the channel id is written
+ * with a {@link JsonWriter}, like the codec writes it, and followed by the
+ * members of the cached encoding.
+ */
+final class WaveletUpdateJsonCache {
+
+  /** Field number of {@code ProtocolWaveletUpdate.channel_id}. */
+  private static final String CHANNEL_ID_FIELD =
+      String.valueOf(ProtocolWaveletUpdate.CHANNEL_ID_FIELD_NUMBER);
+
+  private static final int MAX_UPDATES = 1000;
+  private static final long EXPIRE_SECONDS = 60;
+
+  private final Cache<WaveletUpdateKey, String> encodings = CacheBuilder.newBuilder()
+      .maximumSize(MAX_UPDATES).expireAfterWrite(EXPIRE_SECONDS, TimeUnit.SECONDS).build();
+
+  /**
+   * Whether the update is a plain delta update whose content is fully
+   * determined by its wavelet name and version range.
+   */
+  @VisibleForTesting
+  static boolean isShareable(ProtocolWaveletUpdate update) {
+    if (update.hasSnapshot() || update.hasMarker() || update.getAppliedDeltaCount() == 0
+        || !update.hasResultingVersion()) {
+      return false;
+    }
+    long version = update.getAppliedDelta(0).getHashedVersion().getVersion();
+    for (ProtocolWaveletDelta delta : update.getAppliedDeltaList()) {
+      if (delta.getHashedVersion().getVersion() != version) {
+        return false;
+      }
+      version += delta.getOperationCount();
+    }
+    return version == update.getResultingVersion().getVersion();
+  }
+
+  /**
+   * Returns the JSON encoding of an update.
+   *
+   * @param update update to encode
+   * @param serializer serializer used when the encoding is not cached
+   */
+  String toJson(final ProtocolWaveletUpdate update, final ProtoSerializer serializer)
+      throws SerializationException {
+    if (!isShareable(update)) {
+      return serializer.toJsonString(update);
+    }
+    String shared;
+    try {
+      shared = encodings.get(WaveletUpdateKey.of(update), new Callable<String>() {
+        @Override
+        public String call() throws SerializationException {
+          return serializer.toJsonString(update.toBuilder().clearChannelId().build());
+        }
+      });
+    } catch (ExecutionException e) {
+      throw new SerializationException((Exception) e.getCause());
+    } catch (UncheckedExecutionException e) {
+      throw new SerializationException(e);
+    }
+    if (!update.hasChannelId()) {
+      return shared;
+    }
+    StringWriter json = new StringWriter(shared.length() + 32);
+    JsonWriter out = new JsonWriter(json);
+    try {
+      out.beginObject();
+      out.name(CHANNEL_ID_FIELD).value(update.getChannelId());
+      out.flush();
+    } catch (IOException e) {
+      throw new SerializationException(e);
+    }
+    // The shared encoding is a non-empty object, since the wavelet name is
+    // always present, so its members follow the channel id.
+    json.append(',').append(shared, 1, shared.length());
+    return json.toString();
+  }
+}
@@ -21,11 +21,13 @@ package org.waveprotocol.box.server.rpc;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import com.google.protobuf.Message;
 
+import org.waveprotocol.box.common.comms.WaveClientRpc.ProtocolWaveletUpdate;
 import org.waveprotocol.box.server.rpc.ProtoSerializer.SerializationException;
 import org.waveprotocol.wave.communication.gson.GsonException;
 import org.waveprotocol.wave.communication.gson.GsonSerializable;
@@ -33,6 +35,8 @@ import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.util.logging.Log;
 
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
 import org.waveprotocol.box.stat.SessionContext;
 import org.waveprotocol.box.stat.Timer;
 import org.waveprotocol.box.stat.Timing;
@@ -43,6 +47,9 @@ import org.waveprotocol.box.stat.Timing;
 public abstract class WebSocketChannel extends MessageExpectingChannel {
   private static final Log LOG = Log.get(WebSocketChannel.class);
 
+  /** Wavelet updates are fanned out to many channels, so their JSON is shared. */
+  private static final WaveletUpdateJsonCache UPDATE_JSON_CACHE = new WaveletUpdateJsonCache();
+
   /**
    * Envelope for delivering arbitrary messages. Each envelope has a sequence
    * number and a message.
@@ -55,29 +62,79 @@ public abstract class WebSocketChannel extends MessageExpectingChannel {
 
     final int sequenceNumber;
     final String messageType;
-    final JsonElement message;
+    final Message message;
 
-    public MessageWrapper(int sequenceNumber, String messageType, JsonElement message) {
+    public MessageWrapper(int sequenceNumber, String messageType, Message message) {
       this.sequenceNumber = sequenceNumber;
       this.messageType = messageType;
       this.message = message;
     }
 
-    public static MessageWrapper deserialize(Gson gson, String data) {
-      JsonElement e = parser.parse(data);
-      JsonObject obj = e.getAsJsonObject();
-      String type = obj.get("messageType").getAsString();
-      int seqno = obj.get("sequenceNumber").getAsInt();
-      JsonElement message = obj.get("message");
+    /**
+     * Reads an envelope and decodes its message straight from the JSON text.
+     * Only a message which comes before its type is parsed into a tree first.
+     */
+    public static MessageWrapper deserialize(ProtoSerializer serializer, String data)
+        throws SerializationException {
+      String type = null;
+      Integer seqno = null;
+      Message message = null;
+      JsonElement pending = null;
+      try {
+        JsonReader in = new JsonReader(new StringReader(data));
+        in.beginObject();
+        while (in.hasNext()) {
+          String name = in.nextName();
+          if ("messageType".equals(name)) {
+            type = in.nextString();
+          } else if ("sequenceNumber".equals(name)) {
+            seqno = in.nextInt();
+          } else if ("message".equals(name) && type != null) {
+            message = serializer.readJson(in, type);
+          } else if ("message".equals(name)) {
+            pending = parser.parse(in);
+          } else {
+            in.skipValue();
+          }
+        }
+        in.endObject();
+      } catch (IOException e) {
+        throw new SerializationException(e);
+      } catch (RuntimeException e) {
+        // Malformed JSON or unexpected tokens
+        throw new SerializationException(e);
+      }
+      if (message == null && pending != null && type != null) {
+        message = serializer.fromJson(pending, type);
+      }
+      if (message == null || seqno == null) {
+        throw new SerializationException("Incomplete message envelope: " + data);
+      }
       return new MessageWrapper(seqno, type, message);
     }
 
-    public static String serialize(String type,int seqno,  JsonElement message) {
-      JsonObject o = new JsonObject();
-      o.add("messageType", new JsonPrimitive(type));
-      o.add("sequenceNumber", new JsonPrimitive(seqno));
-      o.add("message", message);
-      return o.toString();
+    /** Wraps a message, writing it straight into the envelope. */
+    public static String serialize(ProtoSerializer serializer, String type, int seqno,
+        Message message) throws SerializationException {
+      StringWriter json = new StringWriter();
+      JsonWriter out = new JsonWriter(json);
+      try {
+        out.beginObject();
+        out.name("messageType").value(type);
+        out.name("sequenceNumber").value(seqno);
+        out.name("message");
+        serializer.writeJson(out, message);
+        out.endObject();
+      } catch (IOException e) {
+        throw new SerializationException(e);
+      }
+      return json.toString();
+    }
+
+    /** Wraps a message which is already encoded as JSON. */
+    public static String serialize(String type, int seqno, String message) {
+      return "{\"messageType\":" + new JsonPrimitive(type) + ",\"sequenceNumber\":" + seqno
+          + ",\"message\":" + message + "}";
     }
   }
 
@@ -109,18 +166,15 @@ public abstract class WebSocketChannel extends MessageExpectingChannel {
       Timing.setScopeValue(SessionContext.class, sessionContext);
     }
     try {
-      Message message;
-
-      MessageWrapper wrapper = MessageWrapper.deserialize(gson, data);
-
+      MessageWrapper wrapper;
       try {
-        message = serializer.fromJson(wrapper.message, wrapper.messageType);
+        wrapper = MessageWrapper.deserialize(serializer, data);
       } catch (SerializationException e) {
         LOG.warning("message handling error", e);
         e.printStackTrace();
         return;
       }
-      callback.message(wrapper.sequenceNumber, message, loggedInUser);
+      callback.message(wrapper.sequenceNumber, wrapper.message, loggedInUser);
     } finally {
       Timing.exitScope();
     }
@@ -147,14 +201,17 @@ public abstract class WebSocketChannel extends MessageExpectingChannel {
 
   @Override
   public void sendMessage(int sequenceNo, Message message) {
-    JsonElement json;
     String str;
 
     Timer timer = Timing.start("serializeMessage");
     try {
-      json = serializer.toJson(message);
       String type = message.getDescriptorForType().getName();
-      str = MessageWrapper.serialize(type, sequenceNo, json);
+      if (message instanceof ProtocolWaveletUpdate) {
+        str = MessageWrapper.serialize(type, sequenceNo,
+            UPDATE_JSON_CACHE.toJson((ProtocolWaveletUpdate) message, serializer));
+      } else {
+        str = MessageWrapper.serialize(serializer, type, sequenceNo, message);
+      }
     } catch (SerializationException e) {
       LOG.warning("Failed to JSONify proto message", e);
       return;
@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.waveprotocol.box.server.stat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of latencies in microseconds, with log-linear buckets:
+ * each power of two is split in {@link #SUB_BUCKETS} buckets, so the
+ * percentiles have a relative error below 1 / {@link #SUB_BUCKETS}.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BITS = 3;
+  static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int BUCKET_COUNT = (Long.SIZE - SUB_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+
+  /**
+   * Records a latency in microseconds. Negative values count as 0.
+   */
+  public void record(long micros) {
+    if (micros < 0) {
+      micros = 0;
+    }
+    buckets.incrementAndGet(bucketOf(micros));
+    count.increment();
+    sum.add(micros);
+  }
+
+  /**
+   * Records the latency since a {@link System#nanoTime()} value.
+   */
+  public void recordSince(long startNanos) {
+    record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * @return the sum of the recorded latencies, in microseconds.
+   */
+  public long getSum() {
+    return sum.sum();
+  }
+
+  /**
+   * @param quantile the quantile, between 0 and 1
+   * @return the highest latency of the bucket holding the quantile, or 0 if
+   *         nothing was recorded.
+   */
+  public long getPercentile(double quantile) {
+    return getPercentiles(quantile)[0];
+  }
+
+  /**
+   * Computes several percentiles from a single snapshot of the buckets.
+   *
+   * @see #getPercentile(double)
+   */
+  public long[] getPercentiles(double... quantiles) {
+    long[] counts = new long[BUCKET_COUNT];
+    long total = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts[i] = buckets.get(i);
+      total += counts[i];
+    }
+    long[] result = new long[quantiles.length];
+    if (total == 0) {
+      return result;
+    }
+    for (int q = 0; q < quantiles.length; q++) {
+      long rank = Math.max(1, (long) Math.ceil(quantiles[q] * total));
+      long seen = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          result[q] = highestValueOf(i);
+          break;
+        }
+      }
+    }
+    return result;
+  }
+
+  static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  static long highestValueOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+    long width = 1L << (exponent - SUB_BITS);
+    long lowest = (SUB_BUCKETS + bucket % SUB_BUCKETS) * width;
+    return lowest + width - 1;
+  }
+}
@@ -0,0 +1,190 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.waveprotocol.box.server.stat;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Registry of the server metrics: counters, gauges and latency histograms,
+ * updated without locks and exported in the plain text format of Prometheus.
+ *
+ * Metrics are usually kept in static fields of the classes updating them, e.g.
+ * <pre>
+ * private static final LatencyHistogram LATENCY = MetricsRegistry.getInstance()
+ *     .histogram("delta_persist_latency_us", "Latency of delta writes");
+ * </pre>
+ */
+public class MetricsRegistry {
+
+  private static final MetricsRegistry INSTANCE = new MetricsRegistry();
+
+  /** Percentiles exported for histograms. */
+  private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+  private static final String[] QUANTILE_NAMES = {"0.5", "0.99", "0.999"};
+
+  private static final class Entry {
+    final String help;
+    final Object metric;
+
+    Entry(String help, Object metric) {
+      this.help = help;
+      this.metric = metric;
+    }
+  }
+
+  /** Metrics by name, sorted for the export. */
+  private final ConcurrentNavigableMap<String, Entry> metrics =
+      new ConcurrentSkipListMap<String, Entry>();
+
+  @VisibleForTesting
+  MetricsRegistry() {
+  }
+
+  public static MetricsRegistry getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return the counter with the given name, created if needed.
+   */
+  public Counter counter(String name, String help) {
+    return register(name, help, new Counter(), Counter.class);
+  }
+
+  /**
+   * @return the latency histogram with the given name, created if needed.
+   */
+  public LatencyHistogram histogram(String name, String help) {
+    return register(name, help, new LatencyHistogram(), LatencyHistogram.class);
+  }
+
+  /**
+   * Registers a gauge. Keeps the gauge already registered with the name, if
+   * any.
+   */
+  public void gauge(String name, String help, Gauge gauge) {
+    register(name, help, gauge, Gauge.class);
+  }
+
+  private <T> T register(String name, String help, T metric, Class<T> type) {
+    Preconditions.checkArgument(isValidName(name), "Invalid metric name %s", name);
+    Entry entry = metrics.get(name);
+    if (entry == null) {
+      metrics.putIfAbsent(name, new Entry(help, metric));
+      entry = metrics.get(name);
+    }
+    Preconditions.checkArgument(type.isInstance(entry.metric),
+        "Metric %s is already registered as %s", name, entry.metric.getClass().getSimpleName());
+    return type.cast(entry.metric);
+  }
+
+  /**
+   * @return whether the name is a valid metric name.
+   */
+  public static boolean isValidName(String name) {
+    if (name.isEmpty()) {
+      return false;
+    }
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      boolean letter = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':';
+      if (!letter && (i == 0 || c < '0' || c > '9')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the name with the characters not allowed in metric names replaced
+   *         by '_'.
+   */
+  public static String toValidName(String name) {
+    StringBuilder builder = new StringBuilder(name.length());
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      boolean letter = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':';
+      builder.append(letter || (i > 0 && c >= '0' && c <= '9') ? c : '_');
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Writes the metrics in the Prometheus plain text exposition format.
+   */
+  public void writeText(Appendable out) throws IOException {
+    for (Map.Entry<String, Entry> e : metrics.entrySet()) {
+      String name = e.getKey();
+      Object metric = e.getValue().metric;
+      out.append("# HELP ").append(name).append(' ').append(e.getValue().help).append('\n');
+      if (metric instanceof Counter) {
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(Long.toString(((Counter) metric).get())).append('\n');
+      } else if (metric instanceof Gauge) {
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(Long.toString(((Gauge) metric).getValue()))
+            .append('\n');
+      } else {
+        LatencyHistogram histogram = (LatencyHistogram) metric;
+        long[] percentiles = histogram.getPercentiles(QUANTILES);
+        out.append("# TYPE ").append(name).append(" summary\n");
+        for (int i = 0; i < QUANTILES.length; i++) {
+          out.append(name).append("{quantile=\"").append(QUANTILE_NAMES[i]).append("\"} ")
+              .append(Long.toString(percentiles[i])).append('\n');
+        }
+        out.append(name).append("_sum ").append(Long.toString(histogram.getSum())).append('\n');
+        out.append(name).append("_count ").append(Long.toString(histogram.getCount()))
+            .append('\n');
+      }
+    }
+  }
+
+  /**
+   * Renders the metrics as an HTML table.
+   */
+  public String renderHtml() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("<table><tr><th align=\"left\">Name</th><th>Value / count</th>"
+        + "<th>p50</th><th>p99</th><th>p999</th><th align=\"left\">Help</th></tr>");
+    for (Map.Entry<String, Entry> e : metrics.entrySet()) {
+      Object metric = e.getValue().metric;
+      builder.append("<tr><td>").append(e.getKey()).append("</td>");
+      if (metric instanceof Counter) {
+        builder.append("<td>").append(((Counter) metric).get()).append("</td><td colspan=3/>");
+      } else if (metric instanceof Gauge) {
+        builder.append("<td>").append(((Gauge) metric).getValue())
+            .append("</td><td colspan=3/>");
+      } else {
+        LatencyHistogram histogram = (LatencyHistogram) metric;
+        builder.append("<td>").append(histogram.getCount()).append("</td>");
+        for (long p : histogram.getPercentiles(QUANTILES)) {
+          builder.append("<td>").append(p).append("</td>");
+        }
+      }
+      builder.append("<td>").append(e.getValue().help).append("</td></tr>");
+    }
+    return builder.append("</table>").toString();
+  }
+}
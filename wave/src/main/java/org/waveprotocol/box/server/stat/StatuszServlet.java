@@ -40,6 +40,7 @@ public class StatuszServlet extends HttpServlet {
   private final String SHOW_SESSION_MEASUREMENTS = "session-measurements";
   private final String SHOW_GLOBAL_MEASUREMENTS = "global-measurements";
   private final String SHOW_STATS = "stats";
+  private final String SHOW_METRICS = "metrics";
 
   @Override
   protected void service(HttpServletRequest req, HttpServletResponse resp) throws IOException {
@@ -62,6 +63,9 @@ public class StatuszServlet extends HttpServlet {
       case SHOW_STATS:
         writeStats(writer);
         break;
+      case SHOW_METRICS:
+        writeMetrics(writer);
+        break;
     }
   }
 
@@ -69,6 +73,7 @@ public class StatuszServlet extends HttpServlet {
     writer.write("<a href=\"?show=" + SHOW_SESSION_MEASUREMENTS + "\">Session measurements</a>");
     writer.write(" | <a href=\"?show=" + SHOW_GLOBAL_MEASUREMENTS + "\">Global measurements</a>");
     writer.write(" | <a href=\"?show=" + SHOW_STATS + "\">Stats</a>");
+    writer.write(" | <a href=\"?show=" + SHOW_METRICS + "\">Metrics</a>");
   }
 
   protected void writeSessionMeasurements(PrintWriter writer) {
@@ -85,4 +90,9 @@ public class StatuszServlet extends HttpServlet {
     writer.write(Timing.renderTitle("Stats", 2));
     writer.write(Timing.renderStats());
   }
+
+  protected void writeMetrics(PrintWriter writer) {
+    writer.write(Timing.renderTitle("Metrics", 2));
+    writer.write(MetricsRegistry.getInstance().renderHtml());
+  }
 }
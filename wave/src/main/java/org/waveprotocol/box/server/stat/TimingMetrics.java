@@ -0,0 +1,63 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.waveprotocol.box.server.stat;
+
+import org.waveprotocol.box.stat.MeasurementListener;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Exports the measurements of {@link org.waveprotocol.box.stat.Timing} as
+ * latency histograms named "timing_" followed by the measurement name.
+ *
+ * Measurement names include request URIs, so past {@link #MAX_HISTOGRAMS}
+ * names the measurements go to the "timing_other" histogram.
+ */
+public class TimingMetrics implements MeasurementListener {
+
+  static final int MAX_HISTOGRAMS = 500;
+  static final String PREFIX = "timing_";
+
+  private final MetricsRegistry registry;
+  private final LatencyHistogram other;
+  private final ConcurrentMap<String, LatencyHistogram> histograms =
+      new ConcurrentHashMap<String, LatencyHistogram>();
+
+  public TimingMetrics(MetricsRegistry registry) {
+    this.registry = registry;
+    this.other = registry.histogram(PREFIX + "other",
+        "Latency in microseconds of the measurements past the histogram limit");
+  }
+
+  @Override
+  public void measured(String name, int duration) {
+    LatencyHistogram histogram = histograms.get(name);
+    if (histogram == null) {
+      if (histograms.size() >= MAX_HISTOGRAMS) {
+        histogram = other;
+      } else {
+        histogram = registry.histogram(PREFIX + MetricsRegistry.toValidName(name),
+            "Latency in microseconds of " + name);
+        histograms.putIfAbsent(name, histogram);
+      }
+    }
+    histogram.record(duration * 1000L);
+  }
+}
@@ -0,0 +1,256 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.util;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+
+import org.waveprotocol.wave.model.document.Document;
+import org.waveprotocol.wave.model.document.operation.DocInitialization;
+import org.waveprotocol.wave.model.document.operation.DocOp;
+import org.waveprotocol.wave.model.document.operation.automaton.DocOpAutomaton.ViolationCollector;
+import org.waveprotocol.wave.model.document.operation.automaton.DocumentSchema;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpUtil;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpValidator;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.operation.OperationException;
+import org.waveprotocol.wave.model.operation.OperationRuntimeException;
+import org.waveprotocol.wave.model.operation.SilentOperationSink;
+import org.waveprotocol.wave.model.schema.SchemaProvider;
+import org.waveprotocol.wave.model.wave.data.DocumentFactory;
+import org.waveprotocol.wave.model.wave.data.DocumentOperationSink;
+import org.waveprotocol.wave.model.wave.data.impl.ObservablePluggableMutableDocument;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server-side document which keeps its content packed, applying operations
+ * to it directly instead of maintaining a node tree, offset list and
+ * annotation tree.
+ * <p>
+ * Applying an operation to packed content rebuilds it, which costs time
+ * proportional to the document size rather than to the operation. So a large
+ * document which keeps receiving operations is expanded into an
+ * {@link ObservablePluggableMutableDocument}, and packed again by
+ * {@link #copy()} once no operation has reached it for a while. Hotness is
+ * measured over time rather than between copies, as the wave bus copies live
+ * documents on every update.
+ * <p>
+ * The first call to {@link #getMutableDocument()} expands the document for
+ * good, so that DOM-style readers such as robots or the unmutable model keep
+ * working on the documents they need.
+ * <p>
+ * Wave bus subscribers share snapshots across threads, so all methods are
+ * synchronized.
+ */
+public final class CompactDocument implements DocumentOperationSink {
+
+  /**
+   * Number of operations applied within {@link #HOT_WINDOW_NANOS} after which
+   * a large document is expanded.
+   */
+  @VisibleForTesting
+  static final int EXPAND_AFTER_OPERATIONS = 8;
+
+  /**
+   * Size from which a document receiving operations is expanded. Below it a
+   * rebuild costs a few microseconds more than an indexed update, see
+   * DocumentKeystrokeBenchmark.
+   */
+  @VisibleForTesting
+  static final int EXPAND_MIN_SIZE = 1024;
+
+  /**
+   * Window over which operations are counted, and after which an expanded
+   * document receiving no operation is packed again by a copy.
+   */
+  @VisibleForTesting
+  static final long HOT_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  /**
+   * Factory.
+   */
+  public static DocumentFactory<CompactDocument> createFactory(final SchemaProvider schemas) {
+    return new DocumentFactory<CompactDocument>() {
+      @Override
+      public CompactDocument create(WaveletId waveletId, String docId,
+          DocInitialization content) {
+        return new CompactDocument(schemas.getSchemaForId(waveletId, docId), content);
+      }
+    };
+  }
+
+  private final DocumentSchema schema;
+  private final Ticker ticker;
+
+  /** Packed content, null while the document is expanded. */
+  private PackedDocument content;
+
+  /** Indexed document, null while the document is packed. */
+  private ObservablePluggableMutableDocument expanded;
+
+  /** Whether the indexed document has been handed out, so it stays expanded. */
+  private boolean mutableRequested;
+
+  /** Start of the current operation counting window. */
+  private long windowStart;
+
+  /** Operations applied since the start of the window. */
+  private int operationsInWindow;
+
+  /** Time of the last operation. */
+  private long lastOperation;
+
+  private SilentOperationSink<? super DocOp> outputSink;
+
+  /**
+   * Creates a compact document.
+   *
+   * @param content initialization content
+   * @throws OperationRuntimeException if the content is invalid for the schema
+   */
+  public CompactDocument(DocumentSchema schema, DocInitialization content) {
+    this(schema, content, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  CompactDocument(DocumentSchema schema, DocInitialization content, Ticker ticker) {
+    this.schema = schema;
+    this.ticker = ticker;
+    resetHotness();
+    try {
+      this.content = apply(PackedDocument.EMPTY, content);
+    } catch (OperationException e) {
+      throw new OperationRuntimeException(
+          "Document initialization failed when applying operation: " + content, e);
+    }
+  }
+
+  private CompactDocument(DocumentSchema schema, PackedDocument content, Ticker ticker) {
+    this.schema = schema;
+    this.ticker = ticker;
+    this.content = content;
+    resetHotness();
+  }
+
+  /** Starts cold, with no operation in the window. */
+  private void resetHotness() {
+    windowStart = ticker.read();
+    lastOperation = windowStart - HOT_WINDOW_NANOS;
+  }
+
+  /**
+   * Returns a copy of this document which shares its packed content, or null
+   * if the document is expanded. The content is immutable, so each copy moves
+   * on to new content independently as it consumes operations.
+   * <p>
+   * An expanded document which has not been operated on for
+   * {@link #HOT_WINDOW_NANOS}, and whose indexed document nobody holds, is
+   * packed again first. Copying doesn't make the document colder.
+   */
+  synchronized CompactDocument copy() {
+    if (expanded != null && !mutableRequested
+        && ticker.read() - lastOperation >= HOT_WINDOW_NANOS) {
+      DocInitialization current = expanded.asOperation();
+      try {
+        content = PackedDocument.EMPTY.apply(current);
+      } catch (OperationException e) {
+        throw new OperationRuntimeException("Failed to pack document: " + current, e);
+      }
+      expanded = null;
+    }
+    return expanded == null ? new CompactDocument(schema, content, ticker) : null;
+  }
+
+  /** Returns whether the document is held in its packed form. */
+  public synchronized boolean isCompact() {
+    return expanded == null;
+  }
+
+  @Override
+  public synchronized void init(SilentOperationSink<? super DocOp> outputSink) {
+    Preconditions.checkState(this.outputSink == null, "Output sink may only be set once");
+    Preconditions.checkArgument(outputSink != null, "Output sink may not be null");
+    this.outputSink = outputSink;
+    if (expanded != null) {
+      expanded.init(outputSink);
+    }
+  }
+
+  @Override
+  public synchronized Document getMutableDocument() {
+    expand();
+    mutableRequested = true;
+    return expanded.getMutableDocument();
+  }
+
+  @Override
+  public synchronized DocInitialization asOperation() {
+    return expanded != null ? expanded.asOperation() : content.asOperation();
+  }
+
+  @Override
+  public synchronized void consume(DocOp op) throws OperationException {
+    long now = ticker.read();
+    if (now - windowStart >= HOT_WINDOW_NANOS) {
+      windowStart = now;
+      operationsInWindow = 0;
+    }
+    operationsInWindow++;
+    lastOperation = now;
+    if (expanded == null && operationsInWindow >= EXPAND_AFTER_OPERATIONS
+        && content.length() >= EXPAND_MIN_SIZE) {
+      expand();
+    }
+    if (expanded != null) {
+      expanded.consume(op);
+    } else {
+      content = apply(content, op);
+    }
+  }
+
+  /** Replaces the packed content with an indexed document. */
+  private void expand() {
+    if (expanded == null) {
+      expanded = new ObservablePluggableMutableDocument(schema, content.asOperation());
+      if (outputSink != null) {
+        expanded.init(outputSink);
+      }
+      content = null;
+    }
+  }
+
+  /** Validates an operation against some content and applies it. */
+  private PackedDocument apply(PackedDocument target, DocOp op) throws OperationException {
+    if (!DocOpValidator.validate(null, schema, target, op).isValid()) {
+      // Validate again to collect diagnostics (more expensive)
+      ViolationCollector vc = new ViolationCollector();
+      DocOpValidator.validate(vc, schema, target, op);
+      throw new OperationException(vc);
+    }
+    return target.apply(op);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return DocOpUtil.toXmlString(asOperation());
+  }
+}
@@ -0,0 +1,631 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.util;
+
+import com.google.common.base.Preconditions;
+
+import org.waveprotocol.wave.model.document.operation.AnnotationBoundaryMap;
+import org.waveprotocol.wave.model.document.operation.Attributes;
+import org.waveprotocol.wave.model.document.operation.AttributesUpdate;
+import org.waveprotocol.wave.model.document.operation.DocInitialization;
+import org.waveprotocol.wave.model.document.operation.DocOp;
+import org.waveprotocol.wave.model.document.operation.DocOpCursor;
+import org.waveprotocol.wave.model.document.operation.algorithm.AnnotationsNormalizer;
+import org.waveprotocol.wave.model.document.operation.automaton.AutomatonDocument;
+import org.waveprotocol.wave.model.document.operation.impl.AnnotationMap;
+import org.waveprotocol.wave.model.document.operation.impl.AnnotationMapImpl;
+import org.waveprotocol.wave.model.document.operation.impl.AnnotationsUpdate;
+import org.waveprotocol.wave.model.document.operation.impl.AnnotationsUpdateImpl;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpUtil;
+import org.waveprotocol.wave.model.document.operation.impl.UncheckedDocOpBuffer;
+import org.waveprotocol.wave.model.document.util.EmptyDocument;
+import org.waveprotocol.wave.model.operation.OpCursorException;
+import org.waveprotocol.wave.model.operation.OperationException;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Immutable, packed content of a document: the characters in one string, the
+ * element starts and ends in parallel arrays indexed by position, and each
+ * annotation key as a list of value runs.
+ * <p>
+ * Positions are looked up by binary search, so the document can be used as the
+ * {@link AutomatonDocument} that operations are validated against, and
+ * applying an operation builds the next content in a single pass.
+ */
+final class PackedDocument implements AutomatonDocument {
+
+  private static final int[] NO_INTS = new int[0];
+  private static final String[] NO_STRINGS = new String[0];
+  private static final Attributes[] NO_ATTRIBUTES = new Attributes[0];
+  private static final int[][] NO_RUN_STARTS = new int[0][];
+  private static final String[][] NO_RUN_VALUES = new String[0][];
+
+  static final PackedDocument EMPTY = new Builder().build();
+
+  /** Number of items. */
+  private final int length;
+
+  /** Character items, in document order. */
+  private final String chars;
+
+  /** Positions of the element start and end items, ascending. */
+  private final int[] elementPositions;
+
+  /** Tag of the element started or ended by each element item. */
+  private final String[] tags;
+
+  /** Attributes of each element start item, null for element ends. */
+  private final Attributes[] attributes;
+
+  /**
+   * Index of the element start enclosing the point just after each element
+   * item, or -1 at the top level.
+   */
+  private final int[] enclosing;
+
+  /** Annotation keys with any value, sorted. */
+  private final String[] annotationKeys;
+
+  /**
+   * For each key, the positions at which its value changes, starting with 0.
+   * Adjacent runs always have different values.
+   */
+  private final int[][] runStarts;
+
+  /** For each key, the value of each run, null where it is not set. */
+  private final String[][] runValues;
+
+  private PackedDocument(int length, String chars, int[] elementPositions, String[] tags,
+      Attributes[] attributes, int[] enclosing, String[] annotationKeys, int[][] runStarts,
+      String[][] runValues) {
+    this.length = length;
+    this.chars = chars;
+    this.elementPositions = elementPositions;
+    this.tags = tags;
+    this.attributes = attributes;
+    this.enclosing = enclosing;
+    this.annotationKeys = annotationKeys;
+    this.runStarts = runStarts;
+    this.runValues = runValues;
+  }
+
+  /**
+   * Returns the content obtained by applying an operation to this one. The
+   * operation is expected to have been validated against this document.
+   * The whole new content is built, so this costs time and allocation
+   * proportional to the document size, however small the operation.
+   *
+   * @throws OperationException if the operation does not apply
+   */
+  PackedDocument apply(DocOp op) throws OperationException {
+    Applier applier = new Applier();
+    try {
+      op.apply(applier);
+    } catch (OpCursorException e) {
+      throw new OperationException(e.getMessage(), e);
+    } catch (IllegalArgumentException e) {
+      throw new OperationException(e.getMessage(), e);
+    }
+    if (applier.pos != length) {
+      throw new OperationException("Missing retain to end of document ("
+          + (length - applier.pos) + " items)");
+    }
+    if (applier.updates.changeSize() != 0) {
+      throw new OperationException("Unended annotations at end of operation: "
+          + applier.updates);
+    }
+    return applier.target.build();
+  }
+
+  /** Returns the content as a normalized initialization. */
+  DocInitialization asOperation() {
+    if (length == 0) {
+      return EmptyDocument.EMPTY_DOCUMENT;
+    }
+    AnnotationsNormalizer<DocOp> out = new AnnotationsNormalizer<DocOp>(new UncheckedDocOpBuffer());
+    int[] nextRun = new int[annotationKeys.length];
+    int element = 0;
+    int pos = 0;
+    while (pos < length) {
+      // Annotation changes, then items up to the next change of anything
+      int boundary = element < elementPositions.length ? elementPositions[element] : length;
+      for (int k = 0; k < annotationKeys.length; k++) {
+        int[] starts = runStarts[k];
+        if (nextRun[k] < starts.length && starts[nextRun[k]] == pos) {
+          String value = runValues[k][nextRun[k]++];
+          if (value != null) {
+            out.startAnnotation(annotationKeys[k], null, value);
+          } else {
+            out.endAnnotation(annotationKeys[k]);
+          }
+        }
+        if (nextRun[k] < starts.length) {
+          boundary = Math.min(boundary, starts[nextRun[k]]);
+        }
+      }
+      if (boundary == pos) {
+        if (attributes[element] != null) {
+          out.elementStart(tags[element], attributes[element]);
+        } else {
+          out.elementEnd();
+        }
+        element++;
+        pos++;
+      } else {
+        int offset = pos - element;
+        out.characters(chars.substring(offset, offset + boundary - pos));
+        pos = boundary;
+      }
+    }
+    for (String key : annotationKeys) {
+      out.endAnnotation(key);
+    }
+    return DocOpUtil.asInitialization(out.finish());
+  }
+
+  /** Returns the index of the element item at a position, or a negative insertion point. */
+  private int elementAt(int pos) {
+    return Arrays.binarySearch(elementPositions, pos);
+  }
+
+  /** Returns the number of element items before a position. */
+  private int elementsBefore(int pos) {
+    int index = elementAt(pos);
+    return index >= 0 ? index : -index - 1;
+  }
+
+  /** Returns the index of the run of key {@code k} covering a position. */
+  private int runAt(int k, int pos) {
+    int index = Arrays.binarySearch(runStarts[k], pos);
+    return index >= 0 ? index : -index - 2;
+  }
+
+  private String valueAt(int k, int pos) {
+    return runValues[k][runAt(k, pos)];
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public String elementStartingAt(int pos) {
+    int index = elementAt(pos);
+    return index >= 0 && attributes[index] != null ? tags[index] : null;
+  }
+
+  @Override
+  public Attributes attributesAt(int pos) {
+    int index = elementAt(pos);
+    return index >= 0 ? attributes[index] : null;
+  }
+
+  @Override
+  public String elementEndingAt(int pos) {
+    int index = elementAt(pos);
+    return index >= 0 && attributes[index] == null ? tags[index] : null;
+  }
+
+  @Override
+  public int charAt(int pos) {
+    if (pos < 0 || pos >= length) {
+      return -1;
+    }
+    int index = elementAt(pos);
+    return index >= 0 ? -1 : chars.charAt(pos + index + 1);
+  }
+
+  @Override
+  public String nthEnclosingElementTag(int insertionPoint, int depth) {
+    int before = elementsBefore(insertionPoint);
+    int element = before == 0 ? -1 : enclosing[before - 1];
+    for (; depth > 0 && element >= 0; depth--) {
+      element = element == 0 ? -1 : enclosing[element - 1];
+    }
+    return element >= 0 ? tags[element] : null;
+  }
+
+  @Override
+  public int remainingCharactersInElement(int insertionPoint) {
+    int next = elementsBefore(insertionPoint);
+    int end = next < elementPositions.length ? elementPositions[next] : length;
+    return end - insertionPoint;
+  }
+
+  @Override
+  public AnnotationMap annotationsAt(int pos) {
+    Preconditions.checkElementIndex(pos, length);
+    Map<String, String> values = null;
+    for (int k = 0; k < annotationKeys.length; k++) {
+      String value = valueAt(k, pos);
+      if (value != null) {
+        if (values == null) {
+          values = new HashMap<String, String>();
+        }
+        values.put(annotationKeys[k], value);
+      }
+    }
+    return values == null ? AnnotationMapImpl.EMPTY_MAP : new AnnotationMapImpl(values);
+  }
+
+  @Override
+  public String getAnnotation(int pos, String key) {
+    Preconditions.checkElementIndex(pos, length);
+    int k = Arrays.binarySearch(annotationKeys, key);
+    return k >= 0 ? valueAt(k, pos) : null;
+  }
+
+  @Override
+  public int firstAnnotationChange(int start, int end, String key, String fromValue) {
+    Preconditions.checkPositionIndexes(start, end, length);
+    if (start == end) {
+      return -1;
+    }
+    int k = Arrays.binarySearch(annotationKeys, key);
+    if (k < 0) {
+      return fromValue == null ? -1 : start;
+    }
+    int run = runAt(k, start);
+    if (!equal(runValues[k][run], fromValue)) {
+      return start;
+    }
+    // The next run has a different value
+    int next = run + 1 < runStarts[k].length ? runStarts[k][run + 1] : length;
+    return next < end ? next : -1;
+  }
+
+  private static boolean equal(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  @Override
+  public String toString() {
+    return DocOpUtil.toXmlString(asOperation());
+  }
+
+  /**
+   * Walks an operation over this content, writing the result to a builder.
+   * Insertions inherit the annotations of the item before them, as in
+   * {@link org.waveprotocol.wave.model.document.operation.automaton.DocOpAutomaton}.
+   */
+  private final class Applier implements DocOpCursor {
+    final Builder target = new Builder();
+
+    /** Position in this content. */
+    int pos = 0;
+
+    AnnotationsUpdate updates = AnnotationsUpdateImpl.EMPTY_MAP;
+
+    /** New values of the keys in {@link #updates}. */
+    final Map<String, String> updatedValues = new HashMap<String, String>();
+
+    /** Keys updated by the operation which this content has no value for. */
+    final Set<String> newKeys = new HashSet<String>();
+
+    @Override
+    public void annotationBoundary(AnnotationBoundaryMap map) {
+      updates = updates.composeWith(map);
+      updatedValues.clear();
+      for (int i = 0; i < updates.changeSize(); i++) {
+        String key = updates.getChangeKey(i);
+        updatedValues.put(key, updates.getNewValue(i));
+        if (Arrays.binarySearch(annotationKeys, key) < 0) {
+          newKeys.add(key);
+        }
+      }
+    }
+
+    @Override
+    public void characters(String s) {
+      annotateInsertion();
+      target.characters(s);
+    }
+
+    @Override
+    public void elementStart(String type, Attributes attrs) {
+      annotateInsertion();
+      target.elementStart(type, attrs);
+    }
+
+    @Override
+    public void elementEnd() {
+      annotateInsertion();
+      target.elementEnd();
+    }
+
+    @Override
+    public void deleteCharacters(String s) {
+      if (remainingCharactersInElement(pos) < s.length()
+          || !chars.regionMatches(pos - elementsBefore(pos), s, 0, s.length())) {
+        throw new OpCursorException("Mismatched deleted characters at " + pos + ": " + s);
+      }
+      pos += s.length();
+    }
+
+    @Override
+    public void deleteElementStart(String type, Attributes attrs) {
+      if (elementStartingAt(pos) == null) {
+        throw new OpCursorException("Not at an element start, at: " + pos);
+      }
+      pos++;
+    }
+
+    @Override
+    public void deleteElementEnd() {
+      if (elementEndingAt(pos) == null) {
+        throw new OpCursorException("Not at an element end, at: " + pos);
+      }
+      pos++;
+    }
+
+    @Override
+    public void retain(int itemCount) {
+      if (pos + itemCount > length) {
+        throw new OpCursorException("Action past end of document, of size: " + length);
+      }
+      annotateRetained(pos, pos + itemCount);
+      copy(pos, pos + itemCount);
+      pos += itemCount;
+    }
+
+    @Override
+    public void replaceAttributes(Attributes oldAttrs, Attributes newAttrs) {
+      String tag = checkElementStart();
+      annotateRetained(pos, pos + 1);
+      target.elementStart(tag, newAttrs);
+      pos++;
+    }
+
+    @Override
+    public void updateAttributes(AttributesUpdate attrUpdate) {
+      String tag = checkElementStart();
+      annotateRetained(pos, pos + 1);
+      target.elementStart(tag, attributesAt(pos).updateWith(attrUpdate));
+      pos++;
+    }
+
+    private String checkElementStart() {
+      String tag = elementStartingAt(pos);
+      if (tag == null) {
+        throw new OpCursorException("Not at an element start, at: " + pos);
+      }
+      return tag;
+    }
+
+    /** Sets the annotations of items inserted at the current position. */
+    private void annotateInsertion() {
+      int at = target.length();
+      for (int k = 0; k < annotationKeys.length; k++) {
+        if (!updatedValues.containsKey(annotationKeys[k])) {
+          target.annotate(annotationKeys[k], at, pos == 0 ? null : valueAt(k, pos - 1));
+        }
+      }
+      annotateUpdated(at);
+    }
+
+    /** Sets the annotations of the items in [start, end) copied to the target. */
+    private void annotateRetained(int start, int end) {
+      int at = target.length();
+      for (int k = 0; k < annotationKeys.length; k++) {
+        if (!updatedValues.containsKey(annotationKeys[k])) {
+          int[] starts = runStarts[k];
+          for (int run = runAt(k, start); run < starts.length && starts[run] < end; run++) {
+            target.annotate(annotationKeys[k], at + Math.max(starts[run], start) - start,
+                runValues[k][run]);
+          }
+        }
+      }
+      annotateUpdated(at);
+    }
+
+    /**
+     * Sets the keys updated by the operation, and clears the keys it updated
+     * earlier on which this content has no value for.
+     */
+    private void annotateUpdated(int at) {
+      for (Map.Entry<String, String> update : updatedValues.entrySet()) {
+        target.annotate(update.getKey(), at, update.getValue());
+      }
+      for (String key : newKeys) {
+        if (!updatedValues.containsKey(key)) {
+          target.annotate(key, at, null);
+        }
+      }
+    }
+
+    /** Copies the items in [start, end) to the target. */
+    private void copy(int start, int end) {
+      int element = elementsBefore(start);
+      int at = start;
+      while (at < end) {
+        int next = element < elementPositions.length ? elementPositions[element] : length;
+        if (next == at) {
+          if (attributes[element] != null) {
+            target.elementStart(tags[element], attributes[element]);
+          } else {
+            target.elementEnd();
+          }
+          element++;
+          at++;
+        } else {
+          int stop = Math.min(next, end);
+          int offset = at - element;
+          target.characters(chars.substring(offset, offset + stop - at));
+          at = stop;
+        }
+      }
+    }
+  }
+
+  /** Appends items and annotation runs to build a document. */
+  static final class Builder {
+    private final StringBuilder chars = new StringBuilder();
+    private int length;
+
+    private int elementCount;
+    private int[] elementPositions = NO_INTS;
+    private String[] tags = NO_STRINGS;
+    private Attributes[] attributes = NO_ATTRIBUTES;
+    private int[] enclosing = NO_INTS;
+
+    /** Indices of the element starts not yet ended. */
+    private int[] open = NO_INTS;
+    private int depth;
+
+    private final Map<String, Runs> annotations = new TreeMap<String, Runs>();
+
+    int length() {
+      return length;
+    }
+
+    void characters(String s) {
+      chars.append(s);
+      length += s.length();
+    }
+
+    void elementStart(String tag, Attributes attrs) {
+      int index = addElement(tag, attrs);
+      if (depth == open.length) {
+        open = Arrays.copyOf(open, Math.max(4, depth * 2));
+      }
+      open[depth++] = index;
+      enclosing[index] = index;
+    }
+
+    void elementEnd() {
+      if (depth == 0) {
+        throw new OpCursorException("Element end without a start at: " + length);
+      }
+      int start = open[--depth];
+      int index = addElement(tags[start], null);
+      enclosing[index] = depth == 0 ? -1 : open[depth - 1];
+    }
+
+    private int addElement(String tag, Attributes attrs) {
+      if (elementCount == elementPositions.length) {
+        int capacity = Math.max(8, elementCount * 2);
+        elementPositions = Arrays.copyOf(elementPositions, capacity);
+        tags = Arrays.copyOf(tags, capacity);
+        attributes = Arrays.copyOf(attributes, capacity);
+        enclosing = Arrays.copyOf(enclosing, capacity);
+      }
+      int index = elementCount++;
+      elementPositions[index] = length++;
+      tags[index] = tag;
+      attributes[index] = attrs;
+      return index;
+    }
+
+    /**
+     * Sets the value of an annotation key from a position on. Positions of
+     * the same key must not decrease.
+     */
+    void annotate(String key, int pos, String value) {
+      Runs runs = annotations.get(key);
+      if (runs == null) {
+        if (value == null) {
+          return;
+        }
+        runs = new Runs();
+        annotations.put(key, runs);
+        if (pos > 0) {
+          runs.add(0, null);
+        }
+      }
+      runs.set(pos, value);
+    }
+
+    PackedDocument build() {
+      if (depth != 0) {
+        throw new OpCursorException("Unclosed elements at end of document: " + depth);
+      }
+      int keyCount = 0;
+      String[] keys = new String[annotations.size()];
+      int[][] starts = new int[keys.length][];
+      String[][] values = new String[keys.length][];
+      for (Map.Entry<String, Runs> entry : annotations.entrySet()) {
+        Runs runs = entry.getValue();
+        runs.truncate(length);
+        if (runs.hasValue()) {
+          keys[keyCount] = entry.getKey();
+          starts[keyCount] = Arrays.copyOf(runs.starts, runs.size);
+          values[keyCount] = Arrays.copyOf(runs.values, runs.size);
+          keyCount++;
+        }
+      }
+      return new PackedDocument(length, chars.toString(),
+          Arrays.copyOf(elementPositions, elementCount), Arrays.copyOf(tags, elementCount),
+          Arrays.copyOf(attributes, elementCount), Arrays.copyOf(enclosing, elementCount),
+          keyCount == 0 ? NO_STRINGS : Arrays.copyOf(keys, keyCount),
+          keyCount == 0 ? NO_RUN_STARTS : Arrays.copyOf(starts, keyCount),
+          keyCount == 0 ? NO_RUN_VALUES : Arrays.copyOf(values, keyCount));
+    }
+  }
+
+  /** Growing list of the value runs of one annotation key. */
+  private static final class Runs {
+    int[] starts = new int[4];
+    String[] values = new String[4];
+    int size;
+
+    void add(int start, String value) {
+      if (size == starts.length) {
+        starts = Arrays.copyOf(starts, size * 2);
+        values = Arrays.copyOf(values, size * 2);
+      }
+      starts[size] = start;
+      values[size] = value;
+      size++;
+    }
+
+    /** Sets the value from a position on, keeping adjacent runs distinct. */
+    void set(int start, String value) {
+      if (size > 0 && starts[size - 1] == start) {
+        size--;
+      }
+      if (size == 0 || !equal(values[size - 1], value)) {
+        add(start, value);
+      }
+    }
+
+    /** Drops the runs starting at or after the end of the document. */
+    void truncate(int length) {
+      while (size > 0 && starts[size - 1] >= length) {
+        size--;
+      }
+    }
+
+    boolean hasValue() {
+      for (int i = 0; i < size; i++) {
+        if (values[i] != null) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
@@ -24,6 +24,7 @@ import com.google.common.base.Preconditions;
 import org.waveprotocol.box.common.Receiver;
 import org.waveprotocol.box.server.waveserver.DeltaStore;
 import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
+import org.waveprotocol.wave.model.document.operation.DocInitialization;
 import org.waveprotocol.wave.model.document.util.EmptyDocument;
 import org.waveprotocol.wave.model.id.IdUtil;
 import org.waveprotocol.wave.model.id.WaveletId;
@@ -35,12 +36,14 @@ import org.waveprotocol.wave.model.schema.SchemaCollection;
 import org.waveprotocol.wave.model.version.HashedVersion;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.model.wave.data.BlipData;
+import org.waveprotocol.wave.model.wave.data.DocumentFactory;
+import org.waveprotocol.wave.model.wave.data.DocumentOperationSink;
 import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
+import org.waveprotocol.wave.model.wave.data.ReadableBlipData;
 import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 import org.waveprotocol.wave.model.wave.data.WaveViewData;
 import org.waveprotocol.wave.model.wave.data.WaveletData;
 import org.waveprotocol.wave.model.wave.data.impl.EmptyWaveletSnapshot;
-import org.waveprotocol.wave.model.wave.data.impl.ObservablePluggableMutableDocument;
 import org.waveprotocol.wave.model.wave.data.impl.WaveletDataImpl;
 
 import java.io.IOException;
@@ -59,9 +62,30 @@ import javax.annotation.Nullable;
 public final class WaveletDataUtil {
 
   // TODO(ljvderijk): Schemas should be enforced, see issue 109.
+  // Server snapshots only apply deltas and serve their content, so documents
+  // stay packed until something asks for a DOM view of them.
+  private static final DocumentFactory<CompactDocument> CONTENT_FACTORY =
+      CompactDocument.createFactory(SchemaCollection.empty());
+
   private static final ObservableWaveletData.Factory<?> WAVELET_FACTORY =
-      WaveletDataImpl.Factory.create(
-          ObservablePluggableMutableDocument.createFactory(SchemaCollection.empty()));
+      WaveletDataImpl.Factory.create(CONTENT_FACTORY);
+
+  /**
+   * Content factory of a shared copy, which hands out the next shared document
+   * once and otherwise creates documents like {@link #CONTENT_FACTORY}.
+   */
+  private static final class SharingDocumentFactory
+      implements DocumentFactory<DocumentOperationSink> {
+    private DocumentOperationSink next;
+
+    @Override
+    public DocumentOperationSink create(WaveletId waveletId, String docId,
+        DocInitialization content) {
+      DocumentOperationSink document = next;
+      next = null;
+      return document != null ? document : CONTENT_FACTORY.create(waveletId, docId, content);
+    }
+  }
 
   private WaveletDataUtil() {
   }
@@ -231,6 +255,37 @@ public final class WaveletDataUtil {
     return WAVELET_FACTORY.create(wavelet);
   }
 
+  /**
+   * Copies a wavelet without copying the content of its documents. Documents
+   * still held packed share their content with the source, and each side only
+   * builds new content for the documents later operations touch; other
+   * documents are copied as {@link #copyWavelet} does. This makes the copy
+   * cost proportional to the number of documents rather than their size.
+   *
+   * @param wavelet the wavelet to copy.
+   * @return A mutable copy.
+   */
+  public static ObservableWaveletData copyWaveletShared(ReadableWaveletData wavelet) {
+    SharingDocumentFactory contentFactory = new SharingDocumentFactory();
+    WaveletDataImpl copy = new WaveletDataImpl(wavelet.getWaveletId(), wavelet.getCreator(),
+        wavelet.getCreationTime(), wavelet.getVersion(), wavelet.getHashedVersion(),
+        wavelet.getLastModifiedTime(), wavelet.getWaveId(), contentFactory);
+    for (ParticipantId participant : wavelet.getParticipants()) {
+      copy.addParticipant(participant);
+    }
+    for (String docId : wavelet.getDocumentIds()) {
+      ReadableBlipData blip = wavelet.getDocument(docId);
+      DocumentOperationSink content = blip.getContent();
+      CompactDocument shared =
+          content instanceof CompactDocument ? ((CompactDocument) content).copy() : null;
+      contentFactory.next = shared;
+      copy.createDocument(docId, blip.getAuthor(), blip.getContributors(),
+          shared != null ? EmptyDocument.EMPTY_DOCUMENT : content.asOperation(),
+          blip.getLastModifiedTime(), blip.getLastModifiedVersion());
+    }
+    return copy;
+  }
+
   /**
    * Adds an empty blip to the given wavelet.
    *
@@ -86,21 +86,23 @@ public abstract class AbstractSearchProviderImpl implements SearchProvider {
     for (WaveId waveId : currentUserWavesView.keySet()) {
       Set<WaveletId> waveletIds = currentUserWavesView.get(waveId);
       WaveViewData view = buildWaveViewData(waveId, waveletIds, matchesFunction, waveMap);
-      Iterable<? extends ObservableWaveletData> wavelets = view.getWavelets();
-      boolean hasConversation = false;
-      for (ObservableWaveletData waveletData : wavelets) {
-        if (IdUtil.isConversationalId(waveletData.getWaveletId())) {
-          hasConversation = true;
-          break;
-        }
-      }
-      if ((view != null) && hasConversation) {
+      if (hasConversation(view)) {
         results.put(waveId, view);
       }
     }
     return results;
   }
 
+  /** Returns true if the view contains a conversational wavelet. */
+  protected static boolean hasConversation(WaveViewData view) {
+    for (ObservableWaveletData waveletData : view.getWavelets()) {
+      if (IdUtil.isConversationalId(waveletData.getWaveletId())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   public static WaveViewData buildWaveViewData(WaveId waveId, Set<WaveletId> waveletIds,
       Function<ReadableWaveletData, Boolean> matchesFunction, WaveMap waveMap) {
 
@@ -0,0 +1,321 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.typesafe.config.Config;
+
+import org.waveprotocol.box.common.Receiver;
+import org.waveprotocol.box.server.stat.Counter;
+import org.waveprotocol.box.server.stat.MetricsRegistry;
+import org.waveprotocol.wave.model.id.WaveletName;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Server-wide cache of persisted deltas, shared by all wavelets, for the
+ * history reads of {@link DeltaStoreBasedWaveletState} once the deltas have
+ * been flushed from the wavelet state.
+ *
+ * The cache is bounded by an estimate of the memory taken by the deltas and
+ * evicts the least recently used deltas first, within each of its segments.
+ * The cached versions of each wavelet are also indexed by wavelet, so the
+ * deltas of a wavelet can be dropped without scanning the whole cache.
+ */
+@Singleton
+public class DeltaCache {
+
+  /** Estimated memory of a delta besides its serialized applied delta. */
+  private static final int DELTA_OVERHEAD_BYTES = 256;
+
+  /** Estimated memory of the wavelet index entry of a delta. */
+  private static final int INDEX_OVERHEAD_BYTES = 96;
+
+  private static final Counter HITS = MetricsRegistry.getInstance()
+      .counter("delta_cache_hits_total", "Delta history reads served by the delta cache");
+  private static final Counter MISSES = MetricsRegistry.getInstance()
+      .counter("delta_cache_misses_total", "Delta history reads which went to the delta store");
+
+  /** Key of a delta: its wavelet and the version it was applied at. */
+  private static final class Key {
+    private final WaveletName waveletName;
+    private final long version;
+
+    Key(WaveletName waveletName, long version) {
+      this.waveletName = waveletName;
+      this.version = version;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return version == other.version && waveletName.equals(other.waveletName);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(waveletName, version);
+    }
+  }
+
+  /**
+   * A cached delta. Every put caches a new entry, so the index can tell an
+   * evicted entry from a newer entry of the same key.
+   */
+  private static final class Entry {
+    private final WaveletDeltaRecord delta;
+
+    Entry(WaveletDeltaRecord delta) {
+      this.delta = delta;
+    }
+  }
+
+  /**
+   * Weighs a delta by the size of its serialized applied delta, counted
+   * twice for the transformed delta, plus fixed overheads for the cache and
+   * the wavelet index.
+   */
+  private static final Weigher<Key, Entry> WEIGHER =
+      new Weigher<Key, Entry>() {
+        @Override
+        public int weigh(Key key, Entry entry) {
+          return 3 * entry.delta.getAppliedDelta().getByteString().size() + DELTA_OVERHEAD_BYTES
+              + INDEX_OVERHEAD_BYTES;
+        }
+      };
+
+  /** Removes the entries which leave the cache from the wavelet index. */
+  private final RemovalListener<Key, Entry> unindexer = new RemovalListener<Key, Entry>() {
+    @Override
+    public void onRemoval(RemovalNotification<Key, Entry> notification) {
+      Key key = notification.getKey();
+      Map<Long, Entry> versions = index.get(key.waveletName);
+      if (versions != null) {
+        synchronized (versions) {
+          if (versions.get(key.version) == notification.getValue()) {
+            versions.remove(key.version);
+          }
+          if (versions.isEmpty()) {
+            index.remove(key.waveletName, versions);
+          }
+        }
+      }
+    }
+  };
+
+  /**
+   * The cached entries of each wavelet by version. A version map is only
+   * accessed while holding its lock, and is removed from the index when it
+   * becomes empty.
+   */
+  private final ConcurrentMap<WaveletName, Map<Long, Entry>> index =
+      new ConcurrentHashMap<WaveletName, Map<Long, Entry>>();
+
+  /** The cached deltas, or null if the cache is disabled. */
+  private final Cache<Key, Entry> deltas;
+
+  @Inject
+  public DeltaCache(Config config) {
+    this(config.getLong("core.delta_cache_size_mb") * 1024 * 1024);
+  }
+
+  /**
+   * @param maxBytes estimated memory budget of the cached deltas, or 0 to
+   *        disable the cache
+   */
+  @VisibleForTesting
+  public DeltaCache(long maxBytes) {
+    this.deltas = maxBytes > 0
+        ? CacheBuilder.newBuilder().maximumWeight(maxBytes).weigher(WEIGHER)
+            .removalListener(unindexer).recordStats().<Key, Entry>build()
+        : null;
+  }
+
+  /**
+   * @return the cached delta of a wavelet applied at a version, or null.
+   */
+  public WaveletDeltaRecord get(WaveletName waveletName, long version) {
+    if (deltas == null) {
+      return null;
+    }
+    Entry entry = deltas.getIfPresent(new Key(waveletName, version));
+    return entry != null ? entry.delta : null;
+  }
+
+  /**
+   * Caches persisted deltas of a wavelet.
+   */
+  public void putAll(WaveletName waveletName, Collection<WaveletDeltaRecord> records) {
+    if (deltas != null) {
+      for (WaveletDeltaRecord record : records) {
+        cache(new Key(waveletName, record.getAppliedAtVersion().getVersion()), record);
+      }
+    }
+  }
+
+  /**
+   * Indexes a delta under its wavelet, then caches it. The delta is cached
+   * outside the index lock, as caching runs the unindexer of evicted deltas,
+   * so it is dropped again if the wavelet was invalidated meanwhile.
+   */
+  private void cache(Key key, WaveletDeltaRecord delta) {
+    Entry entry = new Entry(delta);
+    Map<Long, Entry> versions;
+    while (true) {
+      versions = index.get(key.waveletName);
+      if (versions == null) {
+        Map<Long, Entry> created = new HashMap<Long, Entry>();
+        versions = index.putIfAbsent(key.waveletName, created);
+        if (versions == null) {
+          versions = created;
+        }
+      }
+      synchronized (versions) {
+        // Retry if the map emptied and was dropped from the index meanwhile.
+        if (index.get(key.waveletName) == versions) {
+          versions.put(key.version, entry);
+          break;
+        }
+      }
+    }
+    deltas.put(key, entry);
+    boolean unindexed;
+    synchronized (versions) {
+      unindexed = index.get(key.waveletName) != versions || versions.get(key.version) != entry;
+    }
+    if (unindexed) {
+      deltas.asMap().remove(key, entry);
+    }
+  }
+
+  /**
+   * Drops the cached deltas of a wavelet, e.g. when it is deleted.
+   */
+  public void invalidate(WaveletName waveletName) {
+    if (deltas != null) {
+      Map<Long, Entry> versions = index.remove(waveletName);
+      if (versions != null) {
+        List<Key> keys = new ArrayList<Key>();
+        synchronized (versions) {
+          for (Long version : versions.keySet()) {
+            keys.add(new Key(waveletName, version));
+          }
+        }
+        deltas.invalidateAll(keys);
+      }
+    }
+  }
+
+  /**
+   * Wraps a delta reader so its delta reads go through this cache. A range
+   * read is served from the cache up to the first missing delta, and the rest
+   * of the range is read from the wrapped reader at once.
+   */
+  public WaveletDeltaRecordReader cachingReader(final WaveletDeltaRecordReader reader) {
+    if (deltas == null) {
+      return reader;
+    }
+    return new ForwardingWaveletDeltaRecordReader() {
+      @Override
+      protected WaveletDeltaRecordReader delegate() {
+        return reader;
+      }
+
+      @Override
+      public WaveletDeltaRecord getDelta(long version) throws IOException {
+        Key key = new Key(reader.getWaveletName(), version);
+        Entry entry = deltas.getIfPresent(key);
+        if (entry != null) {
+          HITS.inc();
+          return entry.delta;
+        }
+        MISSES.inc();
+        WaveletDeltaRecord delta = reader.getDelta(version);
+        if (delta != null) {
+          cache(key, delta);
+        }
+        return delta;
+      }
+
+      @Override
+      public long getDeltasInRange(long startVersion, long endVersion,
+          final Receiver<WaveletDeltaRecord> receiver) throws IOException {
+        long count = 0;
+        long version = startVersion;
+        Entry entry;
+        while (version < endVersion
+            && (entry = deltas.getIfPresent(new Key(reader.getWaveletName(), version))) != null) {
+          HITS.inc();
+          count++;
+          if (!receiver.put(entry.delta)) {
+            return count;
+          }
+          version = entry.delta.getResultingVersion().getVersion();
+        }
+        if (version >= endVersion) {
+          return count;
+        }
+        return count + reader.getDeltasInRange(version, endVersion,
+            new Receiver<WaveletDeltaRecord>() {
+              @Override
+              public boolean put(WaveletDeltaRecord delta) {
+                MISSES.inc();
+                cache(new Key(reader.getWaveletName(), delta.getAppliedAtVersion().getVersion()),
+                    delta);
+                return receiver.put(delta);
+              }
+            });
+      }
+    };
+  }
+
+  /**
+   * @return the number of cached deltas.
+   */
+  public long size() {
+    return deltas != null ? deltas.size() : 0;
+  }
+
+  /**
+   * @return the hit, miss and eviction counts of the cache.
+   */
+  public CacheStats stats() {
+    return deltas != null ? deltas.stats() : new CacheStats(0, 0, 0, 0, 0, 0);
+  }
+}
@@ -0,0 +1,214 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.typesafe.config.Config;
+
+import org.waveprotocol.box.server.executor.ExecutorAnnotations.DeltaGroupCommitExecutor;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.box.server.waveserver.DeltaStore.DeltasAccess;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Groups the delta appends of many wavelets into a single write to the delta
+ * store.
+ *
+ * Appends are collected for a short window, or until enough deltas are
+ * waiting, and then written together: with one call to
+ * {@link GroupCommitDeltaStore#appendAll(Map)} if the store supports it,
+ * otherwise one wavelet after the other. The futures of the appends of a
+ * group complete when the group has been written, so persisting the deltas of
+ * a wavelet doesn't hold a thread while waiting for the disk.
+ *
+ * A window of 0 disables grouping, deltas are then appended on the calling
+ * thread.
+ */
+@Singleton
+public class DeltaGroupCommitter {
+
+  private static final Log LOG = Log.get(DeltaGroupCommitter.class);
+
+  /** An append waiting to be written. */
+  private static final class PendingAppend {
+    final DeltasAccess access;
+    final Collection<WaveletDeltaRecord> deltas;
+    final SettableFuture<Void> future = SettableFuture.create();
+
+    PendingAppend(DeltasAccess access, Collection<WaveletDeltaRecord> deltas) {
+      this.access = access;
+      this.deltas = deltas;
+    }
+  }
+
+  private final DeltaStore store;
+  private final ScheduledExecutorService executor;
+  private final long windowMs;
+  private final int maxDeltas;
+
+  private final Object lock = new Object();
+
+  /** Appends of the group being collected. Guarded by lock. */
+  private List<PendingAppend> pending = new ArrayList<PendingAppend>();
+
+  /** Number of deltas in the pending appends. Guarded by lock. */
+  private int pendingDeltas = 0;
+
+  /** Whether a write of the pending appends is scheduled. Guarded by lock. */
+  private boolean flushScheduled = false;
+
+  private final Runnable flushTask = new Runnable() {
+    @Override
+    public void run() {
+      List<PendingAppend> group;
+      synchronized (lock) {
+        flushScheduled = false;
+        group = takePending();
+      }
+      commit(group);
+    }
+  };
+
+  @Inject
+  public DeltaGroupCommitter(DeltaStore store,
+      @DeltaGroupCommitExecutor ScheduledExecutorService executor, Config config) {
+    this(store, executor, config.getLong("core.delta_group_commit_window_ms"), config
+        .getInt("core.delta_group_commit_max_deltas"));
+  }
+
+  /**
+   * @param store the delta store the deltas are appended to
+   * @param executor executor writing the groups
+   * @param windowMs time to wait for more appends before writing a group, or 0
+   *        to append the deltas on the calling thread
+   * @param maxDeltas number of waiting deltas which triggers the write of a
+   *        group before the window ends
+   */
+  public DeltaGroupCommitter(DeltaStore store, ScheduledExecutorService executor, long windowMs,
+      int maxDeltas) {
+    Preconditions.checkArgument(windowMs >= 0, "Negative group commit window");
+    Preconditions.checkArgument(maxDeltas > 0, "Group commit size must be positive");
+    this.store = store;
+    this.executor = executor;
+    this.windowMs = windowMs;
+    this.maxDeltas = maxDeltas;
+  }
+
+  /**
+   * Appends deltas to the history of a wavelet along with the deltas of other
+   * wavelets. Only one append per wavelet may be waiting at any time.
+   *
+   * @param access the delta history, opened on the store of this committer
+   * @param deltas contiguous deltas, see {@link DeltasAccess#append(Collection)}
+   * @return a future which completes once the deltas have been durably
+   *         stored, or fails with the {@link PersistenceException} of the
+   *         store.
+   */
+  public ListenableFuture<Void> append(DeltasAccess access,
+      Collection<WaveletDeltaRecord> deltas) {
+    if (windowMs == 0) {
+      try {
+        access.append(deltas);
+        return Futures.immediateFuture(null);
+      } catch (PersistenceException e) {
+        return Futures.immediateFailedFuture(e);
+      }
+    }
+
+    PendingAppend append = new PendingAppend(access, deltas);
+    List<PendingAppend> full = null;
+    synchronized (lock) {
+      pending.add(append);
+      pendingDeltas += deltas.size();
+      if (pendingDeltas >= maxDeltas) {
+        full = takePending();
+      } else if (!flushScheduled) {
+        flushScheduled = true;
+        executor.schedule(flushTask, windowMs, TimeUnit.MILLISECONDS);
+      }
+    }
+    if (full != null) {
+      final List<PendingAppend> group = full;
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          commit(group);
+        }
+      });
+    }
+    return append.future;
+  }
+
+  private List<PendingAppend> takePending() {
+    List<PendingAppend> group = pending;
+    pending = new ArrayList<PendingAppend>();
+    pendingDeltas = 0;
+    return group;
+  }
+
+  /**
+   * Writes a group of appends and completes their futures.
+   */
+  private void commit(List<PendingAppend> group) {
+    if (group.isEmpty()) return;
+
+    if (group.size() > 1 && store instanceof GroupCommitDeltaStore) {
+      Map<DeltasAccess, Collection<WaveletDeltaRecord>> deltas =
+          new LinkedHashMap<DeltasAccess, Collection<WaveletDeltaRecord>>();
+      for (PendingAppend append : group) {
+        deltas.put(append.access, append.deltas);
+      }
+      try {
+        ((GroupCommitDeltaStore) store).appendAll(deltas);
+      } catch (PersistenceException | RuntimeException e) {
+        LOG.warning("Failed to append a group of deltas of " + group.size() + " wavelets", e);
+        for (PendingAppend append : group) {
+          append.future.setException(e);
+        }
+        return;
+      }
+      for (PendingAppend append : group) {
+        append.future.set(null);
+      }
+    } else {
+      for (PendingAppend append : group) {
+        try {
+          append.access.append(append.deltas);
+          append.future.set(null);
+        } catch (PersistenceException | RuntimeException e) {
+          append.future.setException(e);
+        }
+      }
+    }
+  }
+}
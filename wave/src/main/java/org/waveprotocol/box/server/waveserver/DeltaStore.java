@@ -20,6 +20,8 @@
 package org.waveprotocol.box.server.waveserver;
 
 import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 
 import java.io.Closeable;
 import java.util.Collection;
@@ -50,5 +52,28 @@ public interface DeltaStore extends WaveletStore<DeltaStore.DeltasAccess> {
      *         storage.
      */
     void append(Collection<WaveletDeltaRecord> deltas) throws PersistenceException;
+
+    /**
+     * Reads the most recent snapshot checkpoint stored with
+     * {@link #storeSnapshot(ReadableWaveletData)}.
+     *
+     * @return a new mutable copy of the latest checkpoint, or null if no
+     *         checkpoint has been stored for the wavelet.
+     * @throws PersistenceException if anything goes wrong with the underlying
+     *         storage.
+     */
+    ObservableWaveletData loadSnapshot() throws PersistenceException;
+
+    /**
+     * Blocking call to store a snapshot checkpoint of the wavelet, replacing
+     * any previous one. Checkpoints let the wavelet state be restored without
+     * replaying the delta history from version zero.
+     *
+     * @param snapshot the state of the wavelet at a delta boundary which has
+     *        already been durably appended to this delta history.
+     * @throws PersistenceException if anything goes wrong with the underlying
+     *         storage.
+     */
+    void storeSnapshot(ReadableWaveletData snapshot) throws PersistenceException;
   }
 }
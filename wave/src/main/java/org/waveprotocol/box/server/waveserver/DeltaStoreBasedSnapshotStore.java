@@ -33,6 +33,7 @@ import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.operation.OperationException;
 import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
 import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
 import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 
 import java.io.IOException;
@@ -52,10 +53,11 @@ class DeltaStoreBasedSnapshotStore implements DeltaAndSnapshotStore {
   private static class TransformedWaveletDeltaIterator
       implements Iterator<TransformedWaveletDelta> {
     private final WaveletDeltaRecordReader reader;
-    private long nextVersion = 0;
+    private long nextVersion;
 
-    public TransformedWaveletDeltaIterator(WaveletDeltaRecordReader reader) {
+    public TransformedWaveletDeltaIterator(WaveletDeltaRecordReader reader, long startVersion) {
       this.reader = reader;
+      this.nextVersion = startVersion;
     }
 
     @Override
@@ -94,24 +96,49 @@ class DeltaStoreBasedSnapshotStore implements DeltaAndSnapshotStore {
 
   /**
    * Reads all deltas and applies them all to construct the end wavelet state.
+   * If the reader has a snapshot checkpoint on its history, only the deltas
+   * after the checkpoint are applied to it.
    */
-  private static ReadableWaveletData buildWaveletFromDeltaReader(WaveletDeltaRecordReader reader)
-      throws PersistenceException {
+  private static ReadableWaveletData buildWaveletFromDeltaReader(
+      DeltaStore.DeltasAccess reader) throws PersistenceException {
     try {
       // TODO(soren): better error handling of IllegalStateExceptions and
       // OperationExceptions thrown from here
-      ReadableWaveletData wavelet =
-          WaveletDataUtil.buildWaveletFromDeltas(reader.getWaveletName(),
-              new TransformedWaveletDeltaIterator(reader));
+      ObservableWaveletData wavelet = reader.loadSnapshot();
+      if (wavelet != null && !isOnDeltaBoundary(reader, wavelet.getHashedVersion())) {
+        wavelet = null;
+      }
+      if (wavelet == null) {
+        wavelet = WaveletDataUtil.buildWaveletFromDeltas(reader.getWaveletName(),
+            new TransformedWaveletDeltaIterator(reader, 0));
+      } else {
+        Iterator<TransformedWaveletDelta> deltas =
+            new TransformedWaveletDeltaIterator(reader, wavelet.getVersion());
+        while (deltas.hasNext()) {
+          WaveletDataUtil.applyWaveletDelta(deltas.next(), wavelet);
+        }
+      }
       Preconditions.checkState(wavelet.getHashedVersion().equals(reader.getEndVersion()));
       return wavelet;
     } catch (OperationException e) {
       throw new PersistenceException(e);
+    } catch (IOException e) {
+      throw new PersistenceException(e);
     } catch (RuntimeIOException e) {
       throw new PersistenceException(e.getIOException());
     }
   }
 
+  /**
+   * @return true if the hashed version is the end version of the reader or the
+   *         version a stored delta was applied at
+   */
+  private static boolean isOnDeltaBoundary(WaveletDeltaRecordReader reader,
+      HashedVersion version) throws IOException {
+    return version.equals(reader.getEndVersion())
+        || version.equals(reader.getAppliedAtVersion(version.getVersion()));
+  }
+
   /**
    * Creates a {@link DeltaAndSnapshotStore.WaveletAccess} instance which wraps
    * {@code deltasAccess}.
@@ -191,15 +218,24 @@ class DeltaStoreBasedSnapshotStore implements DeltaAndSnapshotStore {
   }
 
   private final DeltaStore deltaStore;
+  private final DeltaCache deltaCache;
 
   /**
    * Constructs a {@link DeltaAndSnapshotStore} instance which wraps {@code deltaStore}.
    *
    * @param deltaStore The underlying {@link DeltaStore}.
    */
-  @Inject
   public DeltaStoreBasedSnapshotStore(DeltaStore deltaStore) {
+    this(deltaStore, null);
+  }
+
+  /**
+   * @param deltaCache the delta cache to drop deleted wavelets from, or null
+   */
+  @Inject
+  public DeltaStoreBasedSnapshotStore(DeltaStore deltaStore, DeltaCache deltaCache) {
     this.deltaStore = deltaStore;
+    this.deltaCache = deltaCache;
   }
 
   @Override
@@ -211,6 +247,9 @@ class DeltaStoreBasedSnapshotStore implements DeltaAndSnapshotStore {
   public void delete(WaveletName waveletName) throws PersistenceException,
       FileNotFoundPersistenceException {
     deltaStore.delete(waveletName);
+    if (deltaCache != null) {
+      deltaCache.invalidate(waveletName);
+    }
   }
 
   @Override
@@ -26,12 +26,17 @@ import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.SettableFuture;
 
 import org.waveprotocol.box.common.ListReceiver;
 import org.waveprotocol.box.common.Receiver;
 import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.box.server.stat.Counter;
+import org.waveprotocol.box.server.stat.LatencyHistogram;
+import org.waveprotocol.box.server.stat.MetricsRegistry;
 import org.waveprotocol.box.server.util.WaveletDataUtil;
 import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
 import org.waveprotocol.wave.model.id.IdURIEncoderDecoder;
@@ -47,11 +52,9 @@ import org.waveprotocol.wave.util.escapers.jvm.JavaUrlCodec;
 import org.waveprotocol.wave.util.logging.Log;
 
 import java.io.IOException;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.Executor;
@@ -61,9 +64,9 @@ import java.util.concurrent.atomic.AtomicReference;
  * Simplistic {@link DeltaStore}-backed wavelet state implementation
  * which goes to persistent storage for every history request.
  *
- * TODO(soren): rewire this class to be backed by {@link WaveletStore} and
- * read the snapshot from there instead of computing it in the
- * DeltaStoreBasedWaveletState constructor.
+ * The snapshot is restored from the newest checkpoint in the delta store and
+ * the deltas appended after it. New checkpoints are written by the persist
+ * task every {@code snapshotInterval} versions.
  *
  * @author soren@google.com (Soren Lassen)
  * @author akaplanov@gmail.com (Andew Kaplanov)
@@ -72,6 +75,12 @@ class DeltaStoreBasedWaveletState implements WaveletState {
 
   private static final Log LOG = Log.get(DeltaStoreBasedWaveletState.class);
 
+  private static final LatencyHistogram PERSIST_LATENCY = MetricsRegistry.getInstance()
+      .histogram("delta_persist_latency_us",
+          "Latency in microseconds of writing the deltas of a wavelet to the delta store");
+  private static final Counter PERSIST_FAILURES = MetricsRegistry.getInstance()
+      .counter("delta_persist_failures_total", "Failed writes of deltas to the delta store");
+
   private static final IdURIEncoderDecoder URI_CODEC =
       new IdURIEncoderDecoder(new JavaUrlCodec());
 
@@ -98,29 +107,85 @@ class DeltaStoreBasedWaveletState implements WaveletState {
     return (entry != null && entry.getKey().getVersion() == version) ? entry : null;
   }
 
+  /**
+   * Optional settings of a delta store based state. Instances are immutable;
+   * {@link #DEFAULTS} never writes snapshot checkpoints, appends deltas
+   * directly to the store and reads the history from the store only.
+   */
+  public static final class Options {
+    public static final Options DEFAULTS = new Options(0, null, null);
+
+    private final long snapshotInterval;
+    private final DeltaGroupCommitter groupCommitter;
+    private final DeltaCache deltaCache;
+
+    private Options(long snapshotInterval, DeltaGroupCommitter groupCommitter,
+        DeltaCache deltaCache) {
+      Preconditions.checkArgument(snapshotInterval >= 0, "negative snapshot interval");
+      this.snapshotInterval = snapshotInterval;
+      this.groupCommitter = groupCommitter;
+      this.deltaCache = deltaCache;
+    }
+
+    /**
+     * @param snapshotInterval minimum number of versions between snapshot
+     *        checkpoints written to the store, or 0 to never write checkpoints
+     */
+    public Options withSnapshotInterval(long snapshotInterval) {
+      return new Options(snapshotInterval, groupCommitter, deltaCache);
+    }
+
+    /**
+     * @param groupCommitter the group committer of the delta store, through
+     *        which deltas are persisted together with those of other
+     *        wavelets, or null to append the deltas directly
+     */
+    public Options withGroupCommitter(DeltaGroupCommitter groupCommitter) {
+      return new Options(snapshotInterval, groupCommitter, deltaCache);
+    }
+
+    /**
+     * @param deltaCache the server-wide delta cache which history reads go
+     *        through, or null to read the history from the store only
+     */
+    public Options withDeltaCache(DeltaCache deltaCache) {
+      return new Options(snapshotInterval, groupCommitter, deltaCache);
+    }
+  }
+
   /**
    * Creates a new delta store based state.
    *
+   * The state is restored from the newest snapshot checkpoint in the store, if
+   * any, replaying only the deltas after it. Otherwise the whole delta history
+   * is replayed.
+   *
    * The executor must ensure that only one thread executes at any time for each
    * state instance.
    *
    * @param deltasAccess delta store accessor
    * @param persistExecutor executor for making persistence calls
+   * @param options checkpoint, group commit and cache settings
    * @return a state initialized from the deltas
    * @throws PersistenceException if a failure occurs while reading or
    *         processing stored deltas
    */
   public static DeltaStoreBasedWaveletState create(DeltaStore.DeltasAccess deltasAccess,
-      Executor persistExecutor) throws PersistenceException {
+      Executor persistExecutor, Options options) throws PersistenceException {
     if (deltasAccess.isEmpty()) {
-      return new DeltaStoreBasedWaveletState(deltasAccess, ImmutableList.<WaveletDeltaRecord>of(),
-          null, persistExecutor);
+      return new DeltaStoreBasedWaveletState(deltasAccess, null, persistExecutor, options);
     } else {
       try {
-        ImmutableList<WaveletDeltaRecord> deltas = readAll(deltasAccess, null);
-        WaveletData snapshot = WaveletDataUtil.buildWaveletFromDeltas(deltasAccess.getWaveletName(),
-            Iterators.transform(deltas.iterator(), TRANSFORMED));
-        return new DeltaStoreBasedWaveletState(deltasAccess, deltas, snapshot, persistExecutor);
+        WaveletData snapshot = loadCheckpoint(deltasAccess);
+        if (snapshot == null) {
+          ImmutableList<WaveletDeltaRecord> deltas = readAll(deltasAccess, null);
+          snapshot = WaveletDataUtil.buildWaveletFromDeltas(deltasAccess.getWaveletName(),
+              Iterators.transform(deltas.iterator(), TRANSFORMED));
+        } else if (snapshot.getVersion() < deltasAccess.getEndVersion().getVersion()) {
+          applyDeltasInRange(deltasAccess, snapshot.getHashedVersion(),
+              deltasAccess.getEndVersion(), snapshot);
+        }
+        return new DeltaStoreBasedWaveletState(deltasAccess, snapshot, persistExecutor, options);
       } catch (IOException e) {
         throw new PersistenceException("Failed to read stored deltas", e);
       } catch (OperationException e) {
@@ -129,6 +194,62 @@ class DeltaStoreBasedWaveletState implements WaveletState {
     }
   }
 
+  /**
+   * Reads the newest snapshot checkpoint of a non-empty delta history.
+   *
+   * @return the checkpoint, or null if there is none or it doesn't match a
+   *         delta boundary of the stored history
+   */
+  private static WaveletData loadCheckpoint(DeltaStore.DeltasAccess deltasAccess)
+      throws IOException {
+    WaveletData snapshot;
+    try {
+      snapshot = deltasAccess.loadSnapshot();
+    } catch (PersistenceException e) {
+      LOG.warning("Failed to load snapshot checkpoint of " + deltasAccess.getWaveletName()
+          + ", replaying all deltas", e);
+      return null;
+    }
+    if (snapshot == null) {
+      return null;
+    }
+    HashedVersion version = snapshot.getHashedVersion();
+    HashedVersion endVersion = deltasAccess.getEndVersion();
+    boolean valid = version.getVersion() < endVersion.getVersion()
+        ? version.equals(deltasAccess.getAppliedAtVersion(version.getVersion()))
+        : version.equals(endVersion);
+    if (!valid) {
+      LOG.warning("Snapshot checkpoint of " + deltasAccess.getWaveletName() + " at " + version
+          + " doesn't match the stored deltas, replaying all deltas");
+      return null;
+    }
+    return snapshot;
+  }
+
+  /**
+   * Applies the stored deltas in the given range to a snapshot.
+   */
+  private static void applyDeltasInRange(WaveletDeltaRecordReader reader,
+      HashedVersion startVersion, HashedVersion endVersion, final WaveletData snapshot)
+      throws IOException, OperationException {
+    final AtomicReference<OperationException> failure = new AtomicReference<OperationException>();
+    readDeltasInRange(reader, null, startVersion, endVersion, new Receiver<WaveletDeltaRecord>() {
+      @Override
+      public boolean put(WaveletDeltaRecord delta) {
+        try {
+          WaveletDataUtil.applyWaveletDelta(delta.getTransformedDelta(), snapshot);
+          return true;
+        } catch (OperationException e) {
+          failure.set(e);
+          return false;
+        }
+      }
+    });
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+  }
+
   /**
    * Reads all deltas from persistent storage.
    */
@@ -142,47 +263,90 @@ class DeltaStoreBasedWaveletState implements WaveletState {
     return ImmutableList.copyOf(receiver);
   }
 
+  /**
+   * Reads the deltas from startVersion to endVersion. Deltas not persisted
+   * yet are taken from the cached deltas, and each run of persisted deltas is
+   * fetched with a single range read of the store.
+   */
   private static void readDeltasInRange(WaveletDeltaRecordReader reader,
       ConcurrentNavigableMap<HashedVersion, WaveletDeltaRecord> cachedDeltas,
       HashedVersion startVersion, HashedVersion endVersion, Receiver<WaveletDeltaRecord> receiver)
       throws IOException {
-    WaveletDeltaRecord delta = getDelta(reader, cachedDeltas, startVersion);
-    Preconditions.checkArgument(delta != null && delta.getAppliedAtVersion().equals(startVersion),
-        "invalid start version");
-    for (;;) {
-      if (!receiver.put(delta)) {
-        return;
-      }
-      if (delta.getResultingVersion().getVersion() >= endVersion.getVersion()) {
-        break;
-      }
-      delta = getDelta(reader, cachedDeltas, delta.getResultingVersion());
-      if (delta == null) {
+    DeltaChain chain = new DeltaChain(startVersion, endVersion, receiver);
+    while (!chain.isDone()) {
+      WaveletDeltaRecord delta = cachedDeltas != null ? cachedDeltas.get(chain.next) : null;
+      if (delta != null) {
+        chain.put(delta);
+      } else if (reader.getDeltasInRange(chain.next.getVersion(), endVersion.getVersion(),
+          chain) == 0) {
         break;
       }
     }
-    Preconditions.checkArgument(delta != null && delta.getResultingVersion().equals(endVersion),
-        "invalid end version");
+    if (chain.stopped) {
+      return;
+    }
+    Preconditions.checkArgument(chain.count > 0, "invalid start version");
+    Preconditions.checkArgument(chain.next.equals(endVersion), "invalid end version");
   }
 
-  private static WaveletDeltaRecord getDelta(WaveletDeltaRecordReader reader,
-      ConcurrentNavigableMap<HashedVersion, WaveletDeltaRecord> cachedDeltas,
-      HashedVersion version) throws IOException {
-
-    WaveletDeltaRecord delta = null;
-
-    // try cache first!
-    if (cachedDeltas != null)
-      delta = cachedDeltas.get(version);
+  /**
+   * Passes on deltas to a receiver as long as each one is applied at the
+   * resulting version of the previous one, up to an end version.
+   */
+  private static final class DeltaChain implements Receiver<WaveletDeltaRecord> {
+    private final HashedVersion endVersion;
+    private final Receiver<WaveletDeltaRecord> receiver;
+
+    /** The version the next delta of the chain is applied at */
+    HashedVersion next;
+    /** Number of deltas passed on */
+    int count;
+    /** Whether a delta didn't continue the chain */
+    boolean broken;
+    /** Whether the receiver asked for no more deltas */
+    boolean stopped;
+
+    DeltaChain(HashedVersion startVersion, HashedVersion endVersion,
+        Receiver<WaveletDeltaRecord> receiver) {
+      this.next = startVersion;
+      this.endVersion = endVersion;
+      this.receiver = receiver;
+    }
 
-    if (delta == null) delta = reader.getDelta(version.getVersion());
+    boolean isDone() {
+      return broken || stopped || next.getVersion() >= endVersion.getVersion();
+    }
 
-    return delta;
+    @Override
+    public boolean put(WaveletDeltaRecord delta) {
+      if (isDone()) {
+        return false;
+      }
+      if (!delta.getAppliedAtVersion().equals(next)) {
+        broken = true;
+        return false;
+      }
+      count++;
+      next = delta.getResultingVersion();
+      if (!receiver.put(delta)) {
+        stopped = true;
+      }
+      return !isDone();
+    }
   }
 
   private final Executor persistExecutor;
   private final HashedVersion versionZero;
   private final DeltaStore.DeltasAccess deltasAccess;
+  private final long snapshotInterval;
+  private final DeltaGroupCommitter groupCommitter;
+  private final DeltaCache deltaCache;
+
+  /**
+   * Reader of the persisted delta history, through the delta cache if there
+   * is one.
+   */
+  private final WaveletDeltaRecordReader historyReader;
 
   /** The lock that guards access to persistence related state. */
   private final Object persistLock = new Object();
@@ -193,29 +357,46 @@ class DeltaStoreBasedWaveletState implements WaveletState {
    */
   private HashedVersion latestVersionToPersist = null;
 
-  /** The persist task that will be executed next. */
-  private ListenableFutureTask<Void> nextPersistTask = null;
+  /** The result of the persist task that will be executed next. */
+  private SettableFuture<Void> nextPersistResult = null;
+
+  /**
+   * Copy of the snapshot waiting to be stored as a checkpoint once the deltas
+   * up to its version have been persisted, or null. Guarded by persistLock.
+   */
+  private ReadableWaveletData pendingCheckpoint = null;
+
+  /** Version of the newest checkpoint taken. Only accessed by appendDelta(). */
+  private long lastCheckpointVersion;
 
   /**
-   * Processes the persist task and checks if there is another task to do when
-   * one task is done. In such a case, it writes all waiting to be persisted
-   * deltas to persistent storage in one operation.
+   * Writes all the deltas waiting to be persisted to persistent storage in one
+   * operation. Once they are stored, it completes its result and checks if
+   * there is another task to do.
    */
-  private final Callable<Void> persisterTask = new Callable<Void>() {
+  private final class PersistTask implements Runnable {
+    private final SettableFuture<Void> result;
+
+    PersistTask(SettableFuture<Void> result) {
+      this.result = result;
+    }
+
     @Override
-    public Void call() throws PersistenceException {
-      HashedVersion last;
-      HashedVersion version;
-      synchronized (persistLock) {
-        last = lastPersistedVersion.get();
-        version = latestVersionToPersist;
-      }
-      if (last != null && version.getVersion() <= last.getVersion()) {
-        LOG.info("Attempt to persist version " + version
-            + " smaller than last persisted version " + last);
-        // Done, version is already persisted.
-        version = last;
-      } else {
+    public void run() {
+      try {
+        final HashedVersion last;
+        HashedVersion version;
+        synchronized (persistLock) {
+          last = lastPersistedVersion.get();
+          version = latestVersionToPersist;
+        }
+        if (last != null && version.getVersion() <= last.getVersion()) {
+          LOG.info("Attempt to persist version " + version
+              + " smaller than last persisted version " + last);
+          // Done, version is already persisted.
+          done(last, last);
+          return;
+        }
         ImmutableList.Builder<WaveletDeltaRecord> deltas = ImmutableList.builder();
         HashedVersion v = (last == null) ? versionZero : last;
         do {
@@ -224,22 +405,52 @@ class DeltaStoreBasedWaveletState implements WaveletState {
           v = d.getResultingVersion();
         } while (v.getVersion() < version.getVersion());
         Preconditions.checkState(v.equals(version));
-        deltasAccess.append(deltas.build());
+
+        final HashedVersion persisted = version;
+        final ImmutableList<WaveletDeltaRecord> persistedDeltas = deltas.build();
+        final long startNanos = System.nanoTime();
+        Futures.addCallback(appendToStore(persistedDeltas), new FutureCallback<Void>() {
+          @Override
+          public void onSuccess(Void unused) {
+            PERSIST_LATENCY.recordSince(startNanos);
+            if (deltaCache != null) {
+              // Reads after the flush of these deltas hit the cache.
+              deltaCache.putAll(getWaveletName(), persistedDeltas);
+            }
+            try {
+              storeCheckpoint(persisted);
+              done(last, persisted);
+            } catch (RuntimeException e) {
+              result.setException(e);
+            }
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            PERSIST_FAILURES.inc();
+            result.setException(t);
+          }
+        }, persistExecutor);
+      } catch (RuntimeException e) {
+        result.setException(e);
       }
+    }
+
+    private void done(HashedVersion last, HashedVersion version) {
       synchronized (persistLock) {
         Preconditions.checkState(last == lastPersistedVersion.get(),
             "lastPersistedVersion changed while we were writing to storage");
         lastPersistedVersion.set(version);
-        if (nextPersistTask != null) {
-          persistExecutor.execute(nextPersistTask);
-          nextPersistTask = null;
+        if (nextPersistResult != null) {
+          persistExecutor.execute(new PersistTask(nextPersistResult));
+          nextPersistResult = null;
         } else {
           latestVersionToPersist = null;
-          }
         }
-      return null;
+      }
+      result.set(null);
     }
-  };
+  }
 
   /** Keyed by appliedAtVersion. */
   private final ConcurrentNavigableMap<HashedVersion, ByteStringMessage<ProtocolAppliedWaveletDelta>> appliedDeltas =
@@ -261,22 +472,25 @@ class DeltaStoreBasedWaveletState implements WaveletState {
   private final AtomicReference<HashedVersion> lastPersistedVersion;
 
   /**
-   * Constructs a wavelet state with the given deltas and snapshot.
-   * The deltas must be the contents of deltasAccess, and they
-   * must be contiguous from version zero.
-   * The snapshot must be the composition of the deltas, or null if there
-   * are no deltas. The constructed object takes ownership of the
+   * Constructs a wavelet state with the given snapshot.
+   * The snapshot must be the composition of the deltas in deltasAccess, or
+   * null if there are no deltas. The constructed object takes ownership of the
    * snapshot and will mutate it if appendDelta() is called.
    */
   @VisibleForTesting
-  DeltaStoreBasedWaveletState(DeltaStore.DeltasAccess deltasAccess,
-      List<WaveletDeltaRecord> deltas, WaveletData snapshot, Executor persistExecutor) {
-    Preconditions.checkArgument(deltasAccess.isEmpty() == deltas.isEmpty());
-    Preconditions.checkArgument(deltas.isEmpty() == (snapshot == null));
+  DeltaStoreBasedWaveletState(DeltaStore.DeltasAccess deltasAccess, WaveletData snapshot,
+      Executor persistExecutor, Options options) {
+    Preconditions.checkArgument(deltasAccess.isEmpty() == (snapshot == null));
     this.persistExecutor = persistExecutor;
     this.versionZero = HASH_FACTORY.createVersionZero(deltasAccess.getWaveletName());
     this.deltasAccess = deltasAccess;
     this.snapshot = snapshot;
+    this.snapshotInterval = options.snapshotInterval;
+    this.groupCommitter = options.groupCommitter;
+    this.deltaCache = options.deltaCache;
+    this.historyReader =
+        deltaCache != null ? deltaCache.cachingReader(deltasAccess) : deltasAccess;
+    this.lastCheckpointVersion = (snapshot == null) ? 0 : snapshot.getVersion();
     this.lastPersistedVersion = new AtomicReference<HashedVersion>(deltasAccess.getEndVersion());
   }
 
@@ -371,7 +585,7 @@ class DeltaStoreBasedWaveletState implements WaveletState {
   public void getTransformedDeltaHistory(final HashedVersion startVersion,
     final HashedVersion endVersion, final Receiver<TransformedWaveletDelta> receiver) {
     try {
-      readDeltasInRange(deltasAccess, cachedDeltas, startVersion, endVersion,
+      readDeltasInRange(historyReader, cachedDeltas, startVersion, endVersion,
           new Receiver<WaveletDeltaRecord>() {
             @Override
             public boolean put(WaveletDeltaRecord delta) {
@@ -426,7 +640,7 @@ class DeltaStoreBasedWaveletState implements WaveletState {
       final Receiver<ByteStringMessage<ProtocolAppliedWaveletDelta>> receiver) {
     Preconditions.checkArgument(startVersion.getVersion() < endVersion.getVersion());
     try {
-      readDeltasInRange(deltasAccess, cachedDeltas, startVersion, endVersion, new Receiver<WaveletDeltaRecord>() {
+      readDeltasInRange(historyReader, cachedDeltas, startVersion, endVersion, new Receiver<WaveletDeltaRecord>() {
         @Override
         public boolean put(WaveletDeltaRecord delta) {
           return receiver.put(delta.getAppliedDelta());
@@ -455,6 +669,16 @@ class DeltaStoreBasedWaveletState implements WaveletState {
 
     // Now that we built the snapshot without any exceptions, we record the delta.
     cachedDeltas.put(deltaRecord.getAppliedAtVersion(), deltaRecord);
+
+    if (snapshotInterval > 0 && snapshot.getVersion() - lastCheckpointVersion >= snapshotInterval) {
+      // The snapshot is mutated by later deltas, so the checkpoint is a copy
+      // taken here rather than in the persist task.
+      ReadableWaveletData checkpoint = WaveletDataUtil.copyWaveletShared(snapshot);
+      synchronized (persistLock) {
+        pendingCheckpoint = checkpoint;
+      }
+      lastCheckpointVersion = snapshot.getVersion();
+    }
   }
 
   @Override
@@ -472,15 +696,15 @@ class DeltaStoreBasedWaveletState implements WaveletState {
         } else {
           latestVersionToPersist = version;
         }
-        if (nextPersistTask == null) {
-          nextPersistTask = ListenableFutureTask.<Void>create(persisterTask);
+        if (nextPersistResult == null) {
+          nextPersistResult = SettableFuture.create();
         }
-        return nextPersistTask;
+        return nextPersistResult;
       } else {
         latestVersionToPersist = version;
-        ListenableFutureTask<Void> resultTask = ListenableFutureTask.<Void>create(persisterTask);
-        persistExecutor.execute(resultTask);
-        return resultTask;
+        SettableFuture<Void> result = SettableFuture.create();
+        persistExecutor.execute(new PersistTask(result));
+        return result;
       }
     }
   }
@@ -497,12 +721,51 @@ class DeltaStoreBasedWaveletState implements WaveletState {
   public void close() {
   }
 
+  /**
+   * Stores the pending checkpoint if the deltas up to its version have been
+   * persisted. A failure is only logged since the deltas remain authoritative.
+   *
+   * @param persistedVersion the version up to which deltas are persisted
+   */
+  private void storeCheckpoint(HashedVersion persistedVersion) {
+    ReadableWaveletData checkpoint;
+    synchronized (persistLock) {
+      checkpoint = pendingCheckpoint;
+      if (checkpoint == null || checkpoint.getVersion() > persistedVersion.getVersion()) {
+        return;
+      }
+      pendingCheckpoint = null;
+    }
+    try {
+      deltasAccess.storeSnapshot(checkpoint);
+    } catch (PersistenceException e) {
+      LOG.warning("Failed to store snapshot checkpoint of " + getWaveletName() + " at version "
+          + checkpoint.getVersion(), e);
+    }
+  }
+
+  /**
+   * Appends deltas to the store, grouped with the deltas of other wavelets if
+   * there is a group committer.
+   */
+  private ListenableFuture<Void> appendToStore(ImmutableList<WaveletDeltaRecord> deltas) {
+    if (groupCommitter != null) {
+      return groupCommitter.append(deltasAccess, deltas);
+    }
+    try {
+      deltasAccess.append(deltas);
+      return Futures.immediateFuture(null);
+    } catch (PersistenceException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+  }
+
   /**
    * @return An entry keyed by a hashed version with the given version number,
    *         if any, otherwise null.
    */
   private WaveletDeltaRecord lookup(long version) throws IOException {
-    return deltasAccess.getDelta(version);
+    return historyReader.getDelta(version);
   }
 
   private WaveletDeltaRecord getDeltaRecordByEndVersion(HashedVersion endVersion) {
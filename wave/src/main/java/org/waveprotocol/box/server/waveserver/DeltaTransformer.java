@@ -0,0 +1,156 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.collect.Lists;
+
+import org.waveprotocol.wave.model.document.operation.DocOp;
+import org.waveprotocol.wave.model.document.operation.algorithm.DocOpCollector;
+import org.waveprotocol.wave.model.document.operation.algorithm.Transformer;
+import org.waveprotocol.wave.model.operation.OperationException;
+import org.waveprotocol.wave.model.operation.OperationPair;
+import org.waveprotocol.wave.model.operation.TransformException;
+import org.waveprotocol.wave.model.operation.wave.BlipContentOperation;
+import org.waveprotocol.wave.model.operation.wave.Transform;
+import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transforms the operations of a submitted client delta against the server
+ * operations applied since its target version.
+ */
+final class DeltaTransformer {
+
+  private DeltaTransformer() {
+  }
+
+  /**
+   * Transforms the specified client operations against the specified server operations,
+   * returning the transformed client operations in a new list.
+   *
+   * @param clientOps may be unmodifiable
+   * @param serverOps may be unmodifiable
+   * @return transformed client ops
+   */
+  static List<WaveletOperation> transformOps(List<WaveletOperation> clientOps,
+      List<WaveletOperation> serverOps) throws OperationException {
+    List<WaveletOperation> transformedClientOps = Lists.newArrayList();
+
+    for (WaveletOperation c : clientOps) {
+      for (WaveletOperation s : serverOps) {
+        OperationPair<WaveletOperation> pair;
+        try {
+          pair = Transform.transform(c, s);
+        } catch (TransformException e) {
+          throw new OperationException(e);
+        }
+        c = pair.clientOp();
+      }
+      transformedClientOps.add(c);
+    }
+    return transformedClientOps;
+  }
+
+  /**
+   * Transforms client operations against a sequence of server deltas, like
+   * calling {@link #transformOps(List, List)} for each delta in turn, but
+   * partitioned by blip.
+   *
+   * The content operations of the server deltas are composed once for each
+   * blip the client touches, and a client blip operation is transformed only
+   * against the composition for its blip. Operations on different blips have
+   * identity transforms, so they are skipped. The remaining server operations
+   * (participant changes, no-ops) are few and keep the pairwise transform.
+   *
+   * The transformed operations have the same effect as the pairwise ones,
+   * though not necessarily the same form.
+   *
+   * @param clientOps may be unmodifiable
+   * @param serverDeltas the server deltas in version order
+   * @return transformed client ops
+   */
+  static List<WaveletOperation> transformOpsByBlip(List<WaveletOperation> clientOps,
+      Iterable<? extends List<WaveletOperation>> serverDeltas) throws OperationException {
+    Map<String, DocOpCollector> clientBlips = new HashMap<String, DocOpCollector>();
+    for (WaveletOperation c : clientOps) {
+      if (c instanceof WaveletBlipOperation
+          && ((WaveletBlipOperation) c).getBlipOp() instanceof BlipContentOperation) {
+        clientBlips.put(((WaveletBlipOperation) c).getBlipId(), new DocOpCollector());
+      }
+    }
+
+    List<WaveletOperation> otherServerOps = new ArrayList<WaveletOperation>();
+    for (List<WaveletOperation> serverOps : serverDeltas) {
+      for (WaveletOperation s : serverOps) {
+        if (s instanceof WaveletBlipOperation) {
+          WaveletBlipOperation blipOp = (WaveletBlipOperation) s;
+          DocOpCollector collector = clientBlips.get(blipOp.getBlipId());
+          if (collector != null && blipOp.getBlipOp() instanceof BlipContentOperation) {
+            collector.add(((BlipContentOperation) blipOp.getBlipOp()).getContentOp());
+          }
+        } else {
+          otherServerOps.add(s);
+        }
+      }
+    }
+
+    Map<String, DocOp> serverContent = new HashMap<String, DocOp>();
+    try {
+      for (Map.Entry<String, DocOpCollector> e : clientBlips.entrySet()) {
+        if (!e.getValue().isEmpty()) {
+          serverContent.put(e.getKey(), e.getValue().composeAll());
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      throw new OperationException("Failed to compose server operations", e);
+    }
+
+    List<WaveletOperation> transformedClientOps =
+        new ArrayList<WaveletOperation>(clientOps.size());
+    try {
+      for (WaveletOperation c : clientOps) {
+        // Blip operations are left unchanged here, this only checks that
+        // their author isn't removed.
+        for (WaveletOperation s : otherServerOps) {
+          c = Transform.transform(c, s).clientOp();
+        }
+        if (c instanceof WaveletBlipOperation) {
+          WaveletBlipOperation blipOp = (WaveletBlipOperation) c;
+          DocOp serverOp = serverContent.get(blipOp.getBlipId());
+          if (serverOp != null && blipOp.getBlipOp() instanceof BlipContentOperation) {
+            BlipContentOperation contentOp = (BlipContentOperation) blipOp.getBlipOp();
+            c = new WaveletBlipOperation(blipOp.getBlipId(), new BlipContentOperation(
+                contentOp.getContext(),
+                Transformer.transform(contentOp.getContentOp(), serverOp).clientOp()));
+          }
+        }
+        transformedClientOps.add(c);
+      }
+    } catch (TransformException e) {
+      throw new OperationException(e);
+    }
+    return transformedClientOps;
+  }
+}
@@ -0,0 +1,46 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import org.waveprotocol.box.server.persistence.PersistenceException;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A delta store which can append the deltas of several wavelets in one
+ * storage operation, so they share a single durable write.
+ */
+public interface GroupCommitDeltaStore extends DeltaStore {
+
+  /**
+   * Blocking call to append deltas to the histories of several wavelets. If
+   * the call returns normally, the deltas of all the wavelets have been
+   * durably stored, otherwise none of them should be considered stored.
+   *
+   * @param deltas contiguous deltas to append to each delta history, see
+   *        {@link DeltasAccess#append(Collection)}. The accessors must have
+   *        been opened by this store.
+   * @throws PersistenceException if anything goes wrong with the underlying
+   *         storage.
+   */
+  void appendAll(Map<DeltasAccess, Collection<WaveletDeltaRecord>> deltas)
+      throws PersistenceException;
+}
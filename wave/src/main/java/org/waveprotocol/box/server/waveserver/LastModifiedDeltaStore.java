@@ -0,0 +1,44 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+
+/**
+ * A delta store which can tell how recently the wavelets of a wave were
+ * modified from its metadata, without opening their delta collections.
+ */
+public interface LastModifiedDeltaStore extends DeltaStore {
+
+  /**
+   * Returns the wavelets of a wave which have deltas, each with a value which
+   * grows with the time its last delta was appended. Values are only
+   * comparable within the same store. Only metadata is read, so it is safe to
+   * call while the wavelets are open and being appended to.
+   *
+   * @throws PersistenceException if anything goes wrong with the underlying
+   *         storage.
+   */
+  ImmutableMap<WaveletId, Long> getLastModified(WaveId waveId) throws PersistenceException;
+}
@@ -28,6 +28,7 @@ import com.google.common.util.concurrent.SettableFuture;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
+import com.typesafe.config.Config;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
@@ -40,6 +41,7 @@ import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.util.Version;
 import org.waveprotocol.box.server.CoreSettingsNames;
+import org.waveprotocol.box.server.executor.ExecutorAnnotations.IndexCommitExecutor;
 import org.waveprotocol.box.server.executor.ExecutorAnnotations.IndexExecutor;
 import org.waveprotocol.box.server.persistence.lucene.IndexDirectory;
 import org.waveprotocol.wave.model.id.WaveId;
@@ -52,7 +54,13 @@ import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -61,6 +69,13 @@ import static org.waveprotocol.box.server.waveserver.IndexFieldType.*;
 /**
  * Lucene based implementation of {@link PerUserWaveViewHandler}.
  *
+ * Changes go through the {@link NRTManager}, whose searchers are reopened in
+ * the background, so they are searchable before they are committed. By
+ * default every change is committed right away. In batched mode, the index is
+ * committed on an interval or once enough changes are uncommitted, and
+ * updates of the same wavelet arriving within the update window are indexed
+ * once.
+ *
  * @author yurize@apache.org (Yuri Zelikov)
  */
 @Singleton
@@ -112,13 +127,59 @@ public class LucenePerUserWaveViewHandlerImpl implements PerUserWaveViewHandler,
   private final Executor executor;
   private boolean isClosed = false;
 
+  /** Schedules updates and commits in batched mode, null otherwise. */
+  private final ScheduledExecutorService commitExecutor;
+  private final long updateWindowMs;
+  private final int maxUncommittedUpdates;
+  private final ScheduledFuture<?> periodicCommit;
+
+  /** Wavelet updates waiting for the update window to pass. */
+  private final ConcurrentMap<WaveletName, ListenableFutureTask<Void>> pendingUpdates =
+      new ConcurrentHashMap<WaveletName, ListenableFutureTask<Void>>();
+  private final AtomicInteger uncommittedUpdates = new AtomicInteger();
+
   @Inject
   public LucenePerUserWaveViewHandlerImpl(IndexDirectory directory,
                                           ReadableWaveletDataProvider waveletProvider,
                                           @Named(CoreSettingsNames.WAVE_SERVER_DOMAIN) String domain,
-                                          @IndexExecutor Executor executor) {
+                                          @IndexExecutor Executor executor,
+                                          @IndexCommitExecutor ScheduledExecutorService commitExecutor,
+                                          Config config) {
+    this(directory, waveletProvider, domain, executor,
+        config.getLong("core.lucene_index_commit_interval_ms") > 0 ? commitExecutor : null,
+        config.getLong("core.lucene_index_commit_interval_ms"),
+        config.getLong("core.lucene_index_update_window_ms"),
+        config.getInt("core.lucene_index_commit_max_updates"));
+  }
+
+  /**
+   * Creates a handler committing every change to the index.
+   */
+  public LucenePerUserWaveViewHandlerImpl(IndexDirectory directory,
+                                          ReadableWaveletDataProvider waveletProvider,
+                                          String domain,
+                                          Executor executor) {
+    this(directory, waveletProvider, domain, executor, null, 0, 0, 0);
+  }
+
+  /**
+   * @param commitExecutor the executor for delayed updates and periodic
+   *        commits, null to commit every change.
+   * @param commitIntervalMs the maximum time changes stay uncommitted.
+   * @param updateWindowMs the time updates of a wavelet are delayed, so the
+   *        ones arriving meanwhile are indexed once.
+   * @param maxUncommittedUpdates the number of changes which trigger a
+   *        commit before the interval.
+   */
+  LucenePerUserWaveViewHandlerImpl(IndexDirectory directory,
+      ReadableWaveletDataProvider waveletProvider, String domain, Executor executor,
+      ScheduledExecutorService commitExecutor, long commitIntervalMs, long updateWindowMs,
+      int maxUncommittedUpdates) {
     this.waveletProvider = waveletProvider;
     this.executor = executor;
+    this.commitExecutor = commitExecutor;
+    this.updateWindowMs = updateWindowMs;
+    this.maxUncommittedUpdates = maxUncommittedUpdates;
     analyzer = new StandardAnalyzer(LUCENE_VERSION);
     try {
       IndexWriterConfig indexConfig = new IndexWriterConfig(LUCENE_VERSION, analyzer);
@@ -131,6 +192,22 @@ public class LucenePerUserWaveViewHandlerImpl implements PerUserWaveViewHandler,
 
     nrtManagerReopenThread = new NRTManagerReopenThread(nrtManager, MAX_STALE_SEC, MIN_STALE_SEC);
     nrtManagerReopenThread.start();
+
+    if (commitExecutor != null) {
+      periodicCommit = commitExecutor.scheduleWithFixedDelay(new Runnable() {
+
+        @Override
+        public void run() {
+          try {
+            commit();
+          } catch (IOException | RuntimeException e) {
+            LOG.log(Level.SEVERE, "Failed to commit the Lucene index", e);
+          }
+        }
+      }, commitIntervalMs, commitIntervalMs, TimeUnit.MILLISECONDS);
+    } else {
+      periodicCommit = null;
+    }
   }
 
   /**
@@ -143,6 +220,9 @@ public class LucenePerUserWaveViewHandlerImpl implements PerUserWaveViewHandler,
       throw new AlreadyClosedException("Already closed");
     }
     isClosed = true;
+    if (periodicCommit != null) {
+      periodicCommit.cancel(false);
+    }
     try {
       nrtManager.close();
       if (analyzer != null) {
@@ -172,23 +252,7 @@ public class LucenePerUserWaveViewHandlerImpl implements PerUserWaveViewHandler,
     Preconditions.checkNotNull(waveletName);
     Preconditions.checkNotNull(participant);
 
-    ListenableFutureTask<Void> task = ListenableFutureTask.create(new Callable<Void>() {
-
-      @Override
-      public Void call() throws Exception {
-        ReadableWaveletData waveletData;
-        try {
-          waveletData = waveletProvider.getReadableWaveletData(waveletName);
-          updateIndex(waveletData);
-        } catch (WaveServerException e) {
-          LOG.log(Level.SEVERE, "Failed to update index for " + waveletName, e);
-          throw e;
-        }
-        return null;
-      }
-    });
-    executor.execute(task);
-    return task;
+    return scheduleUpdate(waveletName, "Failed to update index for ");
   }
 
   @Override
@@ -206,6 +270,7 @@ public class LucenePerUserWaveViewHandlerImpl implements PerUserWaveViewHandler,
           waveletData = waveletProvider.getReadableWaveletData(waveletName);
           try {
             removeParticipantfromIndex(waveletData, participant, nrtManager);
+            indexChanged();
           } catch (IOException e) {
             LOG.log(Level.SEVERE, "Failed to update index for " + waveletName, e);
             throw e;
@@ -225,30 +290,57 @@ public class LucenePerUserWaveViewHandlerImpl implements PerUserWaveViewHandler,
   public ListenableFuture<Void> onWaveInit(final WaveletName waveletName) {
     Preconditions.checkNotNull(waveletName);
 
+    return scheduleUpdate(waveletName, "Failed to initialize index for ");
+  }
+
+  @Override
+  public ListenableFuture<Void> onWaveUpdated(final ReadableWaveletData waveletData) {
+    // No op.
+    SettableFuture<Void> task = SettableFuture.create();
+    task.set(null);
+    return task;
+  }
+
+  /**
+   * Indexes the current state of a wavelet. In batched mode the update is
+   * delayed by the update window, and the pending update is returned to the
+   * updates of the same wavelet arriving meanwhile.
+   */
+  private ListenableFuture<Void> scheduleUpdate(final WaveletName waveletName,
+      final String errorMessage) {
     ListenableFutureTask<Void> task = ListenableFutureTask.create(new Callable<Void>() {
 
       @Override
       public Void call() throws Exception {
+        // Updates arriving from now on must read the wavelet again.
+        pendingUpdates.remove(waveletName);
         ReadableWaveletData waveletData;
         try {
           waveletData = waveletProvider.getReadableWaveletData(waveletName);
           updateIndex(waveletData);
         } catch (WaveServerException e) {
-          LOG.log(Level.SEVERE, "Failed to initialize index for " + waveletName, e);
+          LOG.log(Level.SEVERE, errorMessage + waveletName, e);
           throw e;
         }
         return null;
       }
     });
-    executor.execute(task);
-    return task;
-  }
+    if (commitExecutor == null) {
+      executor.execute(task);
+      return task;
+    }
+    ListenableFutureTask<Void> pending = pendingUpdates.putIfAbsent(waveletName, task);
+    if (pending != null) {
+      return pending;
+    }
+    final ListenableFutureTask<Void> delayedTask = task;
+    commitExecutor.schedule(new Runnable() {
 
-  @Override
-  public ListenableFuture<Void> onWaveUpdated(final ReadableWaveletData waveletData) {
-    // No op.
-    SettableFuture<Void> task = SettableFuture.create();
-    task.set(null);
+      @Override
+      public void run() {
+        executor.execute(delayedTask);
+      }
+    }, updateWindowMs, TimeUnit.MILLISECONDS);
     return task;
   }
 
@@ -258,12 +350,38 @@ public class LucenePerUserWaveViewHandlerImpl implements PerUserWaveViewHandler,
       // TODO (Yuri Z): Update documents instead of totally removing and adding.
       removeIndex(wavelet, nrtManager);
       addIndex(wavelet, nrtManager);
-      indexWriter.commit();
+      indexChanged();
     } catch (IOException e) {
       throw new IndexException(String.valueOf(wavelet.getWaveletId()), e);
     }
   }
 
+  /**
+   * Commits a change to the index, or counts it for the next commit in
+   * batched mode.
+   */
+  private void indexChanged() throws IOException {
+    if (commitExecutor == null) {
+      indexWriter.commit();
+    } else if (uncommittedUpdates.incrementAndGet() >= maxUncommittedUpdates) {
+      commit();
+    }
+  }
+
+  /** Commits the index if there are uncommitted changes. */
+  private void commit() throws IOException {
+    int uncommitted = uncommittedUpdates.getAndSet(0);
+    if (uncommitted > 0) {
+      try {
+        indexWriter.commit();
+      } catch (IOException | RuntimeException e) {
+        // Retry on the next commit.
+        uncommittedUpdates.addAndGet(uncommitted);
+        throw e;
+      }
+    }
+  }
+
   private static void addIndex(ReadableWaveletData wavelet,
       NRTManager nrtManager) throws IOException {
     Document doc = new Document();
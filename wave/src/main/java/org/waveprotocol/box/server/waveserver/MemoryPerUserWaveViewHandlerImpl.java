@@ -29,6 +29,10 @@ import com.google.common.util.concurrent.SettableFuture;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
+import org.waveprotocol.box.common.ExceptionalIterator;
+import org.waveprotocol.box.server.persistence.PerUserWaveViewStore;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.box.server.persistence.memory.MemoryPerUserWaveViewStore;
 import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
@@ -36,11 +40,22 @@ import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 import org.waveprotocol.wave.util.logging.Log;
 
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
 /**
+ * Keeps the wave views of recently active users in memory, backed by a
+ * {@link PerUserWaveViewStore}. A view missing from the store is built once by
+ * scanning all the stored waves, then kept up to date by participant changes.
+ *
+ * Participant changes of a user whose view is being built are queued and
+ * applied to the view before it is stored, since the scan may or may not have
+ * seen them.
+ *
  * @author yurize@apache.org (Yuri Zelikov)
  */
 @Singleton
@@ -54,48 +69,171 @@ public class MemoryPerUserWaveViewHandlerImpl implements PerUserWaveViewHandler
    */
   private static final int PER_USER_WAVES_VIEW_CACHE_MINUTES = 5;
 
+  /** A participant change made while the view of the user was being built. */
+  private static final class ViewChange {
+    private final WaveletName waveletName;
+    private final boolean added;
+
+    ViewChange(WaveletName waveletName, boolean added) {
+      this.waveletName = waveletName;
+      this.added = added;
+    }
+
+    void applyTo(Multimap<WaveId, WaveletId> view) {
+      if (added) {
+        view.put(waveletName.waveId, waveletName.waveletId);
+      } else {
+        view.remove(waveletName.waveId, waveletName.waveletId);
+      }
+    }
+  }
+
+  /**
+   * The view of a user being built. Until the view is set, participant
+   * changes are queued; both are guarded by the lock of this object.
+   */
+  private static final class ViewBuild {
+    private final List<ViewChange> changes = new ArrayList<ViewChange>();
+    private Multimap<WaveId, WaveletId> view;
+  }
+
   /** The loading cache that holds wave viev per each online user.*/
   public LoadingCache<ParticipantId, Multimap<WaveId, WaveletId>> explicitPerUserWaveViews;
 
+  /** The users whose views are being built. */
+  private final ConcurrentMap<ParticipantId, ViewBuild> builds =
+      new ConcurrentHashMap<ParticipantId, ViewBuild>();
+
+  private final WaveMap waveMap;
+  private final PerUserWaveViewStore store;
+
+  public MemoryPerUserWaveViewHandlerImpl(WaveMap waveMap) {
+    this(waveMap, new MemoryPerUserWaveViewStore());
+  }
+
   @Inject
-  public MemoryPerUserWaveViewHandlerImpl(final WaveMap waveMap) {
+  public MemoryPerUserWaveViewHandlerImpl(final WaveMap waveMap, final PerUserWaveViewStore store) {
+    this.waveMap = waveMap;
+    this.store = store;
     // Let the view expire if it not accessed for some time.
     explicitPerUserWaveViews =
         CacheBuilder.newBuilder().expireAfterAccess(PER_USER_WAVES_VIEW_CACHE_MINUTES, TimeUnit.MINUTES)
             .<ParticipantId, Multimap<WaveId, WaveletId>>build(new CacheLoader<ParticipantId, Multimap<WaveId, WaveletId>>() {
 
               @Override
-              public Multimap<WaveId, WaveletId> load(final ParticipantId user) {
-                Multimap<WaveId, WaveletId> userView = HashMultimap.create();
-
-                // Create initial per user waves view by looping over all waves
-                // in the waves store.
-                Map<WaveId, Wave> waves = waveMap.getWaves();
-                for (Map.Entry<WaveId, Wave> entry : waves.entrySet()) {
-                  Wave wave = entry.getValue();
-                  for (WaveletContainer c : wave) {
-                    WaveletId waveletId = c.getWaveletName().waveletId;
-                    try {
-                      if (!c.hasParticipant(user)) {
-                        continue;
-                      }
-                      // Add this wave to the user view.
-                      userView.put(entry.getKey(), waveletId);
-                    } catch (WaveletStateException e) {
-                      LOG.warning("Failed to access wavelet " + c.getWaveletName(), e);
-                    }
-                  }
+              public Multimap<WaveId, WaveletId> load(final ParticipantId user)
+                  throws PersistenceException {
+                Multimap<WaveId, WaveletId> userView = store.getWaveView(user);
+                if (userView != null) {
+                  return userView;
+                }
+                ViewBuild build = new ViewBuild();
+                builds.put(user, build);
+                try {
+                  return buildView(user, build);
+                } catch (PersistenceException e) {
+                  builds.remove(user, build);
+                  throw e;
+                } catch (RuntimeException e) {
+                  builds.remove(user, build);
+                  throw e;
                 }
-                LOG.info("Initalized waves view for user: " + user.getAddress()
-                    + ", number of waves in view: " + userView.size());
-                return userView;
               }
             });
   }
 
+  /**
+   * Builds the view of a user by scanning all the stored waves, loading them
+   * through the wave map. The view is only stored if every wavelet could be
+   * checked, otherwise it is kept in memory and built again once it expires.
+   */
+  private Multimap<WaveId, WaveletId> buildView(ParticipantId user, ViewBuild build)
+      throws PersistenceException {
+    Multimap<WaveId, WaveletId> userView = HashMultimap.create();
+    boolean complete = true;
+    ExceptionalIterator<WaveId, PersistenceException> waveIds = waveMap.getStoredWaveIds();
+    while (waveIds.hasNext()) {
+      WaveId waveId = waveIds.next();
+      try {
+        for (WaveletId waveletId : waveMap.lookupWavelets(waveId)) {
+          WaveletContainer c = waveMap.getWavelet(WaveletName.of(waveId, waveletId));
+          if (c != null && c.hasParticipant(user)) {
+            // Add this wave to the user view.
+            userView.put(waveId, waveletId);
+          }
+        }
+      } catch (WaveletStateException e) {
+        LOG.warning("Failed to access wave " + waveId, e);
+        complete = false;
+      }
+    }
+    synchronized (build) {
+      for (ViewChange change : build.changes) {
+        change.applyTo(userView);
+      }
+      if (complete) {
+        store.putWaveView(user, userView);
+      }
+      build.view = userView;
+    }
+    LOG.info("Initalized waves view for user: " + user.getAddress()
+        + ", number of waves in view: " + userView.size()
+        + (complete ? "" : ", not stored as some waves failed to load"));
+    return userView;
+  }
+
+  /**
+   * Queues a participant change if the view of the user is being built.
+   *
+   * @return true if the change was queued, false if it should be applied to
+   *         the stored and cached views.
+   */
+  private boolean queueChange(ParticipantId user, ViewChange change) {
+    ViewBuild build = builds.get(user);
+    if (build != null) {
+      synchronized (build) {
+        if (build.view == null) {
+          build.changes.add(change);
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the view of the user in memory, or null.
+   */
+  private Multimap<WaveId, WaveletId> getCachedView(ParticipantId user) {
+    Multimap<WaveId, WaveletId> view = explicitPerUserWaveViews.getIfPresent(user);
+    if (view == null) {
+      // The view may be built but not yet in the cache.
+      ViewBuild build = builds.get(user);
+      if (build != null) {
+        synchronized (build) {
+          view = build.view;
+        }
+      }
+    }
+    return view;
+  }
+
   @Override
   public ListenableFuture<Void> onParticipantAdded(WaveletName waveletName, ParticipantId user) {
-    Multimap<WaveId, WaveletId> perUserView = explicitPerUserWaveViews.getIfPresent(user);
+    SettableFuture<Void> task = SettableFuture.create();
+    if (queueChange(user, new ViewChange(waveletName, true))) {
+      task.set(null);
+      return task;
+    }
+    try {
+      store.addWavelet(user, waveletName);
+    } catch (PersistenceException e) {
+      LOG.severe("Failed to add wavelet: " + waveletName + " to the stored view of user: "
+          + user.getAddress(), e);
+      task.setException(e);
+      return task;
+    }
+    Multimap<WaveId, WaveletId> perUserView = getCachedView(user);
     if (perUserView != null) {
       if (!perUserView.containsEntry(waveletName.waveId, waveletName.waveletId)) {
         perUserView.put(waveletName.waveId, waveletName.waveletId);
@@ -105,14 +243,26 @@ public class MemoryPerUserWaveViewHandlerImpl implements PerUserWaveViewHandler
         }
       }
     }
-    SettableFuture<Void> task = SettableFuture.create();
     task.set(null);
     return task;
   }
 
   @Override
   public ListenableFuture<Void> onParticipantRemoved(WaveletName waveletName, ParticipantId user) {
-    Multimap<WaveId, WaveletId> perUserView = explicitPerUserWaveViews.getIfPresent(user);
+    SettableFuture<Void> task = SettableFuture.create();
+    if (queueChange(user, new ViewChange(waveletName, false))) {
+      task.set(null);
+      return task;
+    }
+    try {
+      store.removeWavelet(user, waveletName);
+    } catch (PersistenceException e) {
+      LOG.severe("Failed to remove wavelet: " + waveletName + " from the stored view of user: "
+          + user.getAddress(), e);
+      task.setException(e);
+      return task;
+    }
+    Multimap<WaveId, WaveletId> perUserView = getCachedView(user);
     if (perUserView != null) {
       if (perUserView.containsEntry(waveletName.waveId, waveletName.waveletId)) {
         perUserView.remove(waveletName.waveId, waveletName.waveletId);
@@ -120,7 +270,6 @@ public class MemoryPerUserWaveViewHandlerImpl implements PerUserWaveViewHandler
             + " from the view of user: " + user.getAddress());
       }
     }
-    SettableFuture<Void> task = SettableFuture.create();
     task.set(null);
     return task;
   }
@@ -128,7 +277,17 @@ public class MemoryPerUserWaveViewHandlerImpl implements PerUserWaveViewHandler
   @Override
   public Multimap<WaveId, WaveletId> retrievePerUserWaveView(ParticipantId user) {
     try {
-      return explicitPerUserWaveViews.get(user);
+      Multimap<WaveId, WaveletId> view = explicitPerUserWaveViews.get(user);
+      // Once the view is in the cache, changes find it there.
+      ViewBuild build = builds.get(user);
+      if (build != null) {
+        synchronized (build) {
+          if (build.view == view) {
+            builds.remove(user, build);
+          }
+        }
+      }
+      return view;
     } catch (ExecutionException ex) {
       throw new RuntimeException(ex);
     }
@@ -21,7 +21,7 @@ package org.waveprotocol.box.server.waveserver;
 
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.base.Predicate;
 import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
@@ -29,7 +29,8 @@ import com.google.wave.api.SearchResult;
 
 import org.waveprotocol.box.server.CoreSettingsNames;
 import org.waveprotocol.box.server.waveserver.QueryHelper.InvalidQueryException;
-import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.IdConstants;
+import org.waveprotocol.wave.model.id.IdUtil;
 import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.wave.InvalidParticipantAddress;
@@ -38,7 +39,8 @@ import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 import org.waveprotocol.wave.model.wave.data.WaveViewData;
 import org.waveprotocol.wave.util.logging.Log;
 
-import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -52,13 +54,15 @@ public class SimpleSearchProviderImpl extends AbstractSearchProviderImpl {
 
   private static final Log LOG = Log.get(SimpleSearchProviderImpl.class);
 
-  private final PerUserWaveViewProvider waveViewProvider;
+  private final WaveSearchIndex searchIndex;
+  private final WaveMap waveMap;
 
   @Inject
   public SimpleSearchProviderImpl(@Named(CoreSettingsNames.WAVE_SERVER_DOMAIN) final String waveDomain,
-      WaveDigester digester, final WaveMap waveMap, PerUserWaveViewProvider userWaveViewProvider) {
+      WaveDigester digester, final WaveMap waveMap, WaveSearchIndex searchIndex) {
     super(waveDomain, digester, waveMap);
-    this.waveViewProvider = userWaveViewProvider;
+    this.searchIndex = searchIndex;
+    this.waveMap = waveMap;
   }
 
   @Override
@@ -94,43 +98,81 @@ public class SimpleSearchProviderImpl extends AbstractSearchProviderImpl {
       return digester.generateSearchResult(user, query, null);
     }
 
-    LinkedHashMultimap<WaveId, WaveletId> currentUserWavesView =
-        createWavesViewToFilter(user, isAllQuery);
+    List<ParticipantId> participants = isAllQuery
+        // If it is the "all" query - we need to include also waves of the
+        // shared domain participant.
+        ? Lists.newArrayList(user, sharedDomainParticipantId)
+        : Collections.singletonList(user);
+    WaveletId udw = WaveletId.of(user.getDomain(),
+        IdUtil.join(IdConstants.USER_DATA_WAVELET_PREFIX, user.getAddress()));
+    Predicate<WaveSearchIndex.WaveletEntry> filterEntries =
+        createFilterEntriesPredicate(user, isAllQuery, withParticipantIds, creatorParticipantIds);
     Function<ReadableWaveletData, Boolean> filterWaveletsFunction =
         createFilterWaveletsFunction(user, isAllQuery, withParticipantIds, creatorParticipantIds);
 
-    ensureWavesHaveUserDataWavelet(currentUserWavesView, user);
-
-    List<WaveViewData> results =
-        Lists.newArrayList(filterWavesViewBySearchCriteria(filterWaveletsFunction,
-            currentUserWavesView).values());
-    List<WaveViewData> sortedResults = sort(queryParams, results);
-
-    Collection<WaveViewData> searchResult =
-        computeSearchResult(user, startAt, numResults, sortedResults);
+    Set<String> orderBy = queryParams.get(TokenQueryType.ORDERBY);
+    QueryHelper.OrderByValueType ordering = orderBy == null
+        ? QueryHelper.OrderByValueType.DATEDESC
+        : orderBy.size() == 1 ? QueryHelper.OrderByValueType.fromToken(orderBy.iterator().next())
+        : null;
+    boolean isFiltered = !withParticipantIds.isEmpty() || !creatorParticipantIds.isEmpty();
+    List<WaveViewData> searchResult;
+    if (ordering == QueryHelper.OrderByValueType.DATEDESC
+        || (ordering == QueryHelper.OrderByValueType.DATEASC && !isFiltered)) {
+      // The index walks the waves in the requested order, so only the waves
+      // up to the end of the page are read.
+      searchResult = computePage(searchIndex.search(participants, udw, filterEntries,
+          ordering == QueryHelper.OrderByValueType.DATEDESC), filterWaveletsFunction, startAt,
+          numResults);
+    } else {
+      // Other orderings are not indexed, all matching waves are sorted.
+      List<WaveViewData> results = computePage(searchIndex.search(participants, udw,
+          filterEntries, true), filterWaveletsFunction, 0, Integer.MAX_VALUE);
+      Collections.sort(results, QueryHelper.computeSorter(queryParams));
+      searchResult = startAt < results.size() && numResults > 0
+          ? results.subList(startAt, (int) Math.min((long) startAt + numResults, results.size()))
+          : Collections.<WaveViewData> emptyList();
+    }
     LOG.info("Search response to '" + query + "': " + searchResult.size() + " results, user: "
         + user);
     return digester.generateSearchResult(user, query, searchResult);
   }
 
-  private LinkedHashMultimap<WaveId, WaveletId> createWavesViewToFilter(final ParticipantId user,
-      final boolean isAllQuery) {
-    LinkedHashMultimap<WaveId, WaveletId> currentUserWavesView;
-    currentUserWavesView = LinkedHashMultimap.create();
-    currentUserWavesView.putAll(waveViewProvider.retrievePerUserWaveView(user));
-    if (isAllQuery) {
-      // If it is the "all" query - we need to include also waves view of the
-      // shared domain participant.
-      currentUserWavesView.putAll(waveViewProvider.retrievePerUserWaveView(sharedDomainParticipantId));
-    }
-
-    if(LOG.isFineLoggable()) {
-      for (Map.Entry<WaveId, WaveletId> e : currentUserWavesView.entries()) {
-        LOG.fine("unfiltered view contains: " + e.getKey() + " " + e.getValue());
+  /**
+   * Reads the waves of a page of matches. Matches skipped by {@code startAt}
+   * are not read, and waves which turn out to have no conversation are
+   * replaced by the following matches so the page is filled.
+   */
+  private List<WaveViewData> computePage(Iterator<WaveSearchIndex.WaveMatch> matches,
+      Function<ReadableWaveletData, Boolean> filterWaveletsFunction, int startAt,
+      int numResults) {
+    List<WaveViewData> page = Lists.newArrayList();
+    int skipped = 0;
+    while (page.size() < numResults && matches.hasNext()) {
+      WaveSearchIndex.WaveMatch match = matches.next();
+      if (skipped < startAt) {
+        skipped++;
+        continue;
+      }
+      WaveViewData view = buildWaveViewData(match.getWaveId(), match.getWaveletIds(),
+          filterWaveletsFunction, waveMap);
+      if (hasConversation(view)) {
+        page.add(view);
       }
     }
+    return page;
+  }
 
-    return currentUserWavesView;
+  private Predicate<WaveSearchIndex.WaveletEntry> createFilterEntriesPredicate(
+      final ParticipantId user, final boolean isAllQuery,
+      final List<ParticipantId> withParticipantIds, final List<ParticipantId> creatorParticipantIds) {
+    return new Predicate<WaveSearchIndex.WaveletEntry>() {
+      @Override
+      public boolean apply(WaveSearchIndex.WaveletEntry wavelet) {
+        return isWaveletEntryMatchesCriteria(wavelet, user, withParticipantIds,
+            creatorParticipantIds, isAllQuery);
+      }
+    };
   }
 
   private Function<ReadableWaveletData, Boolean> createFilterWaveletsFunction(
@@ -191,8 +233,30 @@ public class SimpleSearchProviderImpl extends AbstractSearchProviderImpl {
     return matches;
   }
 
-  private List<WaveViewData> sort(Map<TokenQueryType, Set<String>> queryParams,
-      List<WaveViewData> results) {
-    return QueryHelper.computeSorter(queryParams).sortedCopy(results);
+  /**
+   * Verifies whether the indexed wavelet matches the filter criteria, the same
+   * way {@link #isWaveletMatchesCriteria} does for the wavelet itself.
+   */
+  private boolean isWaveletEntryMatchesCriteria(WaveSearchIndex.WaveletEntry wavelet,
+      ParticipantId user, List<ParticipantId> withList, List<ParticipantId> creatorList,
+      boolean isAllQuery) {
+    for (ParticipantId creator : creatorList) {
+      if (!creator.equals(wavelet.getCreator())) {
+        return false;
+      }
+    }
+    for (ParticipantId otherUser : withList) {
+      if (!wavelet.getParticipants().contains(otherUser)) {
+        return false;
+      }
+    }
+    if (IdUtil.isUserDataWavelet(wavelet.getWaveletId()) && wavelet.getCreator().equals(user)) {
+      return true;
+    }
+    if (isAllQuery) {
+      return wavelet.getParticipants().contains(user)
+          || wavelet.getParticipants().contains(sharedDomainParticipantId);
+    }
+    return wavelet.getParticipants().contains(user);
   }
 }
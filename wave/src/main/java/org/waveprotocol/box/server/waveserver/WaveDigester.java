@@ -20,11 +20,18 @@
 package org.waveprotocol.box.server.waveserver;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 import com.google.wave.api.ApiIdSerializer;
 import com.google.wave.api.SearchResult;
 import com.google.wave.api.SearchResult.Digest;
+import com.typesafe.config.Config;
 
+import org.waveprotocol.box.common.DeltaSequence;
 import org.waveprotocol.box.common.Snippets;
 import org.waveprotocol.box.server.robots.util.ConversationUtil;
 import org.waveprotocol.wave.model.conversation.BlipIterators;
@@ -37,7 +44,9 @@ import org.waveprotocol.wave.model.conversation.WaveletBasedConversation;
 import org.waveprotocol.wave.model.document.Document;
 import org.waveprotocol.wave.model.id.IdUtil;
 import org.waveprotocol.wave.model.id.ModernIdSerialiser;
+import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.supplement.PrimitiveSupplement;
 import org.waveprotocol.wave.model.supplement.PrimitiveSupplementImpl;
 import org.waveprotocol.wave.model.supplement.SupplementedWave;
@@ -45,8 +54,10 @@ import org.waveprotocol.wave.model.supplement.SupplementedWaveImpl;
 import org.waveprotocol.wave.model.supplement.SupplementedWaveImpl.DefaultFollow;
 import org.waveprotocol.wave.model.supplement.WaveletBasedSupplement;
 import org.waveprotocol.wave.model.util.CollectionUtils;
+import org.waveprotocol.wave.model.version.HashedVersion;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 import org.waveprotocol.wave.model.wave.data.WaveViewData;
 import org.waveprotocol.wave.model.wave.data.WaveletData;
 import org.waveprotocol.wave.model.wave.opbased.OpBasedWavelet;
@@ -59,18 +70,81 @@ import java.util.List;
 /**
  * Generates digests for the search service.
  *
+ * Digests are cached per wave and viewer, along with the versions of the
+ * wavelets they were built from, so a digest is only rebuilt when one of
+ * those wavelets changed. The cache is bounded by the number of digests, so
+ * waves with many viewers take up their share of it. Digests of changed
+ * waves are replaced when next built or left to be evicted; updates of a user
+ * data wavelet drop its owner's digest right away.
+ *
  * @author yurize@apache.org
  */
-public class WaveDigester {
+@Singleton
+public class WaveDigester implements WaveBus.Subscriber {
+
+  /** A digest and the versions of the wavelets of the view it was built from. */
+  private static final class CachedDigest {
+    private final ImmutableMap<WaveletId, Long> versions;
+    private final Digest digest;
+
+    CachedDigest(ImmutableMap<WaveletId, Long> versions, Digest digest) {
+      this.versions = versions;
+      this.digest = digest;
+    }
+  }
+
+  /** Key of a cached digest: the wave and its viewer. */
+  private static final class Key {
+    private final WaveId waveId;
+    private final ParticipantId viewer;
+
+    Key(WaveId waveId, ParticipantId viewer) {
+      this.waveId = waveId;
+      this.viewer = viewer;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return waveId.equals(other.waveId) && viewer.equals(other.viewer);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(waveId, viewer);
+    }
+  }
 
   private final ConversationUtil conversationUtil;
   private static final int DIGEST_SNIPPET_LENGTH = 140;
   private static final int PARTICIPANTS_SNIPPET_LENGTH = 5;
   private static final String EMPTY_WAVELET_TITLE = "";
 
+  /** Cached digests by wave and viewer, null if caching is disabled. */
+  private final Cache<Key, CachedDigest> digests;
+
   @Inject
+  public WaveDigester(ConversationUtil conversationUtil, Config config) {
+    this(conversationUtil, config.getInt("core.search_digest_cache_size"));
+  }
+
   public WaveDigester(ConversationUtil conversationUtil) {
+    this(conversationUtil, 0);
+  }
+
+  /**
+   * @param cacheSize the maximum number of digests cached, 0 to disable
+   *        caching.
+   */
+  @VisibleForTesting
+  WaveDigester(ConversationUtil conversationUtil, int cacheSize) {
     this.conversationUtil = conversationUtil;
+    this.digests = cacheSize > 0
+        ? CacheBuilder.newBuilder().maximumSize(cacheSize).<Key, CachedDigest> build()
+        : null;
   }
 
   public SearchResult generateSearchResult(ParticipantId participant, String query,
@@ -92,7 +166,60 @@ public class WaveDigester {
     return result;
   }
 
+  /**
+   * Returns the digest of a wave for a participant, reusing the cached one if
+   * none of the wavelets of the view changed since it was built.
+   */
   public Digest build(ParticipantId participant, WaveViewData wave) {
+    if (digests == null) {
+      return buildDigest(participant, wave);
+    }
+    ImmutableMap<WaveletId, Long> versions = versionsOf(wave);
+    Key key = new Key(wave.getWaveId(), participant);
+    CachedDigest cached = digests.getIfPresent(key);
+    if (cached != null && cached.versions.equals(versions)) {
+      return cached.digest;
+    }
+    // Entries are checked against the versions of the view, so one put
+    // concurrently with an invalidation is never served for a newer view.
+    Digest digest = buildDigest(participant, wave);
+    digests.put(key, new CachedDigest(versions, digest));
+    return digest;
+  }
+
+  private static ImmutableMap<WaveletId, Long> versionsOf(WaveViewData wave) {
+    ImmutableMap.Builder<WaveletId, Long> versions = ImmutableMap.builder();
+    for (ObservableWaveletData waveletData : wave.getWavelets()) {
+      versions.put(waveletData.getWaveletId(), waveletData.getVersion());
+    }
+    return versions.build();
+  }
+
+  /** @return the number of cached digests. */
+  @VisibleForTesting
+  long getCachedDigestCount() {
+    return digests != null ? digests.size() : 0;
+  }
+
+  @Override
+  public void waveletUpdate(ReadableWaveletData wavelet, DeltaSequence deltas) {
+    if (digests == null) {
+      return;
+    }
+    if (IdUtil.isUserDataWavelet(wavelet.getWaveletId())) {
+      // Only the digest of the wavelet owner depends on it.
+      digests.invalidate(new Key(wavelet.getWaveId(), wavelet.getCreator()));
+    }
+    // The digests of the other viewers of a changed wave no longer match the
+    // wavelet versions, so they are rebuilt when next requested.
+  }
+
+  @Override
+  public void waveletCommitted(WaveletName waveletName, HashedVersion version) {
+    // Committing does not change the digests.
+  }
+
+  private Digest buildDigest(ParticipantId participant, WaveViewData wave) {
 
     Digest digest;
 
@@ -24,6 +24,7 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListenableFutureTask;
 import com.google.inject.Inject;
@@ -71,6 +72,10 @@ public class WaveMap {
 
   private final LoadingCache<WaveId, Wave> waves;
   private final WaveletStore<?> store;
+  private final WaveletNotificationSubscriber notifiee;
+  private final LocalWaveletContainer.Factory localFactory;
+  private final RemoteWaveletContainer.Factory remoteFactory;
+  private final String waveDomain;
 
   @Inject
   public WaveMap(final DeltaAndSnapshotStore waveletStore,
@@ -82,6 +87,10 @@ public class WaveMap {
       @LookupExecutor final Executor lookupExecutor) {
 
     this.store = waveletStore;
+    this.notifiee = notifiee;
+    this.localFactory = localFactory;
+    this.remoteFactory = remoteFactory;
+    this.waveDomain = waveDomain;
     waves = CacheBuilder.newBuilder()
             .maximumSize(config.getInt("core.wave_cache_size"))
             .expireAfterAccess(config.getDuration("core.wave_cache_expire", TimeUnit.MINUTES), TimeUnit.MINUTES)
@@ -112,6 +121,20 @@ public class WaveMap {
     }
   }
 
+  /**
+   * Adds a wave whose wavelet ids are already known, sparing their lookup.
+   * Does nothing if the wave is already in memory.
+   */
+  void preloadWave(WaveId waveId, ImmutableSet<WaveletId> waveletIds) {
+    waves.asMap().putIfAbsent(waveId, new Wave(waveId, Futures.immediateFuture(waveletIds),
+        notifiee, localFactory, remoteFactory, waveDomain));
+  }
+
+  /** @return true if the wave is in memory. */
+  boolean isLoaded(WaveId waveId) {
+    return waves.asMap().containsKey(waveId);
+  }
+
   /**
    * Unloads all wavelets from memory.
    *
@@ -128,6 +151,14 @@ public class WaveMap {
     return ImmutableMap.copyOf(waves.asMap());
   }
 
+  /**
+   * Returns the ids of all the stored waves, whether they are loaded or not.
+   */
+  public ExceptionalIterator<WaveId, PersistenceException> getStoredWaveIds()
+      throws PersistenceException {
+    return store.getWaveIdIterator();
+  }
+
   public ExceptionalIterator<WaveId, WaveServerException> getWaveIds() {
     Iterator<WaveId> inner = waves.asMap().keySet().iterator();
     return ExceptionalIterator.FromIterator.create(inner);
@@ -0,0 +1,302 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.typesafe.config.Config;
+
+import org.waveprotocol.box.common.ExceptionalIterator;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Warms up the {@link WaveMap} in the background after startup.
+ *
+ * Stored waves are first ranked by how recently their wavelets were modified,
+ * as told by the metadata of a {@link LastModifiedDeltaStore}: delta
+ * collections are never opened, as that may race with the wavelets being
+ * served. Waves already in the wave map are skipped. The most recently
+ * modified ones, up to the warm-up limit, are then added to the wave map and
+ * their wavelets loaded, most recent first. Other stores can't rank, so their
+ * first waves are loaded in store order. Both phases run on a bounded number
+ * of threads; wavelet loads also run on the wavelet load executor, which
+ * bounds their parallelism too. Progress is logged.
+ */
+@Singleton
+public class WaveMapWarmer {
+
+  private static final Log LOG = Log.get(WaveMapWarmer.class);
+
+  /** Number of waves between progress reports. */
+  private static final int PROGRESS_INTERVAL = 1000;
+
+  /**
+   * A stored wave and the last modification of its wavelets, or none if the
+   * store can't tell them.
+   */
+  @VisibleForTesting
+  static final class RankedWave {
+    final WaveId waveId;
+    final ImmutableSet<WaveletId> waveletIds;
+    final long lastModifiedTime;
+
+    RankedWave(WaveId waveId, ImmutableSet<WaveletId> waveletIds, long lastModifiedTime) {
+      this.waveId = waveId;
+      this.waveletIds = waveletIds;
+      this.lastModifiedTime = lastModifiedTime;
+    }
+  }
+
+  private static final Comparator<RankedWave> MOST_RECENT_FIRST = new Comparator<RankedWave>() {
+    @Override
+    public int compare(RankedWave a, RankedWave b) {
+      return Long.compare(b.lastModifiedTime, a.lastModifiedTime);
+    }
+  };
+
+  /** Task run for each item of a warm-up phase. */
+  private interface ItemTask<T> {
+    void run(T item);
+  }
+
+  private final DeltaStore deltaStore;
+  private final WaveMap waveMap;
+  private final int concurrency;
+  private final int waveLimit;
+
+  private final AtomicInteger rankedWaves = new AtomicInteger();
+  private final AtomicInteger loadedWaves = new AtomicInteger();
+
+  @Inject
+  public WaveMapWarmer(DeltaStore deltaStore, WaveMap waveMap, Config config) {
+    // Warming up more waves than the wave map keeps would evict the first ones.
+    this(deltaStore, waveMap, config.getInt("core.warm_up_concurrency"), Math.min(
+        config.getInt("core.warm_up_wave_limit"), config.getInt("core.wave_cache_size")));
+  }
+
+  @VisibleForTesting
+  WaveMapWarmer(DeltaStore deltaStore, WaveMap waveMap, int concurrency, int waveLimit) {
+    this.deltaStore = deltaStore;
+    this.waveMap = waveMap;
+    this.concurrency = concurrency;
+    this.waveLimit = waveLimit;
+  }
+
+  /**
+   * Starts warming up the wave map on a background thread, unless warm-up is
+   * disabled.
+   */
+  public void start() {
+    if (concurrency <= 0 || waveLimit <= 0) {
+      LOG.info("Wave map warm-up is disabled");
+      return;
+    }
+    ThreadFactory threadFactory =
+        new ThreadFactoryBuilder().setNameFormat("WaveMapWarmer").setDaemon(true).build();
+    threadFactory.newThread(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          warmUp();
+        } catch (PersistenceException e) {
+          LOG.warning("Wave map warm-up failed", e);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+          LOG.severe("Wave map warm-up failed", e);
+        }
+      }
+    }).start();
+  }
+
+  /**
+   * Ranks the stored waves and loads the most recent ones. Blocks until done.
+   */
+  @VisibleForTesting
+  void warmUp() throws PersistenceException, InterruptedException {
+    long start = System.currentTimeMillis();
+    List<WaveId> waveIds = Lists.newArrayList();
+    ExceptionalIterator<WaveId, PersistenceException> itr = deltaStore.getWaveIdIterator();
+    while (itr.hasNext()) {
+      waveIds.add(itr.next());
+    }
+
+    ThreadFactory threadFactory =
+        new ThreadFactoryBuilder().setNameFormat("WaveMapWarmer-%d").setDaemon(true).build();
+    ExecutorService workers = Executors.newFixedThreadPool(concurrency, threadFactory);
+    try {
+      final List<RankedWave> ranked = Collections.synchronizedList(
+          Lists.<RankedWave> newArrayListWithCapacity(waveIds.size()));
+      if (deltaStore instanceof LastModifiedDeltaStore) {
+        LOG.info("Wave map warm-up: ranking " + waveIds.size() + " waves");
+        final LastModifiedDeltaStore store = (LastModifiedDeltaStore) deltaStore;
+        final int total = waveIds.size();
+        forEachInParallel(workers, waveIds, new ItemTask<WaveId>() {
+
+          @Override
+          public void run(WaveId waveId) {
+            RankedWave wave = rank(store, waveId);
+            if (wave != null) {
+              ranked.add(wave);
+            }
+            logProgress("ranked", rankedWaves.incrementAndGet(), total);
+          }
+        });
+      } else {
+        LOG.info("Wave map warm-up: the delta store can't rank waves, loading in store order");
+        for (WaveId waveId : waveIds) {
+          if (ranked.size() == waveLimit) {
+            break;
+          }
+          if (!waveMap.isLoaded(waveId)) {
+            ranked.add(new RankedWave(waveId, null, -1));
+          }
+        }
+      }
+
+      Collections.sort(ranked, MOST_RECENT_FIRST);
+      final List<RankedWave> toLoad = ranked.subList(0, Math.min(waveLimit, ranked.size()));
+      LOG.info("Wave map warm-up: loading " + toLoad.size() + " waves");
+      forEachInParallel(workers, toLoad, new ItemTask<RankedWave>() {
+
+        @Override
+        public void run(RankedWave wave) {
+          load(wave);
+          logProgress("loaded", loadedWaves.incrementAndGet(), toLoad.size());
+        }
+      });
+    } finally {
+      workers.shutdownNow();
+    }
+    LOG.info("Wave map warm-up: done in " + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  /** @return the number of waves ranked so far. */
+  public int getRankedWaveCount() {
+    return rankedWaves.get();
+  }
+
+  /** @return the number of waves loaded so far. */
+  public int getLoadedWaveCount() {
+    return loadedWaves.get();
+  }
+
+  private static void logProgress(String phase, int done, int total) {
+    if (done % PROGRESS_INTERVAL == 0 || done == total) {
+      LOG.info("Wave map warm-up: " + phase + " " + done + "/" + total + " waves");
+    }
+  }
+
+  /**
+   * Runs the task for every item, on as many workers as the warm-up
+   * concurrency, each taking the next item in order.
+   */
+  private <T> void forEachInParallel(ExecutorService workers, final List<T> items,
+      final ItemTask<T> task) throws InterruptedException {
+    final AtomicInteger next = new AtomicInteger();
+    List<Future<?>> futures = Lists.newArrayListWithCapacity(concurrency);
+    for (int i = 0; i < concurrency; i++) {
+      futures.add(workers.submit(new Runnable() {
+
+        @Override
+        public void run() {
+          int index;
+          while ((index = next.getAndIncrement()) < items.size()) {
+            task.run(items.get(index));
+          }
+        }
+      }));
+    }
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      }
+    }
+  }
+
+  /**
+   * @return the wave with the last modification of its wavelets, or null if
+   *         it is already loaded, has no deltas or fails to be ranked.
+   */
+  private RankedWave rank(LastModifiedDeltaStore store, WaveId waveId) {
+    if (waveMap.isLoaded(waveId)) {
+      return null;
+    }
+    try {
+      ImmutableMap<WaveletId, Long> lastModified = store.getLastModified(waveId);
+      if (lastModified.isEmpty()) {
+        return null;
+      }
+      return new RankedWave(waveId, lastModified.keySet(),
+          Collections.max(lastModified.values()));
+    } catch (PersistenceException e) {
+      LOG.warning("Wave map warm-up: failed to rank wave " + waveId, e);
+      return null;
+    }
+  }
+
+  private void load(RankedWave wave) {
+    ImmutableSet<WaveletId> waveletIds = wave.waveletIds;
+    try {
+      if (waveletIds != null) {
+        waveMap.preloadWave(wave.waveId, waveletIds);
+      } else {
+        waveletIds = waveMap.lookupWavelets(wave.waveId);
+      }
+    } catch (WaveletStateException e) {
+      LOG.warning("Wave map warm-up: failed to look up wave " + wave.waveId, e);
+      return;
+    }
+    for (WaveletId waveletId : waveletIds) {
+      WaveletName waveletName = WaveletName.of(wave.waveId, waveletId);
+      try {
+        WaveletContainer wavelet = waveMap.getWavelet(waveletName);
+        if (wavelet != null) {
+          // Waits for the wavelet to be loaded.
+          wavelet.getLastCommittedVersion();
+        }
+      } catch (WaveletStateException e) {
+        LOG.warning("Wave map warm-up: failed to load wavelet " + waveletName, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,531 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.collect.Sets;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.typesafe.config.Config;
+
+import org.waveprotocol.box.common.DeltaSequence;
+import org.waveprotocol.wave.model.id.IdUtil;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.RemoveParticipant;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * In-memory index of the wavelet metadata used by search: creator,
+ * participants, creation and last modified time.
+ *
+ * Entries are replaced from wave bus updates as deltas are applied, unless
+ * they are older than the indexed version, and loaded from the
+ * {@link WaveMap} the first time a wavelet is searched.
+ *
+ * Each participant searched for has a posting list of its waves ordered by
+ * last modified time, built from its wave view on first search and then kept
+ * up to date by the updates. A search walks the posting lists in order, so
+ * it only reads the waves of the requested page and of the ones before it.
+ */
+@Singleton
+public class WaveSearchIndex implements WaveBus.Subscriber {
+
+  private static final Log LOG = Log.get(WaveSearchIndex.class);
+
+  /** Search metadata of a single wavelet. */
+  public static final class WaveletEntry {
+    private final WaveletId waveletId;
+    private final ParticipantId creator;
+    private final ImmutableSet<ParticipantId> participants;
+    private final long creationTime;
+    private final long lastModifiedTime;
+    private final long version;
+
+    WaveletEntry(WaveletId waveletId, ParticipantId creator,
+        ImmutableSet<ParticipantId> participants, long creationTime, long lastModifiedTime,
+        long version) {
+      this.waveletId = waveletId;
+      this.creator = creator;
+      this.participants = participants;
+      this.creationTime = creationTime;
+      this.lastModifiedTime = lastModifiedTime;
+      this.version = version;
+    }
+
+    static WaveletEntry of(ReadableWaveletData wavelet) {
+      return new WaveletEntry(wavelet.getWaveletId(), wavelet.getCreator(),
+          ImmutableSet.copyOf(wavelet.getParticipants()), wavelet.getCreationTime(),
+          wavelet.getLastModifiedTime(), wavelet.getVersion());
+    }
+
+    public WaveletId getWaveletId() {
+      return waveletId;
+    }
+
+    public ParticipantId getCreator() {
+      return creator;
+    }
+
+    public Set<ParticipantId> getParticipants() {
+      return participants;
+    }
+
+    public long getCreationTime() {
+      return creationTime;
+    }
+
+    public long getLastModifiedTime() {
+      return lastModifiedTime;
+    }
+
+    /** Returns the version of the wavelet the metadata was read at. */
+    public long getVersion() {
+      return version;
+    }
+  }
+
+  /**
+   * A wave matching a search, aggregated over its matching wavelets the same
+   * way {@link QueryHelper} aggregates a {@code WaveViewData}.
+   */
+  public static final class WaveMatch {
+    private final WaveId waveId;
+    private final Set<WaveletId> waveletIds = Sets.newLinkedHashSet();
+    private boolean hasConversation = false;
+    private long creationTime = -1;
+    private long lastModifiedTime = -1;
+    private ParticipantId creator = QueryHelper.UNKNOWN_CREATOR;
+
+    public WaveMatch(WaveId waveId) {
+      this.waveId = waveId;
+    }
+
+    /** Adds a wavelet which matched the search. */
+    public void add(WaveletEntry wavelet) {
+      waveletIds.add(wavelet.getWaveletId());
+      creationTime = Math.max(creationTime, wavelet.getCreationTime());
+      if (IdUtil.isConversationalId(wavelet.getWaveletId())) {
+        hasConversation = true;
+        lastModifiedTime = Math.max(lastModifiedTime, wavelet.getLastModifiedTime());
+      }
+      if (IdUtil.isConversationRootWaveletId(wavelet.getWaveletId())) {
+        creator = wavelet.getCreator();
+      }
+    }
+
+    public WaveId getWaveId() {
+      return waveId;
+    }
+
+    /** Returns the ids of the matching wavelets. */
+    public Set<WaveletId> getWaveletIds() {
+      return waveletIds;
+    }
+
+    /** Returns true if a conversational wavelet matched. */
+    public boolean hasConversation() {
+      return hasConversation;
+    }
+
+    public long getCreationTime() {
+      return creationTime;
+    }
+
+    public long getLastModifiedTime() {
+      return lastModifiedTime;
+    }
+
+    public ParticipantId getCreator() {
+      return creator;
+    }
+  }
+
+  /** Position of a wave in a posting list. */
+  private static final class Posting {
+    final WaveId waveId;
+    final long lastModifiedTime;
+
+    Posting(WaveId waveId, long lastModifiedTime) {
+      this.waveId = waveId;
+      this.lastModifiedTime = lastModifiedTime;
+    }
+  }
+
+  /** Orders by last modified time, then wave id. */
+  private static final Comparator<Posting> POSTING_ORDER = new Comparator<Posting>() {
+    @Override
+    public int compare(Posting a, Posting b) {
+      return compareMatches(a.lastModifiedTime, a.waveId, b.lastModifiedTime, b.waveId, false);
+    }
+  };
+
+  /**
+   * Compares by last modified time in either direction, then by wave id, the
+   * same way {@link QueryHelper#computeSorter} orders results by date.
+   */
+  private static int compareMatches(long lastModifiedTime1, WaveId waveId1,
+      long lastModifiedTime2, WaveId waveId2, boolean descending) {
+    int result = Long.compare(lastModifiedTime1, lastModifiedTime2);
+    if (descending) {
+      result = -result;
+    }
+    return result != 0 ? result : waveId1.compareTo(waveId2);
+  }
+
+  /**
+   * The wavelets a participant takes part in, by wave, and the waves with a
+   * conversation ordered by the last modified time of their conversational
+   * wavelets. Modified under the index lock, read concurrently.
+   */
+  private static final class PostingList {
+    final ConcurrentSkipListSet<Posting> postings =
+        new ConcurrentSkipListSet<Posting>(POSTING_ORDER);
+    final ConcurrentMap<WaveId, Map<WaveletId, WaveletEntry>> waves =
+        new ConcurrentHashMap<WaveId, Map<WaveletId, WaveletEntry>>();
+    final Map<WaveId, Posting> positions = Maps.newHashMap();
+    int waveletCount;
+
+    void put(WaveId waveId, WaveletEntry entry) {
+      Map<WaveletId, WaveletEntry> wavelets = waves.get(waveId);
+      Map<WaveletId, WaveletEntry> updated = wavelets != null
+          ? Maps.newHashMap(wavelets) : Maps.<WaveletId, WaveletEntry> newHashMap();
+      if (updated.put(entry.getWaveletId(), entry) == null) {
+        waveletCount++;
+      }
+      replace(waveId, updated);
+    }
+
+    void remove(WaveId waveId, WaveletId waveletId) {
+      Map<WaveletId, WaveletEntry> wavelets = waves.get(waveId);
+      if (wavelets != null && wavelets.containsKey(waveletId)) {
+        Map<WaveletId, WaveletEntry> updated = Maps.newHashMap(wavelets);
+        updated.remove(waveletId);
+        waveletCount--;
+        replace(waveId, updated);
+      }
+    }
+
+    private void replace(WaveId waveId, Map<WaveletId, WaveletEntry> wavelets) {
+      Posting previous = positions.remove(waveId);
+      if (previous != null) {
+        postings.remove(previous);
+      }
+      if (wavelets.isEmpty()) {
+        waves.remove(waveId);
+        return;
+      }
+      waves.put(waveId, ImmutableMap.copyOf(wavelets));
+      boolean hasConversation = false;
+      long lastModifiedTime = -1;
+      for (WaveletEntry entry : wavelets.values()) {
+        if (IdUtil.isConversationalId(entry.getWaveletId())) {
+          hasConversation = true;
+          lastModifiedTime = Math.max(lastModifiedTime, entry.getLastModifiedTime());
+        }
+      }
+      if (hasConversation) {
+        Posting posting = new Posting(waveId, lastModifiedTime);
+        positions.put(waveId, posting);
+        postings.add(posting);
+      }
+    }
+  }
+
+  /**
+   * Walks posting lists in order and yields the matches of their waves.
+   * Matches are held back until no wave further down the lists can come
+   * before them.
+   */
+  private final class MatchIterator extends AbstractIterator<WaveMatch> {
+    private final List<PostingList> lists;
+    private final List<PeekingIterator<Posting>> cursors = Lists.newArrayList();
+    private final WaveletId extraWaveletId;
+    private final Predicate<WaveletEntry> filter;
+    private final boolean descending;
+    private final Set<WaveId> seen = Sets.newHashSet();
+    private final PriorityQueue<WaveMatch> ready;
+
+    MatchIterator(List<PostingList> lists, WaveletId extraWaveletId,
+        Predicate<WaveletEntry> filter, final boolean descending) {
+      this.lists = lists;
+      this.extraWaveletId = extraWaveletId;
+      this.filter = filter;
+      this.descending = descending;
+      for (PostingList list : lists) {
+        cursors.add(Iterators.peekingIterator(
+            descending ? list.postings.descendingIterator() : list.postings.iterator()));
+      }
+      ready = new PriorityQueue<WaveMatch>(11, new Comparator<WaveMatch>() {
+        @Override
+        public int compare(WaveMatch a, WaveMatch b) {
+          return compareMatches(a.getLastModifiedTime(), a.getWaveId(),
+              b.getLastModifiedTime(), b.getWaveId(), descending);
+        }
+      });
+    }
+
+    @Override
+    protected WaveMatch computeNext() {
+      while (true) {
+        PeekingIterator<Posting> next = null;
+        for (PeekingIterator<Posting> cursor : cursors) {
+          if (cursor.hasNext() && (next == null || compareMatches(
+              cursor.peek().lastModifiedTime, cursor.peek().waveId,
+              next.peek().lastModifiedTime, next.peek().waveId, descending) < 0)) {
+            next = cursor;
+          }
+        }
+        WaveMatch first = ready.peek();
+        if (first != null && (next == null || compareMatches(first.getLastModifiedTime(),
+            first.getWaveId(), next.peek().lastModifiedTime, next.peek().waveId,
+            descending) <= 0)) {
+          return ready.poll();
+        }
+        if (next == null) {
+          return endOfData();
+        }
+        WaveId waveId = next.next().waveId;
+        if (seen.add(waveId)) {
+          WaveMatch match = match(waveId);
+          if (match.hasConversation()) {
+            ready.add(match);
+          }
+        }
+      }
+    }
+
+    private WaveMatch match(WaveId waveId) {
+      WaveMatch match = new WaveMatch(waveId);
+      for (PostingList list : lists) {
+        Map<WaveletId, WaveletEntry> wavelets = list.waves.get(waveId);
+        if (wavelets != null) {
+          for (WaveletEntry entry : wavelets.values()) {
+            if (filter.apply(entry)) {
+              match.add(entry);
+            }
+          }
+        }
+      }
+      if (extraWaveletId != null) {
+        WaveletEntry entry = getWavelet(WaveletName.of(waveId, extraWaveletId));
+        if (entry != null && filter.apply(entry)) {
+          match.add(entry);
+        }
+      }
+      return match;
+    }
+  }
+
+  private final WaveMap waveMap;
+  private final PerUserWaveViewProvider waveViewProvider;
+
+  /** Guards the changes to the entries and the posting lists. */
+  private final Object lock = new Object();
+
+  private final Cache<WaveletName, WaveletEntry> entries;
+  private final Cache<ParticipantId, PostingList> postingLists;
+
+  @Inject
+  public WaveSearchIndex(WaveMap waveMap, PerUserWaveViewProvider waveViewProvider,
+      Config config) {
+    this.waveMap = waveMap;
+    this.waveViewProvider = waveViewProvider;
+    int size = config.getInt("core.search_index_size");
+    this.entries = CacheBuilder.newBuilder().maximumSize(size).build();
+    // Lists are weighed when stored, they are stored again as they grow.
+    this.postingLists = CacheBuilder.newBuilder().maximumWeight(size)
+        .weigher(new Weigher<ParticipantId, PostingList>() {
+          @Override
+          public int weigh(ParticipantId participant, PostingList list) {
+            return 1 + list.waveletCount;
+          }
+        }).build();
+  }
+
+  /**
+   * Returns the search metadata of a wavelet, loading it on first access.
+   *
+   * @return the entry, or null if the wavelet does not exist or cannot be
+   *         accessed.
+   */
+  public WaveletEntry getWavelet(WaveletName waveletName) {
+    WaveletEntry entry = entries.getIfPresent(waveletName);
+    if (entry == null) {
+      try {
+        WaveletContainer container = waveMap.getWavelet(waveletName);
+        if (container == null) {
+          return null;
+        }
+        entry = container.applyFunction(new Function<ReadableWaveletData, WaveletEntry>() {
+          @Override
+          public WaveletEntry apply(ReadableWaveletData wavelet) {
+            return wavelet != null ? WaveletEntry.of(wavelet) : null;
+          }
+        });
+      } catch (WaveletStateException e) {
+        LOG.warning("Failed to access wavelet " + waveletName, e);
+        return null;
+      }
+      if (entry != null) {
+        synchronized (lock) {
+          // An update indexed meanwhile may be newer than what was just read.
+          WaveletEntry existing = entries.getIfPresent(waveletName);
+          if (existing != null && existing.getVersion() >= entry.getVersion()) {
+            entry = existing;
+          } else {
+            entries.put(waveletName, entry);
+          }
+        }
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * Returns the waves of some participants whose matching wavelets include a
+   * conversational one, ordered by the last modified time of those, then by
+   * wave id. The order is exact when descending; when ascending, only if the
+   * filter accepts all the wavelets of the participants.
+   *
+   * @param participants the participants whose waves to search
+   * @param extraWaveletId a wavelet to match in each wave besides those of
+   *        the participants, or null
+   * @param filter matches the wavelets
+   * @param descending whether the most recently modified waves come first
+   */
+  public Iterator<WaveMatch> search(List<ParticipantId> participants, WaveletId extraWaveletId,
+      Predicate<WaveletEntry> filter, boolean descending) {
+    List<PostingList> lists = Lists.newArrayListWithCapacity(participants.size());
+    for (ParticipantId participant : participants) {
+      lists.add(getPostingList(participant));
+    }
+    return new MatchIterator(lists, extraWaveletId, filter, descending);
+  }
+
+  /**
+   * Returns the posting list of a participant, building it from its wave view
+   * and the indexed entries if needed.
+   */
+  private PostingList getPostingList(ParticipantId participant) {
+    PostingList list = postingLists.getIfPresent(participant);
+    if (list != null) {
+      return list;
+    }
+    // Loads the entries of the view outside the lock.
+    Multimap<WaveId, WaveletId> view = waveViewProvider.retrievePerUserWaveView(participant);
+    Map<WaveletName, WaveletEntry> loaded = Maps.newHashMap();
+    for (Map.Entry<WaveId, WaveletId> e : view.entries()) {
+      WaveletName waveletName = WaveletName.of(e.getKey(), e.getValue());
+      WaveletEntry entry = getWavelet(waveletName);
+      if (entry != null) {
+        loaded.put(waveletName, entry);
+      }
+    }
+    synchronized (lock) {
+      list = postingLists.getIfPresent(participant);
+      if (list != null) {
+        return list;
+      }
+      list = new PostingList();
+      // Entries updated meanwhile are newer, and indexed wavelets the view
+      // doesn't know about yet belong to the list too.
+      Map<WaveletName, WaveletEntry> current = Maps.newHashMap(loaded);
+      current.putAll(entries.asMap());
+      for (Map.Entry<WaveletName, WaveletEntry> e : current.entrySet()) {
+        if (e.getValue().getParticipants().contains(participant)) {
+          list.put(e.getKey().waveId, e.getValue());
+        }
+      }
+      postingLists.put(participant, list);
+      return list;
+    }
+  }
+
+  @Override
+  public void waveletUpdate(ReadableWaveletData wavelet, DeltaSequence deltas) {
+    WaveletName waveletName = WaveletName.of(wavelet.getWaveId(), wavelet.getWaveletId());
+    WaveletEntry entry = WaveletEntry.of(wavelet);
+    synchronized (lock) {
+      WaveletEntry previous = entries.getIfPresent(waveletName);
+      if (previous != null && previous.getVersion() > entry.getVersion()) {
+        // Delivered late, the index is already past it.
+        return;
+      }
+      entries.put(waveletName, entry);
+
+      Set<ParticipantId> affected = Sets.newHashSet(entry.getParticipants());
+      if (previous != null) {
+        affected.addAll(previous.getParticipants());
+      }
+      for (TransformedWaveletDelta delta : deltas) {
+        for (WaveletOperation op : delta) {
+          if (op instanceof RemoveParticipant) {
+            affected.add(((RemoveParticipant) op).getParticipantId());
+          }
+        }
+      }
+      for (ParticipantId participant : affected) {
+        PostingList list = postingLists.getIfPresent(participant);
+        if (list != null) {
+          if (entry.getParticipants().contains(participant)) {
+            list.put(waveletName.waveId, entry);
+          } else {
+            list.remove(waveletName.waveId, waveletName.waveletId);
+          }
+          postingLists.put(participant, list);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void waveletCommitted(WaveletName waveletName, HashedVersion version) {
+    // Committing does not change the indexed metadata.
+  }
+}
@@ -52,6 +52,7 @@ public class WaveServerModule extends AbstractModule {
   private final Executor waveletLoadExecutor;
   private final Executor storageContinuationExecutor;
   private final boolean enableFederation;
+  private final long deltaSnapshotInterval;
 
 
   @Inject
@@ -59,6 +60,7 @@ public class WaveServerModule extends AbstractModule {
       @WaveletLoadExecutor Executor waveletLoadExecutor,
       @StorageContinuationExecutor Executor storageContinuationExecutor) {
     this.enableFederation = config.getBoolean("federation.enable_federation");
+    this.deltaSnapshotInterval = config.getLong("core.delta_snapshot_interval");
     this.waveletLoadExecutor = waveletLoadExecutor;
     this.storageContinuationExecutor = storageContinuationExecutor;
   }
@@ -97,16 +99,26 @@ public class WaveServerModule extends AbstractModule {
     bind(HashedVersionFactory.class).toInstance(HASH_FACTORY);
   }
 
+  private DeltaStoreBasedWaveletState.Options stateOptions(DeltaGroupCommitter groupCommitter,
+      DeltaCache deltaCache) {
+    return DeltaStoreBasedWaveletState.Options.DEFAULTS
+        .withSnapshotInterval(deltaSnapshotInterval)
+        .withGroupCommitter(groupCommitter)
+        .withDeltaCache(deltaCache);
+  }
+
   @Provides
   @SuppressWarnings("unused")
   private LocalWaveletContainer.Factory provideLocalWaveletContainerFactory(
-      final DeltaStore deltaStore) {
+      final DeltaStore deltaStore, final DeltaGroupCommitter groupCommitter,
+      final DeltaCache deltaCache) {
+    final DeltaStoreBasedWaveletState.Options options = stateOptions(groupCommitter, deltaCache);
     return new LocalWaveletContainer.Factory() {
       @Override
       public LocalWaveletContainer create(WaveletNotificationSubscriber notifiee,
           WaveletName waveletName, String waveDomain) {
         return new LocalWaveletContainerImpl(waveletName, notifiee, loadWaveletState(
-            waveletLoadExecutor, deltaStore, waveletName, waveletLoadExecutor), waveDomain,
+            waveletLoadExecutor, deltaStore, waveletName, waveletLoadExecutor, options), waveDomain,
             storageContinuationExecutor);
       }
     };
@@ -115,13 +127,15 @@ public class WaveServerModule extends AbstractModule {
   @Provides
   @SuppressWarnings("unused")
   private RemoteWaveletContainer.Factory provideRemoteWaveletContainerFactory(
-      final DeltaStore deltaStore) {
+      final DeltaStore deltaStore, final DeltaGroupCommitter groupCommitter,
+      final DeltaCache deltaCache) {
+    final DeltaStoreBasedWaveletState.Options options = stateOptions(groupCommitter, deltaCache);
     return new RemoteWaveletContainer.Factory() {
       @Override
       public RemoteWaveletContainer create(WaveletNotificationSubscriber notifiee,
           WaveletName waveletName, String waveDomain) {
         return new RemoteWaveletContainerImpl(waveletName, notifiee, loadWaveletState(
-            waveletLoadExecutor, deltaStore, waveletName, waveletLoadExecutor),
+            waveletLoadExecutor, deltaStore, waveletName, waveletLoadExecutor, options),
             storageContinuationExecutor);
       }
     };
@@ -144,17 +158,21 @@ public class WaveServerModule extends AbstractModule {
    * Returns a future whose result is the state of the wavelet after it has been
    * loaded from storage. Any failure is reported as a
    * {@link PersistenceException}.
+   *
+   * @param options checkpoint, group commit and cache settings of the state
    */
   @VisibleForTesting
   static ListenableFuture<DeltaStoreBasedWaveletState> loadWaveletState(Executor executor,
-      final DeltaStore deltaStore, final WaveletName waveletName, final Executor persistExecutor) {
+      final DeltaStore deltaStore, final WaveletName waveletName, final Executor persistExecutor,
+      final DeltaStoreBasedWaveletState.Options options) {
     ListenableFutureTask<DeltaStoreBasedWaveletState> task =
         ListenableFutureTask.create(
            new Callable<DeltaStoreBasedWaveletState>() {
              @Override
              public DeltaStoreBasedWaveletState call() throws PersistenceException {
                return DeltaStoreBasedWaveletState.create(deltaStore.open(waveletName),
-                                                                persistExecutor);
+                                                                persistExecutor,
+                                                                options);
              }
            });
     executor.execute(task);
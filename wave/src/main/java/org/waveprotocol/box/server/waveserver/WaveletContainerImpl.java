@@ -36,9 +36,6 @@ import org.waveprotocol.box.common.ListReceiver;
 import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
 import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.operation.OperationException;
-import org.waveprotocol.wave.model.operation.OperationPair;
-import org.waveprotocol.wave.model.operation.TransformException;
-import org.waveprotocol.wave.model.operation.wave.Transform;
 import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
 import org.waveprotocol.wave.model.operation.wave.WaveletDelta;
 import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
@@ -300,7 +297,7 @@ abstract class WaveletContainerImpl implements WaveletContainer {
     acquireReadLock();
     try {
       checkStateOk();
-      return WaveletDataUtil.copyWavelet(waveletState.getSnapshot());
+      return WaveletDataUtil.copyWaveletShared(waveletState.getSnapshot());
     } finally {
       releaseReadLock();
     }
@@ -383,6 +380,12 @@ abstract class WaveletContainerImpl implements WaveletContainer {
     // ensure that clientOps.equals() works correctly below (because
     // WaveletDelta breaks the List.equals() contract)
     List<WaveletOperation> clientOps = Lists.newArrayList(submittedDelta);
+    if (!clientOps.isEmpty() && !hasAuthor(serverDeltas, clientAuthor)) {
+      // No server delta can be a duplicate of the client delta, so the client
+      // ops are transformed against the server history of their blips at once.
+      return new WaveletDelta(clientAuthor, currentVersion,
+          DeltaTransformer.transformOpsByBlip(clientOps, serverDeltas));
+    }
     for (TransformedWaveletDelta serverDelta : serverDeltas) {
       // If the client delta transforms to nothing before we've traversed all
       // the server deltas, return the version at which the delta was
@@ -396,38 +399,20 @@ abstract class WaveletContainerImpl implements WaveletContainer {
         // This is a duplicate of the server delta.
         return new WaveletDelta(clientAuthor, targetVersion, clientOps);
       }
-      clientOps = transformOps(clientOps, serverDelta);
+      clientOps = DeltaTransformer.transformOps(clientOps, serverDelta);
       targetVersion = serverDelta.getResultingVersion();
     }
     Preconditions.checkState(targetVersion.equals(currentVersion));
     return new WaveletDelta(clientAuthor, targetVersion, clientOps);
   }
 
-  /**
-   * Transforms the specified client operations against the specified server operations,
-   * returning the transformed client operations in a new list.
-   *
-   * @param clientOps may be unmodifiable
-   * @param serverOps may be unmodifiable
-   * @return transformed client ops
-   */
-  private List<WaveletOperation> transformOps(List<WaveletOperation> clientOps,
-      List<WaveletOperation> serverOps) throws OperationException {
-    List<WaveletOperation> transformedClientOps = Lists.newArrayList();
-
-    for (WaveletOperation c : clientOps) {
-      for (WaveletOperation s : serverOps) {
-        OperationPair<WaveletOperation> pair;
-        try {
-          pair = Transform.transform(c, s);
-        } catch (TransformException e) {
-          throw new OperationException(e);
-        }
-        c = pair.clientOp();
+  private static boolean hasAuthor(DeltaSequence deltas, ParticipantId author) {
+    for (TransformedWaveletDelta delta : deltas) {
+      if (author.equals(delta.getAuthor())) {
+        return true;
       }
-      transformedClientOps.add(c);
     }
-    return transformedClientOps;
+    return false;
   }
 
   /**
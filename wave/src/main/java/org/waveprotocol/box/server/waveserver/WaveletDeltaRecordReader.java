@@ -95,11 +95,13 @@ public interface WaveletDeltaRecordReader {
 
 
   /**
-   * Returns a range of deltas.
-   * 
-   * @param start
-   * @param end
-   * @param receiver
+   * Reads the stored deltas applied at versions from startVersion (inclusive)
+   * to endVersion (exclusive), in version order, with as few reads of the
+   * underlying storage as the implementation allows. Reading stops at the
+   * first version that isn't the start of a stored delta, or as soon as the
+   * receiver returns false.
+   *
+   * @return the number of deltas passed to the receiver
    */
   long getDeltasInRange(long startVersion, long endVersion, Receiver<WaveletDeltaRecord> receiver)
       throws IOException;
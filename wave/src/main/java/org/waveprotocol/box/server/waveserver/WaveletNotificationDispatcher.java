@@ -19,6 +19,7 @@
 
 package org.waveprotocol.box.server.waveserver;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
@@ -27,10 +28,18 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
 import com.google.inject.Inject;
 import com.google.protobuf.ByteString;
+import com.typesafe.config.Config;
 
 import org.waveprotocol.box.common.DeltaSequence;
 import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
+import org.waveprotocol.box.server.executor.ExecutorAnnotations.WaveBusExecutor;
+import org.waveprotocol.box.server.executor.KeyedSerialExecutor;
+import org.waveprotocol.box.server.stat.Counter;
+import org.waveprotocol.box.server.stat.Gauge;
+import org.waveprotocol.box.server.stat.LatencyHistogram;
+import org.waveprotocol.box.server.stat.MetricsRegistry;
 import org.waveprotocol.box.server.util.WaveletDataUtil;
+import org.waveprotocol.box.stat.Stat;
 import org.waveprotocol.wave.federation.FederationErrorProto.FederationError;
 import org.waveprotocol.wave.federation.FederationHostBridge;
 import org.waveprotocol.wave.federation.Proto.ProtocolHashedVersion;
@@ -41,13 +50,30 @@ import org.waveprotocol.wave.model.version.HashedVersion;
 import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 import org.waveprotocol.wave.util.logging.Log;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Forwards wave notifications to wave bus subscribers and remote wave servers.
  *
+ * Unless configured with no wave bus threads, subscribers are notified on the
+ * wave bus executor, after the wavelet lock held by the caller is released.
+ * Each subscriber has its own queue per wavelet, so it receives the updates
+ * of a wavelet in version order, and a slow subscriber delays neither the
+ * wave server nor the other subscribers. The notifications of a wavelet which
+ * a subscriber hasn't started to process yet are merged into one: the deltas
+ * are joined, the snapshot is the latest, and so is the committed version,
+ * delivered after the update as commits are anyway asynchronous. So a
+ * lagging subscriber holds at most one waiting snapshot per wavelet.
+ *
  * Swallows any runtime exception from a wave bus subscriber but not removes that
  * subscriber. The wave server used to do this swallowing but really things are
  * in bad shape if a subscriber throws a runtime exception.
@@ -55,7 +81,7 @@ import java.util.concurrent.ExecutionException;
  *
  * @author soren@google.com (Soren Lassen)
  */
-class WaveletNotificationDispatcher implements WaveBus, WaveletNotificationSubscriber {
+public class WaveletNotificationDispatcher implements WaveBus, WaveletNotificationSubscriber {
 
   private static final Log LOG = Log.get(WaveletNotificationDispatcher.class);
 
@@ -79,11 +105,131 @@ class WaveletNotificationDispatcher implements WaveBus, WaveletNotificationSubsc
     return serializedAppliedDeltas.build();
   }
 
+  /** Delivery lag of a wave bus subscriber. */
+  static final class SubscriberLag {
+    final AtomicInteger pending = new AtomicInteger();
+    final AtomicLong merged = new AtomicLong();
+    final AtomicLong lastLagMs = new AtomicLong();
+    final AtomicLong maxLagMs = new AtomicLong();
+
+    void delivered(long queuedMs) {
+      long lag = System.currentTimeMillis() - queuedMs;
+      pending.decrementAndGet();
+      lastLagMs.set(lag);
+      long max = maxLagMs.get();
+      while (lag > max && !maxLagMs.compareAndSet(max, lag)) {
+        max = maxLagMs.get();
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "pending " + pending + ", merged " + merged + ", last lag " + lastLagMs
+          + " ms, max lag " + maxLagMs + " ms";
+    }
+  }
+
+  @Stat(name = "wave-bus-subscriber-lag",
+      help = "Notifications waiting for each wave bus subscriber and their delivery lag")
+  static final ConcurrentMap<String, SubscriberLag> SUBSCRIBER_LAG =
+      new ConcurrentHashMap<String, SubscriberLag>();
+
+  private static final Counter MERGED = MetricsRegistry.getInstance()
+      .counter("wave_bus_merged_total",
+          "Wavelet notifications merged into a notification waiting for a lagging subscriber");
+
+  private static final LatencyHistogram DELIVERY_LAG = MetricsRegistry.getInstance()
+      .histogram("wave_bus_delivery_lag_us",
+          "Time in microseconds from a wavelet update to its delivery to a wave bus subscriber");
+
+  static {
+    MetricsRegistry.getInstance().gauge("wave_bus_pending",
+        "Wavelet updates waiting for delivery to wave bus subscribers", new Gauge() {
+          @Override
+          public long getValue() {
+            long pending = 0;
+            for (SubscriberLag lag : SUBSCRIBER_LAG.values()) {
+              pending += lag.pending.get();
+            }
+            return pending;
+          }
+        });
+  }
+
+  private static SubscriberLag lagOf(WaveBus.Subscriber s) {
+    String name = s.getClass().getSimpleName().isEmpty() ? s.getClass().getName()
+        : s.getClass().getSimpleName();
+    SubscriberLag lag = SUBSCRIBER_LAG.get(name);
+    if (lag == null) {
+      SUBSCRIBER_LAG.putIfAbsent(name, new SubscriberLag());
+      lag = SUBSCRIBER_LAG.get(name);
+    }
+    return lag;
+  }
+
+  /**
+   * Update and commit of a wavelet to deliver to a subscriber, either of
+   * which may be missing.
+   */
+  private static final class Notification {
+    final long queuedMs = System.currentTimeMillis();
+    final long queuedNanos = System.nanoTime();
+    ReadableWaveletData snapshot;
+    DeltaSequence deltas;
+    HashedVersion committed;
+
+    /** Merges the update of a later version. */
+    void addUpdate(ReadableWaveletData snapshot, DeltaSequence deltas) {
+      if (this.snapshot == null || this.deltas.isEmpty()) {
+        this.deltas = deltas;
+      } else if (!deltas.isEmpty()) {
+        this.deltas = DeltaSequence.join(this.deltas, deltas);
+      }
+      this.snapshot = snapshot;
+    }
+
+    void deliver(WaveBus.Subscriber s, WaveletName waveletName) {
+      if (snapshot != null) {
+        try {
+          s.waveletUpdate(snapshot, deltas);
+        } catch (RuntimeException e) {
+          LOG.severe("Runtime exception in update to wave bus subscriber " + s, e);
+        }
+      }
+      if (committed != null) {
+        try {
+          s.waveletCommitted(waveletName, committed);
+        } catch (RuntimeException e) {
+          LOG.severe("Runtime exception in commit to wave bus subscriber " + s, e);
+        }
+      }
+    }
+  }
+
+  /** Notification queues of a subscriber, keyed by wavelet. */
+  private static final class SubscriberQueue {
+    final KeyedSerialExecutor<WaveletName> executor;
+    final SubscriberLag lag;
+
+    /** Notifications not yet started, at most one per wavelet. Guarded by itself. */
+    final Map<WaveletName, Notification> waiting = new HashMap<WaveletName, Notification>();
+
+    SubscriberQueue(Executor executor, SubscriberLag lag) {
+      this.executor = new KeyedSerialExecutor<WaveletName>(executor);
+      this.lag = lag;
+    }
+  }
+
   private final ImmutableSet<String> localDomains;
   private final WaveletFederationListener.Factory federationHostFactory;
   private final CopyOnWriteArraySet<WaveBus.Subscriber> subscribers =
       new CopyOnWriteArraySet<WaveBus.Subscriber>();
 
+  /** Executor notifying subscribers, or null to notify them on the caller thread. */
+  private final Executor waveBusExecutor;
+  private final ConcurrentMap<WaveBus.Subscriber, SubscriberQueue> queues =
+      new ConcurrentHashMap<WaveBus.Subscriber, SubscriberQueue>();
+
   /** Maps remote domains to wave server stubs for those domains. */
   private final LoadingCache<String, WaveletFederationListener> federationHosts =
       CacheBuilder.newBuilder().build(new CacheLoader<String, WaveletFederationListener>() {
@@ -99,35 +245,118 @@ class WaveletNotificationDispatcher implements WaveBus, WaveletNotificationSubsc
    * @param certificateManager knows what the local domains are
    * @param federationHostFactory manufactures federation host instances for
    *        remote domains
+   * @param waveBusExecutor executes the notifications of subscribers
+   * @param config the wave bus is synchronous if it has no threads
    */
   @Inject
   public WaveletNotificationDispatcher(
       CertificateManager certificateManager,
-      @FederationHostBridge WaveletFederationListener.Factory federationHostFactory) {
+      @FederationHostBridge WaveletFederationListener.Factory federationHostFactory,
+      @WaveBusExecutor Executor waveBusExecutor, Config config) {
+    this(certificateManager, federationHostFactory, config
+        .getInt("threads.wave_bus_executor_thread_count") != 0 ? waveBusExecutor : null);
+  }
+
+  /**
+   * @param waveBusExecutor executes the notifications of subscribers, or null
+   *        to notify them on the caller thread
+   */
+  @VisibleForTesting
+  WaveletNotificationDispatcher(CertificateManager certificateManager,
+      WaveletFederationListener.Factory federationHostFactory, Executor waveBusExecutor) {
     this.localDomains = certificateManager.getLocalDomains();
     this.federationHostFactory = federationHostFactory;
+    this.waveBusExecutor = waveBusExecutor;
   }
 
   @Override
   public void subscribe(Subscriber s) {
+    if (waveBusExecutor != null) {
+      queues.putIfAbsent(s, new SubscriberQueue(waveBusExecutor, lagOf(s)));
+    }
     subscribers.add(s);
   }
 
   @Override
   public void unsubscribe(Subscriber s) {
     subscribers.remove(s);
+    queues.remove(s);
+  }
+
+  /**
+   * Delivers the update and/or commit of a wavelet to a subscriber, after the
+   * previous notifications of the wavelet to the subscriber. Merges them into
+   * the waiting notification of the wavelet, if any.
+   */
+  private void deliver(final WaveBus.Subscriber s, final WaveletName waveletName,
+      ReadableWaveletData snapshot, DeltaSequence deltas, HashedVersion committed) {
+    final SubscriberQueue queue = (waveBusExecutor != null) ? queues.get(s) : null;
+    final Notification notification;
+    if (queue != null) {
+      synchronized (queue.waiting) {
+        Notification waiting = queue.waiting.get(waveletName);
+        if (waiting != null) {
+          if (snapshot != null) {
+            waiting.addUpdate(snapshot, deltas);
+          }
+          if (committed != null) {
+            waiting.committed = committed;
+          }
+          queue.lag.merged.incrementAndGet();
+          MERGED.inc();
+          return;
+        }
+        notification = new Notification();
+        queue.waiting.put(waveletName, notification);
+      }
+    } else {
+      notification = new Notification();
+    }
+    if (snapshot != null) {
+      notification.addUpdate(snapshot, deltas);
+    }
+    notification.committed = committed;
+    if (queue == null) {
+      notification.deliver(s, waveletName);
+      return;
+    }
+
+    queue.lag.pending.incrementAndGet();
+    try {
+      queue.executor.execute(waveletName, new Runnable() {
+        @Override
+        public void run() {
+          synchronized (queue.waiting) {
+            queue.waiting.remove(waveletName);
+          }
+          try {
+            notification.deliver(s, waveletName);
+          } finally {
+            queue.lag.delivered(notification.queuedMs);
+            DELIVERY_LAG.recordSince(notification.queuedNanos);
+          }
+        }
+      });
+    } catch (RuntimeException e) {
+      synchronized (queue.waiting) {
+        queue.waiting.remove(waveletName);
+      }
+      queue.lag.pending.decrementAndGet();
+      throw e;
+    }
   }
 
   @Override
   public void waveletUpdate(ReadableWaveletData wavelet, ImmutableList<WaveletDeltaRecord> deltas,
       ImmutableSet<String> domainsToNotify) {
+    WaveletName waveletName = WaveletDataUtil.waveletNameOf(wavelet);
     DeltaSequence sequence = DeltaSequence.of(transformedDeltasOf(deltas));
+    // The wavelet keeps changing after the caller releases its lock, so
+    // asynchronous subscribers get a copy of this version.
+    ReadableWaveletData snapshot = (waveBusExecutor != null && !subscribers.isEmpty())
+        ? WaveletDataUtil.copyWaveletShared(wavelet) : wavelet;
     for (WaveBus.Subscriber s : subscribers) {
-      try {
-        s.waveletUpdate(wavelet, sequence);
-      } catch (RuntimeException e) {
-        LOG.severe("Runtime exception in update to wave bus subscriber " + s, e);
-      }
+      deliver(s, waveletName, snapshot, sequence, null);
     }
 
     Set<String> remoteDomainsToNotify = Sets.difference(domainsToNotify, localDomains);
@@ -135,8 +364,8 @@ class WaveletNotificationDispatcher implements WaveBus, WaveletNotificationSubsc
       ImmutableList<ByteString> serializedAppliedDeltas = serializedAppliedDeltasOf(deltas);
       for (String domain : remoteDomainsToNotify) {
         try {
-          federationHosts.get(domain).waveletDeltaUpdate(WaveletDataUtil.waveletNameOf(wavelet),
-              serializedAppliedDeltas, federationCallback("delta update"));
+          federationHosts.get(domain).waveletDeltaUpdate(waveletName, serializedAppliedDeltas,
+              federationCallback("delta update"));
         } catch (ExecutionException ex) {
           throw new RuntimeException(ex);
         }
@@ -148,11 +377,7 @@ class WaveletNotificationDispatcher implements WaveBus, WaveletNotificationSubsc
   public void waveletCommitted(WaveletName waveletName, HashedVersion version,
       ImmutableSet<String> domainsToNotify) {
     for (WaveBus.Subscriber s : subscribers) {
-      try {
-        s.waveletCommitted(waveletName, version);
-      } catch (RuntimeException e) {
-        LOG.severe("Runtime exception in commit to wave bus subscriber " + s, e);
-      }
+      deliver(s, waveletName, null, null, version);
     }
 
     Set<String> remoteDomainsToNotify = Sets.difference(domainsToNotify, localDomains);
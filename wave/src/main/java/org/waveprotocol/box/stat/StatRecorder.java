@@ -31,7 +31,9 @@ import java.util.Map;
 class StatRecorder {
 
   private final StatStore globalStore = new StatStore();
-  private final Map<String, StatStore> sessionsStore = new HashMap<>();
+  /** Stores by session key. Never modified once published. */
+  private volatile Map<String, StatStore> sessionsStore = new HashMap<>();
+  private volatile MeasurementListener listener;
 
   StatRecorder() {
   }
@@ -43,17 +45,35 @@ class StatRecorder {
     return globalStore;
   }
 
-  synchronized StatStore getSessionStore() {
+  StatStore getSessionStore() {
     if (getSessionContext() != null) {
-      StatStore store = sessionsStore.get(getSessionContext().getSessionKey());
+      String sessionKey = getSessionContext().getSessionKey();
+      StatStore store = sessionsStore.get(sessionKey);
       if (store == null) {
-        sessionsStore.put(getSessionContext().getSessionKey(), store = new StatStore());
+        store = addSessionStore(sessionKey);
       }
       return store;
     }
     return null;
   }
 
+  private synchronized StatStore addSessionStore(String sessionKey) {
+    StatStore store = sessionsStore.get(sessionKey);
+    if (store == null) {
+      Map<String, StatStore> copy = new HashMap<>(sessionsStore);
+      copy.put(sessionKey, store = new StatStore());
+      sessionsStore = copy;
+    }
+    return store;
+  }
+
+  /**
+   * Sets the listener of recorded measurements, or null for none.
+   */
+  void setListener(MeasurementListener listener) {
+    this.listener = listener;
+  }
+
   /**
    * Records a single incident of measure and duration in millis with threshold.
    */
@@ -62,6 +82,10 @@ class StatRecorder {
       getSessionStore().recordMeasurement(name, module, duration, threshold);
     }
     globalStore.recordMeasurement(name, module, duration, threshold);
+    MeasurementListener l = listener;
+    if (l != null) {
+      l.measured(name, duration);
+    }
   }
 
   /**
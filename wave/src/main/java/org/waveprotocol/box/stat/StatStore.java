@@ -31,41 +31,58 @@ import com.google.common.collect.ImmutableList;
 /**
  * Store for profiling statistic.
  *
+ * Measurements are recorded without a store-wide lock: the map of measurements
+ * is replaced by a copy when a new name is added, and each measurement is
+ * sampled under its own lock.
+ *
  * @author akaplanov@gmail.com (A. Kaplanov)
  */
 class StatStore {
 
   private static int MAX_REQUESTS = 100;
 
-  private volatile int queueSize = 0;
+  private int queueSize = 0;
   private final Queue<ExecutionNode> profiledRequests = new LinkedList<>();
-  private final Map<String, Measurement> measurements = new HashMap<>();
+  /** Measurements by name. Never modified once published. */
+  private volatile Map<String, Measurement> measurements = new HashMap<>();
 
   StatStore() {
   }
 
-  synchronized void recordMeasurement(String name, String module, int duration, int threshold) {
+  void recordMeasurement(String name, String module, int duration, int threshold) {
     Measurement m = measurements.get(name);
     if (m == null) {
-      measurements.put(name, m = new Measurement());
+      m = addMeasurement(name);
     }
     m.sample(duration);
     m.setThreshold(threshold);
   }
 
-  synchronized void storeRequest(ExecutionNode node) {
-    if (profiledRequests.offer(node)) {
-      queueSize++;
+  private synchronized Measurement addMeasurement(String name) {
+    Measurement m = measurements.get(name);
+    if (m == null) {
+      Map<String, Measurement> copy = new HashMap<>(measurements);
+      copy.put(name, m = new Measurement());
+      measurements = copy;
     }
+    return m;
+  }
 
-    // Remove items from the queue while there are items to remove.
-    if (queueSize > MAX_REQUESTS) {
-      profiledRequests.poll();
-      queueSize--;
+  void storeRequest(ExecutionNode node) {
+    synchronized (profiledRequests) {
+      if (profiledRequests.offer(node)) {
+        queueSize++;
+      }
+
+      // Remove items from the queue while there are items to remove.
+      if (queueSize > MAX_REQUESTS) {
+        profiledRequests.poll();
+        queueSize--;
+      }
     }
   }
 
-  synchronized List<Pair<String, Measurement>> getMeasurements() {
+  List<Pair<String, Measurement>> getMeasurements() {
     LinkedList<Pair<String, Measurement>> list = new LinkedList<>();
     for (Map.Entry<String, Measurement> entry : measurements.entrySet()) {
       list.add(Pair.of(entry.getKey(), entry.getValue()));
@@ -73,13 +90,17 @@ class StatStore {
     return list;
   }
 
-  synchronized List<ExecutionNode> getProfiledRequests() {
-    return ImmutableList.copyOf(profiledRequests);
+  List<ExecutionNode> getProfiledRequests() {
+    synchronized (profiledRequests) {
+      return ImmutableList.copyOf(profiledRequests);
+    }
   }
 
   synchronized void clear() {
-    queueSize = 0;
-    profiledRequests.clear();
-    measurements.clear();
+    synchronized (profiledRequests) {
+      queueSize = 0;
+      profiledRequests.clear();
+    }
+    measurements = new HashMap<>();
   }
 }
@@ -41,6 +41,13 @@ public class Timing {
     return statsRecorder;
   }
 
+  /**
+   * Sets the listener of every recorded measurement, or null for none.
+   */
+  public static void setMeasurementListener(MeasurementListener listener) {
+    statsRecorder.setListener(listener);
+  }
+
   /**
    * Enables/disables statistic.
    */
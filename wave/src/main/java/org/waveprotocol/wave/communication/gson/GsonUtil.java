@@ -25,10 +25,14 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import org.waveprotocol.wave.communication.json.JsonLongHelper;
 import org.waveprotocol.wave.communication.json.RawStringData;
 
+import java.io.IOException;
+
 
 /**
  * Utilities for working with GsonSerializable objects
@@ -148,6 +152,27 @@ public class GsonUtil {
     return JsonLongHelper.toLong(arr.get(1).getAsInt(), arr.get(0).getAsInt());
   }
 
+  /**
+   * Writes a 64-bit long value as the two-number array of {@link #toJson(long)}.
+   */
+  public static void writeLong(JsonWriter out, long value) throws IOException {
+    out.beginArray();
+    out.value(JsonLongHelper.getLowWord(value));
+    out.value(JsonLongHelper.getHighWord(value));
+    out.endArray();
+  }
+
+  /**
+   * Reads a two-number array from {@link #writeLong} into a long.
+   */
+  public static long readLong(JsonReader in) throws IOException {
+    in.beginArray();
+    int lowWord = in.nextInt();
+    int highWord = in.nextInt();
+    in.endArray();
+    return JsonLongHelper.toLong(highWord, lowWord);
+  }
+
   private GsonUtil() {
   }
 }
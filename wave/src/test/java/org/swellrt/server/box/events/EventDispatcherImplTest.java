@@ -2,6 +2,9 @@ package org.swellrt.server.box.events;
 
 import junit.framework.TestCase;
 
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
@@ -9,6 +12,8 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class EventDispatcherImplTest extends TestCase {
 
@@ -18,8 +23,12 @@ public class EventDispatcherImplTest extends TestCase {
   }
 
   protected EventDispatcherImpl getDispatcher() {
+    return new EventDispatcherImpl(getQueue());
+  }
+
+  protected EventQueue getQueue() {
 
-    EventDispatcherImpl dispatcher = new EventDispatcherImpl(new EventQueue() {
+    return new EventQueue() {
 
       @Override
       public void registerListener(EventQueueListener listener) {
@@ -45,9 +54,7 @@ public class EventDispatcherImplTest extends TestCase {
       public void add(Event event) {
 
       }
-    });
-
-    return dispatcher;
+    };
   }
 
   protected EventDispatcherImpl initialize(EventDispatcherImpl dispatcher)
@@ -283,4 +290,70 @@ public class EventDispatcherImplTest extends TestCase {
 
   }
 
+  /**
+   * Test events are sent by the target workers and dropped when their queue
+   * is full
+   *
+   * @throws Exception
+   */
+  public void testSlowTargetDoesNotBlockMatching() throws Exception {
+
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch dispatched = new CountDownLatch(2);
+
+    EventDispatcherImpl dispatcher =
+        initialize(new EventDispatcherImpl(getQueue(), 1, 1, EventOverflowPolicy.DROP));
+
+    dispatcher.getTargets().put("test_dispatcher", new EventDispatcherTarget() {
+
+      @Override
+      public String getName() {
+        return "test_dispatcher";
+      }
+
+      @Override
+      public void dispatch(EventRule rule, Event event, String payload) {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        dispatched.countDown();
+      }
+
+    });
+
+    Map<String, String> eventContextData = new HashMap<String, String>();
+    eventContextData.put("root.condition_one", "pickme");
+    eventContextData.put("root.condition_two", "pickme");
+    eventContextData.put("root.data.fieldtwo", "AAAA");
+    eventContextData.put("root.data.fieldthree", "BBBB");
+
+    Event.Builder builder = new Event.Builder();
+    builder.app("APP_01").dataType("DATATYPE_01").waveId(WaveId.of("example.com", "s+abc"))
+        .waveletId(WaveletId.of("example.com", "swl+root")).contextData(eventContextData);
+    Event event = builder.build(Event.Type.MAP_ENTRY_UPDATED, "root.data.map.value");
+
+    long dropped = EventDispatcherImpl.DROPPED.get();
+    long sent = EventDispatcherImpl.DISPATCHED.get();
+
+    // The worker holds the first event, the second one waits in the queue
+    dispatcher.onEvent(event);
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    dispatcher.onEvent(event);
+    dispatcher.onEvent(event);
+
+    assertEquals(dropped + 1, EventDispatcherImpl.DROPPED.get());
+
+    release.countDown();
+    assertTrue(dispatched.await(5, TimeUnit.SECONDS));
+    // Counters are updated after the target returns
+    for (int i = 0; i < 50 && EventDispatcherImpl.DISPATCHED.get() < sent + 2; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(sent + 2, EventDispatcherImpl.DISPATCHED.get());
+  }
+
 }
@@ -0,0 +1,106 @@
+package org.swellrt.server.box.events;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class EventQueueImplTest extends TestCase {
+
+  private static Event newEvent() {
+    Event.Builder builder = new Event.Builder();
+    builder.app("APP_01").dataType("DATATYPE_01").waveId(WaveId.of("example.com", "s+abc"))
+        .waveletId(WaveletId.of("example.com", "swl+root"))
+        .contextData(new HashMap<String, String>());
+    return builder.build(Event.Type.MAP_ENTRY_UPDATED, "root.data");
+  }
+
+  public void testSynchronousQueueDeliversOnCallerThread() {
+    final Thread caller = Thread.currentThread();
+    final boolean[] delivered = new boolean[1];
+    EventQueueImpl queue = new EventQueueImpl();
+    queue.registerListener(new EventQueueListener() {
+
+      @Override
+      public void onEvent(Event event) {
+        delivered[0] = Thread.currentThread() == caller;
+      }
+    });
+
+    queue.add(newEvent());
+
+    assertTrue(delivered[0]);
+  }
+
+  public void testEventsAreDeliveredByConsumers() throws InterruptedException {
+    final CountDownLatch delivered = new CountDownLatch(3);
+    EventQueueImpl queue = new EventQueueImpl(10, 2, EventOverflowPolicy.DROP);
+    queue.registerListener(new EventQueueListener() {
+
+      @Override
+      public void onEvent(Event event) {
+        delivered.countDown();
+      }
+    });
+
+    queue.add(newEvent());
+    queue.add(newEvent());
+    queue.add(newEvent());
+
+    assertTrue(delivered.await(5, TimeUnit.SECONDS));
+  }
+
+  public void testEventsAreDroppedWhenFull() throws InterruptedException {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    EventQueueImpl queue = new EventQueueImpl(2, 1, EventOverflowPolicy.DROP);
+    queue.registerListener(new EventQueueListener() {
+
+      @Override
+      public void onEvent(Event event) {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+
+    long dropped = EventQueueImpl.DROPPED.get();
+
+    // The consumer holds the first event, two more fill the queue
+    queue.add(newEvent());
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    queue.add(newEvent());
+    queue.add(newEvent());
+    queue.add(newEvent());
+
+    assertEquals(2, queue.getDepth());
+    assertEquals(dropped + 1, EventQueueImpl.DROPPED.get());
+
+    release.countDown();
+  }
+
+  public void testListenerFailureDoesNotStopDelivery() throws InterruptedException {
+    final CountDownLatch delivered = new CountDownLatch(2);
+    EventQueueImpl queue = new EventQueueImpl(10, 1, EventOverflowPolicy.BLOCK);
+    queue.registerListener(new EventQueueListener() {
+
+      @Override
+      public void onEvent(Event event) {
+        delivered.countDown();
+        throw new RuntimeException("Listener failure");
+      }
+    });
+
+    queue.add(newEvent());
+    queue.add(newEvent());
+
+    assertTrue(delivered.await(5, TimeUnit.SECONDS));
+  }
+}
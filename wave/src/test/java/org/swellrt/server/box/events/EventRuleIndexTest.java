@@ -0,0 +1,80 @@
+package org.swellrt.server.box.events;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+public class EventRuleIndexTest extends TestCase {
+
+  private EventRule exact;
+  private EventRule wildcard;
+  private EventRule other;
+  private EventRule rootOnly;
+  private EventRuleIndex index;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    exact = new EventRule("R1", "APP_01", "DATATYPE_01", Event.Type.MAP_ENTRY_UPDATED,
+        "root.data.list.3.value");
+    wildcard = new EventRule("R2", "APP_01", "DATATYPE_01", Event.Type.MAP_ENTRY_UPDATED,
+        "root.data.list.?.value");
+    other = new EventRule("R3", "APP_01", "DATATYPE_01", Event.Type.LIST_ITEM_ADDED,
+        "root.data.list");
+    rootOnly = new EventRule("R4", "APP_01", "DATATYPE_02", Event.Type.MAP_ENTRY_UPDATED,
+        "root");
+    index = new EventRuleIndex(Arrays.asList(exact, wildcard, other, rootOnly));
+  }
+
+  private static Event event(String dataType, Event.Type type, String path) {
+    Event.Builder builder = new Event.Builder();
+    builder.app("APP_01").dataType(dataType).contextData(new HashMap<String, String>());
+    return builder.build(type, path);
+  }
+
+  private void assertCandidates(Event event, EventRule... expected) {
+    List<EventRule> candidates = index.getCandidates(event);
+    assertEquals(expected.length, candidates.size());
+    assertEquals(new HashSet<EventRule>(Arrays.asList(expected)),
+        new HashSet<EventRule>(candidates));
+  }
+
+  public void testWildcardsMatchAnySegment() {
+    assertCandidates(event("DATATYPE_01", Event.Type.MAP_ENTRY_UPDATED, "root.data.list.3.value"),
+        exact, wildcard);
+    assertCandidates(event("DATATYPE_01", Event.Type.MAP_ENTRY_UPDATED, "root.data.list.7.value"),
+        wildcard);
+  }
+
+  public void testPathsOfOtherLengthDontMatch() {
+    assertCandidates(event("DATATYPE_01", Event.Type.MAP_ENTRY_UPDATED, "root.data.list.3"));
+    assertCandidates(event("DATATYPE_01", Event.Type.MAP_ENTRY_UPDATED,
+        "root.data.list.3.value.x"));
+  }
+
+  public void testEventTypeAndClassMustMatch() {
+    assertCandidates(event("DATATYPE_01", Event.Type.LIST_ITEM_ADDED, "root.data.list"), other);
+    assertCandidates(event("DATATYPE_01", Event.Type.MAP_ENTRY_UPDATED, "root.data.list"));
+    assertCandidates(event("DATATYPE_09", Event.Type.LIST_ITEM_ADDED, "root.data.list"));
+  }
+
+  public void testRootPathsMatchVerbatim() {
+    assertCandidates(event("DATATYPE_02", Event.Type.MAP_ENTRY_UPDATED, "root"), rootOnly);
+    assertCandidates(event("DATATYPE_02", Event.Type.MAP_ENTRY_UPDATED, "other"));
+  }
+
+  public void testCandidatesAgreeWithRuleMatching() {
+    for (String path : new String[] {"root.data.list.3.value", "x.data.list.1.value",
+        "root.data.list", "root", "root.data"}) {
+      for (Event.Type type : Event.Type.values()) {
+        Event event = event("DATATYPE_01", type, path);
+        for (EventRule rule : Arrays.asList(exact, wildcard, other, rootOnly)) {
+          assertEquals(rule.match(event), index.getCandidates(event).contains(rule));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package org.swellrt.server.box.index;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.mongodb.BasicDBObject;
+
+import org.swellrt.model.WaveletBasedTestBase;
+import org.swellrt.model.unmutable.UnmutableModel;
+import org.waveprotocol.wave.model.document.Doc;
+import org.waveprotocol.wave.model.document.Document;
+import org.waveprotocol.wave.model.document.util.DocHelper;
+import org.waveprotocol.wave.model.operation.SilentOperationSink;
+import org.waveprotocol.wave.model.operation.wave.NoOp;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperationContext;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.DocumentOperationSink;
+
+import java.util.Collections;
+
+
+public class ModelIndexStateTest extends WaveletBasedTestBase {
+
+  private static final ParticipantId AUTHOR = ParticipantId.ofUnsafe("tom@example.com");
+
+  private ModelIndexState state;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    state = ModelIndexerVisitor.runTracked(model(), null, 10).second;
+  }
+
+  private UnmutableModel model() {
+    return UnmutableModel.create(getWaveletData());
+  }
+
+  private Document document(String documentId) {
+    DocumentOperationSink content = getWaveletData().getDocument(documentId).getContent();
+    content.init(SilentOperationSink.VOID);
+    return content.getMutableDocument();
+  }
+
+  private Doc.E child(Document doc, String tagName, int index) {
+    Doc.N node = doc.getFirstChild(DocHelper.getElementWithTagName(doc, tagName));
+    for (int i = 0; i < index; i++) {
+      node = doc.getNextSibling(node);
+    }
+    return doc.asElement(node);
+  }
+
+  private BasicDBObject update(String... documentIds) {
+    return state.update(model(), ImmutableSet.copyOf(documentIds), false,
+        new ModelIndexerVisitor(null), 11);
+  }
+
+  private static TransformedWaveletDelta delta(long appliedAtVersion) {
+    return TransformedWaveletDelta.cloneOperations(AUTHOR,
+        HashedVersion.unsigned(appliedAtVersion + 1), 0L,
+        ImmutableList.of(new NoOp(new WaveletOperationContext(AUTHOR, 0L, 1))));
+  }
+
+  public void testStateTracksDocuments() {
+    assertTrue(state.isComplete());
+    assertEquals(10, state.getVersion());
+    assertEquals(Collections.singletonMap("b+0001", "root.key5"), state.getTextPaths());
+  }
+
+  public void testChangedValueIsSet() {
+    Document doc = document("map+root");
+    doc.setElementAttribute(child(doc, "values", 0), "v", "Changed string 0");
+
+    BasicDBObject update = update("map+root");
+
+    assertEquals(new BasicDBObject("$set", new BasicDBObject("root.key0", "Changed string 0")),
+        update);
+    assertEquals(11, state.getVersion());
+    // The tracked entries are up to date
+    assertTrue(update("map+root").isEmpty());
+  }
+
+  public void testChangedListValueIsSet() {
+    Document doc = document("list+0001");
+    doc.setElementAttribute(child(doc, "values", 1), "v", "Changed string 5");
+
+    assertEquals(new BasicDBObject("$set", new BasicDBObject("root.key2.1", "Changed string 5")),
+        update("list+0001"));
+  }
+
+  public void testRemovedValueIsUnset() {
+    Document doc = document("map+0001");
+    doc.deleteNode(child(doc, "map", 0));
+
+    assertEquals(new BasicDBObject("$unset", new BasicDBObject("root.key1.key10", "")),
+        update("map+0001"));
+  }
+
+  public void testChangedTextIsSet() {
+    BasicDBObject set = (BasicDBObject) update("b+0001").get("$set");
+    assertEquals("foo", ((BasicDBObject) set.get("root.key5")).get("excerpt"));
+  }
+
+  public void testStructureChangeRequiresFullIndex() {
+    Document doc = document("map+root");
+    doc.setElementAttribute(child(doc, "map", 1), "v", "map+0002");
+
+    assertNull(update("map+root"));
+    assertEquals(10, state.getVersion());
+  }
+
+  public void testRemovedContainerRequiresFullIndex() {
+    Document doc = document("map+0002");
+    doc.deleteNode(child(doc, "map", 1));
+
+    assertNull(update("map+0002"));
+  }
+
+  public void testUntrackedDocumentsAreIgnored() {
+    assertTrue(update("map+0009").isEmpty());
+  }
+
+  public void testCanApplyContiguousDeltas() {
+    assertTrue(state.canApply(ImmutableList.of(delta(11), delta(10))));
+    assertTrue(state.canApply(ImmutableList.of(delta(9), delta(10))));
+    assertFalse(state.canApply(ImmutableList.of(delta(11))));
+    assertFalse(state.canApply(ImmutableList.of(delta(10), delta(12))));
+  }
+}
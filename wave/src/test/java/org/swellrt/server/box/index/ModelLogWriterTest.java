@@ -0,0 +1,150 @@
+package org.swellrt.server.box.index;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+import junit.framework.TestCase;
+
+import org.mockito.ArgumentCaptor;
+import org.waveprotocol.wave.model.document.util.EmptyDocument;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.BlipContentOperation;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperationContext;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.List;
+import java.util.Map;
+
+
+public class ModelLogWriterTest extends TestCase {
+
+  private static final WaveletName WAVELET_NAME = WaveletName.of(
+      WaveId.of("example.com", "s+abc"), WaveletId.of("example.com", "swl+root"));
+
+  private static final Map<String, String> PATHS =
+      ImmutableMap.of("b+1", "root.text1", "b+2", "root.text2");
+
+  private DBCollection logStore;
+  private ModelLogWriter writer;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    logStore = mock(DBCollection.class);
+    writer = new ModelLogWriter(logStore, MoreExecutors.sameThreadExecutor());
+  }
+
+  private static TransformedWaveletDelta delta(String author, String blipId, long version) {
+    ParticipantId p = ParticipantId.ofUnsafe(author);
+    WaveletOperationContext context = new WaveletOperationContext(p, version * 100, 1);
+    return TransformedWaveletDelta.cloneOperations(p, HashedVersion.unsigned(version + 1),
+        version * 100, ImmutableList.of(new WaveletBlipOperation(blipId,
+            new BlipContentOperation(context, EmptyDocument.EMPTY_DOCUMENT))));
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<DBObject> captureInserts() {
+    ArgumentCaptor<List> inserts = ArgumentCaptor.forClass(List.class);
+    verify(logStore, times(1)).insert(inserts.capture(), eq(WriteConcern.ACKNOWLEDGED));
+    return inserts.getValue();
+  }
+
+  public void testRunsOfSameAuthorAreJoined() {
+    List<TransformedWaveletDelta> deltas = ImmutableList.of(
+        delta("tom@example.com", "b+1", 10), delta("tom@example.com", "b+1", 11),
+        delta("sam@example.com", "b+1", 12), delta("tom@example.com", "b+2", 13),
+        delta("tom@example.com", "b+1", 14), delta("tom@example.com", "b+9", 15));
+
+    writer.log(WAVELET_NAME, deltas, PATHS);
+
+    List<DBObject> inserts = captureInserts();
+    assertEquals(4, inserts.size());
+    assertEntry(inserts.get(0), "b+1", "tom@example.com", 10, 12);
+    assertEntry(inserts.get(1), "b+1", "sam@example.com", 12, 13);
+    assertEntry(inserts.get(2), "b+1", "tom@example.com", 14, 15);
+    assertEntry(inserts.get(3), "b+2", "tom@example.com", 13, 14);
+    assertEquals(1000L, inserts.get(0).get("starttimestamp"));
+    assertEquals(1100L, inserts.get(0).get("endtimestamp"));
+    assertEquals("root.text2", inserts.get(3).get("path"));
+    verify(logStore, never()).remove(any(DBObject.class), any(WriteConcern.class));
+  }
+
+  public void testLastStoredEntryIsExtended() {
+    BasicDBObject stored = new BasicDBObject("_id", "id1").append("blipid", "b+1")
+        .append("author", "tom@example.com").append("startversion", 2L)
+        .append("starttimestamp", 200L).append("endversion", 10L).append("endtimestamp", 900L);
+    when(logStore.findOne(any(DBObject.class), any(DBObject.class), any(DBObject.class)))
+        .thenReturn(stored);
+
+    writer.log(WAVELET_NAME, ImmutableList.of(delta("tom@example.com", "b+1", 10)), PATHS);
+
+    List<DBObject> inserts = captureInserts();
+    assertEquals(1, inserts.size());
+    assertEntry(inserts.get(0), "b+1", "tom@example.com", 2, 11);
+    assertEquals(200L, inserts.get(0).get("starttimestamp"));
+
+    ArgumentCaptor<DBObject> remove = ArgumentCaptor.forClass(DBObject.class);
+    verify(logStore).remove(remove.capture(), eq(WriteConcern.ACKNOWLEDGED));
+    List<?> ids = (List<?>) ((DBObject) remove.getValue().get("_id")).get("$in");
+    assertEquals(ImmutableList.of("id1"), ids);
+  }
+
+  public void testLoggedDeltasAreSkipped() {
+    BasicDBObject stored = new BasicDBObject("_id", "id1").append("blipid", "b+1")
+        .append("author", "sam@example.com").append("startversion", 2L)
+        .append("starttimestamp", 200L).append("endversion", 12L).append("endtimestamp", 1100L);
+    when(logStore.findOne(any(DBObject.class), any(DBObject.class), any(DBObject.class)))
+        .thenReturn(stored);
+
+    writer.log(WAVELET_NAME, ImmutableList.of(delta("tom@example.com", "b+1", 11),
+        delta("tom@example.com", "b+1", 12)), PATHS);
+
+    List<DBObject> inserts = captureInserts();
+    assertEquals(1, inserts.size());
+    assertEntry(inserts.get(0), "b+1", "tom@example.com", 12, 13);
+    verify(logStore, never()).remove(any(DBObject.class), any(WriteConcern.class));
+  }
+
+  public void testStoredEntryIsReadOnce() {
+    writer.log(WAVELET_NAME, ImmutableList.of(delta("tom@example.com", "b+1", 10)), PATHS);
+    writer.log(WAVELET_NAME, ImmutableList.of(delta("tom@example.com", "b+1", 11)), PATHS);
+
+    verify(logStore, times(1)).findOne(any(DBObject.class), any(DBObject.class),
+        any(DBObject.class));
+    verify(logStore, times(2)).insert(anyListOf(DBObject.class), eq(WriteConcern.ACKNOWLEDGED));
+    verify(logStore, times(1)).remove(any(DBObject.class), eq(WriteConcern.ACKNOWLEDGED));
+  }
+
+  public void testUnmappedDeltasAreNotQueued() {
+    writer.log(WAVELET_NAME, ImmutableList.of(delta("tom@example.com", "b+9", 10)), PATHS);
+
+    verify(logStore, never()).insert(anyListOf(DBObject.class), any(WriteConcern.class));
+  }
+
+  private static void assertEntry(DBObject entry, String blipId, String author,
+      long startVersion, long endVersion) {
+    assertEquals(blipId, entry.get("blipid"));
+    assertEquals(author, entry.get("author"));
+    assertEquals(startVersion, entry.get("startversion"));
+    assertEquals(endVersion, entry.get("endversion"));
+  }
+}
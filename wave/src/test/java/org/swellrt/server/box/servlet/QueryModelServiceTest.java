@@ -0,0 +1,75 @@
+package org.swellrt.server.box.servlet;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import junit.framework.TestCase;
+
+import org.bson.types.ObjectId;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+public class QueryModelServiceTest extends TestCase {
+
+  private static final UrlBuilder URL_BUILDER = new UrlBuilder() {
+
+    @Override
+    public String build(String relativePath, String queryString) {
+      return "http://server.com" + relativePath;
+    }
+  };
+
+  private List<ObjectId> ids;
+
+  private List<DBObject> results(int n) {
+    ids = new ArrayList<ObjectId>();
+    List<DBObject> results = new ArrayList<DBObject>();
+    for (int i = 0; i < n; i++) {
+      ObjectId id = new ObjectId();
+      ids.add(id);
+      results.add(new BasicDBObject("_id", id).append("name", "model" + i).append("url",
+          "/attachment/" + i));
+    }
+    return results;
+  }
+
+  private static String write(List<DBObject> results, int limit, boolean paginated)
+      throws IOException {
+    StringWriter writer = new StringWriter();
+    QueryModelService.writeResult(results.iterator(), writer, URL_BUILDER, limit, paginated);
+    return writer.toString();
+  }
+
+  public void testResultsAreWrittenWithAbsoluteUrls() throws IOException {
+    String json = write(results(2), 10, true);
+
+    assertTrue(json.startsWith("{\"result\":["));
+    assertTrue(json.contains("\"http://server.com/attachment/0\""));
+    assertTrue(json.contains("\"http://server.com/attachment/1\""));
+    assertFalse(json.contains("_id"));
+    assertFalse(json.contains("cursor"));
+  }
+
+  public void testCursorIsWrittenWhenMoreResults() throws IOException {
+    String json = write(results(3), 2, true);
+
+    assertTrue(json.contains("model1"));
+    assertFalse(json.contains("model2"));
+    assertTrue(json.endsWith("],\"cursor\":\"" + ids.get(1).toString() + "\"}"));
+  }
+
+  public void testAggregateResultsKeepId() throws IOException {
+    String json = write(results(3), 2, false);
+
+    assertTrue(json.contains("_id"));
+    assertFalse(json.contains("model2"));
+    assertFalse(json.contains("cursor"));
+  }
+
+  public void testEmptyResult() throws IOException {
+    assertEquals("{\"result\":[]}", write(results(0), 10, true));
+  }
+}
@@ -0,0 +1,97 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.frontend;
+
+import com.google.common.collect.ImmutableList;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.box.common.comms.WaveClientRpc.ProtocolWaveletUpdate;
+import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
+import org.waveprotocol.box.server.util.testing.TestingConstants;
+import org.waveprotocol.wave.model.operation.wave.NoOp;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperationContext;
+import org.waveprotocol.wave.model.version.HashedVersion;
+
+import java.util.List;
+
+/**
+ * Tests for {@link WaveletUpdateCache}.
+ */
+public class WaveletUpdateCacheTest extends TestCase implements TestingConstants {
+
+  private static final TransformedWaveletDelta DELTA1 = makeDelta(10);
+  private static final TransformedWaveletDelta DELTA2 = makeDelta(11);
+  private static final TransformedWaveletDelta DELTA3 = makeDelta(12);
+
+  private WaveletUpdateCache cache;
+
+  private static TransformedWaveletDelta makeDelta(long appliedAtVersion) {
+    HashedVersion resulting = HashedVersion.of(appliedAtVersion + 1, new byte[] {1, 2, 3});
+    return TransformedWaveletDelta.cloneOperations(PARTICIPANT, resulting, 0L,
+        ImmutableList.of(new NoOp(new WaveletOperationContext(PARTICIPANT, 0L, 1))));
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    cache = new WaveletUpdateCache();
+  }
+
+  public void testSameRangeSharesUpdate() {
+    List<TransformedWaveletDelta> deltas = ImmutableList.of(DELTA1, DELTA2);
+    ProtocolWaveletUpdate first = cache.getUpdate(WAVELET_NAME, deltas, null);
+    ProtocolWaveletUpdate second =
+        cache.getUpdate(WAVELET_NAME, ImmutableList.copyOf(deltas), null);
+    assertSame(first, second);
+    assertFalse(first.hasChannelId());
+    assertEquals(2, first.getAppliedDeltaCount());
+    assertEquals(DELTA2.getResultingVersion(),
+        CoreWaveletOperationSerializer.deserialize(first.getResultingVersion()));
+  }
+
+  public void testCommitNoticeIsPartOfKey() {
+    List<TransformedWaveletDelta> deltas = ImmutableList.of(DELTA1);
+    ProtocolWaveletUpdate plain = cache.getUpdate(WAVELET_NAME, deltas, null);
+    ProtocolWaveletUpdate committed =
+        cache.getUpdate(WAVELET_NAME, deltas, DELTA1.getResultingVersion());
+    assertFalse(plain.hasCommitNotice());
+    assertTrue(committed.hasCommitNotice());
+  }
+
+  public void testKeyOfBuiltUpdateMatchesKeyOfDeltas() {
+    List<TransformedWaveletDelta> deltas = ImmutableList.of(DELTA1, DELTA2);
+    ProtocolWaveletUpdate update =
+        cache.getUpdate(WAVELET_NAME, deltas, DELTA1.getResultingVersion());
+    assertEquals(WaveletUpdateCache.keyFor(WAVELET_NAME, deltas, DELTA1.getResultingVersion()),
+        WaveletUpdateKey.of(update));
+    assertFalse(WaveletUpdateCache.keyFor(WAVELET_NAME, deltas, null)
+        .equals(WaveletUpdateKey.of(update)));
+  }
+
+  public void testNonContiguousDeltasAreNotShared() {
+    List<TransformedWaveletDelta> deltas = ImmutableList.of(DELTA1, DELTA3);
+    assertNull(WaveletUpdateCache.keyFor(WAVELET_NAME, deltas, null));
+    ProtocolWaveletUpdate update = cache.getUpdate(WAVELET_NAME, deltas, null);
+    assertEquals(2, update.getAppliedDeltaCount());
+    assertNotSame(update, cache.getUpdate(WAVELET_NAME, deltas, null));
+  }
+}
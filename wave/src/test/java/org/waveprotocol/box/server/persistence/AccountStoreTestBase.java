@@ -36,6 +36,8 @@ import org.waveprotocol.box.server.robots.RobotCapabilities;
 import org.waveprotocol.wave.model.util.CollectionUtils;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Map;
 
 /**
@@ -151,4 +153,20 @@ public abstract class AccountStoreTestBase extends TestCase {
     accountStore.removeAccount(ROBOT_ID);
     assertNull("Removed account was not null", accountStore.getAccount(ROBOT_ID));
   }
+
+  public final void testGetAccounts() throws Exception {
+    AccountStore accountStore = newAccountStore();
+    ParticipantId missingId = ParticipantId.ofUnsafe("missing@example.com");
+
+    HumanAccountDataImpl account = new HumanAccountDataImpl(HUMAN_ID);
+    accountStore.putAccount(account);
+    accountStore.putAccount(robotAccount);
+    Map<ParticipantId, AccountData> accounts =
+        accountStore.getAccounts(Arrays.asList(HUMAN_ID, ROBOT_ID, missingId));
+    assertEquals(2, accounts.size());
+    assertEquals(account, accounts.get(HUMAN_ID));
+    assertEquals(robotAccount, accounts.get(ROBOT_ID));
+
+    assertTrue(accountStore.getAccounts(Collections.<ParticipantId>emptyList()).isEmpty());
+  }
 }
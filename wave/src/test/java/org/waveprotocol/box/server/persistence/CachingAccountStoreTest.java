@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.waveprotocol.box.server.persistence;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.waveprotocol.box.server.account.AccountData;
+import org.waveprotocol.box.server.account.HumanAccountDataImpl;
+import org.waveprotocol.box.server.persistence.memory.MemoryStore;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Testcases for {@link CachingAccountStore}, both as an {@link AccountStore}
+ * and as a cache.
+ */
+public class CachingAccountStoreTest extends AccountStoreTestBase {
+
+  private static final ParticipantId ALICE = ParticipantId.ofUnsafe("alice@example.com");
+  private static final ParticipantId BOB = ParticipantId.ofUnsafe("bob@example.com");
+
+  @Override
+  protected AccountStore newAccountStore() {
+    return new CachingAccountStore(new MemoryStore(), 100, 60);
+  }
+
+  public void testAccountsAndMissingAccountsAreCached() throws Exception {
+    AccountStore backing = mock(AccountStore.class);
+    AccountData alice = new HumanAccountDataImpl(ALICE);
+    when(backing.getAccount(ALICE)).thenReturn(alice);
+    AccountStore store = new CachingAccountStore(backing, 100, 60);
+
+    for (int i = 0; i < 3; i++) {
+      assertSame(alice, store.getAccount(ALICE));
+      assertNull(store.getAccount(BOB));
+    }
+    verify(backing, times(1)).getAccount(ALICE);
+    verify(backing, times(1)).getAccount(BOB);
+  }
+
+  public void testWritesInvalidateCachedAccount() throws Exception {
+    AccountStore store = newAccountStore();
+    assertNull(store.getAccount(ALICE));
+
+    AccountData alice = new HumanAccountDataImpl(ALICE);
+    store.putAccount(alice);
+    assertEquals(alice, store.getAccount(ALICE));
+
+    store.removeAccount(ALICE);
+    assertNull(store.getAccount(ALICE));
+  }
+
+  public void testBulkLookupReadsOnlyMissingAccounts() throws Exception {
+    AccountStore backing = mock(AccountStore.class);
+    AccountData alice = new HumanAccountDataImpl(ALICE);
+    when(backing.getAccount(ALICE)).thenReturn(alice);
+    when(backing.getAccounts(Collections.singletonList(BOB)))
+        .thenReturn(Collections.<ParticipantId, AccountData>emptyMap());
+    AccountStore store = new CachingAccountStore(backing, 100, 60);
+
+    store.getAccount(ALICE);
+    Map<ParticipantId, AccountData> accounts = store.getAccounts(Arrays.asList(ALICE, BOB));
+    assertEquals(ImmutableMap.of(ALICE, alice), accounts);
+    // Bob is now known not to have an account.
+    assertEquals(ImmutableMap.of(ALICE, alice), store.getAccounts(Arrays.asList(ALICE, BOB)));
+    assertNull(store.getAccount(BOB));
+
+    verify(backing, times(1)).getAccounts(Collections.singletonList(BOB));
+    verify(backing, times(0)).getAccount(BOB);
+  }
+}
@@ -26,10 +26,14 @@ import com.google.protobuf.ByteString;
 import junit.framework.TestCase;
 
 import org.waveprotocol.box.common.ExceptionalIterator;
+import org.waveprotocol.box.common.ListReceiver;
+import org.waveprotocol.box.common.Receiver;
 import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
+import org.waveprotocol.box.server.util.WaveletDataUtil;
 import org.waveprotocol.box.server.util.testing.TestingConstants;
 import org.waveprotocol.box.server.waveserver.ByteStringMessage;
 import org.waveprotocol.box.server.waveserver.DeltaStore;
+import org.waveprotocol.box.server.waveserver.LastModifiedDeltaStore;
 import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
 import org.waveprotocol.box.server.waveserver.DeltaStore.DeltasAccess;
 import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
@@ -45,7 +49,9 @@ import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
 import org.waveprotocol.wave.model.testing.DeltaTestUtil;
 import org.waveprotocol.wave.model.util.Pair;
 import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
 
@@ -102,6 +108,51 @@ public abstract class DeltaStoreTestBase extends TestCase {
     wavelet.close();
   }
 
+  public void testNewWaveletHasNoSnapshot() throws Exception {
+    Pair<DeltaStore, WaveletDeltaRecord> pair = newDeltaStoreWithRecord(WAVE1_WAVELET1);
+    DeltasAccess wavelet = pair.first.open(WAVE1_WAVELET1);
+
+    assertNull(wavelet.loadSnapshot());
+
+    wavelet.close();
+  }
+
+  public void testStoredSnapshotCanBeLoaded() throws Exception {
+    Pair<DeltaStore, WaveletDeltaRecord> pair = newDeltaStoreWithRecord(WAVE1_WAVELET1);
+    DeltaStore store = pair.first;
+    WaveletDeltaRecord record = pair.second;
+    ReadableWaveletData snapshot = WaveletDataUtil.buildWaveletFromFirstDelta(WAVE1_WAVELET1,
+        record.getTransformedDelta());
+
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    wavelet.storeSnapshot(snapshot);
+    wavelet.close();
+
+    wavelet = store.open(WAVE1_WAVELET1);
+    ReadableWaveletData loaded = wavelet.loadSnapshot();
+    assertNotNull(loaded);
+    assertEquals(WAVE1_WAVELET1, WaveletDataUtil.waveletNameOf(loaded));
+    assertEquals(record.getResultingVersion(), loaded.getHashedVersion());
+    assertEquals(snapshot.getParticipants(), loaded.getParticipants());
+    assertEquals(snapshot.getCreator(), loaded.getCreator());
+    assertEquals(snapshot.getLastModifiedTime(), loaded.getLastModifiedTime());
+    wavelet.close();
+  }
+
+  public void testDeleteWaveletRemovesSnapshot() throws Exception {
+    Pair<DeltaStore, WaveletDeltaRecord> pair = newDeltaStoreWithRecord(WAVE1_WAVELET1);
+    DeltaStore store = pair.first;
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    wavelet.storeSnapshot(WaveletDataUtil.buildWaveletFromFirstDelta(WAVE1_WAVELET1,
+        pair.second.getTransformedDelta()));
+    wavelet.close();
+
+    store.delete(WAVE1_WAVELET1);
+    wavelet = store.open(WAVE1_WAVELET1);
+    assertNull(wavelet.loadSnapshot());
+    wavelet.close();
+  }
+
   public void testDeleteWaveletRemovesDeltas() throws Exception {
     Pair<DeltaStore, WaveletDeltaRecord> pair = newDeltaStoreWithRecord(WAVE1_WAVELET1);
     DeltaStore store = pair.first;
@@ -135,6 +186,26 @@ public abstract class DeltaStoreTestBase extends TestCase {
     assertTrue(store.lookup(WAVE1_WAVELET1.waveId).isEmpty());
   }
 
+  public void testLastModifiedReturnsWavelets() throws Exception {
+    DeltaStore store = newDeltaStoreWithRecord(WAVE1_WAVELET1).first;
+    if (!(store instanceof LastModifiedDeltaStore)) return;
+
+    assertEquals(ImmutableSet.of(WAVE1_WAVELET1.waveletId),
+        ((LastModifiedDeltaStore) store).getLastModified(WAVE1_WAVELET1.waveId).keySet());
+  }
+
+  public void testLastModifiedDoesNotReturnEmptyOrDeletedWavelets() throws Exception {
+    DeltaStore store = newDeltaStoreWithRecord(WAVE1_WAVELET1).first;
+    if (!(store instanceof LastModifiedDeltaStore)) return;
+    store.delete(WAVE1_WAVELET1);
+    DeltasAccess wavelet = store.open(WAVE2_WAVELET1);
+    wavelet.close();
+
+    LastModifiedDeltaStore lastModifiedStore = (LastModifiedDeltaStore) store;
+    assertTrue(lastModifiedStore.getLastModified(WAVE1_WAVELET1.waveId).isEmpty());
+    assertTrue(lastModifiedStore.getLastModified(WAVE2_WAVELET1.waveId).isEmpty());
+  }
+
   public void testWaveIdIteratorReturnsWaveIds() throws Exception {
     Pair<DeltaStore,WaveletDeltaRecord> pair = newDeltaStoreWithRecord(WAVE1_WAVELET1);
     DeltaStore store = pair.first;
@@ -196,12 +267,77 @@ public abstract class DeltaStoreTestBase extends TestCase {
     }
   }
 
+  public void testGetDeltasInRange() throws Exception {
+    DeltaStore store = newDeltaStore();
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    List<WaveletDeltaRecord> records = appendChain(wavelet, 3);
+
+    ListReceiver<WaveletDeltaRecord> all = new ListReceiver<WaveletDeltaRecord>();
+    assertEquals(3, wavelet.getDeltasInRange(0, 6, all));
+    assertEquals(records, all);
+
+    ListReceiver<WaveletDeltaRecord> middle = new ListReceiver<WaveletDeltaRecord>();
+    assertEquals(1, wavelet.getDeltasInRange(2, 4, middle));
+    assertEquals(records.subList(1, 2), middle);
+
+    // Reading past the end stops at the last delta.
+    ListReceiver<WaveletDeltaRecord> tail = new ListReceiver<WaveletDeltaRecord>();
+    assertEquals(2, wavelet.getDeltasInRange(2, 100, tail));
+    assertEquals(records.subList(1, 3), tail);
+
+    // A start version that isn't a delta boundary reads nothing.
+    ListReceiver<WaveletDeltaRecord> none = new ListReceiver<WaveletDeltaRecord>();
+    assertEquals(0, wavelet.getDeltasInRange(1, 6, none));
+    assertTrue(none.isEmpty());
+
+    wavelet.close();
+  }
+
+  public void testGetDeltasInRangeStopsWhenReceiverDoes() throws Exception {
+    DeltaStore store = newDeltaStore();
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    List<WaveletDeltaRecord> records = appendChain(wavelet, 3);
+
+    final List<WaveletDeltaRecord> received = new ArrayList<WaveletDeltaRecord>();
+    long count = wavelet.getDeltasInRange(0, 6, new Receiver<WaveletDeltaRecord>() {
+      @Override
+      public boolean put(WaveletDeltaRecord delta) {
+        received.add(delta);
+        return received.size() < 2;
+      }
+    });
+    assertEquals(2, count);
+    assertEquals(records.subList(0, 2), received);
+
+    wavelet.close();
+  }
+
   // *** Helpers
 
+  /**
+   * Appends a chain of deltas of two operations each, starting at version 0.
+   */
+  private List<WaveletDeltaRecord> appendChain(DeltasAccess wavelet, int length)
+      throws Exception {
+    List<WaveletDeltaRecord> records = new ArrayList<WaveletDeltaRecord>();
+    HashedVersion version = HashedVersion.of(0, new byte[] {3, 2, 1});
+    for (int i = 0; i < length; i++) {
+      HashedVersion resultingVersion =
+          HashedVersion.of(version.getVersion() + 2, new byte[] {1, 2, (byte) i});
+      records.add(createRecord(version, resultingVersion));
+      version = resultingVersion;
+    }
+    wavelet.append(records);
+    return records;
+  }
+
   protected WaveletDeltaRecord createRecord() {
-    HashedVersion targetVersion = HashedVersion.of(0, new byte[] {3, 2, 1});
-    HashedVersion resultingVersion = HashedVersion.of(2, new byte[] {1, 2, 3});
+    return createRecord(HashedVersion.of(0, new byte[] {3, 2, 1}),
+        HashedVersion.of(2, new byte[] {1, 2, 3}));
+  }
 
+  protected WaveletDeltaRecord createRecord(HashedVersion targetVersion,
+      HashedVersion resultingVersion) {
     List<WaveletOperation> ops =
         ImmutableList.of(UTIL.noOp(), UTIL.addParticipant(TestingConstants.OTHER_PARTICIPANT));
     TransformedWaveletDelta transformed = TransformedWaveletDelta.cloneOperations(
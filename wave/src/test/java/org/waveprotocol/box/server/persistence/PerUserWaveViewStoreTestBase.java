@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Multimap;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+/**
+ * Testcases for the {@link PerUserWaveViewStore}. Implementors of these
+ * testcases are responsible for cleanup.
+ */
+public abstract class PerUserWaveViewStoreTestBase extends TestCase {
+
+  private static final ParticipantId USER = ParticipantId.ofUnsafe("user@example.com");
+  private static final WaveletName CONV_WAVELET =
+      WaveletName.of(WaveId.of("example.com", "w+abc"), WaveletId.of("example.com", "conv+root"));
+  private static final WaveletName OTHER_WAVELET =
+      WaveletName.of(WaveId.of("example.com", "w+abc"), WaveletId.of("example.com", "conv+other"));
+  private static final WaveletName OTHER_WAVE_WAVELET =
+      WaveletName.of(WaveId.of("example.com", "w+def"), WaveletId.of("example.com", "conv+root"));
+
+  /**
+   * Returns a new empty {@link PerUserWaveViewStore}.
+   */
+  protected abstract PerUserWaveViewStore newPerUserWaveViewStore() throws Exception;
+
+  private static Multimap<WaveId, WaveletId> viewOf(WaveletName... waveletNames) {
+    Multimap<WaveId, WaveletId> view = HashMultimap.create();
+    for (WaveletName waveletName : waveletNames) {
+      view.put(waveletName.waveId, waveletName.waveletId);
+    }
+    return view;
+  }
+
+  private static void assertViewEquals(Multimap<WaveId, WaveletId> expected,
+      Multimap<WaveId, WaveletId> actual) {
+    assertEquals(ImmutableSetMultimap.copyOf(expected), ImmutableSetMultimap.copyOf(actual));
+  }
+
+  public void testUserWithoutStoredViewHasNone() throws Exception {
+    PerUserWaveViewStore store = newPerUserWaveViewStore();
+    assertNull(store.getWaveView(USER));
+
+    // Changes must not create a partial view.
+    store.addWavelet(USER, CONV_WAVELET);
+    store.removeWavelet(USER, OTHER_WAVELET);
+    assertNull(store.getWaveView(USER));
+  }
+
+  public void testPutViewIsReturned() throws Exception {
+    PerUserWaveViewStore store = newPerUserWaveViewStore();
+    store.putWaveView(USER, viewOf(CONV_WAVELET, OTHER_WAVE_WAVELET));
+
+    assertViewEquals(viewOf(CONV_WAVELET, OTHER_WAVE_WAVELET), store.getWaveView(USER));
+
+    store.putWaveView(USER, viewOf(OTHER_WAVELET));
+    assertViewEquals(viewOf(OTHER_WAVELET), store.getWaveView(USER));
+  }
+
+  public void testEmptyViewIsStored() throws Exception {
+    PerUserWaveViewStore store = newPerUserWaveViewStore();
+    store.putWaveView(USER, viewOf());
+
+    assertViewEquals(viewOf(), store.getWaveView(USER));
+    store.addWavelet(USER, CONV_WAVELET);
+    assertViewEquals(viewOf(CONV_WAVELET), store.getWaveView(USER));
+  }
+
+  public void testWaveletsAreAddedAndRemoved() throws Exception {
+    PerUserWaveViewStore store = newPerUserWaveViewStore();
+    store.putWaveView(USER, viewOf(CONV_WAVELET));
+
+    store.addWavelet(USER, OTHER_WAVELET);
+    store.addWavelet(USER, OTHER_WAVE_WAVELET);
+    store.addWavelet(USER, OTHER_WAVE_WAVELET);
+    store.removeWavelet(USER, CONV_WAVELET);
+
+    assertViewEquals(viewOf(OTHER_WAVELET, OTHER_WAVE_WAVELET), store.getWaveView(USER));
+  }
+
+  public void testReturnedViewIsACopy() throws Exception {
+    PerUserWaveViewStore store = newPerUserWaveViewStore();
+    store.putWaveView(USER, viewOf(CONV_WAVELET));
+
+    store.getWaveView(USER).put(OTHER_WAVELET.waveId, OTHER_WAVELET.waveletId);
+
+    assertViewEquals(viewOf(CONV_WAVELET), store.getWaveView(USER));
+  }
+}
@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import com.google.common.collect.ImmutableList;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * Tests for DeltaSegment.
+ */
+public class DeltaSegmentTest extends TestCase {
+
+  private static final WaveletName WAVELET_NAME =
+      WaveletName.of(WaveId.of("example.com", "wave1"), WaveletId.of("example.com", "wavelet1"));
+
+  private static final DeltaSegment.IndexReceiver NO_ENTRIES = new DeltaSegment.IndexReceiver() {
+    @Override
+    public void onDelta(WaveletName waveletName, long appliedAtVersion, long resultingVersion,
+        long offset) {
+      fail("Unexpected index entry");
+    }
+
+    @Override
+    public void onDelete(WaveletName waveletName) {
+      fail("Unexpected index entry");
+    }
+  };
+
+  private File path;
+
+  @Override
+  protected void setUp() throws Exception {
+    path = FileUtils.createTemporaryDirectory();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    org.apache.commons.io.FileUtils.deleteDirectory(path);
+  }
+
+  private static DeltaSegment.Record record(int version, String applied, String transformed) {
+    return new DeltaSegment.Record(WAVELET_NAME, version, version + 1, applied.getBytes(),
+        transformed.getBytes());
+  }
+
+  private static void assertRecord(String applied, String transformed, ByteBuffer record) {
+    assertEquals(applied.length(), record.getInt());
+    assertEquals(transformed.length(), record.getInt());
+    byte[] bytes = new byte[record.remaining()];
+    record.get(bytes);
+    assertEquals(applied + transformed, new String(bytes));
+  }
+
+  public void testRecordsAreReadWhileAppendingAndAfterSealing() throws Exception {
+    DeltaSegment segment = DeltaSegment.open(path, 0, true, NO_ENTRIES);
+    long first = segment.append(ImmutableList.of(record(0, "applied0", "transformed0")))[0];
+    assertRecord("applied0", "transformed0", segment.getRecord(first));
+
+    long second = segment.append(ImmutableList.of(record(1, "applied1", "transformed1")))[0];
+    assertRecord("applied1", "transformed1", segment.getRecord(second));
+    assertRecord("applied0", "transformed0", segment.getRecord(first));
+
+    segment.seal();
+    assertFalse(segment.isWritable());
+    assertRecord("applied0", "transformed0", segment.getRecord(first));
+    assertRecord("applied1", "transformed1", segment.getRecord(second));
+  }
+
+  public void testRecordsAreReadFromReopenedSegment() throws Exception {
+    DeltaSegment segment = DeltaSegment.open(path, 0, true, NO_ENTRIES);
+    long offset = segment.append(ImmutableList.of(record(0, "applied", "transformed")))[0];
+    segment.seal();
+
+    DeltaSegment reopened = DeltaSegment.open(path, 0, false, new DeltaSegment.IndexReceiver() {
+      @Override
+      public void onDelta(WaveletName waveletName, long appliedAtVersion,
+          long resultingVersion, long recordOffset) {
+        assertEquals(WAVELET_NAME, waveletName);
+      }
+
+      @Override
+      public void onDelete(WaveletName waveletName) {
+        fail("Unexpected delete entry");
+      }
+    });
+    assertRecord("applied", "transformed", reopened.getRecord(offset));
+  }
+}
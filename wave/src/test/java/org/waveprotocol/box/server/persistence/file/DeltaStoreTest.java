@@ -34,6 +34,9 @@ import org.waveprotocol.wave.util.logging.Log;
 
 import java.io.File;
 import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Tests for FileDeltaStore.
@@ -47,6 +50,8 @@ public class DeltaStoreTest extends DeltaStoreTestBase {
   private File path;
   private final WaveletName WAVE1_WAVELET1 =
     WaveletName.of(WaveId.of("example.com", "wave1"), WaveletId.of("example.com", "wavelet1"));
+  private final WaveletName WAVE1_WAVELET2 =
+    WaveletName.of(WaveId.of("example.com", "wave1"), WaveletId.of("example.com", "wavelet2"));
 
   @Override
   protected void setUp() throws Exception {
@@ -102,4 +107,28 @@ public class DeltaStoreTest extends DeltaStoreTestBase {
       toRemove++;
     }
   }
+
+  public void testDeltasOfSeveralWaveletsAreAppendedTogether() throws Exception {
+    FileDeltaStore store = (FileDeltaStore) newDeltaStore();
+    WaveletDeltaRecord record = createRecord();
+    DeltasAccess wavelet1 = store.open(WAVE1_WAVELET1);
+    DeltasAccess wavelet2 = store.open(WAVE1_WAVELET2);
+    Map<DeltasAccess, Collection<WaveletDeltaRecord>> deltas =
+        new LinkedHashMap<DeltasAccess, Collection<WaveletDeltaRecord>>();
+    deltas.put(wavelet1, ImmutableList.of(record));
+    deltas.put(wavelet2, ImmutableList.of(record));
+
+    store.appendAll(deltas);
+
+    assertEquals(record.getResultingVersion(), wavelet1.getEndVersion());
+    assertEquals(record.getResultingVersion(), wavelet2.getEndVersion());
+    wavelet1.close();
+    wavelet2.close();
+
+    for (WaveletName name : ImmutableList.of(WAVE1_WAVELET1, WAVE1_WAVELET2)) {
+      DeltasAccess wavelet = store.open(name);
+      assertEquals(record, wavelet.getDelta(0));
+      wavelet.close();
+    }
+  }
 }
@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.io.Files;
+import com.typesafe.config.ConfigFactory;
+
+import org.waveprotocol.box.server.persistence.PerUserWaveViewStore;
+import org.waveprotocol.box.server.persistence.PerUserWaveViewStoreTestBase;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.io.File;
+
+/**
+ * Testcases for the {@link FilePerUserWaveViewStore}.
+ */
+public class PerUserWaveViewStoreTest extends PerUserWaveViewStoreTestBase {
+  private File path;
+
+  @Override
+  protected void setUp() throws Exception {
+    path = FileUtils.createTemporaryDirectory();
+    super.setUp();
+  }
+
+  @Override
+  protected PerUserWaveViewStore newPerUserWaveViewStore() throws Exception {
+    FilePerUserWaveViewStore store = new FilePerUserWaveViewStore(ConfigFactory.parseMap(
+        ImmutableMap.of("core.wave_view_store_directory", path.getAbsolutePath())));
+    store.initializePerUserWaveViewStore();
+    return store;
+  }
+
+  public void testChangesAreCompactedOnRead() throws Exception {
+    ParticipantId user = ParticipantId.ofUnsafe("user@example.com");
+    WaveletName waveletName =
+        WaveletName.of(WaveId.of("example.com", "w+abc"), WaveletId.of("example.com", "conv+root"));
+    PerUserWaveViewStore store = newPerUserWaveViewStore();
+    store.putWaveView(user, LinkedHashMultimap.<WaveId, WaveletId> create());
+    for (int i = 0; i < 100; i++) {
+      store.addWavelet(user, waveletName);
+      store.removeWavelet(user, waveletName);
+    }
+    store.addWavelet(user, waveletName);
+
+    assertEquals(1, store.getWaveView(user).size());
+    File[] files = path.listFiles();
+    assertEquals(1, files.length);
+    assertEquals(1, Files.readLines(files[0], Charsets.UTF_8).size());
+    assertEquals(1, store.getWaveView(user).size());
+  }
+
+  public void testTruncatedLineIsSkipped() throws Exception {
+    ParticipantId user = ParticipantId.ofUnsafe("user@example.com");
+    WaveletName waveletName =
+        WaveletName.of(WaveId.of("example.com", "w+abc"), WaveletId.of("example.com", "conv+root"));
+    PerUserWaveViewStore store = newPerUserWaveViewStore();
+    store.putWaveView(user, LinkedHashMultimap.<WaveId, WaveletId> create());
+    store.addWavelet(user, waveletName);
+    Files.append("+example.com/w+a", path.listFiles()[0], Charsets.UTF_8);
+
+    assertEquals(1, store.getWaveView(user).size());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+
+    org.apache.commons.io.FileUtils.deleteDirectory(path);
+  }
+}
@@ -0,0 +1,204 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import org.waveprotocol.box.server.persistence.DeltaStoreTestBase;
+import org.waveprotocol.box.server.waveserver.DeltaStore;
+import org.waveprotocol.box.server.waveserver.DeltaStore.DeltasAccess;
+import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tests for SegmentDeltaStore.
+ */
+public class SegmentDeltaStoreTest extends DeltaStoreTestBase {
+
+  private final WaveletName WAVE1_WAVELET1 =
+    WaveletName.of(WaveId.of("example.com", "wave1"), WaveletId.of("example.com", "wavelet1"));
+  private final WaveletName WAVE1_WAVELET2 =
+    WaveletName.of(WaveId.of("example.com", "wave1"), WaveletId.of("example.com", "wavelet2"));
+
+  private File path;
+  private SegmentDeltaStore store;
+
+  @Override
+  protected void setUp() throws Exception {
+    path = FileUtils.createTemporaryDirectory();
+    super.setUp();
+  }
+
+  @Override
+  protected SegmentDeltaStore newDeltaStore() throws Exception {
+    return newDeltaStore(64 * 1024);
+  }
+
+  private SegmentDeltaStore newDeltaStore(long segmentSize) throws Exception {
+    if (store != null) {
+      store.close();
+    }
+    store = new SegmentDeltaStore(path.getAbsolutePath(), segmentSize);
+    return store;
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (store != null) {
+      store.close();
+    }
+    super.tearDown();
+    org.apache.commons.io.FileUtils.deleteDirectory(path);
+    assertFalse(path.exists());
+  }
+
+  private void append(DeltaStore store, WaveletName waveletName, WaveletDeltaRecord record)
+      throws Exception {
+    DeltasAccess wavelet = store.open(waveletName);
+    wavelet.append(ImmutableList.of(record));
+    wavelet.close();
+  }
+
+  public void testWaveletsShareSegments() throws Exception {
+    SegmentDeltaStore store = newDeltaStore(64 * 1024);
+    WaveletDeltaRecord record = createRecord();
+    append(store, WAVE1_WAVELET1, record);
+    append(store, WAVE1_WAVELET2, record);
+
+    assertEquals(1, store.getSegmentCount());
+    assertEquals(ImmutableSet.of(WAVE1_WAVELET1.waveletId, WAVE1_WAVELET2.waveletId),
+        store.lookup(WAVE1_WAVELET1.waveId));
+  }
+
+  public void testFullSegmentsAreRolledOver() throws Exception {
+    SegmentDeltaStore store = newDeltaStore(1);
+    WaveletDeltaRecord record = createRecord();
+    append(store, WAVE1_WAVELET1, record);
+    append(store, WAVE1_WAVELET2, record);
+
+    assertEquals(3, store.getSegmentCount());
+
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    assertEquals(record, wavelet.getDelta(0));
+    wavelet.close();
+  }
+
+  public void testDeltasAreReadAfterReopening() throws Exception {
+    WaveletDeltaRecord record = createRecord();
+    append(newDeltaStore(1), WAVE1_WAVELET1, record);
+    append(store, WAVE1_WAVELET2, record);
+    store.delete(WAVE1_WAVELET2);
+
+    SegmentDeltaStore reopened = newDeltaStore(1);
+
+    assertEquals(ImmutableSet.of(WAVE1_WAVELET1.waveletId),
+        reopened.lookup(WAVE1_WAVELET1.waveId));
+    DeltasAccess wavelet = reopened.open(WAVE1_WAVELET1);
+    assertEquals(record.getResultingVersion(), wavelet.getEndVersion());
+    assertEquals(record, wavelet.getDeltaByEndVersion(record.getResultingVersion().getVersion()));
+    wavelet.close();
+  }
+
+  public void testDeltasOfSeveralWaveletsAreAppendedTogether() throws Exception {
+    SegmentDeltaStore store = newDeltaStore(64 * 1024);
+    WaveletDeltaRecord record = createRecord();
+    DeltasAccess wavelet1 = store.open(WAVE1_WAVELET1);
+    DeltasAccess wavelet2 = store.open(WAVE1_WAVELET2);
+    Map<DeltasAccess, Collection<WaveletDeltaRecord>> deltas =
+        new LinkedHashMap<DeltasAccess, Collection<WaveletDeltaRecord>>();
+    deltas.put(wavelet1, ImmutableList.of(record));
+    deltas.put(wavelet2, ImmutableList.of(record));
+
+    store.appendAll(deltas);
+
+    assertEquals(record.getResultingVersion(), wavelet1.getEndVersion());
+    assertEquals(record.getResultingVersion(), wavelet2.getEndVersion());
+    wavelet1.close();
+    wavelet2.close();
+
+    SegmentDeltaStore reopened = newDeltaStore(64 * 1024);
+    for (WaveletName name : ImmutableList.of(WAVE1_WAVELET1, WAVE1_WAVELET2)) {
+      DeltasAccess wavelet = reopened.open(name);
+      assertEquals(record, wavelet.getDelta(0));
+      wavelet.close();
+    }
+  }
+
+  public void testUncommittedDeltasAreDiscarded() throws Exception {
+    WaveletDeltaRecord record = createRecord();
+    append(newDeltaStore(), WAVE1_WAVELET1, record);
+    store.close();
+
+    // A crash during a later append leaves data without index entry and a
+    // partial index entry behind.
+    File dataFile = DeltaSegment.dataFile(path, 0);
+    File indexFile = DeltaSegment.indexFile(path, 0);
+    long dataLength = dataFile.length();
+    long indexLength = indexFile.length();
+    appendJunk(dataFile, 100);
+    appendJunk(indexFile, 10);
+
+    SegmentDeltaStore reopened = newDeltaStore();
+    DeltasAccess wavelet = reopened.open(WAVE1_WAVELET1);
+    assertEquals(record, wavelet.getDelta(0));
+    wavelet.close();
+    assertEquals(dataLength, dataFile.length());
+    assertEquals(indexLength, indexFile.length());
+
+    append(reopened, WAVE1_WAVELET2, record);
+    reopened = newDeltaStore();
+    assertEquals(ImmutableSet.of(WAVE1_WAVELET1.waveletId, WAVE1_WAVELET2.waveletId),
+        reopened.lookup(WAVE1_WAVELET1.waveId));
+  }
+
+  public void testCorruptedRecordIsDiscarded() throws Exception {
+    WaveletDeltaRecord record = createRecord();
+    append(newDeltaStore(), WAVE1_WAVELET1, record);
+    store.close();
+
+    File dataFile = DeltaSegment.dataFile(path, 0);
+    RandomAccessFile file = new RandomAccessFile(dataFile, "rw");
+    file.seek(file.length() - 1);
+    int last = file.read();
+    file.seek(file.length() - 1);
+    file.write(last + 1);
+    file.close();
+
+    DeltasAccess wavelet = newDeltaStore().open(WAVE1_WAVELET1);
+    assertTrue(wavelet.isEmpty());
+    wavelet.close();
+  }
+
+  private static void appendJunk(File file, int length) throws Exception {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(raf.length());
+    raf.write(new byte[length]);
+    raf.close();
+  }
+}
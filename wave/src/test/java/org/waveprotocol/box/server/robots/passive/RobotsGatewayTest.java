@@ -34,6 +34,7 @@ import junit.framework.TestCase;
 import org.waveprotocol.box.server.account.RobotAccountData;
 import org.waveprotocol.box.server.persistence.AccountStore;
 import org.waveprotocol.box.server.robots.operations.NotifyOperationService;
+import org.waveprotocol.box.server.robots.register.RobotRegistry;
 import org.waveprotocol.box.server.robots.util.ConversationUtil;
 import org.waveprotocol.box.server.waveserver.WaveletProvider;
 import org.waveprotocol.wave.testing.DeferredExecutor;
@@ -48,6 +49,7 @@ public class RobotsGatewayTest extends TestCase {
   private WaveletProvider waveletProvider;
   private RobotConnector robotConnector;
   private AccountStore accountStore;
+  private RobotRegistry robotRegistry;
   private RobotSerializer serializer;
   private EventDataConverterManager converterManager;
   private RobotsGateway gateway;
@@ -60,6 +62,7 @@ public class RobotsGatewayTest extends TestCase {
     waveletProvider = mock(WaveletProvider.class);
     robotConnector = mock(RobotConnector.class);
     accountStore = mock(AccountStore.class);
+    robotRegistry = mock(RobotRegistry.class);
     serializer = mock(RobotSerializer.class);
     converterManager = mock(EventDataConverterManager.class);
     executor = new DeferredExecutor();
@@ -67,7 +70,7 @@ public class RobotsGatewayTest extends TestCase {
     notifyOpService = mock(NotifyOperationService.class);
 
     gateway =
-        new RobotsGateway(waveletProvider, robotConnector, accountStore, serializer,
+        new RobotsGateway(waveletProvider, robotConnector, accountStore, robotRegistry, serializer,
             converterManager, executor, conversationUtil, notifyOpService);
   }
 
@@ -99,5 +102,6 @@ public class RobotsGatewayTest extends TestCase {
     gateway.updateRobotAccount(robot);
 
     verify(accountStore).putAccount(newAccount);
+    verify(robotRegistry).update(newAccount);
   }
 }
@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.waveprotocol.box.server.robots.register;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.box.server.account.HumanAccountDataImpl;
+import org.waveprotocol.box.server.account.RobotAccountData;
+import org.waveprotocol.box.server.account.RobotAccountDataImpl;
+import org.waveprotocol.box.server.persistence.AccountStore;
+import org.waveprotocol.wave.model.id.TokenGenerator;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+/**
+ * Unit tests for {@link RobotRegistry}.
+ */
+public class RobotRegistryTest extends TestCase {
+
+  private final static ParticipantId ROBOT_ID = ParticipantId.ofUnsafe("robot@example.com");
+  private final static ParticipantId HUMAN_ID = ParticipantId.ofUnsafe("human@example.com");
+  private final static RobotAccountData ROBOT =
+      new RobotAccountDataImpl(ROBOT_ID, "http://example.com/robot", "secret", null, true);
+
+  private AccountStore accountStore;
+  private RobotRegistry registry;
+
+  @Override
+  protected void setUp() throws Exception {
+    accountStore = mock(AccountStore.class);
+    registry = new RobotRegistry(accountStore, 10);
+  }
+
+  public void testParticipantIsLookedUpOnce() throws Exception {
+    when(accountStore.getAccount(HUMAN_ID)).thenReturn(new HumanAccountDataImpl(HUMAN_ID));
+    when(accountStore.getAccount(ROBOT_ID)).thenReturn(ROBOT);
+
+    for (int i = 0; i < 3; i++) {
+      assertNull(registry.getRobotAccount(HUMAN_ID));
+      assertSame(ROBOT, registry.getRobotAccount(ROBOT_ID));
+    }
+    verify(accountStore, times(1)).getAccount(HUMAN_ID);
+    verify(accountStore, times(1)).getAccount(ROBOT_ID);
+  }
+
+  public void testUnverifiedRobotIsNotReturned() throws Exception {
+    when(accountStore.getAccount(ROBOT_ID)).thenReturn(
+        new RobotAccountDataImpl(ROBOT_ID, "http://example.com/robot", "secret", null, false));
+
+    assertNull(registry.getRobotAccount(ROBOT_ID));
+  }
+
+  public void testEvictedParticipantIsLookedUpAgain() throws Exception {
+    registry.getRobotAccount(HUMAN_ID);
+    for (int i = 0; i < 100; i++) {
+      registry.getRobotAccount(ParticipantId.ofUnsafe("user" + i + "@example.com"));
+    }
+    registry.getRobotAccount(HUMAN_ID);
+
+    verify(accountStore, times(2)).getAccount(HUMAN_ID);
+  }
+
+  public void testRegistrarKeepsRegistryCurrent() throws Exception {
+    TokenGenerator tokenGenerator = mock(TokenGenerator.class);
+    when(tokenGenerator.generateToken(anyInt())).thenReturn("token");
+    RobotRegistrar registrar = new RobotRegistrarImpl(accountStore, tokenGenerator, registry);
+    assertNull(registry.getRobotAccount(ROBOT_ID));
+
+    RobotAccountData account = registrar.registerNew(ROBOT_ID, "http://example.com/robot");
+    assertSame(account, registry.getRobotAccount(ROBOT_ID));
+
+    when(accountStore.getAccount(ROBOT_ID)).thenReturn(account);
+    registrar.unregister(ROBOT_ID);
+    assertNull(registry.getRobotAccount(ROBOT_ID));
+
+    // The registration check and the unregistration read the store, the
+    // registry only the first time.
+    verify(accountStore, times(3)).getAccount(ROBOT_ID);
+    verify(accountStore).putAccount(any(RobotAccountData.class));
+  }
+
+  public void testUpdateReplacesAccount() throws Exception {
+    registry.update(ROBOT);
+    assertSame(ROBOT, registry.getRobotAccount(ROBOT_ID));
+    verify(accountStore, never()).getAccount(ROBOT_ID);
+  }
+}
@@ -0,0 +1,147 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.rpc;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Tests for {@link FairRpcExecutor}.
+ */
+public class FairRpcExecutorTest extends TestCase {
+
+  private static final ParticipantId ALICE = ParticipantId.ofUnsafe("alice@example.com");
+  private static final ParticipantId BOB = ParticipantId.ofUnsafe("bob@example.com");
+
+  /** Holds the workers until they are run by the test. */
+  private final Queue<Runnable> workers = new LinkedList<Runnable>();
+  private final Executor executor = new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      workers.add(command);
+    }
+  };
+  private final List<String> ran = new ArrayList<String>();
+
+  private Runnable rpc(final String name) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        ran.add(name);
+      }
+    };
+  }
+
+  public void testRpcsAreServedRoundRobin() {
+    FairRpcExecutor rpcExecutor = new FairRpcExecutor(executor, 1, 10, 100);
+    rpcExecutor.execute(ALICE, rpc("a1"));
+    rpcExecutor.execute(ALICE, rpc("a2"));
+    rpcExecutor.execute(ALICE, rpc("a3"));
+    rpcExecutor.execute(BOB, rpc("b1"));
+    rpcExecutor.execute(null, rpc("n1"));
+    rpcExecutor.execute(BOB, rpc("b2"));
+
+    assertEquals(1, workers.size());
+    assertEquals(1, rpcExecutor.getRunningCount());
+    workers.poll().run();
+
+    assertEquals(6, ran.size());
+    assertEquals("[a1, b1, n1, a2, b2, a3]", ran.toString());
+    assertEquals(0, rpcExecutor.getQueuedCount());
+    assertEquals(0, rpcExecutor.getRunningCount());
+  }
+
+  public void testThreadCountIsBounded() {
+    FairRpcExecutor rpcExecutor = new FairRpcExecutor(executor, 2, 10, 100);
+    for (int i = 0; i < 5; i++) {
+      rpcExecutor.execute(ALICE, rpc("a" + i));
+    }
+    assertEquals(2, workers.size());
+    assertEquals(5, rpcExecutor.getQueuedCount());
+
+    workers.poll().run();
+    assertEquals(5, ran.size());
+    assertEquals(1, rpcExecutor.getRunningCount());
+    workers.poll().run();
+    assertEquals(5, ran.size());
+    assertEquals(0, rpcExecutor.getRunningCount());
+  }
+
+  public void testUserQueueLimitRejectsOnlyThatUser() {
+    FairRpcExecutor rpcExecutor = new FairRpcExecutor(executor, 1, 2, 100);
+    rpcExecutor.execute(ALICE, rpc("a1"));
+    rpcExecutor.execute(ALICE, rpc("a2"));
+    try {
+      rpcExecutor.execute(ALICE, rpc("a3"));
+      fail("Expected the RPC to be rejected");
+    } catch (RejectedExecutionException expected) {
+    }
+    rpcExecutor.execute(BOB, rpc("b1"));
+
+    workers.poll().run();
+    assertEquals("[a1, b1, a2]", ran.toString());
+    rpcExecutor.execute(ALICE, rpc("a3"));
+    workers.poll().run();
+    assertEquals("[a1, b1, a2, a3]", ran.toString());
+  }
+
+  public void testTotalQueueLimitRejects() {
+    FairRpcExecutor rpcExecutor = new FairRpcExecutor(executor, 1, 10, 2);
+    rpcExecutor.execute(ALICE, rpc("a1"));
+    rpcExecutor.execute(BOB, rpc("b1"));
+    try {
+      rpcExecutor.execute(null, rpc("n1"));
+      fail("Expected the RPC to be rejected");
+    } catch (RejectedExecutionException expected) {
+    }
+    workers.poll().run();
+    assertEquals("[a1, b1]", ran.toString());
+  }
+
+  public void testFailingRpcDoesNotStopTheWorker() {
+    FairRpcExecutor rpcExecutor = new FairRpcExecutor(executor, 1, 10, 100);
+    rpcExecutor.execute(ALICE, new Runnable() {
+      @Override
+      public void run() {
+        throw new RuntimeException("RPC failure");
+      }
+    });
+    rpcExecutor.execute(ALICE, rpc("a2"));
+    workers.poll().run();
+    assertEquals("[a2]", ran.toString());
+    assertEquals(0, rpcExecutor.getRunningCount());
+  }
+
+  public void testNonPositiveThreadCountIsRejected() {
+    try {
+      new FairRpcExecutor(executor, 0, 10, 100);
+      fail("A thread count of 0 never runs an RPC");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
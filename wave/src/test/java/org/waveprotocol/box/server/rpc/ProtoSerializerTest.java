@@ -0,0 +1,169 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.waveprotocol.box.server.rpc;
+
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.box.common.comms.WaveClientRpc.DocumentSnapshot;
+import org.waveprotocol.box.common.comms.WaveClientRpc.ProtocolOpenRequest;
+import org.waveprotocol.box.common.comms.WaveClientRpc.ProtocolWaveletUpdate;
+import org.waveprotocol.box.common.comms.WaveClientRpc.WaveletSnapshot;
+import org.waveprotocol.box.server.rpc.ProtoSerializer.SerializationException;
+import org.waveprotocol.wave.federation.Proto.ProtocolDocumentOperation;
+import org.waveprotocol.wave.federation.Proto.ProtocolDocumentOperation.Component;
+import org.waveprotocol.wave.federation.Proto.ProtocolDocumentOperation.Component.ElementStart;
+import org.waveprotocol.wave.federation.Proto.ProtocolDocumentOperation.Component.KeyValuePair;
+import org.waveprotocol.wave.federation.Proto.ProtocolHashedVersion;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletOperation;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletOperation.MutateDocument;
+
+import java.io.StringReader;
+
+/**
+ * Tests that the streaming codecs of {@link ProtoSerializer} write and read the
+ * same JSON as its JSON tree conversion.
+ */
+public class ProtoSerializerTest extends TestCase {
+  private ProtoSerializer serializer;
+
+  @Override
+  public void setUp() {
+    serializer = new ProtoSerializer();
+  }
+
+  public void testStreamWritesSameJsonAsTree() throws Exception {
+    ProtocolWaveletUpdate update = buildUpdate(3);
+    assertEquals(serializer.toJson(update).toString(), serializer.toJsonString(update));
+
+    ProtocolOpenRequest request = ProtocolOpenRequest.newBuilder()
+        .setParticipantId("test@example.com")
+        .setWaveId("example.com!w+test")
+        .addWaveletIdPrefix("conv")
+        .addWaveletIdPrefix("user")
+        .build();
+    assertEquals(serializer.toJson(request).toString(), serializer.toJsonString(request));
+  }
+
+  public void testStreamReadsTreeJson() throws Exception {
+    ProtocolWaveletUpdate update = buildUpdate(3);
+    String json = serializer.toJson(update).toString();
+    assertEquals(update, read(json, "ProtocolWaveletUpdate"));
+    assertEquals(update,
+        serializer.fromJson(new JsonParser().parse(serializer.toJsonString(update)),
+            "ProtocolWaveletUpdate"));
+  }
+
+  public void testStreamEncodesLongFields() throws Exception {
+    long time = 1476787200123L;
+    ProtocolWaveletUpdate update = ProtocolWaveletUpdate.newBuilder()
+        .setWaveletName("example.com/w+test/example.com/conv+root")
+        .setResultingVersion(hashedVersion(4))
+        .setSnapshot(WaveletSnapshot.newBuilder()
+            .setWaveletId("conv+root")
+            .addParticipantId("test@example.com")
+            .addDocument(DocumentSnapshot.newBuilder()
+                .setDocumentId("b+1")
+                .setDocumentOperation(ProtocolDocumentOperation.getDefaultInstance())
+                .setAuthor("test@example.com")
+                .setLastModifiedVersion(4)
+                .setLastModifiedTime(-time))
+            .setVersion(hashedVersion(4))
+            .setLastModifiedTime(time)
+            .setCreator("test@example.com")
+            .setCreationTime(Long.MAX_VALUE))
+        .setMarker(true)
+        .build();
+    String json = serializer.toJsonString(update);
+    assertEquals(serializer.toJson(update).toString(), json);
+    assertEquals(update, read(json, "ProtocolWaveletUpdate"));
+  }
+
+  public void testStreamSkipsUnknownFields() throws Exception {
+    ProtocolOpenRequest request = ProtocolOpenRequest.newBuilder()
+        .setParticipantId("test@example.com")
+        .setWaveId("example.com!w+test")
+        .build();
+    String json = serializer.toJsonString(request);
+    String extended = "{\"99\":{\"1\":[1,2]}," + json.substring(1);
+    assertEquals(request, read(extended, "ProtocolOpenRequest"));
+  }
+
+  public void testStreamRejectsIncompleteMessage() {
+    try {
+      read("{\"1\":\"test@example.com\"}", "ProtocolOpenRequest");
+      fail("Expected SerializationException");
+    } catch (SerializationException expected) {
+    }
+  }
+
+  public void testUnknownTypeIsRejected() {
+    try {
+      read("{}", "NoSuchProto");
+      fail("Expected SerializationException");
+    } catch (SerializationException expected) {
+    }
+  }
+
+  private Message read(String json, String type) throws SerializationException {
+    return serializer.readJson(new JsonReader(new StringReader(json)), type);
+  }
+
+  /** Builds an update whose deltas carry long versions, blobs and nested messages. */
+  static ProtocolWaveletUpdate buildUpdate(int deltaCount) {
+    ProtocolWaveletUpdate.Builder update = ProtocolWaveletUpdate.newBuilder()
+        .setWaveletName("example.com/w+test/example.com/conv+root");
+    long version = 10;
+    for (int i = 0; i < deltaCount; i++) {
+      ProtocolDocumentOperation op = ProtocolDocumentOperation.newBuilder()
+          .addComponent(Component.newBuilder().setRetainItemCount(i * 3 + 1))
+          .addComponent(Component.newBuilder().setElementStart(ElementStart.newBuilder()
+              .setType("line")
+              .addAttribute(KeyValuePair.newBuilder().setKey("t").setValue("h" + i))))
+          .addComponent(Component.newBuilder().setElementEnd(true))
+          .addComponent(Component.newBuilder().setCharacters("delta \"" + i + "\"\n"))
+          .build();
+      update.addAppliedDelta(ProtocolWaveletDelta.newBuilder()
+          .setAuthor("author" + i + "@example.com")
+          .setHashedVersion(hashedVersion(version))
+          .addOperation(ProtocolWaveletOperation.newBuilder().setMutateDocument(
+              MutateDocument.newBuilder().setDocumentId("b+" + i).setDocumentOperation(op)))
+          .addOperation(ProtocolWaveletOperation.newBuilder()
+              .setAddParticipant("p" + i + "@example.com")));
+      version += 2;
+    }
+    return update
+        .setResultingVersion(hashedVersion(version))
+        .setCommitNotice(hashedVersion(10))
+        .setChannelId("ch1")
+        .build();
+  }
+
+  private static ProtocolHashedVersion hashedVersion(long version) {
+    return ProtocolHashedVersion.newBuilder()
+        .setVersion(version)
+        .setHistoryHash(ByteString.copyFrom(new byte[] {(byte) version, -1, 0, 42}))
+        .build();
+  }
+}
@@ -18,12 +18,16 @@
  */
 package org.waveprotocol.box.server.rpc;
 
+import com.google.protobuf.ByteString;
 import com.google.protobuf.Message;
 import com.google.protobuf.UnknownFieldSet;
 
 import junit.framework.TestCase;
 
 import org.waveprotocol.box.common.comms.WaveClientRpc;
+import org.waveprotocol.wave.federation.Proto.ProtocolHashedVersion;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletOperation;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 
 /**
@@ -78,8 +82,45 @@ public class WebSocketChannelTest extends TestCase {
     checkRoundtripping(sourceBuilder);
   }
 
+  public void testRoundTrippingSharedWaveletUpdate() throws Exception {
+    WaveClientRpc.ProtocolWaveletUpdate update = buildProtocolWaveletUpdate();
+    assertTrue(WaveletUpdateJsonCache.isShareable(update));
+    checkRoundtripping(update.toBuilder().setChannelId("ch1").build());
+    checkRoundtripping(update.toBuilder().setChannelId("ch2").build());
+    checkRoundtripping(update.toBuilder().setChannelId("ch\"3\\").build());
+    checkRoundtripping(update);
+  }
+
+  public void testWaveletUpdateWithGapIsNotShared() throws Exception {
+    WaveClientRpc.ProtocolWaveletUpdate update = buildProtocolWaveletUpdate().toBuilder()
+        .setResultingVersion(ProtocolHashedVersion.newBuilder()
+            .setVersion(15).setHistoryHash(ByteString.copyFromUtf8("hash")))
+        .build();
+    assertFalse(WaveletUpdateJsonCache.isShareable(update));
+    checkRoundtripping(update.toBuilder().setChannelId("ch1").build());
+  }
+
+  public void testMessageBeforeTypeIsDecoded() throws Exception {
+    WaveClientRpc.ProtocolOpenRequest request = buildProtocolOpenRequest().build();
+    String json = new ProtoSerializer().toJsonString(request);
+    channel.handleMessageString("{\"sequenceNumber\":" + SEQUENCE_NUMBER + ",\"message\":"
+        + json + ",\"messageType\":\"ProtocolOpenRequest\"}", null);
+    assertEquals(SEQUENCE_NUMBER, callback.sequenceNumber);
+    assertEquals(request, callback.savedMessage);
+  }
+
+  public void testMalformedMessageIsDropped() throws Exception {
+    channel.handleMessageString("{\"messageType\":\"ProtocolOpenRequest\","
+        + "\"sequenceNumber\":" + SEQUENCE_NUMBER + ",\"message\":{\"1\":", null);
+    channel.handleMessageString("{\"messageType\":\"ProtocolOpenRequest\"}", null);
+    assertNull(callback.savedMessage);
+  }
+
   private void checkRoundtripping(final WaveClientRpc.ProtocolOpenRequest.Builder sourceBuilder) {
-    WaveClientRpc.ProtocolOpenRequest sourceRequest = sourceBuilder.build();
+    checkRoundtripping(sourceBuilder.build());
+  }
+
+  private void checkRoundtripping(Message sourceRequest) {
     channel.sendMessage(SEQUENCE_NUMBER, sourceRequest);
     String sentRequest = channel.message;
     assertNotNull(sentRequest);
@@ -90,6 +131,22 @@ public class WebSocketChannelTest extends TestCase {
     assertEquals(sourceRequest, callback.savedMessage);
   }
 
+  private WaveClientRpc.ProtocolWaveletUpdate buildProtocolWaveletUpdate() {
+    ProtocolWaveletDelta delta = ProtocolWaveletDelta.newBuilder()
+        .setAuthor("test@example.com")
+        .setHashedVersion(ProtocolHashedVersion.newBuilder()
+            .setVersion(10).setHistoryHash(ByteString.EMPTY))
+        .addOperation(ProtocolWaveletOperation.newBuilder().setNoOp(true))
+        .addOperation(ProtocolWaveletOperation.newBuilder().setAddParticipant("a@example.com"))
+        .build();
+    return WaveClientRpc.ProtocolWaveletUpdate.newBuilder()
+        .setWaveletName("example.com/w+test/example.com/conv+root")
+        .addAppliedDelta(delta)
+        .setResultingVersion(ProtocolHashedVersion.newBuilder()
+            .setVersion(12).setHistoryHash(ByteString.copyFromUtf8("hash")))
+        .build();
+  }
+
   private WaveClientRpc.ProtocolOpenRequest.Builder buildProtocolOpenRequest() {
     WaveClientRpc.ProtocolOpenRequest.Builder sourceBuilder =
         WaveClientRpc.ProtocolOpenRequest.newBuilder();
@@ -0,0 +1,62 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.stat;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest extends TestCase {
+
+  public void testBucketsCoverValuesWithBoundedError() {
+    for (long v : new long[] {0, 1, 7, 8, 9, 15, 16, 17, 100, 1000, 123456, 1L << 40,
+        Long.MAX_VALUE}) {
+      long highest = LatencyHistogram.highestValueOf(LatencyHistogram.bucketOf(v));
+      assertTrue(v + " above " + highest, v <= highest);
+      assertTrue(v + " too far from " + highest,
+          highest - v <= v / LatencyHistogram.SUB_BUCKETS);
+    }
+  }
+
+  public void testBucketsAreContiguous() {
+    for (int b = 1; b < LatencyHistogram.bucketOf(Long.MAX_VALUE); b++) {
+      assertEquals(b, LatencyHistogram.bucketOf(LatencyHistogram.highestValueOf(b)));
+      assertEquals(b + 1, LatencyHistogram.bucketOf(LatencyHistogram.highestValueOf(b) + 1));
+    }
+  }
+
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getPercentile(0.5));
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i);
+    }
+    histogram.record(-5);
+
+    assertEquals(1001, histogram.getCount());
+    assertEquals(500500, histogram.getSum());
+    long[] p = histogram.getPercentiles(0.5, 0.99, 0.999);
+    assertTrue(p[0] >= 500 && p[0] <= 500 * 9 / 8);
+    assertTrue(p[1] >= 990 && p[1] <= 990 * 9 / 8);
+    assertTrue(p[2] >= 999 && p[2] <= 999 * 9 / 8);
+    assertEquals(0, histogram.getPercentile(0));
+  }
+}
@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.stat;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+
+/**
+ * Tests for {@link MetricsRegistry} and {@link TimingMetrics}.
+ */
+public class MetricsRegistryTest extends TestCase {
+
+  private MetricsRegistry registry;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    registry = new MetricsRegistry();
+  }
+
+  private String text() throws IOException {
+    StringBuilder builder = new StringBuilder();
+    registry.writeText(builder);
+    return builder.toString();
+  }
+
+  public void testMetricsAreRegisteredOnce() {
+    Counter counter = registry.counter("requests_total", "Requests");
+    assertSame(counter, registry.counter("requests_total", "Requests"));
+    try {
+      registry.histogram("requests_total", "Requests");
+      fail("Expected a type mismatch");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      registry.counter("/invalid", "Invalid name");
+      fail("Expected an invalid name");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testTextExport() throws IOException {
+    registry.counter("requests_total", "Requests").add(3);
+    registry.gauge("queued", "Queued", new Gauge() {
+      @Override
+      public long getValue() {
+        return 7;
+      }
+    });
+    LatencyHistogram histogram = registry.histogram("latency_us", "Latency");
+    histogram.record(5);
+    histogram.record(6);
+
+    String text = text();
+    assertTrue(text.contains("# TYPE requests_total counter\nrequests_total 3\n"));
+    assertTrue(text.contains("# TYPE queued gauge\nqueued 7\n"));
+    assertTrue(text.contains("latency_us{quantile=\"0.5\"} 5\n"));
+    assertTrue(text.contains("latency_us{quantile=\"0.999\"} 6\n"));
+    assertTrue(text.contains("latency_us_sum 11\nlatency_us_count 2\n"));
+    // Sorted by name.
+    assertTrue(text.indexOf("latency_us") < text.indexOf("queued"));
+  }
+
+  public void testTimingMeasurementsAreExported() throws IOException {
+    TimingMetrics timing = new TimingMetrics(registry);
+    timing.measured("/ProtocolOpenRequest", 2);
+    timing.measured("/ProtocolOpenRequest", 4);
+
+    assertTrue(text().contains("timing__ProtocolOpenRequest_count 2\n"));
+    assertTrue(text().contains("timing__ProtocolOpenRequest_sum 6000\n"));
+  }
+
+  public void testTimingHistogramsAreBounded() throws IOException {
+    TimingMetrics timing = new TimingMetrics(registry);
+    for (int i = 0; i < TimingMetrics.MAX_HISTOGRAMS + 10; i++) {
+      timing.measured("/attachment/" + i, 1);
+    }
+    assertTrue(text().contains("timing_other_count 10\n"));
+  }
+}
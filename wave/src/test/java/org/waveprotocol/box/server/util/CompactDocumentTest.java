@@ -0,0 +1,240 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.waveprotocol.box.server.util;
+
+import com.google.common.base.Ticker;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.model.document.Doc;
+import org.waveprotocol.wave.model.document.Document;
+import org.waveprotocol.wave.model.document.bootstrap.BootstrapDocument;
+import org.waveprotocol.wave.model.document.operation.DocInitialization;
+import org.waveprotocol.wave.model.document.operation.DocOp;
+import org.waveprotocol.wave.model.document.operation.automaton.DocumentSchema;
+import org.waveprotocol.wave.model.document.operation.impl.AnnotationBoundaryMapImpl;
+import org.waveprotocol.wave.model.document.operation.impl.AttributesImpl;
+import org.waveprotocol.wave.model.document.operation.impl.DocInitializationBuilder;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpBuilder;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpUtil;
+import org.waveprotocol.wave.model.operation.OpComparators;
+import org.waveprotocol.wave.model.operation.OperationException;
+import org.waveprotocol.wave.model.operation.SilentOperationSink;
+import org.waveprotocol.wave.model.testing.RandomDocOpGenerator;
+import org.waveprotocol.wave.model.testing.RandomProviderImpl;
+import org.waveprotocol.wave.model.wave.data.impl.ObservablePluggableMutableDocument;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests for {@link CompactDocument}.
+ */
+public class CompactDocumentTest extends TestCase {
+
+  private static final DocumentSchema SCHEMA = DocumentSchema.NO_SCHEMA_CONSTRAINTS;
+
+  private static final DocInitialization CONTENT = new DocInitializationBuilder()
+      .elementStart("body", new AttributesImpl())
+      .elementStart("line", new AttributesImpl("t", "h1"))
+      .elementEnd()
+      .annotationBoundary(new AnnotationBoundaryMapImpl(new String[0],
+          new String[] {"style/fontWeight"}, new String[] {null}, new String[] {"bold"}))
+      .characters("Hello")
+      .annotationBoundary(new AnnotationBoundaryMapImpl(new String[] {"style/fontWeight"},
+          new String[0], new String[0], new String[0]))
+      .characters(" world")
+      .elementEnd()
+      .build();
+
+  /** Ticker moved by hand. */
+  private static final class FakeTicker extends Ticker {
+    long nanos;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
+
+  public void testContentRoundTrips() {
+    CompactDocument doc = new CompactDocument(SCHEMA, CONTENT);
+    assertEquals(DocOpUtil.toXmlString(CONTENT), doc.toString());
+    assertTrue(OpComparators.SYNTACTIC_IDENTITY.equal(CONTENT, doc.asOperation()));
+  }
+
+  public void testAppliesOperationsLikeIndexedDocument() throws OperationException {
+    RandomDocOpGenerator.Parameters parameters = new RandomDocOpGenerator.Parameters();
+    for (int seed = 0; seed < 20; seed++) {
+      RandomProviderImpl random = RandomProviderImpl.ofSeed(seed);
+      BootstrapDocument reference = new BootstrapDocument();
+      ObservablePluggableMutableDocument indexed =
+          new ObservablePluggableMutableDocument(SCHEMA, DocOpUtil.asInitialization(
+              new DocOpBuilder().build()));
+      CompactDocument compact = new CompactDocument(SCHEMA, indexed.asOperation());
+      for (int i = 0; i < 40; i++) {
+        DocOp op = RandomDocOpGenerator.generate(random, parameters, reference);
+        reference.consume(op);
+        indexed.consume(op);
+        compact.consume(op);
+        String context = "seed " + seed + ", op " + i + ": " + op;
+        assertEquals(context, DocOpUtil.toXmlString(indexed.asOperation()), compact.toString());
+        assertTrue(context,
+            OpComparators.SYNTACTIC_IDENTITY.equal(indexed.asOperation(), compact.asOperation()));
+      }
+      assertTrue(compact.isCompact());
+    }
+  }
+
+  public void testInvalidOperationIsRejected() {
+    CompactDocument doc = new CompactDocument(SCHEMA, CONTENT);
+    DocOp op = new DocOpBuilder()
+        .retain(3)
+        .deleteCharacters("Jello")
+        .retain(7)
+        .build();
+    try {
+      doc.consume(op);
+      fail("Expected OperationException");
+    } catch (OperationException expected) {
+    }
+    assertEquals(DocOpUtil.toXmlString(CONTENT), doc.toString());
+  }
+
+  public void testMutableDocumentExpandsAndSendsOperations() throws OperationException {
+    final List<DocOp> sent = new ArrayList<DocOp>();
+    CompactDocument doc = new CompactDocument(SCHEMA, CONTENT);
+    doc.init(new SilentOperationSink<DocOp>() {
+      @Override
+      public void consume(DocOp op) {
+        sent.add(op);
+      }
+    });
+    doc.consume(new DocOpBuilder().retain(8).characters("!").retain(7).build());
+    assertTrue(doc.isCompact());
+
+    Document mutable = doc.getMutableDocument();
+    assertFalse(doc.isCompact());
+    assertEquals(16, mutable.size());
+    Doc.E body = mutable.asElement(mutable.getFirstChild(mutable.getDocumentElement()));
+    assertEquals("body", mutable.getTagName(body));
+
+    mutable.insertText(mutable.locate(3), "Oh, ");
+    assertEquals(1, sent.size());
+    doc.consume(new DocOpBuilder().retain(19).characters("?").retain(1).build());
+    assertEquals("<body><line t=\"h1\"/>Oh, "
+        + "<?a \"style/fontWeight\"=\"bold\"?>Hello!<?a \"style/fontWeight\"?> world?</body>",
+        doc.toString());
+  }
+
+  public void testConcurrentExpansionBuildsOneDocument() throws Exception {
+    for (int round = 0; round < 20; round++) {
+      final CompactDocument doc = new CompactDocument(SCHEMA, CONTENT);
+      final CountDownLatch start = new CountDownLatch(1);
+      final List<Document> documents = new CopyOnWriteArrayList<Document>();
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int i = 0; i < 8; i++) {
+        Thread thread = new Thread() {
+          @Override
+          public void run() {
+            try {
+              start.await();
+            } catch (InterruptedException e) {
+              return;
+            }
+            doc.asOperation();
+            documents.add(doc.getMutableDocument());
+            doc.copy();
+          }
+        };
+        threads.add(thread);
+        thread.start();
+      }
+      start.countDown();
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      assertEquals(8, documents.size());
+      for (Document document : documents) {
+        assertSame(documents.get(0), document);
+      }
+      assertEquals(DocOpUtil.toXmlString(CONTENT), doc.toString());
+    }
+  }
+
+  public void testLargeDocumentIsExpandedWhileEditedAndPackedWhenCold()
+      throws OperationException {
+    FakeTicker ticker = new FakeTicker();
+    CompactDocument doc = new CompactDocument(SCHEMA, largeContent(), ticker);
+    int length = CompactDocument.EXPAND_MIN_SIZE + 2;
+    for (int i = 0; i < CompactDocument.EXPAND_AFTER_OPERATIONS; i++) {
+      assertTrue(doc.isCompact());
+      // Copies don't make the document colder.
+      assertNotNull(doc.copy());
+      doc.consume(new DocOpBuilder().retain(length - 1).characters("!").retain(1).build());
+      length++;
+    }
+    assertFalse(doc.isCompact());
+    String content = doc.toString();
+
+    // Edited recently, so it stays expanded.
+    ticker.nanos += CompactDocument.HOT_WINDOW_NANOS - 1;
+    assertNull(doc.copy());
+    ticker.nanos += 1;
+    CompactDocument copy = doc.copy();
+    assertTrue(doc.isCompact());
+    assertEquals(content, doc.toString());
+    assertEquals(content, copy.toString());
+  }
+
+  public void testSlowEditsKeepDocumentPacked() throws OperationException {
+    FakeTicker ticker = new FakeTicker();
+    CompactDocument doc = new CompactDocument(SCHEMA, largeContent(), ticker);
+    int length = CompactDocument.EXPAND_MIN_SIZE + 2;
+    for (int i = 0; i < 2 * CompactDocument.EXPAND_AFTER_OPERATIONS; i++) {
+      doc.consume(new DocOpBuilder().retain(length - 1).characters("!").retain(1).build());
+      length++;
+      ticker.nanos += CompactDocument.HOT_WINDOW_NANOS / 4;
+    }
+    assertTrue(doc.isCompact());
+  }
+
+  /** Returns a body with exactly {@link CompactDocument#EXPAND_MIN_SIZE} characters. */
+  private static DocInitialization largeContent() {
+    StringBuilder text = new StringBuilder();
+    while (text.length() < CompactDocument.EXPAND_MIN_SIZE) {
+      text.append('x');
+    }
+    return new DocInitializationBuilder()
+        .elementStart("body", new AttributesImpl())
+        .characters(text.toString())
+        .elementEnd()
+        .build();
+  }
+
+  public void testDocumentHandedOutStaysExpanded() {
+    CompactDocument doc = new CompactDocument(SCHEMA, CONTENT);
+    doc.getMutableDocument();
+    assertNull(doc.copy());
+    assertNull(doc.copy());
+    assertFalse(doc.isCompact());
+  }
+}
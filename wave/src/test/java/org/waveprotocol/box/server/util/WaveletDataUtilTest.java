@@ -36,6 +36,7 @@ import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
 import org.waveprotocol.wave.model.operation.wave.WaveletOperationContext;
 import org.waveprotocol.wave.model.version.HashedVersion;
 import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.DocumentOperationSink;
 import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
 import org.waveprotocol.wave.model.wave.data.WaveletData;
 
@@ -101,4 +102,51 @@ public class WaveletDataUtilTest extends TestCase {
     assertEquals(ImmutableSet.of("blipid"), wavelet.getDocumentIds());
     assertEquals(ImmutableSet.of(CREATOR, JOE), wavelet.getParticipants());
   }
+
+  public void testSharedCopyIsIndependentOfSource() throws Exception {
+    WaveletData wavelet = build(
+        delta(addParticipant(CREATOR, 1093L, HashedVersion.unsigned(1))),
+        delta(addBlip("blipid", 2010L, HashedVersion.unsigned(2)))
+    );
+    wavelet.getDocument("blipid").getContent().consume(
+        new DocOpBuilder().characters("hello").build());
+
+    ObservableWaveletData copy = WaveletDataUtil.copyWaveletShared(wavelet);
+    assertEquals(WAVELET_NAME, WaveletDataUtil.waveletNameOf(copy));
+    assertEquals(HashedVersion.unsigned(2), copy.getHashedVersion());
+    assertEquals(2010L, copy.getLastModifiedTime());
+    assertEquals(ImmutableSet.of(CREATOR), copy.getParticipants());
+    assertEquals(ImmutableSet.of(CREATOR), copy.getDocument("blipid").getContributors());
+    assertEquals("hello", copy.getDocument("blipid").getContent().toString());
+
+    wavelet.getDocument("blipid").getContent().consume(
+        new DocOpBuilder().retain(5).characters(" world").build());
+    copy.getDocument("blipid").getContent().consume(
+        new DocOpBuilder().characters("oh, ").retain(5).build());
+    assertEquals("hello world", wavelet.getDocument("blipid").getContent().toString());
+    assertEquals("oh, hello", copy.getDocument("blipid").getContent().toString());
+  }
+
+  public void testSharedCopiesDontKeepEditedDocumentPacked() throws Exception {
+    WaveletData wavelet = build(
+        delta(addParticipant(CREATOR, 1093L, HashedVersion.unsigned(1))),
+        delta(addBlip("blipid", 2010L, HashedVersion.unsigned(2)))
+    );
+    StringBuilder text = new StringBuilder();
+    while (text.length() < CompactDocument.EXPAND_MIN_SIZE) {
+      text.append('x');
+    }
+    DocumentOperationSink content = wavelet.getDocument("blipid").getContent();
+    content.consume(new DocOpBuilder().characters(text.toString()).build());
+    int length = text.length();
+
+    // As the wave bus does, copy the wavelet after each single operation delta.
+    for (int i = 0; i < CompactDocument.EXPAND_AFTER_OPERATIONS; i++) {
+      WaveletDataUtil.copyWaveletShared(wavelet);
+      content.consume(new DocOpBuilder().retain(length).characters("!").build());
+      length++;
+    }
+    WaveletDataUtil.copyWaveletShared(wavelet);
+    assertFalse(((CompactDocument) content).isCompact());
+  }
 }
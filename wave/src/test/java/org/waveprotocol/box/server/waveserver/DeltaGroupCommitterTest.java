@@ -0,0 +1,167 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.box.server.persistence.memory.MemoryDeltaStore;
+import org.waveprotocol.box.server.waveserver.DeltaStore.DeltasAccess;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link DeltaGroupCommitter}.
+ */
+public class DeltaGroupCommitterTest extends TestCase {
+
+  private static final WaveletName WAVELET1 =
+      WaveletName.of(WaveId.of("example.com", "wave1"), WaveletId.of("example.com", "wavelet"));
+  private static final WaveletName WAVELET2 =
+      WaveletName.of(WaveId.of("example.com", "wave2"), WaveletId.of("example.com", "wavelet"));
+
+  /** A memory store recording the groups appended with appendAll(). */
+  private static class GroupStore extends MemoryDeltaStore implements GroupCommitDeltaStore {
+    final List<Integer> groupSizes = new ArrayList<Integer>();
+    boolean fail = false;
+
+    @Override
+    public synchronized void appendAll(Map<DeltasAccess, Collection<WaveletDeltaRecord>> deltas)
+        throws PersistenceException {
+      if (fail) {
+        throw new PersistenceException("Failed");
+      }
+      groupSizes.add(deltas.size());
+      for (Map.Entry<DeltasAccess, Collection<WaveletDeltaRecord>> e : deltas.entrySet()) {
+        e.getKey().append(e.getValue());
+      }
+    }
+  }
+
+  private GroupStore store;
+  private ScheduledExecutorService executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    store = new GroupStore();
+    executor = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+    super.tearDown();
+  }
+
+  private static ImmutableList<WaveletDeltaRecord> deltas(WaveletName name) throws Exception {
+    return ImmutableList.of(WaveletStateTestBase.makeDelta(
+        WaveletStateTestBase.HASH_FACTORY.createVersionZero(name), 1234567890L, 1));
+  }
+
+  public void testWithoutWindowDeltasAreAppendedOnCallingThread() throws Exception {
+    DeltaGroupCommitter committer = new DeltaGroupCommitter(store, executor, 0, 100);
+    DeltasAccess access = store.open(WAVELET1);
+
+    ListenableFuture<Void> future = committer.append(access, deltas(WAVELET1));
+
+    assertTrue(future.isDone());
+    assertEquals(1, access.getEndVersion().getVersion());
+    assertTrue(store.groupSizes.isEmpty());
+  }
+
+  public void testAppendsWithinWindowAreWrittenTogether() throws Exception {
+    DeltaGroupCommitter committer = new DeltaGroupCommitter(store, executor, 50, 100);
+    DeltasAccess access1 = store.open(WAVELET1);
+    DeltasAccess access2 = store.open(WAVELET2);
+
+    ListenableFuture<Void> future1 = committer.append(access1, deltas(WAVELET1));
+    ListenableFuture<Void> future2 = committer.append(access2, deltas(WAVELET2));
+    future1.get(5, TimeUnit.SECONDS);
+    future2.get(5, TimeUnit.SECONDS);
+
+    assertEquals(ImmutableList.of(2), store.groupSizes);
+    assertEquals(1, access1.getEndVersion().getVersion());
+    assertEquals(1, access2.getEndVersion().getVersion());
+  }
+
+  public void testFullGroupIsWrittenBeforeWindowEnds() throws Exception {
+    DeltaGroupCommitter committer =
+        new DeltaGroupCommitter(store, executor, TimeUnit.HOURS.toMillis(1), 2);
+
+    ListenableFuture<Void> future1 = committer.append(store.open(WAVELET1), deltas(WAVELET1));
+    ListenableFuture<Void> future2 = committer.append(store.open(WAVELET2), deltas(WAVELET2));
+    future1.get(5, TimeUnit.SECONDS);
+    future2.get(5, TimeUnit.SECONDS);
+
+    assertEquals(ImmutableList.of(2), store.groupSizes);
+  }
+
+  public void testFailedGroupFailsAllAppends() throws Exception {
+    store.fail = true;
+    DeltaGroupCommitter committer = new DeltaGroupCommitter(store, executor, 50, 100);
+
+    ListenableFuture<Void> future1 = committer.append(store.open(WAVELET1), deltas(WAVELET1));
+    ListenableFuture<Void> future2 = committer.append(store.open(WAVELET2), deltas(WAVELET2));
+
+    for (ListenableFuture<Void> future : ImmutableList.of(future1, future2)) {
+      try {
+        future.get(5, TimeUnit.SECONDS);
+        fail("Expected the append to fail");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof PersistenceException);
+      }
+    }
+  }
+
+  public void testPersistCompletesThroughCommitter() throws Exception {
+    DeltaGroupCommitter committer = new DeltaGroupCommitter(store, executor, 50, 100);
+    DeltasAccess access = store.open(WAVELET1);
+    ExecutorService persistExecutor = Executors.newSingleThreadExecutor();
+    DeltaStoreBasedWaveletState state =
+        DeltaStoreBasedWaveletState.create(access, persistExecutor,
+            DeltaStoreBasedWaveletState.Options.DEFAULTS.withGroupCommitter(committer));
+    WaveletDeltaRecord delta = deltas(WAVELET1).get(0);
+
+    state.appendDelta(delta);
+    try {
+      state.persist(delta.getResultingVersion()).get(5, TimeUnit.SECONDS);
+    } finally {
+      persistExecutor.shutdown();
+    }
+
+    assertEquals(delta.getResultingVersion(), access.getEndVersion());
+    assertEquals(delta.getResultingVersion(), state.getLastPersistedVersion());
+  }
+}
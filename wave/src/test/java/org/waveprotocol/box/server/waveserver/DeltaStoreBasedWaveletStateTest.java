@@ -19,11 +19,24 @@
 
 package org.waveprotocol.box.server.waveserver;
 
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.MoreExecutors;
 
+import org.waveprotocol.box.common.ListReceiver;
 import org.waveprotocol.box.server.persistence.memory.MemoryDeltaStore;
+import org.waveprotocol.box.server.util.WaveletDataUtil;
+import org.waveprotocol.box.server.waveserver.DeltaStoreBasedWaveletState.Options;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Executor;
 
 /**
@@ -44,7 +57,8 @@ public class DeltaStoreBasedWaveletStateTest extends WaveletStateTestBase {
 
   @Override
   protected WaveletState createEmptyState(WaveletName name) throws Exception {
-    return DeltaStoreBasedWaveletState.create(store.open(name), PERSIST_EXECUTOR);
+    return DeltaStoreBasedWaveletState.create(store.open(name), PERSIST_EXECUTOR,
+        Options.DEFAULTS);
   }
 
   @Override
@@ -53,6 +67,159 @@ public class DeltaStoreBasedWaveletStateTest extends WaveletStateTestBase {
     return;
   }
 
-  // TODO(soren): We need to add tests here that verify interactions with storage.
-  // The base tests only test the public interface, not any interactions with the storage system.
+  public void testCheckpointIsStoredAfterInterval() throws Exception {
+    WaveletName name = WaveletName.of(WaveId.of("example.com", "checkpoint"),
+        WaveletId.of("example.com", "wavelet"));
+    WaveletState state = DeltaStoreBasedWaveletState.create(store.open(name), PERSIST_EXECUTOR,
+        Options.DEFAULTS.withSnapshotInterval(2));
+    WaveletDeltaRecord d1 = makeDelta(HASH_FACTORY.createVersionZero(name), 1234567890L, 1);
+    WaveletDeltaRecord d2 = makeDelta(d1.getResultingVersion(), 1234567891L, 1);
+    WaveletDeltaRecord d3 = makeDelta(d2.getResultingVersion(), 1234567892L, 1);
+
+    state.appendDelta(d1);
+    state.persist(d1.getResultingVersion());
+    assertNull(store.open(name).loadSnapshot());
+
+    state.appendDelta(d2);
+    state.appendDelta(d3);
+    state.persist(d3.getResultingVersion());
+    ReadableWaveletData checkpoint = store.open(name).loadSnapshot();
+    assertNotNull(checkpoint);
+    assertEquals(d2.getResultingVersion(), checkpoint.getHashedVersion());
+
+    // Reloading starts from the checkpoint and replays the remaining delta.
+    WaveletState reloaded = DeltaStoreBasedWaveletState.create(store.open(name), PERSIST_EXECUTOR,
+        Options.DEFAULTS);
+    assertEquals(d3.getResultingVersion(), reloaded.getCurrentVersion());
+    assertEquals(state.getSnapshot().getParticipants(), reloaded.getSnapshot().getParticipants());
+    assertEquals(d3.getTransformedDelta(), reloaded.getTransformedDelta(d2.getResultingVersion()));
+  }
+
+  public void testMismatchedCheckpointIsIgnored() throws Exception {
+    WaveletName name = WaveletName.of(WaveId.of("example.com", "badcheckpoint"),
+        WaveletId.of("example.com", "wavelet"));
+    WaveletState state = DeltaStoreBasedWaveletState.create(store.open(name), PERSIST_EXECUTOR,
+        Options.DEFAULTS);
+    WaveletDeltaRecord d1 = makeDelta(HASH_FACTORY.createVersionZero(name), 1234567890L, 2);
+    state.appendDelta(d1);
+    state.persist(d1.getResultingVersion());
+
+    ObservableWaveletData bogus = WaveletDataUtil.copyWavelet(state.getSnapshot());
+    bogus.setHashedVersion(HashedVersion.unsigned(d1.getResultingVersion().getVersion()));
+    store.open(name).storeSnapshot(bogus);
+
+    WaveletState reloaded = DeltaStoreBasedWaveletState.create(store.open(name), PERSIST_EXECUTOR,
+        Options.DEFAULTS);
+    assertEquals(d1.getResultingVersion(), reloaded.getCurrentVersion());
+  }
+
+  public void testFlushedHistoryIsReadFromDeltaCache() throws Exception {
+    WaveletName name = WaveletName.of(WaveId.of("example.com", "cached"),
+        WaveletId.of("example.com", "wavelet"));
+    DeltaCache cache = new DeltaCache(1024 * 1024);
+    WaveletState state = DeltaStoreBasedWaveletState.create(store.open(name), PERSIST_EXECUTOR,
+        Options.DEFAULTS.withDeltaCache(cache));
+    WaveletDeltaRecord d1 = makeDelta(HASH_FACTORY.createVersionZero(name), 1234567890L, 2);
+    WaveletDeltaRecord d2 = makeDelta(d1.getResultingVersion(), 1234567891L, 1);
+    state.appendDelta(d1);
+    state.appendDelta(d2);
+    state.persist(d2.getResultingVersion());
+    state.flush(d1.getResultingVersion());
+    state.flush(d2.getResultingVersion());
+    assertEquals(2, cache.size());
+
+    ListReceiver<TransformedWaveletDelta> history = new ListReceiver<TransformedWaveletDelta>();
+    state.getTransformedDeltaHistory(d1.getAppliedAtVersion(), d2.getResultingVersion(), history);
+    assertEquals(Arrays.asList(d1.getTransformedDelta(), d2.getTransformedDelta()), history);
+    assertEquals(2, cache.stats().hitCount());
+    assertEquals(0, cache.stats().missCount());
+  }
+
+  public void testDeltaCacheReadsThroughAndEvicts() throws Exception {
+    WaveletName name = WaveletName.of(WaveId.of("example.com", "evicted"),
+        WaveletId.of("example.com", "wavelet"));
+    WaveletState state = DeltaStoreBasedWaveletState.create(store.open(name), PERSIST_EXECUTOR,
+        Options.DEFAULTS);
+    WaveletDeltaRecord previous = null;
+    for (int i = 0; i < 20; i++) {
+      WaveletDeltaRecord d = makeDelta(previous == null ? HASH_FACTORY.createVersionZero(name)
+          : previous.getResultingVersion(), 1234567890L + i, 1);
+      state.appendDelta(d);
+      previous = d;
+    }
+    state.persist(previous.getResultingVersion());
+
+    // Room for a few deltas only.
+    DeltaCache cache = new DeltaCache(8 * 1024);
+    WaveletDeltaRecordReader reader = cache.cachingReader(store.open(name));
+    assertEquals(previous, reader.getDelta(19));
+    assertEquals(previous, reader.getDelta(19));
+    assertEquals(1, cache.stats().hitCount());
+    assertEquals(1, cache.stats().missCount());
+
+    for (int i = 0; i < 20; i++) {
+      assertNotNull(reader.getDelta(i));
+    }
+    assertTrue(cache.size() < 20);
+    assertTrue(cache.stats().evictionCount() > 0);
+    assertNull(reader.getDelta(20));
+
+    cache.invalidate(name);
+    assertEquals(0, cache.size());
+  }
+
+  public void testInvalidateDropsTheDeltasOfOneWavelet() throws Exception {
+    WaveletName name1 = WaveletName.of(WaveId.of("example.com", "dropped"),
+        WaveletId.of("example.com", "wavelet"));
+    WaveletName name2 = WaveletName.of(WaveId.of("example.com", "kept"),
+        WaveletId.of("example.com", "wavelet"));
+    WaveletDeltaRecord d1 = makeDelta(HASH_FACTORY.createVersionZero(name1), 1234567890L, 1);
+    WaveletDeltaRecord d2 = makeDelta(d1.getResultingVersion(), 1234567891L, 1);
+    WaveletDeltaRecord d3 = makeDelta(HASH_FACTORY.createVersionZero(name2), 1234567892L, 1);
+    DeltaCache cache = new DeltaCache(1024 * 1024);
+    cache.putAll(name1, Arrays.asList(d1, d2));
+    cache.putAll(name2, Arrays.asList(d3));
+    // Caching a delta again must keep it indexed.
+    cache.putAll(name1, Arrays.asList(d2));
+
+    cache.invalidate(name1);
+    assertNull(cache.get(name1, d1.getAppliedAtVersion().getVersion()));
+    assertNull(cache.get(name1, d2.getAppliedAtVersion().getVersion()));
+    assertEquals(d3, cache.get(name2, d3.getAppliedAtVersion().getVersion()));
+    assertEquals(1, cache.size());
+
+    cache.putAll(name1, Arrays.asList(d1));
+    cache.invalidate(name1);
+    assertEquals(1, cache.size());
+  }
+
+  public void testInvalidateWhileCachingLeavesNoDeltas() throws Exception {
+    final WaveletName name = WaveletName.of(WaveId.of("example.com", "raced"),
+        WaveletId.of("example.com", "wavelet"));
+    final List<WaveletDeltaRecord> records = Lists.newArrayList();
+    HashedVersion version = HASH_FACTORY.createVersionZero(name);
+    for (int i = 0; i < 200; i++) {
+      WaveletDeltaRecord d = makeDelta(version, 1234567890L + i, 1);
+      records.add(d);
+      version = d.getResultingVersion();
+    }
+    final DeltaCache cache = new DeltaCache(1024 * 1024);
+    for (int round = 0; round < 200; round++) {
+      Thread writer = new Thread() {
+        @Override
+        public void run() {
+          for (WaveletDeltaRecord record : records) {
+            cache.putAll(name, Collections.singletonList(record));
+          }
+        }
+      };
+      writer.start();
+      while (writer.isAlive()) {
+        cache.invalidate(name);
+      }
+      writer.join();
+      cache.invalidate(name);
+      assertEquals(0, cache.size());
+    }
+  }
 }
@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.model.document.operation.DocInitialization;
+import org.waveprotocol.wave.model.document.operation.DocOp;
+import org.waveprotocol.wave.model.document.operation.algorithm.Composer;
+import org.waveprotocol.wave.model.document.operation.impl.DocInitializationBuilder;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpBuilder;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpUtil;
+import org.waveprotocol.wave.model.operation.OperationException;
+import org.waveprotocol.wave.model.operation.wave.AddParticipant;
+import org.waveprotocol.wave.model.operation.wave.BlipContentOperation;
+import org.waveprotocol.wave.model.operation.wave.NoOp;
+import org.waveprotocol.wave.model.operation.wave.RemoveParticipant;
+import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperationContext;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.List;
+
+/**
+ * Tests for {@link DeltaTransformer}.
+ */
+public class DeltaTransformerTest extends TestCase {
+
+  private static final ParticipantId CLIENT = ParticipantId.ofUnsafe("client@example.com");
+  private static final ParticipantId SERVER = ParticipantId.ofUnsafe("server@example.com");
+  private static final ParticipantId OTHER = ParticipantId.ofUnsafe("other@example.com");
+
+  private static final String TEXT = "abcdefghij";
+
+  private static WaveletOperationContext context(ParticipantId author) {
+    return new WaveletOperationContext(author, 1234567890L, 1);
+  }
+
+  private static DocOpBuilder retain(DocOpBuilder builder, int count) {
+    return count > 0 ? builder.retain(count) : builder;
+  }
+
+  private static WaveletOperation insert(ParticipantId author, String blipId, int size, int at,
+      String text) {
+    DocOp op = retain(retain(new DocOpBuilder(), at).characters(text), size - at).build();
+    return new WaveletBlipOperation(blipId, new BlipContentOperation(context(author), op));
+  }
+
+  private static WaveletOperation delete(ParticipantId author, String blipId, int size, int at,
+      String text) {
+    DocOp op = retain(retain(new DocOpBuilder(), at).deleteCharacters(text),
+        size - at - text.length()).build();
+    return new WaveletBlipOperation(blipId, new BlipContentOperation(context(author), op));
+  }
+
+  private static final List<List<WaveletOperation>> SERVER_DELTAS = ImmutableList.of(
+      ImmutableList.of(insert(SERVER, "b1", 10, 2, "XY"), delete(SERVER, "b2", 10, 2, "cd")),
+      ImmutableList.<WaveletOperation>of(new AddParticipant(context(SERVER), OTHER)),
+      ImmutableList.of(insert(SERVER, "b1", 12, 0, "Z"), insert(SERVER, "b2", 8, 8, "W")));
+
+  private static List<WaveletOperation> transformPairwise(List<WaveletOperation> clientOps)
+      throws OperationException {
+    for (List<WaveletOperation> serverOps : SERVER_DELTAS) {
+      clientOps = DeltaTransformer.transformOps(clientOps, serverOps);
+    }
+    return clientOps;
+  }
+
+  /** Applies the server deltas, then the client ops, to the content of a blip. */
+  private static String apply(String blipId, List<WaveletOperation> clientOps)
+      throws OperationException {
+    DocInitialization doc = new DocInitializationBuilder().characters(TEXT).build();
+    Iterable<WaveletOperation> ops =
+        Iterables.concat(Iterables.concat(SERVER_DELTAS), clientOps);
+    for (WaveletOperation op : ops) {
+      if (op instanceof WaveletBlipOperation
+          && ((WaveletBlipOperation) op).getBlipId().equals(blipId)) {
+        doc = Composer.compose(doc,
+            ((BlipContentOperation) ((WaveletBlipOperation) op).getBlipOp()).getContentOp());
+      }
+    }
+    return DocOpUtil.toXmlString(doc);
+  }
+
+  public void testBlipTransformHasSameEffectAsPairwise() throws OperationException {
+    List<WaveletOperation> clientOps = ImmutableList.of(insert(CLIENT, "b1", 10, 5, "q"),
+        insert(CLIENT, "b2", 10, 3, "r"), insert(CLIENT, "b3", 10, 0, "s"));
+
+    List<WaveletOperation> pairwise = transformPairwise(clientOps);
+    List<WaveletOperation> byBlip = DeltaTransformer.transformOpsByBlip(clientOps, SERVER_DELTAS);
+
+    assertEquals(3, byBlip.size());
+    for (String blipId : new String[] {"b1", "b2", "b3"}) {
+      assertEquals(apply(blipId, pairwise), apply(blipId, byBlip));
+    }
+    assertEquals("ZabXYcdeqfghij", apply("b1", byBlip));
+    // The untouched blip keeps the client op
+    assertSame(clientOps.get(2), byBlip.get(2));
+  }
+
+  public void testParticipantOpsAreTransformed() throws OperationException {
+    List<WaveletOperation> clientOps =
+        ImmutableList.<WaveletOperation>of(new AddParticipant(context(CLIENT), OTHER));
+
+    List<WaveletOperation> byBlip = DeltaTransformer.transformOpsByBlip(clientOps, SERVER_DELTAS);
+
+    assertEquals(transformPairwise(clientOps), byBlip);
+    assertTrue(byBlip.get(0) instanceof NoOp);
+  }
+
+  public void testRemovedAuthorCannotSubmit() {
+    List<List<WaveletOperation>> serverDeltas = ImmutableList.<List<WaveletOperation>>of(
+        ImmutableList.<WaveletOperation>of(new RemoveParticipant(context(SERVER), CLIENT)));
+    try {
+      DeltaTransformer.transformOpsByBlip(
+          ImmutableList.of(insert(CLIENT, "b1", 10, 0, "q")), serverDeltas);
+      fail("Expected the transform to fail");
+    } catch (OperationException expected) {
+    }
+  }
+}
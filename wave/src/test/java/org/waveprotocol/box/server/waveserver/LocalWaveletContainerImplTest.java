@@ -89,7 +89,7 @@ public class LocalWaveletContainerImplTest extends TestCase {
     WaveletNotificationSubscriber notifiee = mock(WaveletNotificationSubscriber.class);
     DeltaStore deltaStore = new MemoryDeltaStore();
     WaveletState waveletState = DeltaStoreBasedWaveletState.create(deltaStore.open(WAVELET_NAME),
-        PERSIST_EXECUTOR);
+        PERSIST_EXECUTOR, DeltaStoreBasedWaveletState.Options.DEFAULTS);
     wavelet = new LocalWaveletContainerImpl(WAVELET_NAME, notifiee,
         Futures.immediateFuture(waveletState), null, STORAGE_CONTINUATION_EXECUTOR);
     wavelet.awaitLoad();
@@ -19,10 +19,14 @@
 
 package org.waveprotocol.box.server.waveserver;
 
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
 
+import org.apache.lucene.index.IndexReader;
 import org.mockito.Mock;
 import org.waveprotocol.box.server.persistence.lucene.IndexDirectory;
 import org.waveprotocol.box.server.persistence.lucene.RAMIndexDirectory;
@@ -30,6 +34,7 @@ import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 
 import java.io.IOException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 /**
  * @author yurize@apache.org (Yuri Zelikov)
@@ -71,4 +76,56 @@ public class LucenePerUserWaveViewProviderTest extends PerUserWaveViewProviderTe
       throw new RuntimeException(e);
     }
   }
+
+  private static int committedDocs(IndexDirectory directory) throws IOException {
+    if (!IndexReader.indexExists(directory.getDirectory())) {
+      return 0;
+    }
+    IndexReader reader = IndexReader.open(directory.getDirectory());
+    try {
+      return reader.numDocs();
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void testBatchedUpdatesOfAWaveletAreCoalesced() throws Exception {
+    IndexDirectory batchedDirectory = new RAMIndexDirectory();
+    ScheduledExecutorService commitExecutor = Executors.newSingleThreadScheduledExecutor();
+    LucenePerUserWaveViewHandlerImpl batchedHandler =
+        new LucenePerUserWaveViewHandlerImpl(batchedDirectory, waveletProvider, DOMAIN,
+            Executors.newCachedThreadPool(), commitExecutor, 60000, 100, 1000);
+    try {
+      ListenableFuture<Void> added = batchedHandler.onParticipantAdded(WAVELET_NAME, PARTICIPANT);
+      ListenableFuture<Void> init = batchedHandler.onWaveInit(WAVELET_NAME);
+      assertSame(added, init);
+      added.get();
+      batchedHandler.forceReopen();
+
+      assertEquals(1, batchedHandler.retrievePerUserWaveView(PARTICIPANT).size());
+      verify(waveletProvider, times(1)).getReadableWaveletData(WAVELET_NAME);
+      // Searchable, but not committed yet.
+      assertEquals(0, committedDocs(batchedDirectory));
+    } finally {
+      batchedHandler.close();
+      commitExecutor.shutdown();
+    }
+    assertEquals(1, committedDocs(batchedDirectory));
+  }
+
+  public void testBatchedChangesAreCommittedOnMaxUpdates() throws Exception {
+    IndexDirectory batchedDirectory = new RAMIndexDirectory();
+    ScheduledExecutorService commitExecutor = Executors.newSingleThreadScheduledExecutor();
+    LucenePerUserWaveViewHandlerImpl batchedHandler =
+        new LucenePerUserWaveViewHandlerImpl(batchedDirectory, waveletProvider, DOMAIN,
+            Executors.newCachedThreadPool(), commitExecutor, 60000, 0, 1);
+    try {
+      batchedHandler.onParticipantAdded(WAVELET_NAME, PARTICIPANT).get();
+
+      assertEquals(1, committedDocs(batchedDirectory));
+    } finally {
+      batchedHandler.close();
+      commitExecutor.shutdown();
+    }
+  }
 }
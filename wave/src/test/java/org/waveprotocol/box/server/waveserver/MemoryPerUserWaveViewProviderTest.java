@@ -20,17 +20,27 @@
 package org.waveprotocol.box.server.waveserver;
 
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.util.concurrent.SettableFuture;
-import com.google.gwt.thirdparty.guava.common.collect.Maps;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
 
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.waveprotocol.box.common.ExceptionalIterator;
+import org.waveprotocol.box.server.persistence.PerUserWaveViewStore;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.box.server.persistence.memory.MemoryPerUserWaveViewStore;
 import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
 
-import java.util.Map;
+import java.util.List;
 
 /**
  * @author yurize@apache.org (Yuri Zelikov)
@@ -44,25 +54,29 @@ public class MemoryPerUserWaveViewProviderTest extends PerUserWaveViewProviderTe
   protected void setUp() throws Exception {
     super.setUp();
 
-    LocalWaveletContainer.Factory localFactory = mock(LocalWaveletContainer.Factory.class);
-
-    WaveletNotificationSubscriber notifiee = mock(WaveletNotificationSubscriber.class);
-
-    SettableFuture<ImmutableSet<WaveletId>> lookedupWavelets = SettableFuture.create();
-    lookedupWavelets.set(ImmutableSet.of(WAVELET_NAME.waveletId));
-
-    Wave wave =
-        new Wave(WAVELET_NAME.waveId, lookedupWavelets, notifiee, localFactory, null,
-            WAVELET_NAME.waveId.getDomain());
-    Map<WaveId, Wave> waves = Maps.newHashMap();
-    waves.put(WAVELET_NAME.waveId, wave);
-    when(waveMap.getWaves()).thenReturn(waves);
+    storeWaves(WAVELET_NAME);
     ImmutableSet<WaveletId> wavelets = ImmutableSet.of(WAVELET_NAME.waveletId);
     when(waveMap.lookupWavelets(WAVELET_NAME.waveId)).thenReturn(wavelets);
 
     LocalWaveletContainer c = mock(LocalWaveletContainer.class);
     when(c.hasParticipant(PARTICIPANT)).thenReturn(true);
-    when(waveMap.getLocalWavelet(WAVELET_NAME)).thenReturn(c);
+    when(waveMap.getWavelet(WAVELET_NAME)).thenReturn(c);
+  }
+
+  /** Makes the stored waves of the wave map those of the given wavelets. */
+  private void storeWaves(WaveletName... waveletNames) throws Exception {
+    final List<WaveId> waveIds = Lists.newArrayList();
+    for (WaveletName name : waveletNames) {
+      waveIds.add(name.waveId);
+    }
+    when(waveMap.getStoredWaveIds()).thenAnswer(
+        new Answer<ExceptionalIterator<WaveId, PersistenceException>>() {
+          @Override
+          public ExceptionalIterator<WaveId, PersistenceException> answer(
+              InvocationOnMock invocation) {
+            return ExceptionalIterator.FromIterator.create(waveIds.iterator());
+          }
+        });
   }
 
   @Override
@@ -74,4 +88,79 @@ public class MemoryPerUserWaveViewProviderTest extends PerUserWaveViewProviderTe
   protected void postUpdateHook() {
     // No op.
   }
+
+  public void testStoredViewIsLoadedWithoutScanningWaves() throws Exception {
+    PerUserWaveViewStore store = new MemoryPerUserWaveViewStore();
+    Multimap<WaveId, WaveletId> view = HashMultimap.create();
+    view.put(WAVELET_NAME.waveId, WAVELET_NAME.waveletId);
+    store.putWaveView(OTHER_PARTICIPANT, view);
+    MemoryPerUserWaveViewHandlerImpl handler = new MemoryPerUserWaveViewHandlerImpl(waveMap, store);
+
+    assertEquals(view, handler.retrievePerUserWaveView(OTHER_PARTICIPANT));
+    verify(waveMap, never()).getStoredWaveIds();
+  }
+
+  public void testScannedViewIsStoredAndKeptUpToDate() throws Exception {
+    PerUserWaveViewStore store = new MemoryPerUserWaveViewStore();
+    MemoryPerUserWaveViewHandlerImpl handler = new MemoryPerUserWaveViewHandlerImpl(waveMap, store);
+
+    handler.retrievePerUserWaveView(PARTICIPANT);
+    assertNotNull(store.getWaveView(PARTICIPANT));
+
+    handler.onParticipantAdded(WAVELET_NAME, PARTICIPANT).get();
+    assertTrue(store.getWaveView(PARTICIPANT).containsEntry(WAVELET_NAME.waveId,
+        WAVELET_NAME.waveletId));
+    handler.onParticipantRemoved(WAVELET_NAME, PARTICIPANT).get();
+    assertTrue(store.getWaveView(PARTICIPANT).isEmpty());
+  }
+
+  public void testViewIncludesStoredWavesWhichAreNotLoaded() throws Exception {
+    // The mock wave map has no loaded waves, the wave is only in the store.
+    PerUserWaveViewStore store = new MemoryPerUserWaveViewStore();
+    MemoryPerUserWaveViewHandlerImpl handler = new MemoryPerUserWaveViewHandlerImpl(waveMap, store);
+
+    Multimap<WaveId, WaveletId> view = handler.retrievePerUserWaveView(PARTICIPANT);
+    assertTrue(view.containsEntry(WAVELET_NAME.waveId, WAVELET_NAME.waveletId));
+    assertEquals(view, store.getWaveView(PARTICIPANT));
+  }
+
+  public void testChangesWhileBuildingAreApplied() throws Exception {
+    final WaveletName added = WaveletName.of(WaveId.of("example.com", "added"),
+        WaveletId.of("example.com", "conv+root"));
+    final PerUserWaveViewStore store = new MemoryPerUserWaveViewStore();
+    final MemoryPerUserWaveViewHandlerImpl handler =
+        new MemoryPerUserWaveViewHandlerImpl(waveMap, store);
+    // The participant is added to one wave and removed from the scanned one
+    // after the scan looked at them.
+    LocalWaveletContainer c = mock(LocalWaveletContainer.class);
+    when(c.hasParticipant(PARTICIPANT)).thenAnswer(new Answer<Boolean>() {
+      @Override
+      public Boolean answer(InvocationOnMock invocation) throws Throwable {
+        handler.onParticipantAdded(added, PARTICIPANT).get();
+        handler.onParticipantRemoved(WAVELET_NAME, PARTICIPANT).get();
+        return true;
+      }
+    });
+    when(waveMap.getWavelet(WAVELET_NAME)).thenReturn(c);
+
+    Multimap<WaveId, WaveletId> view = handler.retrievePerUserWaveView(PARTICIPANT);
+    assertTrue(view.containsEntry(added.waveId, added.waveletId));
+    assertFalse(view.containsEntry(WAVELET_NAME.waveId, WAVELET_NAME.waveletId));
+    assertEquals(view, store.getWaveView(PARTICIPANT));
+
+    // Later changes go to the stored view.
+    handler.onParticipantAdded(WAVELET_NAME, PARTICIPANT).get();
+    assertTrue(store.getWaveView(PARTICIPANT).containsEntry(WAVELET_NAME.waveId,
+        WAVELET_NAME.waveletId));
+  }
+
+  public void testIncompleteViewIsNotStored() throws Exception {
+    when(waveMap.lookupWavelets(WAVELET_NAME.waveId)).thenThrow(
+        new WaveletStateException("failed"));
+    PerUserWaveViewStore store = new MemoryPerUserWaveViewStore();
+    MemoryPerUserWaveViewHandlerImpl handler = new MemoryPerUserWaveViewHandlerImpl(waveMap, store);
+
+    assertTrue(handler.retrievePerUserWaveView(PARTICIPANT).isEmpty());
+    assertNull(store.getWaveView(PARTICIPANT));
+  }
 }
@@ -36,6 +36,7 @@ import junit.framework.TestCase;
 
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.waveprotocol.box.common.DeltaSequence;
 import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
 import org.waveprotocol.box.server.persistence.PersistenceException;
 import org.waveprotocol.box.server.persistence.memory.MemoryDeltaStore;
@@ -48,6 +49,7 @@ import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.operation.wave.AddParticipant;
+import org.waveprotocol.wave.model.operation.wave.RemoveParticipant;
 import org.waveprotocol.wave.model.operation.wave.WaveletDelta;
 import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
 import org.waveprotocol.wave.model.operation.wave.WaveletOperationContext;
@@ -56,6 +58,7 @@ import org.waveprotocol.wave.model.version.HashedVersionFactory;
 import org.waveprotocol.wave.model.version.HashedVersionZeroFactoryImpl;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.model.wave.ParticipantIdUtil;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 import org.waveprotocol.wave.util.escapers.jvm.JavaUrlCodec;
 
 import java.util.Arrays;
@@ -168,6 +171,7 @@ public class SimpleSearchProviderImplTest extends TestCase {
   @Mock private PerUserWaveViewProvider waveViewProvider;
 
   private SearchProvider searchProvider;
+  private WaveSearchIndex searchIndex;
   private WaveMap waveMap;
 
   @Override
@@ -197,7 +201,7 @@ public class SimpleSearchProviderImplTest extends TestCase {
             WaveletState waveletState;
             try {
               waveletState = DeltaStoreBasedWaveletState.create(deltaStore.open(waveletName),
-                  persistExecutor);
+                  persistExecutor, DeltaStoreBasedWaveletState.Options.DEFAULTS);
             } catch (PersistenceException e) {
               throw new RuntimeException(e);
             }
@@ -208,14 +212,16 @@ public class SimpleSearchProviderImplTest extends TestCase {
 
     Config config = ConfigFactory.parseMap(ImmutableMap.<String, Object>of(
       "core.wave_cache_size", 1000,
-      "core.wave_cache_expire", "60m")
+      "core.wave_cache_expire", "60m",
+      "core.search_index_size", 1000)
     );
 
     waveMap =
         new WaveMap(waveletStore, notifiee, localWaveletContainerFactory,
             remoteWaveletContainerFactory, DOMAIN, config, lookupExecutor);
 
-    searchProvider = new SimpleSearchProviderImpl(DOMAIN, digester, waveMap, waveViewProvider);
+    searchIndex = new WaveSearchIndex(waveMap, waveViewProvider, config);
+    searchProvider = new SimpleSearchProviderImpl(DOMAIN, digester, waveMap, searchIndex);
   }
 
   @Override
@@ -460,8 +466,94 @@ public class SimpleSearchProviderImplTest extends TestCase {
     assertEquals(0, results.getNumResults());
   }
 
+  public void testSearchReflectsIndexedUpdates() throws Exception {
+    submitDeltaToNewWavelet(WAVELET_NAME, USER1, addParticipantToWavelet(USER1, WAVELET_NAME));
+    SearchResult results =
+        searchProvider.search(USER1, "in:inbox with:" + USER2.getAddress(), 0, 10);
+    assertEquals(0, results.getNumResults());
+
+    submitDeltaToWavelet(WAVELET_NAME, USER1, addParticipantToWavelet(USER2, WAVELET_NAME));
+    deliverUpdate(WAVELET_NAME);
+
+    results = searchProvider.search(USER1, "in:inbox with:" + USER2.getAddress(), 0, 10);
+    assertEquals(1, results.getNumResults());
+  }
+
+  public void testSearchIgnoresOlderUpdates() throws Exception {
+    submitDeltaToNewWavelet(WAVELET_NAME, USER1, addParticipantToWavelet(USER1, WAVELET_NAME));
+    ReadableWaveletData older = waveMap.getLocalWavelet(WAVELET_NAME).copyWaveletData();
+    submitDeltaToWavelet(WAVELET_NAME, USER1, addParticipantToWavelet(USER2, WAVELET_NAME));
+    deliverUpdate(WAVELET_NAME);
+    searchIndex.waveletUpdate(older, DeltaSequence.empty());
+
+    SearchResult results =
+        searchProvider.search(USER1, "in:inbox with:" + USER2.getAddress(), 0, 10);
+    assertEquals(1, results.getNumResults());
+  }
+
+  public void testSearchReflectsRemovedParticipants() throws Exception {
+    submitDeltaToNewWavelet(WAVELET_NAME, USER1, addParticipantToWavelet(USER1, WAVELET_NAME),
+        addParticipantToWavelet(USER2, WAVELET_NAME));
+    assertEquals(1, searchProvider.search(USER2, "in:inbox", 0, 10).getNumResults());
+
+    submitDeltaToWavelet(WAVELET_NAME, USER1, new RemoveParticipant(CONTEXT, USER2));
+    deliverUpdate(WAVELET_NAME);
+
+    assertEquals(0, searchProvider.search(USER2, "in:inbox", 0, 10).getNumResults());
+    assertEquals(1, searchProvider.search(USER1, "in:inbox", 0, 10).getNumResults());
+  }
+
+  public void testSearchPagesByDate() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      WaveletName name = WaveletName.of(WaveId.of(DOMAIN, String.valueOf(i)), WAVELET_ID);
+      submitDeltaToNewWavelet(name, USER1, addParticipantToWavelet(USER1, name));
+    }
+    // A later edit moves a wave to the top.
+    WaveletName edited = WaveletName.of(WaveId.of(DOMAIN, "5"), WAVELET_ID);
+    submitDeltaToWavelet(edited, USER1, new AddParticipant(
+        new WaveletOperationContext(USER1, CONTEXT.getTimestamp() + 1000, 1), USER2));
+    deliverUpdate(edited);
+
+    SearchResult all = searchProvider.search(USER1, "in:inbox", 0, 10);
+    assertEquals(10, all.getNumResults());
+    assertEquals(edited.waveId.serialise(), all.getDigests().get(0).getWaveId());
+    for (int startAt = 0; startAt < 10; startAt += 3) {
+      SearchResult page = searchProvider.search(USER1, "in:inbox", startAt, 3);
+      assertEquals(Math.min(3, 10 - startAt), page.getNumResults());
+      for (int i = 0; i < page.getNumResults(); i++) {
+        assertEquals(all.getDigests().get(startAt + i).getWaveId(),
+            page.getDigests().get(i).getWaveId());
+      }
+    }
+  }
+
+  public void testSearchPagesOrderedResults() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      WaveletName name = WaveletName.of(WaveId.of(DOMAIN, String.valueOf(i)), WAVELET_ID);
+      submitDeltaToNewWavelet(name, USER1, addParticipantToWavelet(USER1, name));
+    }
+    SearchResult all = searchProvider.search(USER1, "in:inbox orderby:creatorasc", 0, 10);
+    SearchResult page = searchProvider.search(USER1, "in:inbox orderby:creatorasc", 3, 4);
+    assertEquals(4, page.getNumResults());
+    for (int i = 0; i < 4; i++) {
+      assertEquals(all.getDigests().get(i + 3).getWaveId(), page.getDigests().get(i).getWaveId());
+    }
+    assertEquals(0, searchProvider.search(USER1, "in:inbox", 10, 5).getNumResults());
+  }
+
   // *** Helpers
 
+  private void submitDeltaToWavelet(WaveletName name, ParticipantId user,
+      WaveletOperation... ops) throws Exception {
+    LocalWaveletContainer wavelet = waveMap.getLocalWavelet(name);
+    HashedVersion version = wavelet.copyWaveletData().getHashedVersion();
+    WaveletDelta delta = new WaveletDelta(user, version, Arrays.asList(ops));
+    ProtocolWaveletDelta protoDelta = CoreWaveletOperationSerializer.serialize(delta);
+    ProtocolSignedDelta signedProtoDelta =
+        ProtocolSignedDelta.newBuilder().setDelta(protoDelta.toByteString()).build();
+    wavelet.submitRequest(name, signedProtoDelta);
+  }
+
   private void submitDeltaToNewWavelet(WaveletName name, ParticipantId user,
       WaveletOperation... ops) throws Exception {
 
@@ -481,6 +573,12 @@ public class SimpleSearchProviderImplTest extends TestCase {
     wavelet.submitRequest(name, signedProtoDelta);
   }
 
+  /** Delivers the current state of a wavelet to the index, as the wave bus would. */
+  private void deliverUpdate(WaveletName name) throws Exception {
+    searchIndex.waveletUpdate(waveMap.getLocalWavelet(name).copyWaveletData(),
+        DeltaSequence.empty());
+  }
+
   private void addWaveletToUserView(WaveletName name, ParticipantId user) {
     HashMultimap<WaveId,WaveletId> wavesView = wavesViews.get(user);
     if (!wavesView.containsEntry(name.waveId, name.waveletId)) {
@@ -31,15 +31,19 @@ import junit.framework.TestCase;
 
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.waveprotocol.box.common.DeltaSequence;
 import org.waveprotocol.box.server.robots.operations.TestingWaveletData;
 import org.waveprotocol.box.server.robots.util.ConversationUtil;
 import org.waveprotocol.wave.model.conversation.ConversationBlip;
 import org.waveprotocol.wave.model.conversation.ObservableConversationView;
 import org.waveprotocol.wave.model.id.IdGenerator;
+import org.waveprotocol.wave.model.id.IdUtil;
 import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.supplement.SupplementedWave;
 import org.waveprotocol.wave.model.wave.ObservableWavelet;
+import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
+import org.waveprotocol.wave.model.wave.data.WaveViewData;
 import org.waveprotocol.wave.model.wave.opbased.OpBasedWavelet;
 
 /**
@@ -117,4 +121,71 @@ public class WaveDigesterTest extends TestCase {
     assertEquals(3, digest.getBlipCount());
     assertEquals(2, digest.getUnreadCount());
   }
+
+  private static ObservableWaveletData getWavelet(WaveViewData view, boolean userData) {
+    for (ObservableWaveletData wavelet : view.getWavelets()) {
+      if (IdUtil.isUserDataWavelet(wavelet.getWaveletId()) == userData) {
+        return wavelet;
+      }
+    }
+    throw new AssertionError();
+  }
+
+  public void testCachedDigestIsReusedUntilAWaveletVersionChanges() {
+    WaveDigester cachingDigester = new WaveDigester(conversationUtil, 10);
+    TestingWaveletData data =
+        new TestingWaveletData(WAVE_ID, CONVERSATION_WAVELET_ID, PARTICIPANT, true);
+    data.appendBlipWithText("title");
+
+    Digest digest = cachingDigester.build(PARTICIPANT, data.copyViewData());
+    assertSame(digest, cachingDigester.build(PARTICIPANT, data.copyViewData()));
+
+    data.appendBlipWithText("blip number 2");
+    WaveViewData changed = data.copyViewData();
+    getWavelet(changed, false).setVersion(1);
+    Digest rebuilt = cachingDigester.build(PARTICIPANT, changed);
+
+    assertNotSame(digest, rebuilt);
+    assertEquals(2, rebuilt.getBlipCount());
+    assertEquals(1, cachingDigester.getCachedDigestCount());
+  }
+
+  public void testUserDataWaveletUpdateDropsTheOwnersDigest() {
+    WaveDigester cachingDigester = new WaveDigester(conversationUtil, 10);
+    TestingWaveletData data =
+        new TestingWaveletData(WAVE_ID, CONVERSATION_WAVELET_ID, PARTICIPANT, true);
+    data.appendBlipWithText("title");
+    WaveViewData view = data.copyViewData();
+    Digest digest = cachingDigester.build(PARTICIPANT, data.copyViewData());
+
+    // A user data wavelet update only drops the digest of its owner.
+    cachingDigester.waveletUpdate(getWavelet(view, true), DeltaSequence.empty());
+    assertEquals(0, cachingDigester.getCachedDigestCount());
+    Digest rebuilt = cachingDigester.build(PARTICIPANT, data.copyViewData());
+    assertNotSame(digest, rebuilt);
+    assertSame(rebuilt, cachingDigester.build(PARTICIPANT, data.copyViewData()));
+  }
+
+  public void testCacheIsBoundedByViewers() {
+    WaveDigester cachingDigester = new WaveDigester(conversationUtil, 2);
+    TestingWaveletData data =
+        new TestingWaveletData(WAVE_ID, CONVERSATION_WAVELET_ID, PARTICIPANT, true);
+    data.appendBlipWithText("title");
+
+    for (int i = 0; i < 10; i++) {
+      cachingDigester.build(ParticipantId.ofUnsafe("viewer" + i + "@example.com"),
+          data.copyViewData());
+    }
+    assertEquals(2, cachingDigester.getCachedDigestCount());
+  }
+
+  public void testDigestsAreNotCachedWhenDisabled() {
+    TestingWaveletData data =
+        new TestingWaveletData(WAVE_ID, CONVERSATION_WAVELET_ID, PARTICIPANT, true);
+    data.appendBlipWithText("title");
+
+    assertNotSame(digester.build(PARTICIPANT, data.copyViewData()),
+        digester.build(PARTICIPANT, data.copyViewData()));
+    assertEquals(0, digester.getCachedDigestCount());
+  }
 }
@@ -20,6 +20,8 @@
 package org.waveprotocol.box.server.waveserver;
 
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.common.collect.ImmutableMap;
@@ -76,7 +78,7 @@ public class WaveMapTest extends TestCase {
             WaveletState waveletState;
             try {
               waveletState = DeltaStoreBasedWaveletState.create(deltaStore.open(waveletName),
-                  persistExecutor);
+                  persistExecutor, DeltaStoreBasedWaveletState.Options.DEFAULTS);
             } catch (PersistenceException e) {
               throw new RuntimeException(e);
             }
@@ -128,6 +130,14 @@ public class WaveMapTest extends TestCase {
     assertSame(wavelet, waveMap.getLocalWavelet(WAVELET_NAME));
   }
 
+  public void testPreloadedWaveIsNotLookedUp() throws WaveletStateException, PersistenceException {
+    waveMap.preloadWave(WAVE_ID, ImmutableSet.<WaveletId>of(WAVELET_ID));
+
+    assertEquals(ImmutableSet.of(WAVELET_ID), waveMap.lookupWavelets(WAVE_ID));
+    assertNotNull(waveMap.getLocalWavelet(WAVELET_NAME));
+    verify(waveletStore, never()).lookup(WAVE_ID);
+  }
+
   private ExceptionalIterator<WaveId, PersistenceException> eitr(WaveId... waves) {
     return ExceptionalIterator.FromIterator.<WaveId, PersistenceException>create(
         Arrays.asList(waves).iterator());
@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import junit.framework.TestCase;
+
+import org.mockito.InOrder;
+import org.waveprotocol.box.common.ExceptionalIterator;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+
+import java.util.Arrays;
+
+public class WaveMapWarmerTest extends TestCase {
+
+  private static final WaveletId ROOT = WaveletId.of("example.com", "conv+root");
+  private static final WaveletId OTHER = WaveletId.of("example.com", "conv+other");
+  private static final WaveId OLD_WAVE = WaveId.of("example.com", "w+old");
+  private static final WaveId RECENT_WAVE = WaveId.of("example.com", "w+recent");
+  private static final WaveId NEWEST_WAVE = WaveId.of("example.com", "w+newest");
+
+  private LastModifiedDeltaStore deltaStore;
+  private WaveMap waveMap;
+  private LocalWaveletContainer wavelet;
+
+  @Override
+  protected void setUp() throws Exception {
+    deltaStore = mock(LastModifiedDeltaStore.class);
+    waveMap = mock(WaveMap.class);
+    wavelet = mock(LocalWaveletContainer.class);
+    when(waveMap.getWavelet(any(WaveletName.class))).thenReturn(wavelet);
+    when(deltaStore.getWaveIdIterator()).thenReturn(
+        ExceptionalIterator.FromIterator.<WaveId, PersistenceException> create(
+            Arrays.asList(OLD_WAVE, NEWEST_WAVE, RECENT_WAVE).iterator()));
+    storeWave(OLD_WAVE, 1000L);
+    storeWave(NEWEST_WAVE, 3000L);
+    storeWave(RECENT_WAVE, 2000L);
+  }
+
+  /** Stores a wave whose root wavelet was modified at the given time. */
+  private void storeWave(WaveId waveId, long rootModifiedTime) throws Exception {
+    when(deltaStore.getLastModified(waveId)).thenReturn(
+        ImmutableMap.of(ROOT, rootModifiedTime, OTHER, 500L));
+  }
+
+  public void testMostRecentWavesAreLoadedFirst() throws Exception {
+    WaveMapWarmer warmer = new WaveMapWarmer(deltaStore, waveMap, 1, 10);
+    warmer.warmUp();
+
+    InOrder order = inOrder(waveMap);
+    order.verify(waveMap).preloadWave(NEWEST_WAVE, ImmutableSet.of(ROOT, OTHER));
+    order.verify(waveMap).preloadWave(RECENT_WAVE, ImmutableSet.of(ROOT, OTHER));
+    order.verify(waveMap).preloadWave(OLD_WAVE, ImmutableSet.of(ROOT, OTHER));
+    assertEquals(3, warmer.getRankedWaveCount());
+    assertEquals(3, warmer.getLoadedWaveCount());
+    // Ranking reads metadata only.
+    verify(deltaStore, never()).open(any(WaveletName.class));
+    verify(deltaStore, never()).lookup(any(WaveId.class));
+  }
+
+  public void testOnlyTheLimitIsLoaded() throws Exception {
+    WaveMapWarmer warmer = new WaveMapWarmer(deltaStore, waveMap, 4, 2);
+    warmer.warmUp();
+
+    verify(waveMap).preloadWave(eq(NEWEST_WAVE), any(ImmutableSet.class));
+    verify(waveMap).preloadWave(eq(RECENT_WAVE), any(ImmutableSet.class));
+    verify(waveMap, never()).preloadWave(eq(OLD_WAVE), any(ImmutableSet.class));
+    // Both wavelets of each loaded wave are waited for.
+    verify(waveMap).getWavelet(WaveletName.of(NEWEST_WAVE, OTHER));
+    verify(waveMap).getWavelet(WaveletName.of(RECENT_WAVE, ROOT));
+    assertEquals(3, warmer.getRankedWaveCount());
+    assertEquals(2, warmer.getLoadedWaveCount());
+  }
+
+  public void testWavesFailingToRankAreSkipped() throws Exception {
+    when(deltaStore.getLastModified(RECENT_WAVE)).thenThrow(
+        new PersistenceException("read failed"));
+    WaveMapWarmer warmer = new WaveMapWarmer(deltaStore, waveMap, 2, 10);
+    warmer.warmUp();
+
+    verify(waveMap, never()).preloadWave(eq(RECENT_WAVE), any(ImmutableSet.class));
+    verify(waveMap).preloadWave(eq(OLD_WAVE), any(ImmutableSet.class));
+    assertEquals(2, warmer.getLoadedWaveCount());
+  }
+
+  public void testLoadedWavesAreSkipped() throws Exception {
+    when(waveMap.isLoaded(NEWEST_WAVE)).thenReturn(true);
+    WaveMapWarmer warmer = new WaveMapWarmer(deltaStore, waveMap, 1, 10);
+    warmer.warmUp();
+
+    verify(deltaStore, never()).getLastModified(NEWEST_WAVE);
+    verify(waveMap, never()).preloadWave(eq(NEWEST_WAVE), any(ImmutableSet.class));
+    verify(waveMap, never()).getWavelet(WaveletName.of(NEWEST_WAVE, ROOT));
+    assertEquals(2, warmer.getLoadedWaveCount());
+  }
+
+  public void testStoresWhichCantRankAreLoadedInStoreOrder() throws Exception {
+    DeltaStore plainStore = mock(DeltaStore.class);
+    when(plainStore.getWaveIdIterator()).thenReturn(
+        ExceptionalIterator.FromIterator.<WaveId, PersistenceException> create(
+            Arrays.asList(OLD_WAVE, NEWEST_WAVE, RECENT_WAVE).iterator()));
+    when(waveMap.lookupWavelets(any(WaveId.class))).thenReturn(ImmutableSet.of(ROOT));
+    WaveMapWarmer warmer = new WaveMapWarmer(plainStore, waveMap, 1, 2);
+    warmer.warmUp();
+
+    verify(waveMap).lookupWavelets(OLD_WAVE);
+    verify(waveMap).lookupWavelets(NEWEST_WAVE);
+    verify(waveMap, never()).lookupWavelets(RECENT_WAVE);
+    verify(plainStore, never()).open(any(WaveletName.class));
+    assertEquals(2, warmer.getLoadedWaveCount());
+  }
+}
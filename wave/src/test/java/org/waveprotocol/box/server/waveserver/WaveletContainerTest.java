@@ -124,12 +124,14 @@ public class WaveletContainerTest extends TestCase {
     WaveletNotificationSubscriber notifiee = mock(WaveletNotificationSubscriber.class);
     DeltaStore deltaStore = new MemoryDeltaStore();
     WaveletState localWaveletState =
-        DeltaStoreBasedWaveletState.create(deltaStore.open(localWaveletName), PERSIST_EXECUTOR);
+        DeltaStoreBasedWaveletState.create(deltaStore.open(localWaveletName), PERSIST_EXECUTOR,
+            DeltaStoreBasedWaveletState.Options.DEFAULTS);
     localWavelet = new LocalWaveletContainerImpl(localWaveletName, notifiee,
         Futures.immediateFuture(localWaveletState), localDomain, STORAGE_CONTINUATION_EXECUTOR);
     localWavelet.awaitLoad();
     WaveletState remoteWaveletState =
-        DeltaStoreBasedWaveletState.create(deltaStore.open(remoteWaveletName), PERSIST_EXECUTOR);
+        DeltaStoreBasedWaveletState.create(deltaStore.open(remoteWaveletName), PERSIST_EXECUTOR,
+            DeltaStoreBasedWaveletState.Options.DEFAULTS);
     remoteWavelet = new RemoteWaveletContainerImpl(remoteWaveletName, notifiee,
         Futures.immediateFuture(remoteWaveletState), STORAGE_CONTINUATION_EXECUTOR);
     remoteWavelet.awaitLoad();
@@ -0,0 +1,253 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.box.common.DeltaSequence;
+import org.waveprotocol.box.server.util.WaveletDataUtil;
+import org.waveprotocol.wave.federation.WaveletFederationListener;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests for {@link WaveletNotificationDispatcher}.
+ */
+public class WaveletNotificationDispatcherTest extends TestCase {
+
+  private static final WaveletName WAVELET1 =
+      WaveletName.of(WaveId.of("example.com", "wave1"), WaveletId.of("example.com", "wavelet"));
+  private static final WaveletName WAVELET2 =
+      WaveletName.of(WaveId.of("example.com", "wave2"), WaveletId.of("example.com", "wavelet"));
+  private static final ParticipantId AUTHOR = ParticipantId.ofUnsafe("author@example.com");
+  private static final ImmutableSet<String> NO_DOMAINS = ImmutableSet.of();
+
+  /** Records the committed versions, optionally waiting for a latch first. */
+  private static class RecordingSubscriber implements WaveBus.Subscriber {
+    final List<String> commits = Collections.synchronizedList(new ArrayList<String>());
+    final List<Long> updateVersions = Collections.synchronizedList(new ArrayList<Long>());
+    CountDownLatch release = new CountDownLatch(0);
+    final CountDownLatch entered = new CountDownLatch(1);
+
+    @Override
+    public void waveletUpdate(ReadableWaveletData wavelet, DeltaSequence deltas) {
+      await();
+      updateVersions.add(wavelet.getVersion());
+    }
+
+    @Override
+    public void waveletCommitted(WaveletName waveletName, HashedVersion version) {
+      await();
+      commits.add(waveletName.waveId.getId() + ":" + version.getVersion());
+    }
+
+    private void await() {
+      entered.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+    super.tearDown();
+  }
+
+  private static WaveletNotificationDispatcher newDispatcher(Executor executor) {
+    CertificateManager certificateManager = mock(CertificateManager.class);
+    when(certificateManager.getLocalDomains()).thenReturn(ImmutableSet.of("example.com"));
+    return new WaveletNotificationDispatcher(certificateManager,
+        mock(WaveletFederationListener.Factory.class), executor);
+  }
+
+  /** Waits until a subscriber has received some notifications. */
+  private static void awaitSize(List<?> notifications, int size) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (notifications.size() < size && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(size, notifications.size());
+  }
+
+  public void testWithoutExecutorSubscribersAreNotifiedOnCaller() {
+    WaveletNotificationDispatcher dispatcher = newDispatcher(null);
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    dispatcher.subscribe(subscriber);
+
+    dispatcher.waveletCommitted(WAVELET1, HashedVersion.unsigned(1), NO_DOMAINS);
+
+    assertEquals(ImmutableList.of("wave1:1"), subscriber.commits);
+  }
+
+  public void testNotificationsOfWaveletAreDeliveredInOrder() throws Exception {
+    WaveletNotificationDispatcher dispatcher = newDispatcher(executor);
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    dispatcher.subscribe(subscriber);
+
+    for (int v = 1; v <= 100; v++) {
+      dispatcher.waveletCommitted(WAVELET1, HashedVersion.unsigned(v), NO_DOMAINS);
+      // Commits waiting for the subscriber may be merged, but in order.
+      synchronized (subscriber.commits) {
+        int delivered = subscriber.commits.size();
+        if (delivered > 0) {
+          String last = subscriber.commits.get(delivered - 1);
+          assertTrue(last, Integer.parseInt(last.substring("wave1:".length())) <= v);
+        }
+      }
+    }
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!subscriber.commits.contains("wave1:100") && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+
+    int previous = 0;
+    for (String commit : subscriber.commits) {
+      int version = Integer.parseInt(commit.substring("wave1:".length()));
+      assertTrue(commit, version > previous);
+      previous = version;
+    }
+    assertEquals(100, previous);
+  }
+
+  public void testNotificationsWaitingForLaggingSubscriberAreMerged() throws Exception {
+    WaveletNotificationDispatcher dispatcher = newDispatcher(executor);
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    subscriber.release = new CountDownLatch(1);
+    dispatcher.subscribe(subscriber);
+    ObservableWaveletData wavelet = WaveletDataUtil.createEmptyWavelet(WAVELET1, AUTHOR,
+        HashedVersion.unsigned(1), 1234567890L);
+
+    // The first update blocks the subscriber, the next notifications wait and
+    // are merged into one.
+    dispatcher.waveletUpdate(wavelet, ImmutableList.<WaveletDeltaRecord>of(), NO_DOMAINS);
+    assertTrue(subscriber.entered.await(5, TimeUnit.SECONDS));
+    WaveletNotificationDispatcher.SubscriberLag lag =
+        WaveletNotificationDispatcher.SUBSCRIBER_LAG.get("RecordingSubscriber");
+    long merged = lag.merged.get();
+    for (int v = 1; v <= 10; v++) {
+      wavelet.setVersion(v);
+      if (v > 1) {
+        dispatcher.waveletUpdate(wavelet, ImmutableList.<WaveletDeltaRecord>of(), NO_DOMAINS);
+      }
+      dispatcher.waveletCommitted(WAVELET1, HashedVersion.unsigned(v), NO_DOMAINS);
+    }
+    subscriber.release.countDown();
+    awaitSize(subscriber.updateVersions, 2);
+    awaitSize(subscriber.commits, 1);
+
+    assertEquals(ImmutableList.of(1L, 10L), subscriber.updateVersions);
+    assertEquals(ImmutableList.of("wave1:10"), subscriber.commits);
+    assertEquals(18, lag.merged.get() - merged);
+  }
+
+  public void testRejectedNotificationDoesNotStallWavelet() throws Exception {
+    final AtomicBoolean reject = new AtomicBoolean(true);
+    WaveletNotificationDispatcher dispatcher = newDispatcher(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        if (reject.get()) {
+          throw new RejectedExecutionException();
+        }
+        command.run();
+      }
+    });
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    dispatcher.subscribe(subscriber);
+
+    try {
+      dispatcher.waveletCommitted(WAVELET1, HashedVersion.unsigned(1), NO_DOMAINS);
+      fail("Expected RejectedExecutionException");
+    } catch (RejectedExecutionException expected) {
+    }
+    reject.set(false);
+    dispatcher.waveletCommitted(WAVELET1, HashedVersion.unsigned(2), NO_DOMAINS);
+
+    assertEquals(ImmutableList.of("wave1:2"), subscriber.commits);
+  }
+
+  public void testSlowSubscriberDoesNotBlockCallerNorOthers() throws Exception {
+    WaveletNotificationDispatcher dispatcher = newDispatcher(executor);
+    RecordingSubscriber slow = new RecordingSubscriber();
+    slow.release = new CountDownLatch(1);
+    RecordingSubscriber fast = new RecordingSubscriber();
+    dispatcher.subscribe(slow);
+    dispatcher.subscribe(fast);
+
+    dispatcher.waveletCommitted(WAVELET1, HashedVersion.unsigned(1), NO_DOMAINS);
+    dispatcher.waveletCommitted(WAVELET2, HashedVersion.unsigned(1), NO_DOMAINS);
+
+    awaitSize(fast.commits, 2);
+    assertTrue(slow.commits.isEmpty());
+
+    slow.release.countDown();
+    awaitSize(slow.commits, 2);
+  }
+
+  public void testSubscribersGetSnapshotOfNotifiedVersion() throws Exception {
+    WaveletNotificationDispatcher dispatcher = newDispatcher(executor);
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    subscriber.release = new CountDownLatch(1);
+    dispatcher.subscribe(subscriber);
+    ObservableWaveletData wavelet = WaveletDataUtil.createEmptyWavelet(WAVELET1, AUTHOR,
+        HashedVersion.unsigned(1), 1234567890L);
+
+    dispatcher.waveletUpdate(wavelet, ImmutableList.<WaveletDeltaRecord>of(), NO_DOMAINS);
+    // Changed by the next delta before the subscriber runs
+    wavelet.setVersion(2);
+    subscriber.release.countDown();
+    awaitSize(subscriber.updateVersions, 1);
+
+    assertEquals(ImmutableList.of(1L), subscriber.updateVersions);
+  }
+}
@@ -68,7 +68,8 @@ public abstract class WaveletStateTestBase extends TestCase {
 
   private static final IdURIEncoderDecoder URI_CODEC =
       new IdURIEncoderDecoder(new JavaUrlCodec());
-  private static final HashedVersionFactory HASH_FACTORY = new HashedVersionFactoryImpl(URI_CODEC);
+  protected static final HashedVersionFactory HASH_FACTORY =
+      new HashedVersionFactoryImpl(URI_CODEC);
   private static final HashedVersion V0 = HASH_FACTORY.createVersionZero(NAME);
 
 
@@ -376,7 +377,7 @@ private void checkHistoryForDeltasWithInterrupt(final int interruptIndex, Wavele
    * Creates a delta of no-ops and builds the corresponding applied and
    * transformed delta objects.
    */
-  private static WaveletDeltaRecord makeDelta(HashedVersion appliedAtVersion, long timestamp,
+  protected static WaveletDeltaRecord makeDelta(HashedVersion appliedAtVersion, long timestamp,
       int numOps) throws InvalidProtocolBufferException {
     // Use no-op delta so the ops can actually apply.
     WaveletDelta delta = UTIL.makeNoOpDelta(appliedAtVersion, timestamp, numOps);